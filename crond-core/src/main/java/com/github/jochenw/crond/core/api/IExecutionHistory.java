@@ -0,0 +1,92 @@
+package com.github.jochenw.crond.core.api;
+
+import java.util.List;
+import java.util.function.Consumer;
+
+import com.github.jochenw.crond.core.api.IModel.Job;
+
+/** The history of job executions ("runs"). Separate from the
+ * {@link IModel}, because the history grows with every run, whereas the
+ * model changes rarely.
+ */
+public interface IExecutionHistory {
+	/** The outcome of a run.
+	 */
+	public enum Status {
+		/** The run has completed successfully.
+		 */
+		SUCCEEDED,
+		/** The run has failed.
+		 */
+		FAILED,
+		/** The run has been cancelled, because it exceeded its timeout.
+		 */
+		TIMED_OUT,
+		/** The run has been cancelled.
+		 */
+		CANCELLED
+	}
+
+	/** A single, terminated run.
+	 */
+	public interface RunRecord {
+		/** Returns the id of the job, which has been executed.
+		 * @return The {@link Job#getId() job id}.
+		 */
+		public Long getJobId();
+		/** Returns the id of the jobs owner.
+		 * @return The {@link Job#getUserId() user id}.
+		 */
+		public Long getUserId();
+		/** Returns the time, when the run has started.
+		 * @return The start time, in epoch milliseconds.
+		 */
+		public long getStartMillis();
+		/** Returns the time, when the run has terminated.
+		 * @return The end time, in epoch milliseconds.
+		 */
+		public long getEndMillis();
+		/** Returns the runs outcome.
+		 * @return The runs outcome.
+		 */
+		public Status getStatus();
+		/** Returns the runs exit code.
+		 * @return The runs exit code, 0, if the run has succeeded.
+		 */
+		public int getExitCode();
+		/** Returns the runs duration.
+		 * @return The runs duration, in milliseconds.
+		 */
+		public default long getDurationMillis() {
+			return getEndMillis() - getStartMillis();
+		}
+	}
+
+	/** Adds a terminated run to the history.
+	 * @param pRun The terminated run.
+	 */
+	public void add(RunRecord pRun);
+
+	/** Returns the most recent runs of the given job.
+	 * @param pJobId The {@link Job#getId() job id}.
+	 * @return The most recent runs of the given job, newest first. The
+	 *   number of runs is limited by the implementation.
+	 */
+	public List<RunRecord> getRecentRuns(Long pJobId);
+
+	/** Discards the recent runs of the given job, which has been deleted.
+	 * The runs remain available via {@link #forEachRun(long, long, Consumer)},
+	 * until they expire. The default implementation does nothing.
+	 * @param pJobId The {@link Job#getId() job id}.
+	 */
+	public default void remove(Long pJobId) {}
+
+	/** Invokes the given consumer for all runs, which have terminated
+	 * in the given time range, in the order of their addition.
+	 * @param pFromMillis The start of the time range (inclusive), in epoch milliseconds.
+	 * @param pToMillis The end of the time range (exclusive), in epoch milliseconds.
+	 * @param pConsumer The consumer, which is being invoked. The consumer
+	 *   must not add runs to the history.
+	 */
+	public void forEachRun(long pFromMillis, long pToMillis, Consumer<RunRecord> pConsumer);
+}
@@ -1,6 +1,9 @@
 package com.github.jochenw.crond.core.api;
 
+import java.util.List;
 import java.util.NoSuchElementException;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Predicate;
 
 import com.github.jochenw.afw.core.function.Functions.FailableConsumer;
 import com.github.jochenw.afw.core.util.Objects.DuplicateElementException;
@@ -39,6 +42,111 @@ public interface IModel {
 		 * afterwards.)
 		 */
 		public default void initialized() {}
+		/** A batch of mutations has been applied to the model.
+		 * The default implementation {@link Event#fire(Listener) fires}
+		 * the events one by one, so listeners, which aren't interested
+		 * in coalesced notifications, need not override this method.
+		 * @param pEvents The events, which describe the applied mutations,
+		 *   in the order of application.
+		 */
+		public default void batchApplied(List<Event> pEvents) {
+			pEvents.forEach((e) -> e.fire(this));
+		}
+	}
+	/** A listener, which is being invoked synchronously by the mutating
+	 * thread, while it holds the models write lock, rather than
+	 * asynchronously, like other listeners. Intended for internal
+	 * indexes, which must be consistent with the model. Implementations
+	 * must be quick, and must not block.
+	 */
+	public interface SynchronousListener extends Listener {
+	}
+	/** A single mutation of the model, as reported to a {@link Listener}.
+	 */
+	public interface Event {
+		public enum Type {
+			USER_ADDED, USER_UPDATED, USER_DELETED, JOB_ADDED, JOB_UPDATED, JOB_DELETED;
+		}
+		/** Returns the events type.
+		 * @return The events type.
+		 */
+		public Type getType();
+		/** Returns the affected user, if this is a user event, or null.
+		 * @return The affected user, if this is a user event, or null.
+		 */
+		public User getUser();
+		/** Returns the affected job, if this is a job event, or null.
+		 * @return The affected job, if this is a job event, or null.
+		 */
+		public Job getJob();
+		/** Reports this event to the given listener by invoking the
+		 * matching single event method.
+		 * @param pListener The listener, which is being notified.
+		 */
+		public default void fire(Listener pListener) {
+			switch (getType()) {
+			  case USER_ADDED: pListener.userAdded(getUser()); break;
+			  case USER_UPDATED: pListener.userUpdated(getUser()); break;
+			  case USER_DELETED: pListener.userDeleted(getUser()); break;
+			  case JOB_ADDED: pListener.jobAdded(getJob()); break;
+			  case JOB_UPDATED: pListener.jobUpdated(getJob()); break;
+			  case JOB_DELETED: pListener.jobDeleted(getJob()); break;
+			  default: throw new IllegalStateException("Invalid event type: " + getType());
+			}
+		}
+	}
+	/** A batch of mutations, which is being applied to the model as
+	 * a whole, or not at all. The methods have the same semantics as
+	 * the corresponding methods in {@link IModel}, except that the
+	 * mutations become visible to other threads, and are being
+	 * persisted, only after the batch has completed successfully.
+	 * @see IModel#batch(FailableConsumer)
+	 */
+	public interface Batch {
+		/** Creates a new user with the given email, and name.
+		 * @param pEmail The created users email. (Must be unique.)
+		 * @param pName The created users name.
+		 * @return The created user.
+		 * @throws DuplicateElementException The email address isn't unique.
+		 * @see IModel#addUser(String, String)
+		 */
+		public User addUser(String pEmail, String pName) throws DuplicateElementException;
+		/** Creates a new job with the given user id, and name.
+		 * @param pUserId The job owners {@link User#getId() user id}.
+		 * @param pName The jobs name.
+		 * @return The created job.
+		 * @throws DuplicateElementException The combination of {@code pUserId},
+		 *   and {@code pName} isn't unique.
+		 * @throws NoSuchElementException The given user id isn't valid.
+		 * @see IModel#addJob(Long, String)
+		 */
+		public Job addJob(Long pUserId, String pName) throws DuplicateElementException, NoSuchElementException;
+		/** Updates an existing user.
+		 * @param pUser The updated user.
+		 * @throws NoSuchElementException The given users id is unknown.
+		 * @throws DuplicateElementException The updated email address isn't unique.
+		 * @see IModel#updateUser(User)
+		 */
+		public void updateUser(User pUser) throws NoSuchElementException, DuplicateElementException;
+		/** Updates an existing job.
+		 * @param pJob The updated job.
+		 * @throws NoSuchElementException The given job id, or user id, isn't valid.
+		 * @throws DuplicateElementException The combination of user id, and name isn't unique.
+		 * @see IModel#updateJob(Job)
+		 */
+		public void updateJob(Job pJob) throws NoSuchElementException, DuplicateElementException;
+		/** Removes an existing user.
+		 * @param pUserId The removed users id.
+		 * @throws NoSuchElementException The user id is unknown.
+		 * @see IModel#removeUser(Long)
+		 */
+		public void removeUser(Long pUserId) throws NoSuchElementException;
+		/** Removes an existing job.
+		 * @param pJobId The removed jobs id.
+		 * @throws NoSuchElementException The job id is unknown.
+		 * @see IModel#removeJob(Long)
+		 */
+		public void removeJob(Long pJobId) throws NoSuchElementException;
 	}
 	public interface User {
 		/** The users id.
@@ -63,6 +171,15 @@ public interface IModel {
 		/** The jobs name. (Short description)
 		 */
 		public String getName();
+		/** The jobs schedule: A cron expression, as accepted by
+		 * {@link com.github.jochenw.crond.core.sched.CronExpression#compile(String)},
+		 * or null, if the job isn't scheduled. The default implementation
+		 * returns null, for implementations, which don't support schedules.
+		 * @return The jobs schedule, or null.
+		 */
+		public default String getSchedule() {
+			return null;
+		}
 	}
 
 	public void addListener(Listener pListener);
@@ -102,9 +219,9 @@ public interface IModel {
 	/** Updates an existing job.
 	 * @param pJob The updated job, with the same
 	 *   {@link Job#getId() job id}. All other fields
-	 *   ({@link Job#getUserId() user id}, {@link Job#getName() name})
-	 *   may be updated. However, the combination of user id, and
-	 *   name, must still be unique.
+	 *   ({@link Job#getUserId() user id}, {@link Job#getName() name},
+	 *   {@link Job#getSchedule() schedule}) may be updated. However,
+	 *   the combination of user id, and name, must still be unique.
 	 * @throws DuplicatelementException The combination of {@code pUserId},
 	 *   and {@code pName} isn't unique.
 	 * @throws NoSuchElementException The given user id isn't valid.
@@ -126,6 +243,15 @@ public interface IModel {
 	 * @param pUserId The requested users user id.
 	 */
 	public User getUserById(Long pUserId);
+	/** Returns the user with the given user id, if such a user exists,
+	 * or null. Equivalent to {@link #getUserById(Long)}, but avoids
+	 * boxing the user id.
+	 * @return The user with the given user id, or null.
+	 * @param pUserId The requested users user id.
+	 */
+	public default User getUserById(long pUserId) {
+		return getUserById(Long.valueOf(pUserId));
+	}
 	/** Returns the user with the given email address, if such a user
 	 * exists, or null.
 	 * @return The user with the given email address, or null.
@@ -138,6 +264,15 @@ public interface IModel {
 	 * @return The job with the given job id, or null.
 	 */
 	public Job getJobById(Long pJobId);
+	/** Returns the job with the given job id, if such a job exists,
+	 * or null. Equivalent to {@link #getJobById(Long)}, but avoids
+	 * boxing the job id.
+	 * @param pJobId The requested jobs id.
+	 * @return The job with the given job id, or null.
+	 */
+	public default Job getJobById(long pJobId) {
+		return getJobById(Long.valueOf(pJobId));
+	}
 	/** Returns the job with the given user id, and name,
 	 * if such a job exists, or null.
 	 * @param pUserId The requested jobs user id.
@@ -155,4 +290,112 @@ public interface IModel {
 	 *   every job, one by one.
 	 */
 	public void forEachJob(FailableConsumer<Job,?> pConsumer);
+	/** Iterates over all the jobs of the given user. The default
+	 * implementation scans all jobs, implementations are supposed to
+	 * override it with a method, that runs in O(jobs of that user).
+	 * @param pUserId The users id.
+	 * @param pConsumer The consumer, which is being invoked for
+	 *   every job of the given user, one by one.
+	 */
+	public default void forEachJobOfUser(Long pUserId, FailableConsumer<Job,?> pConsumer) {
+		forEachJob((j) -> {
+			if (pUserId.equals(j.getUserId())) {
+				pConsumer.accept(j);
+			}
+		});
+	}
+	/** Returns the number of jobs of the given user.
+	 * @param pUserId The users id.
+	 * @return The number of jobs of the given user.
+	 */
+	public default int countJobsOfUser(Long pUserId) {
+		final int[] count = new int[1];
+		forEachJobOfUser(pUserId, (j) -> count[0]++);
+		return count[0];
+	}
+	/** Returns a page of the users, which match the given query, in
+	 * the order of the queries sort keys. The default implementation
+	 * scans all users, and selects the page by a bounded heap (see
+	 * {@link ModelQuery#newSelector()}). Implementations are supposed to
+	 * override it, if they can answer the query more efficiently.
+	 * @param pQuery The query.
+	 * @return The requested page of users.
+	 */
+	public default List<User> queryUsers(UserQuery pQuery) {
+		final ModelQuery.Selector<User> selector = pQuery.newSelector();
+		forEachUser(selector::accept);
+		return selector.getResult();
+	}
+	/** Returns the number of users, which match the given queries
+	 * filters. The queries offset, and limit are ignored.
+	 * @param pQuery The query.
+	 * @return The number of matching users.
+	 */
+	public default int countUsers(UserQuery pQuery) {
+		final Predicate<User> predicate = pQuery.asPredicate();
+		final int[] count = new int[1];
+		forEachUser((u) -> {
+			if (predicate.test(u)) {
+				count[0]++;
+			}
+		});
+		return count[0];
+	}
+	/** Returns a page of the jobs, which match the given query, in
+	 * the order of the queries sort keys. The default implementation
+	 * scans all jobs (or all jobs of the queries user), and selects
+	 * the page by a bounded heap (see {@link ModelQuery#newSelector()}).
+	 * @param pQuery The query.
+	 * @return The requested page of jobs.
+	 */
+	public default List<Job> queryJobs(JobQuery pQuery) {
+		final ModelQuery.Selector<Job> selector = pQuery.newSelector();
+		if (pQuery.getUserId() == null) {
+			forEachJob(selector::accept);
+		} else {
+			forEachJobOfUser(pQuery.getUserId(), selector::accept);
+		}
+		return selector.getResult();
+	}
+	/** Returns the number of jobs, which match the given queries
+	 * filters. The queries offset, and limit are ignored.
+	 * @param pQuery The query.
+	 * @return The number of matching jobs.
+	 */
+	public default int countJobs(JobQuery pQuery) {
+		final Predicate<Job> predicate = pQuery.asPredicate();
+		final int[] count = new int[1];
+		final FailableConsumer<Job,?> counter = (j) -> {
+			if (predicate.test(j)) {
+				count[0]++;
+			}
+		};
+		if (pQuery.getUserId() == null) {
+			forEachJob(counter);
+		} else {
+			forEachJobOfUser(pQuery.getUserId(), counter);
+		}
+		return count[0];
+	}
+	/** Applies a batch of mutations as a whole: Either all of the mutations
+	 * are applied, or, if the consumer throws an exception (for example, a
+	 * {@link DuplicateElementException}), none of them. The batch is applied
+	 * under a single lock acquisition, persisted by a single write, and
+	 * reported to the listeners by a single invocation of
+	 * {@link Listener#batchApplied(List)}.
+	 * @param pBatch The consumer, which performs the mutations by invoking
+	 *   the given {@link Batch}. The {@link Batch} must not be used after
+	 *   the consumer returns.
+	 */
+	public void batch(FailableConsumer<Batch,?> pBatch);
+	/** Returns a future, which completes, when all mutations, that have
+	 * been performed so far, have been persisted. The default implementation
+	 * returns a completed future, which is suitable for models, that persist
+	 * every mutation synchronously.
+	 * @return A future, which completes, when all mutations, that have
+	 *   been performed so far, have been persisted.
+	 */
+	public default CompletableFuture<Void> flush() {
+		return CompletableFuture.completedFuture(null);
+	}
 }
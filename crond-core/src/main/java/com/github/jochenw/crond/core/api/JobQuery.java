@@ -0,0 +1,115 @@
+package com.github.jochenw.crond.core.api;
+
+import java.util.Objects;
+import java.util.function.Predicate;
+
+import com.github.jochenw.crond.core.api.IModel.Job;
+
+/** A query on the jobs of the {@link IModel}. In addition to the
+ * filters, a query may be restricted to the jobs of a single user,
+ * which backends can answer without scanning all jobs.
+ * @see IModel#queryJobs(JobQuery)
+ * @see IModel#countJobs(JobQuery)
+ */
+public class JobQuery extends ModelQuery<Job,JobQuery.Field> {
+	/** The fields, which may be filtered, or sorted.
+	 */
+	public enum Field {
+		ID, USER_ID, NAME;
+	}
+
+	/** A builder for job queries.
+	 */
+	public static class Builder extends AbstractBuilder<Field,Builder> {
+		private Long userId;
+
+		Builder() {
+			super(Field.class);
+		}
+
+		/** Restricts the query to the jobs of the given user.
+		 * @param pUserId The users id, or null (all users, the default).
+		 * @return This builder.
+		 */
+		public Builder userId(Long pUserId) {
+			userId = pUserId;
+			return this;
+		}
+
+		/** Creates the query.
+		 * @return The created query.
+		 */
+		public JobQuery build() {
+			return new JobQuery(this);
+		}
+	}
+
+	private final Long userId;
+
+	private JobQuery(Builder pBuilder) {
+		super(pBuilder);
+		userId = pBuilder.userId;
+	}
+
+	/** Returns a new builder.
+	 * @return A new builder.
+	 */
+	public static Builder builder() {
+		return new Builder();
+	}
+
+	/** Returns a new builder, which is initialized with this query, for
+	 * example, in order to request another page.
+	 * @return A new builder, which creates a copy of this query.
+	 */
+	public Builder toBuilder() {
+		return new Builder().copy(this).userId(userId);
+	}
+
+	/** Returns the id of the user, to whose jobs the query is restricted.
+	 * @return The user id, or null (all users).
+	 */
+	public Long getUserId() {
+		return userId;
+	}
+
+	@Override
+	public Predicate<Job> asPredicate() {
+		final Predicate<Job> predicate = super.asPredicate();
+		if (userId == null) {
+			return predicate;
+		} else {
+			return (j) -> userId.equals(j.getUserId())  &&  predicate.test(j);
+		}
+	}
+
+	@Override
+	public boolean equals(Object pOther) {
+		return super.equals(pOther)  &&  Objects.equals(userId, ((JobQuery) pOther).userId);
+	}
+
+	@Override
+	public int hashCode() {
+		return super.hashCode() * 31 + Objects.hashCode(userId);
+	}
+
+	@Override
+	protected Object getValue(Job pJob, Field pField) {
+		switch (pField) {
+		  case ID: return pJob.getId();
+		  case USER_ID: return pJob.getUserId();
+		  case NAME: return pJob.getName();
+		  default: throw new IllegalStateException("Invalid field: " + pField);
+		}
+	}
+
+	@Override
+	public boolean isNumeric(Field pField) {
+		return pField == Field.ID  ||  pField == Field.USER_ID;
+	}
+
+	@Override
+	public Long getId(Job pJob) {
+		return pJob.getId();
+	}
+}
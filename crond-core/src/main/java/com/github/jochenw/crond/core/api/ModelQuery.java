@@ -0,0 +1,447 @@
+package com.github.jochenw.crond.core.api;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.function.Predicate;
+
+import com.github.jochenw.afw.core.util.Objects;
+import com.github.jochenw.afw.core.util.Strings;
+
+/** Abstract base class for queries on the {@link IModel}: A query
+ * consists of filters (string patterns on the objects fields), sort
+ * keys, and a page (offset, and limit). Results are always ordered by
+ * the sort keys, and then by id (in the direction of the last sort key),
+ * so that consecutive pages are consistent.
+ * @param <O> The queried object type.
+ * @param <F> The type of the fields, which may be filtered, or sorted.
+ * @see UserQuery
+ * @see JobQuery
+ */
+public abstract class ModelQuery<O,F extends Enum<F>> {
+	/** A sort key: A field, and a direction.
+	 * @param <F> The field type.
+	 */
+	public static class SortKey<F> {
+		private final F field;
+		private final boolean ascending;
+
+		private SortKey(F pField, boolean pAscending) {
+			field = Objects.requireNonNull(pField, "Field");
+			ascending = pAscending;
+		}
+
+		/** Creates a new sort key.
+		 * @param <F> The field type.
+		 * @param pField The field, which is being sorted.
+		 * @param pAscending True for ascending order, false for descending order.
+		 * @return The created sort key.
+		 */
+		public static <F> SortKey<F> of(F pField, boolean pAscending) {
+			return new SortKey<>(pField, pAscending);
+		}
+
+		/** Returns the field, which is being sorted.
+		 * @return The field, which is being sorted.
+		 */
+		public F getField() { return field; }
+		/** Returns, whether the field is sorted in ascending order.
+		 * @return True for ascending order, false for descending order.
+		 */
+		public boolean isAscending() { return ascending; }
+
+		@Override
+		public boolean equals(Object pOther) {
+			if (!(pOther instanceof SortKey)) {
+				return false;
+			}
+			final SortKey<?> other = (SortKey<?>) pOther;
+			return field.equals(other.field)  &&  ascending == other.ascending;
+		}
+
+		@Override
+		public int hashCode() {
+			return field.hashCode() * 2 + (ascending ? 1 : 0);
+		}
+	}
+
+	/** Abstract base class for query builders.
+	 * @param <F> The field type.
+	 * @param <B> The builder type.
+	 */
+	public abstract static class AbstractBuilder<F extends Enum<F>,B extends AbstractBuilder<F,B>> {
+		private final Map<F,String> filters;
+		private final List<SortKey<F>> sortKeys = new ArrayList<>();
+		private int offset;
+		private int limit = Integer.MAX_VALUE;
+		private String startAt;
+
+		protected AbstractBuilder(Class<F> pFieldType) {
+			filters = new EnumMap<>(pFieldType);
+		}
+
+		@SuppressWarnings("unchecked")
+		protected B self() {
+			return (B) this;
+		}
+
+		/** Copies the filters, sort keys, start value, offset, and limit
+		 * of the given query into this builder.
+		 * @param pQuery The query, which is being copied.
+		 * @return This builder.
+		 */
+		protected B copy(ModelQuery<?,F> pQuery) {
+			filters.putAll(pQuery.getFilters());
+			sortKeys.addAll(pQuery.getSortKeys());
+			startAt = pQuery.getStartAt();
+			offset = pQuery.getOffset();
+			limit = pQuery.getLimit();
+			return self();
+		}
+
+		/** Adds a filter on the given field. The pattern may contain the
+		 * wildcards "*" (or "%"), and "?". Without wildcards, the pattern
+		 * matches every value, which contains it, ignoring case. A null,
+		 * or empty pattern removes the filter.
+		 * @param pField The filtered field.
+		 * @param pPattern The filter pattern.
+		 * @return This builder.
+		 */
+		public B filter(F pField, String pPattern) {
+			final F field = Objects.requireNonNull(pField, "Field");
+			if (pPattern == null  ||  pPattern.isEmpty()) {
+				filters.remove(field);
+			} else {
+				filters.put(field, pPattern);
+			}
+			return self();
+		}
+
+		/** Adds a sort key. The first sort key is the most significant.
+		 * @param pField The sorted field.
+		 * @param pAscending True for ascending order, false for descending order.
+		 * @return This builder.
+		 */
+		public B sort(F pField, boolean pAscending) {
+			sortKeys.add(SortKey.of(pField, pAscending));
+			return self();
+		}
+
+		/** Restricts the results to the objects, whose value of the first
+		 * sort key is at, or after the given value in the sort order.
+		 * Strings are compared ignoring case, so "b" starts at the first
+		 * value, that begins with "b", or "B". This allows to jump to a
+		 * letter without knowing the offset. Requires a sort key.
+		 * @param pValue The start value, or null (no restriction, the default).
+		 *   For numeric fields, this must be a decimal number.
+		 * @return This builder.
+		 */
+		public B startAt(String pValue) {
+			startAt = pValue;
+			return self();
+		}
+
+		/** Sets the number of leading results, which are being skipped.
+		 * @param pOffset The number of skipped results. Defaults to 0.
+		 * @return This builder.
+		 */
+		public B offset(int pOffset) {
+			if (pOffset < 0) {
+				throw new IllegalArgumentException("Invalid offset: " + pOffset);
+			}
+			offset = pOffset;
+			return self();
+		}
+
+		/** Sets the maximum number of results.
+		 * @param pLimit The maximum number of results. Defaults to
+		 *   {@link Integer#MAX_VALUE} (unlimited).
+		 * @return This builder.
+		 */
+		public B limit(int pLimit) {
+			if (pLimit < 0) {
+				throw new IllegalArgumentException("Invalid limit: " + pLimit);
+			}
+			limit = pLimit;
+			return self();
+		}
+	}
+
+	private final Map<F,String> filters;
+	private final List<SortKey<F>> sortKeys;
+	private final int offset, limit;
+	private final String startAt;
+
+	protected ModelQuery(AbstractBuilder<F,?> pBuilder) {
+		filters = Collections.unmodifiableMap(new EnumMap<>(pBuilder.filters));
+		sortKeys = List.copyOf(pBuilder.sortKeys);
+		offset = pBuilder.offset;
+		limit = pBuilder.limit;
+		startAt = pBuilder.startAt;
+		if (startAt != null  &&  sortKeys.isEmpty()) {
+			throw new IllegalStateException("A start value requires a sort key.");
+		}
+	}
+
+	/** Returns the filter patterns, by field.
+	 * @return The filter patterns, by field. Unfiltered fields are missing.
+	 */
+	public Map<F,String> getFilters() { return filters; }
+	/** Returns the sort keys, the most significant first.
+	 * @return The sort keys, the most significant first.
+	 */
+	public List<SortKey<F>> getSortKeys() { return sortKeys; }
+	/** Returns the number of leading results, which are being skipped.
+	 * @return The number of leading results, which are being skipped.
+	 */
+	public int getOffset() { return offset; }
+	/** Returns the maximum number of results.
+	 * @return The maximum number of results, or {@link Integer#MAX_VALUE}.
+	 */
+	public int getLimit() { return limit; }
+	/** Returns the start value of the first sort key.
+	 * @return The start value of the first sort key, or null.
+	 */
+	public String getStartAt() { return startAt; }
+	/** Returns, whether the query has any filters, or a start value.
+	 * @return True, if the query has any filters, or a start value.
+	 */
+	public boolean isFiltered() { return !filters.isEmpty()  ||  startAt != null; }
+
+	/** Queries are equal, if they have the same type, filters, sort keys,
+	 * start value, offset, and limit, so they may be used as cache keys.
+	 */
+	@Override
+	public boolean equals(Object pOther) {
+		if (pOther == null  ||  pOther.getClass() != getClass()) {
+			return false;
+		}
+		final ModelQuery<?,?> other = (ModelQuery<?,?>) pOther;
+		return filters.equals(other.filters)  &&  sortKeys.equals(other.sortKeys)
+			&&  java.util.Objects.equals(startAt, other.startAt)
+			&&  offset == other.offset  &&  limit == other.limit;
+	}
+
+	@Override
+	public int hashCode() {
+		return java.util.Objects.hash(filters, sortKeys, startAt, Integer.valueOf(offset), Integer.valueOf(limit));
+	}
+
+	/** Returns the value of the given field, either a {@link Long}, or a
+	 * {@link String}.
+	 * @param pObject The object, which is being queried.
+	 * @param pField The requested field.
+	 * @return The field value, possibly null.
+	 */
+	protected abstract Object getValue(O pObject, F pField);
+
+	/** Returns, whether the given field is numeric. Numeric field values
+	 * are {@link Long longs}, other field values are strings.
+	 * @param pField The field.
+	 * @return True, if the field is numeric.
+	 */
+	public abstract boolean isNumeric(F pField);
+
+	/** Returns the objects id.
+	 * @param pObject The object, which is being queried.
+	 * @return The objects id.
+	 */
+	public abstract Long getId(O pObject);
+
+	/** Returns a predicate, which implements the filters, and the start
+	 * value. Numeric fields are filtered by their decimal representation.
+	 * Null values never match a filter.
+	 * @return A predicate, which implements the filters.
+	 */
+	public Predicate<O> asPredicate() {
+		if (!isFiltered()) {
+			return (o) -> true;
+		}
+		final List<Map.Entry<F,Predicate<String>>> matchers = new ArrayList<>(filters.size());
+		filters.forEach((f,p) -> matchers.add(Map.entry(f, matcher(p))));
+		final Predicate<O> startPredicate;
+		if (startAt == null) {
+			startPredicate = null;
+		} else {
+			final SortKey<F> sk = sortKeys.get(0);
+			final Object start = getStartValue();
+			startPredicate = (o) -> {
+				final Object v = getValue(o, sk.getField());
+				if (v == null) {
+					// Nulls come first in ascending order.
+					return !sk.isAscending();
+				}
+				final int res = compareValues(v, start);
+				return sk.isAscending() ? res >= 0 : res <= 0;
+			};
+		}
+		return (o) -> {
+			for (int i = 0;  i < matchers.size();  i++) {
+				final Map.Entry<F,Predicate<String>> entry = matchers.get(i);
+				final Object v = getValue(o, entry.getKey());
+				if (v == null  ||  !entry.getValue().test(v.toString())) {
+					return false;
+				}
+			}
+			return startPredicate == null  ||  startPredicate.test(o);
+		};
+	}
+
+	/** Returns the start value, converted into the type of the first
+	 * sort key.
+	 * @return The start value, either a {@link Long}, or a {@link String},
+	 *   or null.
+	 * @throws IllegalArgumentException The first sort key is numeric, and
+	 *   the start value isn't a valid number.
+	 */
+	public Object getStartValue() {
+		if (startAt == null  ||  !isNumeric(sortKeys.get(0).getField())) {
+			return startAt;
+		}
+		try {
+			return Long.valueOf(startAt.trim());
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Invalid start value for a numeric field: " + startAt);
+		}
+	}
+
+	/** Returns a comparator, which implements the sort keys, followed by
+	 * the id (in the direction of the last sort key). Strings are compared ignoring case, and nulls come first
+	 * (in ascending order).
+	 * @return A comparator, which implements the sort keys.
+	 */
+	public Comparator<O> asComparator() {
+		Comparator<O> comparator = null;
+		for (SortKey<F> sk : sortKeys) {
+			final F field = sk.getField();
+			Comparator<O> c = Comparator.comparing((o) -> getValue(o, field), ModelQuery::compareValues);
+			if (!sk.isAscending()) {
+				c = c.reversed();
+			}
+			comparator = comparator == null ? c : comparator.thenComparing(c);
+		}
+		Comparator<O> idComparator = Comparator.comparing(this::getId);
+		if (!sortKeys.isEmpty()  &&  !sortKeys.get(sortKeys.size()-1).isAscending()) {
+			idComparator = idComparator.reversed();
+		}
+		return comparator == null ? idComparator : comparator.thenComparing(idComparator);
+	}
+
+	/** Compares two field values: Strings ignoring case, numbers
+	 * numerically, and nulls first.
+	 * @param pValue1 The first value.
+	 * @param pValue2 The second value.
+	 * @return A negative number, zero, or a positive number, if the
+	 *   first value is less than, equal to, or greater than the second.
+	 */
+	public static int compareValues(Object pValue1, Object pValue2) {
+		if (pValue1 == null) {
+			return pValue2 == null ? 0 : -1;
+		} else if (pValue2 == null) {
+			return 1;
+		} else if (pValue1 instanceof String) {
+			return ((String) pValue1).compareToIgnoreCase((String) pValue2);
+		} else {
+			return Long.compare(((Long) pValue1).longValue(), ((Long) pValue2).longValue());
+		}
+	}
+
+	/** Converts the given filter pattern into a string predicate.
+	 * @param pPattern The filter pattern.
+	 * @return A predicate, which matches the strings, that are selected
+	 *   by the pattern.
+	 */
+	public static Predicate<String> matcher(String pPattern) {
+		final String pattern = Objects.requireNonNull(pPattern, "Pattern").replace('%', '*');
+		if (pattern.indexOf('*') >= 0  ||  pattern.indexOf('?') >= 0) {
+			return Strings.matcher(pattern);
+		} else {
+			final String patternLc = pattern.toLowerCase();
+			return (s) -> s.toLowerCase().contains(patternLc);
+		}
+	}
+
+	/** Creates a new selector, which collects the requested page from the
+	 * objects, that are passed to it, in arbitrary order. Only the best
+	 * {@code offset+limit} objects are kept in a bounded heap, so
+	 * selecting a page from n objects takes O(n log(offset+limit)) time,
+	 * rather than O(n log n) for a full sort.
+	 * @return A new selector.
+	 */
+	public Selector<O> newSelector() {
+		return new Selector<>(asPredicate(), asComparator(), offset, limit);
+	}
+
+	/** Collects the requested page of a query from the objects, that are
+	 * passed to {@link #accept(Object)}.
+	 * @param <O> The object type.
+	 * @see ModelQuery#newSelector()
+	 */
+	public static class Selector<O> {
+		private final Predicate<O> predicate;
+		private final Comparator<O> comparator;
+		private final int offset, limit, capacity;
+		private final PriorityQueue<O> heap;
+		private final List<O> all;
+		private int count;
+
+		Selector(Predicate<O> pPredicate, Comparator<O> pComparator, int pOffset, int pLimit) {
+			predicate = pPredicate;
+			comparator = pComparator;
+			offset = pOffset;
+			limit = pLimit;
+			final long k = (long) pOffset + pLimit;
+			if (k >= Integer.MAX_VALUE) {
+				capacity = Integer.MAX_VALUE;
+				heap = null;
+				all = new ArrayList<>();
+			} else {
+				capacity = (int) k;
+				heap = new PriorityQueue<>(Math.max(1, Math.min(capacity, 1024)), pComparator.reversed());
+				all = null;
+			}
+		}
+
+		/** Called for every candidate object.
+		 * @param pObject The candidate object.
+		 */
+		public void accept(O pObject) {
+			if (!predicate.test(pObject)) {
+				return;
+			}
+			++count;
+			if (heap == null) {
+				all.add(pObject);
+			} else if (heap.size() < capacity) {
+				heap.add(pObject);
+			} else if (capacity > 0  &&  comparator.compare(pObject, heap.peek()) < 0) {
+				heap.poll();
+				heap.add(pObject);
+			}
+		}
+
+		/** Returns the number of objects, which matched the filters.
+		 * @return The number of objects, which matched the filters.
+		 */
+		public int getCount() {
+			return count;
+		}
+
+		/** Returns the requested page.
+		 * @return The requested page, in the order of the sort keys.
+		 */
+		public List<O> getResult() {
+			final List<O> list = heap == null ? all : new ArrayList<>(heap);
+			list.sort(comparator);
+			if (offset >= list.size()) {
+				return new ArrayList<>();
+			}
+			final int end = (int) Math.min(list.size(), (long) offset + limit);
+			return new ArrayList<>(list.subList(offset, end));
+		}
+	}
+}
@@ -0,0 +1,76 @@
+package com.github.jochenw.crond.core.api;
+
+import com.github.jochenw.crond.core.api.IModel.User;
+
+/** A query on the users of the {@link IModel}.
+ * @see IModel#queryUsers(UserQuery)
+ * @see IModel#countUsers(UserQuery)
+ */
+public class UserQuery extends ModelQuery<User,UserQuery.Field> {
+	/** The fields, which may be filtered, or sorted.
+	 */
+	public enum Field {
+		ID, EMAIL, NAME;
+	}
+
+	/** A builder for user queries.
+	 */
+	public static class Builder extends AbstractBuilder<Field,Builder> {
+		Builder() {
+			super(Field.class);
+		}
+
+		/** Creates the query.
+		 * @return The created query.
+		 */
+		public UserQuery build() {
+			return new UserQuery(this);
+		}
+	}
+
+	private UserQuery(Builder pBuilder) {
+		super(pBuilder);
+	}
+
+	/** Returns a new builder.
+	 * @return A new builder.
+	 */
+	public static Builder builder() {
+		return new Builder();
+	}
+
+	/** Returns a new builder, which is initialized with this query, for
+	 * example, in order to request another page.
+	 * @return A new builder, which creates a copy of this query.
+	 */
+	public Builder toBuilder() {
+		return new Builder().copy(this);
+	}
+
+	/** Returns a query, which selects all users, ordered by id.
+	 * @return A query, which selects all users, ordered by id.
+	 */
+	public static UserQuery all() {
+		return builder().build();
+	}
+
+	@Override
+	protected Object getValue(User pUser, Field pField) {
+		switch (pField) {
+		  case ID: return pUser.getId();
+		  case EMAIL: return pUser.getEmail();
+		  case NAME: return pUser.getName();
+		  default: throw new IllegalStateException("Invalid field: " + pField);
+		}
+	}
+
+	@Override
+	public boolean isNumeric(Field pField) {
+		return pField == Field.ID;
+	}
+
+	@Override
+	public Long getId(User pUser) {
+		return pUser.getId();
+	}
+}
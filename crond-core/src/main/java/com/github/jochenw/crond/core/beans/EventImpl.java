@@ -0,0 +1,46 @@
+package com.github.jochenw.crond.core.beans;
+
+import com.github.jochenw.afw.core.util.Objects;
+import com.github.jochenw.crond.core.api.IModel.Event;
+import com.github.jochenw.crond.core.api.IModel.Job;
+import com.github.jochenw.crond.core.api.IModel.User;
+
+public class EventImpl implements Event {
+	private final Type type;
+	private final User user;
+	private final Job job;
+
+	private EventImpl(Type pType, User pUser, Job pJob) {
+		type = pType;
+		user = pUser;
+		job = pJob;
+	}
+
+	@Override public Type getType() { return type; }
+	@Override public User getUser() { return user; }
+	@Override public Job getJob() { return job; }
+
+	public static EventImpl userAdded(User pUser) {
+		return new EventImpl(Type.USER_ADDED, Objects.requireNonNull(pUser, "User"), null);
+	}
+
+	public static EventImpl userUpdated(User pUser) {
+		return new EventImpl(Type.USER_UPDATED, Objects.requireNonNull(pUser, "User"), null);
+	}
+
+	public static EventImpl userDeleted(User pUser) {
+		return new EventImpl(Type.USER_DELETED, Objects.requireNonNull(pUser, "User"), null);
+	}
+
+	public static EventImpl jobAdded(Job pJob) {
+		return new EventImpl(Type.JOB_ADDED, null, Objects.requireNonNull(pJob, "Job"));
+	}
+
+	public static EventImpl jobUpdated(Job pJob) {
+		return new EventImpl(Type.JOB_UPDATED, null, Objects.requireNonNull(pJob, "Job"));
+	}
+
+	public static EventImpl jobDeleted(Job pJob) {
+		return new EventImpl(Type.JOB_DELETED, null, Objects.requireNonNull(pJob, "Job"));
+	}
+}
@@ -4,20 +4,26 @@ import com.github.jochenw.crond.core.api.IModel.Job;
 
 public class JobImpl implements Job {
 	private final Long id, userId;
-	private final String name;
+	private final String name, schedule;
 
-	private JobImpl(Long pId, Long pUserId, String pName) {
+	private JobImpl(Long pId, Long pUserId, String pName, String pSchedule) {
 		id = pId;
 		userId = pUserId;
 		name = pName;
+		schedule = pSchedule;
 	}
 
 	@Override public Long getId() { return id; }
 	@Override public Long getUserId() { return userId; }
 	@Override public String getName() { return name; }
+	@Override public String getSchedule() { return schedule; }
 
 	public static JobImpl of(Long pId, Long pUserId, String pName) {
-		return new JobImpl(pId, pUserId, pName);
+		return new JobImpl(pId, pUserId, pName, null);
+	}
+
+	public static JobImpl of(Long pId, Long pUserId, String pName, String pSchedule) {
+		return new JobImpl(pId, pUserId, pName, pSchedule);
 	}
 
 }
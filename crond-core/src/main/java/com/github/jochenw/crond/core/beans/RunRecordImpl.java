@@ -0,0 +1,53 @@
+package com.github.jochenw.crond.core.beans;
+
+import com.github.jochenw.afw.core.util.Objects;
+import com.github.jochenw.crond.core.api.IExecutionHistory.RunRecord;
+import com.github.jochenw.crond.core.api.IExecutionHistory.Status;
+
+public class RunRecordImpl implements RunRecord {
+	private final Long jobId, userId;
+	private final long startMillis, endMillis;
+	private final Status status;
+	private final int exitCode;
+
+	private RunRecordImpl(Long pJobId, Long pUserId, long pStartMillis, long pEndMillis, Status pStatus, int pExitCode) {
+		jobId = Objects.requireNonNull(pJobId, "Job id");
+		userId = Objects.requireNonNull(pUserId, "User id");
+		startMillis = pStartMillis;
+		endMillis = pEndMillis;
+		status = Objects.requireNonNull(pStatus, "Status");
+		exitCode = pExitCode;
+	}
+
+	public static RunRecordImpl of(Long pJobId, Long pUserId, long pStartMillis, long pEndMillis, Status pStatus, int pExitCode) {
+		return new RunRecordImpl(pJobId, pUserId, pStartMillis, pEndMillis, pStatus, pExitCode);
+	}
+
+	@Override public Long getJobId() { return jobId; }
+	@Override public Long getUserId() { return userId; }
+	@Override public long getStartMillis() { return startMillis; }
+	@Override public long getEndMillis() { return endMillis; }
+	@Override public Status getStatus() { return status; }
+	@Override public int getExitCode() { return exitCode; }
+
+	@Override
+	public boolean equals(Object pOther) {
+		if (pOther instanceof RunRecordImpl) {
+			final RunRecordImpl other = (RunRecordImpl) pOther;
+			return jobId.equals(other.jobId)  &&  userId.equals(other.userId)  &&  startMillis == other.startMillis
+					&&  endMillis == other.endMillis  &&  status == other.status  &&  exitCode == other.exitCode;
+		}
+		return false;
+	}
+
+	@Override
+	public int hashCode() {
+		return jobId.hashCode() * 31 + Long.hashCode(endMillis);
+	}
+
+	@Override
+	public String toString() {
+		return "RunRecord[jobId=" + jobId + ", userId=" + userId + ", start=" + startMillis + ", end=" + endMillis
+				+ ", status=" + status + ", exitCode=" + exitCode + "]";
+	}
+}
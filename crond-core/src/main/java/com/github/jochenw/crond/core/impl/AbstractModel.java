@@ -1,7 +1,7 @@
 package com.github.jochenw.crond.core.impl;
 
-import java.util.ArrayList;
 import java.util.List;
+import java.util.Properties;
 import java.util.function.Consumer;
 
 import com.github.jochenw.afw.core.log.ILog;
@@ -10,6 +10,8 @@ import com.github.jochenw.afw.di.api.IComponentFactoryAware;
 import com.github.jochenw.afw.di.api.ILifecycleController.TerminableListener;
 import com.github.jochenw.afw.di.api.LogInject;
 import com.github.jochenw.crond.core.api.IModel;
+import com.github.jochenw.crond.core.api.IModel.Event;
+import com.github.jochenw.crond.core.api.IModel.SynchronousListener;
 
 import jakarta.inject.Inject;
 
@@ -26,34 +28,111 @@ public abstract class AbstractModel implements IModel, TerminableListener {
 	/** Called to stop the model.
 	 */
 	@Override
-	public void shutdown() {}
+	public void shutdown() {
+		final ModelEventBus bus = eventBus;
+		if (bus != null) {
+			bus.shutdown(Long.parseLong(getProperty("model.events.blockTimeout", "10000")));
+		}
+	}
+
+	/** Returns the logger.
+	 * @return The logger.
+	 */
+	protected ILog getLog() {
+		return log;
+	}
+
+	/** Returns the value of the given configuration property, if
+	 * available, or the given default value.
+	 * @param pKey The property key.
+	 * @param pDefaultValue The default value, which is being returned,
+	 *   if no {@link Properties} object is available, or if the property
+	 *   isn't set.
+	 * @return The property value, or the default value.
+	 */
+	protected String getProperty(String pKey, String pDefaultValue) {
+		final Properties properties = componentFactory == null ? null : componentFactory.getInstance(Properties.class);
+		if (properties != null) {
+			final String value = properties.getProperty(pKey);
+			if (value != null  &&  value.trim().length() > 0) {
+				return value.trim();
+			}
+		}
+		return pDefaultValue;
+	}
+
+	private volatile ModelEventBus eventBus;
+
+	/** Returns the event bus, which dispatches the notifications to the
+	 * listeners. The event bus is being created upon the first invocation,
+	 * using the properties "model.events.overflow" (one of "block",
+	 * "drop-and-resync", or "coalesce", default "coalesce"),
+	 * "model.events.queueSize" (default 1024), "model.events.threads"
+	 * (default 2), and "model.events.blockTimeout" (milliseconds,
+	 * default 10000). The default policy never blocks the publishing
+	 * thread, which typically holds the models write lock.
+	 * @return The event bus.
+	 */
+	protected ModelEventBus getEventBus() {
+		ModelEventBus bus = eventBus;
+		if (bus == null) {
+			synchronized (this) {
+				bus = eventBus;
+				if (bus == null) {
+					final ModelEventBus.OverflowPolicy policy =
+							ModelEventBus.OverflowPolicy.of(getProperty("model.events.overflow", "coalesce"));
+					final int queueSize = Integer.parseInt(getProperty("model.events.queueSize", "1024"));
+					final int threads = Integer.parseInt(getProperty("model.events.threads", "2"));
+					final long blockTimeout = Long.parseLong(getProperty("model.events.blockTimeout", "10000"));
+					bus = new ModelEventBus(policy, queueSize, threads, blockTimeout, log);
+					eventBus = bus;
+				}
+			}
+		}
+		return bus;
+	}
 
-	private final List<Listener> listeners = new ArrayList<>();
+	/** Returns the event delivery statistics of the currently registered
+	 * listeners.
+	 * @return The event delivery statistics of the currently registered
+	 *   listeners.
+	 */
+	public List<ModelEventBus.ListenerStats> getListenerStats() {
+		return getEventBus().getStats();
+	}
 
 	@Override
 	public void addListener(Listener pListener) {
-		synchronized(listeners) {
-			listeners.add(pListener);
-		}
+		getEventBus().addListener(pListener);
 	}
 
 	@Override
 	public void removeListener(Listener pListener) {
-		synchronized(listeners) {
-			listeners.remove(pListener);
-		}
+		getEventBus().removeListener(pListener);
 	}
 
 	/** Called to invoke the listeners by invoking the
-	 * given consumer.
+	 * given consumer. The listeners are invoked asynchronously,
+	 * unless they are a {@link SynchronousListener}.
 	 * @param pEvent The event notification; typically the consumer
 	 *   will invoke a method on the {@link Listener} {@code pEvent}.
-	 *   Events are supposed to be very quick, rather than blocking
-	 *   resources, that are reserved, while the event operates.
 	 */
 	protected void note(Consumer<Listener> pEvent) {
-		synchronized(listeners) {
-			listeners.forEach(pEvent);
-		}
+		getEventBus().publish(pEvent);
 	}
+
+	/** Called to report a single mutation to the listeners.
+	 * @param pEvent The mutation, which is being reported.
+	 */
+	protected void note(Event pEvent) {
+		getEventBus().publish(pEvent);
+	}
+
+	/** Called to report a batch of mutations to the listeners.
+	 * @param pEvents The mutations, which are being reported.
+	 */
+	protected void note(List<Event> pEvents) {
+		getEventBus().publish(pEvents);
+	}
+
 }
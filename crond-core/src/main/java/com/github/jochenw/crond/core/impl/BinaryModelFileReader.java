@@ -0,0 +1,242 @@
+package com.github.jochenw.crond.core.impl;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+import com.github.jochenw.afw.di.util.Exceptions;
+import com.github.jochenw.crond.core.api.IModel.Job;
+import com.github.jochenw.crond.core.api.IModel.User;
+import com.github.jochenw.crond.core.beans.JobImpl;
+import com.github.jochenw.crond.core.beans.UserImpl;
+
+/** Reads a model file, which has been written by the
+ * {@link BinaryModelFileWriter}.
+ */
+public class BinaryModelFileReader implements ModelFileContents {
+	private final Map<Long,User> users = new HashMap<>();
+	private final Map<Long,Job> jobs = new HashMap<>();
+	private final String uri;
+	private int version, numUsers, numJobs;
+
+	private BinaryModelFileReader(String pUri) {
+		uri = pUri;
+	}
+
+	@Override
+	public Map<Long,User> getUsers() {
+		return users;
+	}
+
+	@Override
+	public Map<Long,Job> getJobs() {
+		return jobs;
+	}
+
+	public static BinaryModelFileReader read(Path pModelFile) {
+		return read(readAllBytes(pModelFile), pModelFile.toString());
+	}
+
+	public static BinaryModelFileReader read(byte[] pBytes, String pUri) {
+		final BinaryModelFileReader bmfr = new BinaryModelFileReader(pUri);
+		final ByteBuffer bb = ByteBuffer.wrap(pBytes);
+		bmfr.parseHeader(bb);
+		final Set<String> emailAddresses = new HashSet<>();
+		final Set<String> userIdsAndNames = new HashSet<>();
+		bmfr.parseUsers(bb, (u) -> {
+			if (bmfr.users.put(u.getId(), u) != null) {
+				throw bmfr.error("Duplicate user id: " + u.getId());
+			}
+			if (!emailAddresses.add(u.getEmail())) {
+				throw bmfr.error("Duplicate email address: " + u.getEmail());
+			}
+		});
+		bmfr.parseJobs(bb, (j) -> {
+			if (bmfr.jobs.put(j.getId(), j) != null) {
+				throw bmfr.error("Duplicate job id: " + j.getId());
+			}
+			if (!userIdsAndNames.add(j.getUserId() + ":" + j.getName())) {
+				throw bmfr.error("Duplicate combination of user id, and name: "
+						+ j.getUserId() + ", " + j.getName());
+			}
+		});
+		bmfr.parseEnd(bb);
+		return bmfr;
+	}
+
+	/** Reads the given model file, passing the users, and jobs to the given
+	 * sink. The users section is parsed by the current thread, while the jobs
+	 * section is parsed concurrently by a task, which is being passed to the
+	 * given executor. No maps are being created: The sink is responsible for
+	 * detecting duplicates.
+	 * @param pModelFile The model file, which is being read.
+	 * @param pSink The sink, which receives the users, and jobs.
+	 * @param pExecutor The executor, which runs the task, that parses the jobs.
+	 */
+	public static void load(Path pModelFile, ModelFileSink pSink, Executor pExecutor) {
+		final byte[] bytes = readAllBytes(pModelFile);
+		final BinaryModelFileReader bmfr = new BinaryModelFileReader(pModelFile.toString());
+		final ByteBuffer userBuffer = ByteBuffer.wrap(bytes);
+		bmfr.parseHeader(userBuffer);
+		// Find the start of the jobs section by skipping the users, without decoding them.
+		final ByteBuffer jobBuffer = userBuffer.duplicate();
+		bmfr.skipUsers(jobBuffer);
+		final CompletableFuture<Void> jobsFuture = CompletableFuture.runAsync(() -> {
+			bmfr.parseJobs(jobBuffer, pSink::addJob);
+			bmfr.parseEnd(jobBuffer);
+		}, pExecutor);
+		try {
+			bmfr.parseUsers(userBuffer, pSink::addUser);
+		} finally {
+			try {
+				jobsFuture.join();
+			} catch (CompletionException e) {
+				throw Exceptions.show(e.getCause());
+			}
+		}
+	}
+
+	private static byte[] readAllBytes(Path pModelFile) {
+		try {
+			return Files.readAllBytes(pModelFile);
+		} catch (IOException ioe) {
+			throw new UncheckedIOException(ioe);
+		}
+	}
+
+	private void parseHeader(ByteBuffer pBuffer) {
+		if (pBuffer.remaining() < BinaryModelFileWriter.HEADER_SIZE) {
+			throw error("Incomplete header");
+		}
+		final CRC32 crc = new CRC32();
+		crc.update(pBuffer.array(), 0, BinaryModelFileWriter.HEADER_SIZE-4);
+		if (pBuffer.getInt(0) != BinaryModelFileWriter.MAGIC) {
+			throw error("Invalid magic number");
+		}
+		if ((int) crc.getValue() != pBuffer.getInt(BinaryModelFileWriter.HEADER_SIZE-4)) {
+			throw error("Header checksum mismatch");
+		}
+		version = pBuffer.getInt(4);
+		if (version < 1  ||  version > BinaryModelFileWriter.VERSION) {
+			throw error("Unsupported format version: " + version);
+		}
+		numUsers = pBuffer.getInt(8);
+		numJobs = pBuffer.getInt(12);
+		final long bodyLength = pBuffer.getLong(16);
+		if (numUsers < 0  ||  numJobs < 0
+				||  bodyLength != pBuffer.capacity() - BinaryModelFileWriter.HEADER_SIZE) {
+			throw error("Invalid header, or incomplete file");
+		}
+		crc.reset();
+		crc.update(pBuffer.array(), BinaryModelFileWriter.HEADER_SIZE, (int) bodyLength);
+		if ((int) crc.getValue() != pBuffer.getInt(24)) {
+			throw error("Body checksum mismatch");
+		}
+		pBuffer.position(BinaryModelFileWriter.HEADER_SIZE);
+	}
+
+	private void parseUsers(ByteBuffer pBuffer, Consumer<User> pConsumer) {
+		try {
+			for (int i = 0;  i < numUsers;  i++) {
+				final Long userId = Long.valueOf(getVarLong(pBuffer));
+				final String email = getString(pBuffer);
+				final String name = getString(pBuffer);
+				if (email == null) {
+					throw error("Missing email address for user id: " + userId);
+				}
+				pConsumer.accept(UserImpl.of(userId, email, name));
+			}
+		} catch (BufferUnderflowException e) {
+			throw error("Unexpected end of file");
+		}
+	}
+
+	private void skipUsers(ByteBuffer pBuffer) {
+		try {
+			for (int i = 0;  i < numUsers;  i++) {
+				getVarLong(pBuffer);
+				skipString(pBuffer);
+				skipString(pBuffer);
+			}
+		} catch (BufferUnderflowException e) {
+			throw error("Unexpected end of file");
+		}
+	}
+
+	private void parseJobs(ByteBuffer pBuffer, Consumer<Job> pConsumer) {
+		try {
+			for (int i = 0;  i < numJobs;  i++) {
+				final Long jobId = Long.valueOf(getVarLong(pBuffer));
+				final Long userId = Long.valueOf(getVarLong(pBuffer));
+				final String name = getString(pBuffer);
+				if (name == null) {
+					throw error("Missing name for job id: " + jobId);
+				}
+				final String schedule = version >= 2 ? getString(pBuffer) : null;
+				pConsumer.accept(JobImpl.of(jobId, userId, name, schedule));
+			}
+		} catch (BufferUnderflowException e) {
+			throw error("Unexpected end of file");
+		}
+	}
+
+	private void parseEnd(ByteBuffer pBuffer) {
+		if (pBuffer.hasRemaining()) {
+			throw error("Unexpected data after the last job");
+		}
+	}
+
+	private long getVarLong(ByteBuffer pBuffer) {
+		long value = 0;
+		for (int shift = 0;  shift < 64;  shift += 7) {
+			final byte b = pBuffer.get();
+			value |= ((long) (b & 0x7F)) << shift;
+			if ((b & 0x80) == 0) {
+				return value;
+			}
+		}
+		throw error("Invalid variable length integer");
+	}
+
+	private int getStringLength(ByteBuffer pBuffer) {
+		final long length = getVarLong(pBuffer) - 1;
+		if (length < -1  ||  length > pBuffer.remaining()) {
+			throw error("Invalid string length: " + length);
+		}
+		return (int) length;
+	}
+
+	private String getString(ByteBuffer pBuffer) {
+		final int length = getStringLength(pBuffer);
+		if (length == -1) {
+			return null;
+		}
+		final String s = new String(pBuffer.array(), pBuffer.position(), length, StandardCharsets.UTF_8);
+		pBuffer.position(pBuffer.position() + length);
+		return s;
+	}
+
+	private void skipString(ByteBuffer pBuffer) {
+		final int length = getStringLength(pBuffer);
+		if (length > 0) {
+			pBuffer.position(pBuffer.position() + length);
+		}
+	}
+
+	private IllegalStateException error(String pMsg) {
+		return new IllegalStateException("Invalid binary model file " + uri + ": " + pMsg);
+	}
+}
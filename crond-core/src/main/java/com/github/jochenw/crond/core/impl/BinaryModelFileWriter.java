@@ -0,0 +1,141 @@
+package com.github.jochenw.crond.core.impl;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.zip.CRC32;
+
+import com.github.jochenw.crond.core.api.IModel.Job;
+import com.github.jochenw.crond.core.api.IModel.User;
+
+/** Writes the model in a compact binary format, as an alternative to
+ * the {@link XmlModelFileWriter XML format}.
+ *
+ * The file starts with a header of {@link #HEADER_SIZE} bytes: The magic
+ * number {@link #MAGIC} (int), the format version (int), the number of
+ * users (int), the number of jobs (int), the body length (long), the CRC32
+ * checksum of the body (int), and the CRC32 checksum of the preceding
+ * header fields (int). All fixed size numbers are big endian.
+ *
+ * The body contains the users (id, email, and name), followed by the jobs
+ * (id, user id, name, and schedule). Version 1 files lack the schedule. Ids are written as unsigned variable length
+ * integers (7 bits per byte, least significant group first). Strings are
+ * written as a varint (the length of the UTF-8 encoding, plus one, or zero
+ * for null), followed by the UTF-8 bytes.
+ */
+public class BinaryModelFileWriter {
+	/** The magic number, which identifies a binary model file ("CRDM").
+	 */
+	public static final int MAGIC = 0x4352444D;
+	/** The current format version.
+	 */
+	public static final int VERSION = 2;
+	/** The size of the header, in bytes.
+	 */
+	public static final int HEADER_SIZE = 32;
+
+	private ByteBuffer buffer = ByteBuffer.allocate(8192);
+
+	/** Writes the given users, and jobs to the given model file. The data
+	 * is written to a temporary file first, which is forced to the storage
+	 * device, and moved to the model files location atomically afterwards.
+	 * @param pModelFile The model file, which is being written.
+	 * @param pUsers The users, which are being written.
+	 * @param pJobs The jobs, which are being written.
+	 */
+	public void write(Path pModelFile, Collection<User> pUsers, Collection<Job> pJobs) {
+		final Path tempFile = pModelFile.resolveSibling(pModelFile.getFileName().toString() + ".tmp");
+		try {
+			try (FileChannel fc = FileChannel.open(tempFile, StandardOpenOption.CREATE,
+					                               StandardOpenOption.TRUNCATE_EXISTING,
+					                               StandardOpenOption.WRITE);
+				 OutputStream os = Channels.newOutputStream(fc);
+				 BufferedOutputStream bos = new BufferedOutputStream(os)) {
+				write(pUsers, pJobs, bos);
+				bos.flush();
+				fc.force(true);
+			}
+			Files.move(tempFile, pModelFile, StandardCopyOption.REPLACE_EXISTING,
+					   StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException ioe) {
+			throw new UncheckedIOException(ioe);
+		}
+	}
+
+	public void write(Collection<User> pUsers, Collection<Job> pJobs, OutputStream pOut) throws IOException {
+		buffer.clear();
+		buffer.position(HEADER_SIZE);
+		int users = 0;
+		if (pUsers != null) {
+			for (User u : pUsers) {
+				putVarLong(u.getId().longValue());
+				putString(u.getEmail());
+				putString(u.getName());
+				++users;
+			}
+		}
+		int jobs = 0;
+		if (pJobs != null) {
+			for (Job j : pJobs) {
+				putVarLong(j.getId().longValue());
+				putVarLong(j.getUserId().longValue());
+				putString(j.getName());
+				putString(j.getSchedule());
+				++jobs;
+			}
+		}
+		final int bodyLength = buffer.position() - HEADER_SIZE;
+		final CRC32 crc = new CRC32();
+		crc.update(buffer.array(), HEADER_SIZE, bodyLength);
+		buffer.putInt(0, MAGIC);
+		buffer.putInt(4, VERSION);
+		buffer.putInt(8, users);
+		buffer.putInt(12, jobs);
+		buffer.putLong(16, bodyLength);
+		buffer.putInt(24, (int) crc.getValue());
+		crc.reset();
+		crc.update(buffer.array(), 0, HEADER_SIZE-4);
+		buffer.putInt(HEADER_SIZE-4, (int) crc.getValue());
+		pOut.write(buffer.array(), 0, buffer.position());
+	}
+
+	private void putVarLong(long pValue) {
+		ensureCapacity(10);
+		long v = pValue;
+		while ((v & ~0x7FL) != 0) {
+			buffer.put((byte) ((v & 0x7F) | 0x80));
+			v >>>= 7;
+		}
+		buffer.put((byte) v);
+	}
+
+	private void putString(String pValue) {
+		if (pValue == null) {
+			putVarLong(0);
+		} else {
+			final byte[] bytes = pValue.getBytes(StandardCharsets.UTF_8);
+			putVarLong(bytes.length + 1L);
+			ensureCapacity(bytes.length);
+			buffer.put(bytes);
+		}
+	}
+
+	private void ensureCapacity(int pBytes) {
+		if (buffer.remaining() < pBytes) {
+			final ByteBuffer bb = ByteBuffer.allocate(Math.max(buffer.capacity()*2, buffer.position() + pBytes + 64));
+			buffer.flip();
+			bb.put(buffer);
+			buffer = bb;
+		}
+	}
+}
@@ -0,0 +1,537 @@
+package com.github.jochenw.crond.core.impl;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Clock;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.github.jochenw.afw.core.util.Objects;
+import com.github.jochenw.crond.core.api.IExecutionHistory;
+import com.github.jochenw.crond.core.beans.RunRecordImpl;
+
+/** An {@link IExecutionHistory}, which appends the runs to segment files
+ * of fixed size records, and keeps the most recent runs of every job in
+ * memory.
+ *
+ * Every segment file starts with a header of {@link #HEADER_SIZE} bytes:
+ * The magic number {@link #MAGIC} (int), the format version (int), the
+ * record size (int), and a reserved int. The header is followed by
+ * records of {@link #RECORD_SIZE} bytes: The job id (long), the user id
+ * (long), the start time (long), the end time (long), the status (int,
+ * ordinal + 1, so that zero marks an incomplete write), and the exit
+ * code (int). If a segment is full, a new segment is started.
+ *
+ * For every block of {@link #BLOCK_SIZE} records, a sparse in-memory index
+ * holds the minimum, and maximum end time, so that time range queries
+ * read only the blocks, which may contain matching records. Because the
+ * runs are added in the order of their termination, the blocks are
+ * mostly ordered by their end times.
+ *
+ * Whole segments are dropped, if their youngest run is older than the
+ * maximum age, or if the total size exceeds the maximum size, oldest
+ * first. The segment, which is currently written, is never dropped.
+ *
+ * Upon {@link #open()}, all segments are scanned to rebuild the index,
+ * and the per job rings of recent runs.
+ */
+public class FileExecutionHistory implements IExecutionHistory {
+	/** The magic number, which identifies a segment file ("CRNH").
+	 */
+	public static final int MAGIC = 0x43524E48;
+	/** The current format version.
+	 */
+	public static final int VERSION = 1;
+	/** The size of the segment header, in bytes.
+	 */
+	public static final int HEADER_SIZE = 16;
+	/** The size of a record, in bytes.
+	 */
+	public static final int RECORD_SIZE = 40;
+	/** The number of records per sparse index entry.
+	 */
+	public static final int BLOCK_SIZE = 64;
+	private static final Pattern SEGMENT_NAME = Pattern.compile("runs-(\\d{10})\\.seg");
+	private static final Status[] STATUSES = Status.values();
+
+	/** A segment file, and its sparse index.
+	 */
+	private static final class Segment {
+		private final long number;
+		private final Path file;
+		private final FileChannel channel;
+		private int count;
+		private long minEnd = Long.MAX_VALUE, maxEnd = Long.MIN_VALUE;
+		private long[] blockMin = new long[16], blockMax = new long[16];
+		/** The maximum end time of all blocks up to, and including the
+		 * given block. Ascending, so that the first block, which may
+		 * contain a given time, can be found by a binary search.
+		 */
+		private long[] prefixMax = new long[16];
+		private int blocks;
+
+		Segment(long pNumber, Path pFile, FileChannel pChannel) {
+			number = pNumber;
+			file = pFile;
+			channel = pChannel;
+		}
+
+		long size() {
+			return HEADER_SIZE + (long) count * RECORD_SIZE;
+		}
+
+		void index(long pEndMillis) {
+			final int block = count / BLOCK_SIZE;
+			if (block == blocks) {
+				if (block == blockMin.length) {
+					blockMin = Arrays.copyOf(blockMin, block*2);
+					blockMax = Arrays.copyOf(blockMax, block*2);
+					prefixMax = Arrays.copyOf(prefixMax, block*2);
+				}
+				blockMin[block] = Long.MAX_VALUE;
+				blockMax[block] = Long.MIN_VALUE;
+				++blocks;
+			}
+			blockMin[block] = Math.min(blockMin[block], pEndMillis);
+			blockMax[block] = Math.max(blockMax[block], pEndMillis);
+			prefixMax[block] = block == 0 ? blockMax[0] : Math.max(prefixMax[block-1], blockMax[block]);
+			minEnd = Math.min(minEnd, pEndMillis);
+			maxEnd = Math.max(maxEnd, pEndMillis);
+			++count;
+		}
+
+		/** Returns the first block, which may contain runs with the given
+		 * end time, or later.
+		 */
+		int firstBlock(long pFromMillis) {
+			int low = 0, high = blocks;
+			while (low < high) {
+				final int mid = (low + high) >>> 1;
+				if (prefixMax[mid] < pFromMillis) {
+					low = mid + 1;
+				} else {
+					high = mid;
+				}
+			}
+			return low;
+		}
+	}
+
+	/** The most recent runs of a single job. Every run occupies four
+	 * longs: The user id, the start time, the end time, and the status
+	 * (upper 32 bits), and exit code (lower 32 bits). The array starts
+	 * small, and is doubled, until it holds the configured number of runs,
+	 * so that jobs, which run rarely, don't occupy a full ring.
+	 */
+	private static final class Ring {
+		private static final int INITIAL_SIZE = 4;
+		private long[] runs;
+		private int next, count;
+
+		Ring(int pMaxSize) {
+			runs = new long[Math.min(pMaxSize, INITIAL_SIZE) * 4];
+		}
+
+		int capacity() {
+			return runs.length / 4;
+		}
+
+		void add(int pMaxSize, long pUserId, long pStartMillis, long pEndMillis, long pStatusAndExitCode) {
+			int capacity = capacity();
+			if (count == capacity  &&  capacity < pMaxSize) {
+				// Nothing has been overwritten yet, so the runs are in order.
+				capacity = Math.min(capacity * 2, pMaxSize);
+				runs = Arrays.copyOf(runs, capacity * 4);
+				next = count;
+			}
+			final int offset = next * 4;
+			runs[offset] = pUserId;
+			runs[offset+1] = pStartMillis;
+			runs[offset+2] = pEndMillis;
+			runs[offset+3] = pStatusAndExitCode;
+			next = (next + 1) % capacity;
+			if (count < capacity) {
+				++count;
+			}
+		}
+	}
+
+	private final Path dir;
+	private final int ringSize;
+	private final long segmentSize, maxAgeMillis, maxSize;
+	private final Clock clock;
+	private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+	private final List<Segment> segments = new ArrayList<>();
+	private final Map<Long,Ring> rings = new HashMap<>();
+	private final ByteBuffer writeBuffer = ByteBuffer.allocate(RECORD_SIZE);
+	private long totalSize;
+
+	/** Creates a new instance.
+	 * @param pDir The directory, which contains the segment files.
+	 * @param pRingSize The number of recent runs, which are kept in memory per job.
+	 * @param pSegmentSize The maximum size of a segment file, in bytes.
+	 * @param pMaxAgeMillis The maximum age of a segment, in milliseconds.
+	 * @param pMaxSize The maximum total size of the segment files, in bytes.
+	 * @param pClock The clock, which is being used to determine the segments age.
+	 */
+	public FileExecutionHistory(Path pDir, int pRingSize, long pSegmentSize, long pMaxAgeMillis, long pMaxSize,
+			                    Clock pClock) {
+		dir = Objects.requireNonNull(pDir, "Directory");
+		if (pRingSize <= 0) {
+			throw new IllegalArgumentException("Invalid ring size: " + pRingSize);
+		}
+		if (pSegmentSize < 4096) {
+			throw new IllegalArgumentException("Invalid segment size: " + pSegmentSize);
+		}
+		if (pMaxAgeMillis <= 0) {
+			throw new IllegalArgumentException("Invalid maximum age: " + pMaxAgeMillis);
+		}
+		if (pMaxSize < pSegmentSize) {
+			throw new IllegalArgumentException("Invalid maximum size: " + pMaxSize);
+		}
+		ringSize = pRingSize;
+		segmentSize = pSegmentSize;
+		maxAgeMillis = pMaxAgeMillis;
+		maxSize = pMaxSize;
+		clock = Objects.requireNonNull(pClock, "Clock");
+	}
+
+	/** Creates a new instance, which is configured by the following properties:
+	 * <ul>
+	 *   <li>{@code history.ringSize}: The number of recent runs, which are
+	 *     kept in memory per job (default 16).</li>
+	 *   <li>{@code history.segmentSize}: The maximum size of a segment file,
+	 *     in bytes (default 16777216).</li>
+	 *   <li>{@code history.maxAge}: The maximum age of a segment, in
+	 *     milliseconds (default 2592000000, 30 days).</li>
+	 *   <li>{@code history.maxSize}: The maximum total size of the segment
+	 *     files, in bytes (default 1073741824).</li>
+	 * </ul>
+	 * @param pDir The directory, which contains the segment files.
+	 * @param pProperties The configuration properties.
+	 * @param pClock The clock, which is being used to determine the segments age.
+	 * @return The created instance, which must still be {@link #open() opened}.
+	 */
+	public static FileExecutionHistory of(Path pDir, Properties pProperties, Clock pClock) {
+		final Properties props = Objects.requireNonNull(pProperties, "Properties");
+		return new FileExecutionHistory(pDir, Integer.parseInt(props.getProperty("history.ringSize", "16")),
+				Long.parseLong(props.getProperty("history.segmentSize", "16777216")),
+				Long.parseLong(props.getProperty("history.maxAge", "2592000000")),
+				Long.parseLong(props.getProperty("history.maxSize", "1073741824")), pClock);
+	}
+
+	/** Opens the existing segment files, rebuilds the index, and the rings
+	 * of recent runs, and drops expired segments. An incomplete record at
+	 * the end of the last segment is discarded.
+	 * @throws IllegalStateException A segment file is invalid.
+	 */
+	public void open() {
+		lock.writeLock().lock();
+		try {
+			Files.createDirectories(dir);
+			final List<Path> files = new ArrayList<>();
+			try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir)) {
+				for (Path p : ds) {
+					if (SEGMENT_NAME.matcher(p.getFileName().toString()).matches()) {
+						files.add(p);
+					}
+				}
+			}
+			Collections.sort(files);
+			for (int i = 0;  i < files.size();  i++) {
+				final Path file = files.get(i);
+				final Matcher m = SEGMENT_NAME.matcher(file.getFileName().toString());
+				m.matches();
+				final Segment segment = new Segment(Long.parseLong(m.group(1)), file,
+						FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE));
+				segments.add(segment);
+				scan(segment, i == files.size()-1);
+				totalSize += segment.size();
+			}
+			if (segments.isEmpty()) {
+				segments.add(newSegment(1));
+				totalSize += HEADER_SIZE;
+			}
+			expire();
+		} catch (IOException ioe) {
+			throw new UncheckedIOException(ioe);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	private void scan(Segment pSegment, boolean pLast) throws IOException {
+		final FileChannel fc = pSegment.channel;
+		final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+		read(fc, header, 0);
+		if (header.limit() < HEADER_SIZE  ||  header.getInt(0) != MAGIC) {
+			throw new IllegalStateException("Invalid segment file " + pSegment.file + ": Invalid magic number");
+		}
+		if (header.getInt(4) != VERSION) {
+			throw new IllegalStateException("Invalid segment file " + pSegment.file + ": Unsupported version "
+					+ header.getInt(4));
+		}
+		if (header.getInt(8) != RECORD_SIZE) {
+			throw new IllegalStateException("Invalid segment file " + pSegment.file + ": Invalid record size "
+					+ header.getInt(8));
+		}
+		final ByteBuffer bb = ByteBuffer.allocate(BLOCK_SIZE * RECORD_SIZE);
+		final long size = fc.size();
+		long pos = HEADER_SIZE;
+		while (pos < size) {
+			read(fc, bb, pos);
+			int offset = 0;
+			while (offset + RECORD_SIZE <= bb.limit()) {
+				final int status = bb.getInt(offset + 32);
+				if (status <= 0  ||  status > STATUSES.length) {
+					break;
+				}
+				addToRing(bb.getLong(offset), bb.getLong(offset+8), bb.getLong(offset+16), bb.getLong(offset+24),
+						status, bb.getInt(offset+36));
+				pSegment.index(bb.getLong(offset+24));
+				offset += RECORD_SIZE;
+			}
+			pos += offset;
+			if (offset < bb.limit()  ||  bb.limit() < bb.capacity()) {
+				break;
+			}
+		}
+		if (pos < size) {
+			if (!pLast) {
+				throw new IllegalStateException("Invalid segment file " + pSegment.file
+						+ ": Invalid record at position " + pos);
+			}
+			// An incomplete write: Discard the remainder of the segment.
+			fc.truncate(pos);
+		}
+	}
+
+	/** Reads from the given position, until the buffer is full, or the
+	 * end of the file has been reached. Upon return, the buffers position
+	 * is zero, and its limit is the number of bytes read.
+	 */
+	private static void read(FileChannel pChannel, ByteBuffer pBuffer, long pPosition) throws IOException {
+		pBuffer.clear();
+		while (pBuffer.hasRemaining()) {
+			final int res = pChannel.read(pBuffer, pPosition + pBuffer.position());
+			if (res == -1) {
+				break;
+			}
+		}
+		pBuffer.flip();
+	}
+
+	private Segment newSegment(long pNumber) throws IOException {
+		final Path file = dir.resolve(String.format("runs-%010d.seg", Long.valueOf(pNumber)));
+		final FileChannel fc = FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ,
+				StandardOpenOption.WRITE);
+		final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+		header.putInt(MAGIC).putInt(VERSION).putInt(RECORD_SIZE).putInt(0).flip();
+		while (header.hasRemaining()) {
+			fc.write(header, header.position());
+		}
+		return new Segment(pNumber, file, fc);
+	}
+
+	private void addToRing(long pJobId, long pUserId, long pStartMillis, long pEndMillis, int pStatus, int pExitCode) {
+		final Long jobId = Long.valueOf(pJobId);
+		Ring ring = rings.get(jobId);
+		if (ring == null) {
+			ring = new Ring(ringSize);
+			rings.put(jobId, ring);
+		}
+		ring.add(ringSize, pUserId, pStartMillis, pEndMillis, ((long) pStatus << 32) | (pExitCode & 0xffffffffL));
+	}
+
+	@Override
+	public void add(RunRecord pRun) {
+		final RunRecord run = Objects.requireNonNull(pRun, "Run");
+		final int status = run.getStatus().ordinal() + 1;
+		lock.writeLock().lock();
+		try {
+			Segment segment = segments.get(segments.size()-1);
+			final boolean roll = segment.size() + RECORD_SIZE > segmentSize;
+			if (roll) {
+				segment = newSegment(segment.number + 1);
+				segments.add(segment);
+				totalSize += HEADER_SIZE;
+			}
+			final ByteBuffer bb = writeBuffer;
+			bb.clear();
+			bb.putLong(run.getJobId().longValue()).putLong(run.getUserId().longValue())
+				.putLong(run.getStartMillis()).putLong(run.getEndMillis())
+				.putInt(status).putInt(run.getExitCode()).flip();
+			final long pos = segment.size();
+			while (bb.hasRemaining()) {
+				segment.channel.write(bb, pos + bb.position());
+			}
+			segment.index(run.getEndMillis());
+			totalSize += RECORD_SIZE;
+			addToRing(run.getJobId().longValue(), run.getUserId().longValue(), run.getStartMillis(),
+					run.getEndMillis(), status, run.getExitCode());
+			if (roll) {
+				expire();
+			}
+		} catch (IOException ioe) {
+			throw new UncheckedIOException(ioe);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/** Drops the segments, which have expired, either because of their
+	 * age, or because the total size is exceeded. Invoked automatically,
+	 * whenever a new segment is started.
+	 */
+	public void expire() {
+		lock.writeLock().lock();
+		try {
+			final long minEnd = clock.millis() - maxAgeMillis;
+			while (segments.size() > 1) {
+				final Segment segment = segments.get(0);
+				if (segment.maxEnd >= minEnd  &&  totalSize <= maxSize) {
+					break;
+				}
+				segment.channel.close();
+				Files.delete(segment.file);
+				segments.remove(0);
+				totalSize -= segment.size();
+			}
+		} catch (IOException ioe) {
+			throw new UncheckedIOException(ioe);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	@Override
+	public void remove(Long pJobId) {
+		final Long jobId = Objects.requireNonNull(pJobId, "Job id");
+		lock.writeLock().lock();
+		try {
+			rings.remove(jobId);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	@Override
+	public List<RunRecord> getRecentRuns(Long pJobId) {
+		final Long jobId = Objects.requireNonNull(pJobId, "Job id");
+		lock.readLock().lock();
+		try {
+			final Ring ring = rings.get(jobId);
+			if (ring == null) {
+				return Collections.emptyList();
+			}
+			final List<RunRecord> list = new ArrayList<>(ring.count);
+			final int capacity = ring.capacity();
+			for (int i = 1;  i <= ring.count;  i++) {
+				final int offset = ((ring.next - i + capacity) % capacity) * 4;
+				final long statusAndExitCode = ring.runs[offset+3];
+				list.add(RunRecordImpl.of(jobId, Long.valueOf(ring.runs[offset]), ring.runs[offset+1], ring.runs[offset+2],
+						STATUSES[(int) (statusAndExitCode >>> 32) - 1], (int) statusAndExitCode));
+			}
+			return list;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public void forEachRun(long pFromMillis, long pToMillis, Consumer<RunRecord> pConsumer) {
+		Objects.requireNonNull(pConsumer, "Consumer");
+		final ByteBuffer bb = ByteBuffer.allocate(BLOCK_SIZE * RECORD_SIZE);
+		lock.readLock().lock();
+		try {
+			for (Segment segment : segments) {
+				if (segment.count == 0  ||  segment.maxEnd < pFromMillis  ||  segment.minEnd >= pToMillis) {
+					continue;
+				}
+				for (int block = segment.firstBlock(pFromMillis);  block < segment.blocks;  block++) {
+					if (segment.blockMin[block] >= pToMillis  ||  segment.blockMax[block] < pFromMillis) {
+						continue;
+					}
+					final int records = Math.min(BLOCK_SIZE, segment.count - block * BLOCK_SIZE);
+					bb.clear().limit(records * RECORD_SIZE);
+					final long pos = HEADER_SIZE + (long) block * BLOCK_SIZE * RECORD_SIZE;
+					while (bb.hasRemaining()) {
+						if (segment.channel.read(bb, pos + bb.position()) == -1) {
+							throw new IllegalStateException("Unexpected end of segment file " + segment.file);
+						}
+					}
+					for (int offset = 0;  offset < records * RECORD_SIZE;  offset += RECORD_SIZE) {
+						final long endMillis = bb.getLong(offset+24);
+						if (endMillis >= pFromMillis  &&  endMillis < pToMillis) {
+							pConsumer.accept(RunRecordImpl.of(Long.valueOf(bb.getLong(offset)),
+									Long.valueOf(bb.getLong(offset+8)), bb.getLong(offset+16), endMillis,
+									STATUSES[bb.getInt(offset+32) - 1], bb.getInt(offset+36)));
+						}
+					}
+				}
+			}
+		} catch (IOException ioe) {
+			throw new UncheckedIOException(ioe);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/** Returns the number of segment files.
+	 * @return The number of segment files.
+	 */
+	public int getSegmentCount() {
+		lock.readLock().lock();
+		try {
+			return segments.size();
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/** Returns the total size of the segment files.
+	 * @return The total size of the segment files, in bytes.
+	 */
+	public long getTotalSize() {
+		lock.readLock().lock();
+		try {
+			return totalSize;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/** Forces all changes to the storage device, and closes the segment files.
+	 */
+	public void close() {
+		lock.writeLock().lock();
+		try {
+			for (Segment segment : segments) {
+				segment.channel.force(false);
+				segment.channel.close();
+			}
+			segments.clear();
+			rings.clear();
+			totalSize = 0;
+		} catch (IOException ioe) {
+			throw new UncheckedIOException(ioe);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+}
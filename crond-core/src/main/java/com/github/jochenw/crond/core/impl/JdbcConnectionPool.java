@@ -0,0 +1,137 @@
+package com.github.jochenw.crond.core.impl;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Properties;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import com.github.jochenw.afw.core.util.Objects;
+
+/** A small connection pool for the {@link JdbcModel}. The pool opens at
+ * most {@code maxSize} connections through the {@link DriverManager}, and
+ * keeps idle connections for reuse. Idle connections are validated before
+ * being handed out again.
+ */
+public class JdbcConnectionPool implements AutoCloseable {
+	private final String url;
+	private final Properties info;
+	private final Semaphore permits;
+	private final long timeoutMillis;
+	private final Deque<Connection> idle = new ArrayDeque<>();
+	private boolean closed;
+
+	/** Creates a new instance.
+	 * @param pUrl The JDBC URL.
+	 * @param pUser The database user, or null.
+	 * @param pPassword The database password, or null.
+	 * @param pMaxSize The maximum number of open connections.
+	 * @param pTimeoutMillis The maximum time, in milliseconds, to wait for a connection.
+	 */
+	public JdbcConnectionPool(String pUrl, String pUser, String pPassword, int pMaxSize, long pTimeoutMillis) {
+		url = Objects.requireNonNull(pUrl, "Url");
+		info = new Properties();
+		if (pUser != null) {
+			info.setProperty("user", pUser);
+		}
+		if (pPassword != null) {
+			info.setProperty("password", pPassword);
+		}
+		if (pMaxSize <= 0) {
+			throw new IllegalArgumentException("Invalid pool size: " + pMaxSize);
+		}
+		permits = new Semaphore(pMaxSize, true);
+		timeoutMillis = pTimeoutMillis;
+	}
+
+	/** Returns a connection, with auto commit enabled. The connection must
+	 * be returned by invoking {@link #release(Connection)}.
+	 * @return A connection.
+	 * @throws SQLException Opening a new connection failed, or no
+	 *   connection became available within the timeout.
+	 */
+	public Connection acquire() throws SQLException {
+		try {
+			if (!permits.tryAcquire(timeoutMillis, TimeUnit.MILLISECONDS)) {
+				throw new SQLException("No connection available within " + timeoutMillis + " ms: " + url);
+			}
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			throw new SQLException("Interrupted while waiting for a connection: " + url, ie);
+		}
+		try {
+			for (;;) {
+				final Connection conn;
+				synchronized (idle) {
+					if (closed) {
+						throw new SQLException("Connection pool is closed: " + url);
+					}
+					conn = idle.pollFirst();
+				}
+				if (conn == null) {
+					return DriverManager.getConnection(url, info);
+				}
+				if (conn.isValid(5)) {
+					return conn;
+				}
+				closeQuietly(conn);
+			}
+		} catch (SQLException|RuntimeException e) {
+			permits.release();
+			throw e;
+		}
+	}
+
+	/** Returns the given connection to the pool.
+	 * @param pConnection The connection, which has been returned by
+	 *   {@link #acquire()}, or null (in which case nothing happens).
+	 */
+	public void release(Connection pConnection) {
+		if (pConnection == null) {
+			return;
+		}
+		boolean reuse;
+		try {
+			if (!pConnection.getAutoCommit()) {
+				pConnection.rollback();
+				pConnection.setAutoCommit(true);
+			}
+			reuse = !pConnection.isClosed();
+		} catch (SQLException e) {
+			reuse = false;
+		}
+		synchronized (idle) {
+			if (reuse  &&  !closed) {
+				idle.addFirst(pConnection);
+				pConnection = null;
+			}
+		}
+		if (pConnection != null) {
+			closeQuietly(pConnection);
+		}
+		permits.release();
+	}
+
+	private void closeQuietly(Connection pConnection) {
+		try {
+			pConnection.close();
+		} catch (SQLException e) {
+			// Ignore this, the connection is being discarded anyways.
+		}
+	}
+
+	/** Closes the idle connections. Connections, which are currently in
+	 * use, are closed, when being released.
+	 */
+	@Override
+	public void close() {
+		synchronized (idle) {
+			closed = true;
+			idle.forEach(this::closeQuietly);
+			idle.clear();
+		}
+	}
+}
@@ -0,0 +1,136 @@
+package com.github.jochenw.crond.core.impl;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+
+/** Applies the schema migration scripts of the {@link JdbcModel}. The
+ * scripts are loaded from the class path (package
+ * {@code com/github/jochenw/crond/core/sql}), and applied in the order of
+ * {@link #SCRIPTS}. The applied versions are recorded in the table
+ * {@code CROND_SCHEMA_VERSION}, so every script is applied only once.
+ */
+public class JdbcMigrations {
+	/** The migration scripts, in the order of application. The version
+	 * number of a script is its index, plus one.
+	 */
+	public static final String[] SCRIPTS = {
+		"V001__create_tables.sql",
+		"V002__add_job_schedule.sql",
+	};
+	private static final String VERSION_TABLE = "CROND_SCHEMA_VERSION";
+
+	/** Applies all scripts, which haven't been applied yet. Every script
+	 * is applied within a transaction of its own.
+	 * @param pConnection The database connection.
+	 * @return The number of applied scripts.
+	 * @throws SQLException Applying a script failed.
+	 */
+	public int migrate(Connection pConnection) throws SQLException {
+		final boolean autoCommit = pConnection.getAutoCommit();
+		try {
+			pConnection.setAutoCommit(true);
+			if (!hasTable(pConnection, VERSION_TABLE)) {
+				try (Statement stmt = pConnection.createStatement()) {
+					stmt.executeUpdate("CREATE TABLE " + VERSION_TABLE + " (VERSION INT NOT NULL,"
+							+ " APPLIED_AT TIMESTAMP NOT NULL, CONSTRAINT " + VERSION_TABLE + "_PK PRIMARY KEY (VERSION))");
+				}
+			}
+			final int currentVersion = getVersion(pConnection);
+			pConnection.setAutoCommit(false);
+			int applied = 0;
+			for (int i = currentVersion;  i < SCRIPTS.length;  i++) {
+				try (Statement stmt = pConnection.createStatement()) {
+					for (String sql : parse(SCRIPTS[i])) {
+						stmt.executeUpdate(sql);
+					}
+				}
+				try (PreparedStatement pstmt = pConnection.prepareStatement("INSERT INTO " + VERSION_TABLE
+						+ " (VERSION, APPLIED_AT) VALUES (?, ?)")) {
+					pstmt.setInt(1, i+1);
+					pstmt.setTimestamp(2, new Timestamp(System.currentTimeMillis()));
+					pstmt.executeUpdate();
+				}
+				pConnection.commit();
+				++applied;
+			}
+			return applied;
+		} catch (SQLException|RuntimeException e) {
+			if (!pConnection.getAutoCommit()) {
+				pConnection.rollback();
+			}
+			throw e;
+		} finally {
+			pConnection.setAutoCommit(autoCommit);
+		}
+	}
+
+	private boolean hasTable(Connection pConnection, String pTable) throws SQLException {
+		final DatabaseMetaData dmd = pConnection.getMetaData();
+		// Unquoted identifiers are stored in upper case by most databases,
+		// but in lower case by some (for example, PostgreSQL).
+		for (String table : new String[] {pTable, pTable.toLowerCase()}) {
+			try (ResultSet rs = dmd.getTables(null, null, table, new String[] {"TABLE"})) {
+				if (rs.next()) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	private int getVersion(Connection pConnection) throws SQLException {
+		try (Statement stmt = pConnection.createStatement();
+			 ResultSet rs = stmt.executeQuery("SELECT MAX(VERSION) FROM " + VERSION_TABLE)) {
+			return rs.next() ? rs.getInt(1) : 0;
+		}
+	}
+
+	/** Reads the given script, and splits it into statements. Lines,
+	 * which start with "--", are ignored, and statements are terminated
+	 * by a semicolon at the end of a line.
+	 * @param pScript The scripts name.
+	 * @return The scripts statements.
+	 */
+	protected List<String> parse(String pScript) {
+		final String uri = "com/github/jochenw/crond/core/sql/" + pScript;
+		final String text;
+		try (InputStream in = JdbcMigrations.class.getClassLoader().getResourceAsStream(uri)) {
+			if (in == null) {
+				throw new IllegalStateException("Migration script not found: " + uri);
+			}
+			text = new String(in.readAllBytes(), StandardCharsets.UTF_8);
+		} catch (IOException ioe) {
+			throw new UncheckedIOException(ioe);
+		}
+		final List<String> statements = new ArrayList<>();
+		final StringBuilder sb = new StringBuilder();
+		for (String line : text.split("\r?\n")) {
+			final String trimmed = line.trim();
+			if (trimmed.isEmpty()  ||  trimmed.startsWith("--")) {
+				continue;
+			}
+			if (trimmed.endsWith(";")) {
+				sb.append(trimmed, 0, trimmed.length()-1);
+				statements.add(sb.toString());
+				sb.setLength(0);
+			} else {
+				sb.append(trimmed).append(' ');
+			}
+		}
+		if (sb.length() > 0) {
+			statements.add(sb.toString().trim());
+		}
+		return statements;
+	}
+}
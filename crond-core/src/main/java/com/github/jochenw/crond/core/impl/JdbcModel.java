@@ -0,0 +1,726 @@
+package com.github.jochenw.crond.core.impl;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.function.Consumer;
+
+import com.github.jochenw.afw.core.function.Functions;
+import com.github.jochenw.afw.core.function.Functions.FailableConsumer;
+import com.github.jochenw.afw.core.function.Functions.FailableFunction;
+import com.github.jochenw.afw.core.log.ILog;
+import com.github.jochenw.afw.core.util.Holder;
+import com.github.jochenw.afw.core.util.Objects;
+import com.github.jochenw.afw.core.util.Objects.DuplicateElementException;
+import com.github.jochenw.afw.di.util.Exceptions;
+import com.github.jochenw.crond.core.api.JobQuery;
+import com.github.jochenw.crond.core.api.ModelQuery;
+import com.github.jochenw.crond.core.api.UserQuery;
+import com.github.jochenw.crond.core.beans.EventImpl;
+import com.github.jochenw.crond.core.beans.JobImpl;
+import com.github.jochenw.crond.core.beans.UserImpl;
+
+/** An implementation of {@link IModel}, which persists data in a
+ * relational database. The schema is created, and updated by the
+ * {@link JdbcMigrations}. Unique constraints enforce the uniqueness of
+ * email addresses, and of the combination of user id, and job name.
+ *
+ * The database is configured by the properties {@code jdbc.model.url},
+ * {@code jdbc.model.user}, {@code jdbc.model.password}, and (optionally)
+ * {@code jdbc.model.driver} (the driver class, for drivers, which don't
+ * register themselves). Connections are taken from a
+ * {@link JdbcConnectionPool} with at most {@code jdbc.model.poolSize}
+ * (default 4) connections.
+ *
+ * New users, and jobs, which are created within a {@link #batch(FailableConsumer)},
+ * are inserted by JDBC batches of {@code jdbc.model.batchSize} (default 500)
+ * rows. As a consequence, uniqueness violations among these rows may be
+ * reported only at the end of the batch. Either way, a failing batch is
+ * rolled back as a whole.
+ *
+ * Ids are assigned by this model, so the database must not be shared
+ * with other instances.
+ *
+ * {@link #queryUsers(UserQuery) Queries} are translated into SQL, so the
+ * database filters, sorts, and pages the results (using the SQL:2008
+ * clauses {@code OFFSET}, and {@code FETCH NEXT}).
+ */
+public class JdbcModel extends AbstractModel {
+	private static final String SELECT_USER = "SELECT ID, EMAIL, NAME FROM CROND_USERS";
+	private static final String SELECT_JOB = "SELECT ID, USER_ID, NAME, SCHEDULE FROM CROND_JOBS";
+
+	private final Object writeLock = new Object();
+	private JdbcConnectionPool pool;
+	private int batchSize;
+	private long maxUserId, maxJobId;
+
+	@Override
+	public void start() {
+		final String url = getProperty("jdbc.model.url", null);
+		if (url == null) {
+			throw new IllegalStateException("Missing property: jdbc.model.url");
+		}
+		final String driver = getProperty("jdbc.model.driver", null);
+		if (driver != null) {
+			try {
+				Class.forName(driver, true, Thread.currentThread().getContextClassLoader());
+			} catch (ClassNotFoundException e) {
+				throw new IllegalStateException("JDBC driver not found: " + driver, e);
+			}
+		}
+		batchSize = Integer.parseInt(getProperty("jdbc.model.batchSize", "500"));
+		pool = new JdbcConnectionPool(url, getProperty("jdbc.model.user", null),
+				getProperty("jdbc.model.password", null),
+				Integer.parseInt(getProperty("jdbc.model.poolSize", "4")),
+				Long.parseLong(getProperty("jdbc.model.poolTimeout", "30000")));
+		synchronized (writeLock) {
+			final int migrations = call((conn) -> new JdbcMigrations().migrate(conn)).intValue();
+			maxUserId = call((conn) -> queryLong(conn, "SELECT MAX(ID) FROM CROND_USERS")).longValue();
+			maxJobId = call((conn) -> queryLong(conn, "SELECT MAX(ID) FROM CROND_JOBS")).longValue();
+			final ILog log = getLog();
+			if (log != null) {
+				log.info("start", "Connected to {}, applied {} migration scripts", url, Integer.valueOf(migrations));
+			}
+			note((l) -> l.initialized());
+		}
+	}
+
+	@Override
+	public void shutdown() {
+		if (pool != null) {
+			pool.close();
+			pool = null;
+		}
+		super.shutdown();
+	}
+
+	private static Long queryLong(Connection pConnection, String pSql) throws SQLException {
+		try (Statement stmt = pConnection.createStatement();
+			 ResultSet rs = stmt.executeQuery(pSql)) {
+			return Long.valueOf(rs.next() ? rs.getLong(1) : 0);
+		}
+	}
+
+	/** Invokes the given function with a connection from the pool.
+	 * @param <O> The functions result type.
+	 * @param pFunction The function, which is being invoked.
+	 * @return The functions result.
+	 */
+	protected <O> O call(FailableFunction<Connection,O,?> pFunction) {
+		Connection conn = null;
+		try {
+			conn = pool.acquire();
+			return pFunction.apply(conn);
+		} catch (Throwable t) {
+			throw Exceptions.show(t);
+		} finally {
+			pool.release(conn);
+		}
+	}
+
+	/** Returns, whether the given exception indicates a constraint violation
+	 * (SQL state class 23). Batch exceptions are checked by some drivers
+	 * only in the chained, or causing exceptions.
+	 * @param pException The exception, which is being checked.
+	 * @return True, if the exception indicates a constraint violation.
+	 */
+	private static boolean isIntegrityViolation(SQLException pException) {
+		for (SQLException e = pException;  e != null;  e = e.getNextException()) {
+			for (Throwable t = e;  t != null;  t = t.getCause()) {
+				if (t instanceof SQLException) {
+					final String state = ((SQLException) t).getSQLState();
+					if (state != null  &&  state.startsWith("23")) {
+						return true;
+					}
+				}
+			}
+		}
+		return false;
+	}
+
+	private static User asUser(ResultSet pRs) throws SQLException {
+		return UserImpl.of(Long.valueOf(pRs.getLong(1)), pRs.getString(2), pRs.getString(3));
+	}
+
+	private static Job asJob(ResultSet pRs) throws SQLException {
+		return JobImpl.of(Long.valueOf(pRs.getLong(1)), Long.valueOf(pRs.getLong(2)), pRs.getString(3), pRs.getString(4));
+	}
+
+	private static <O> O queryOne(Connection pConnection, String pSql, FailableConsumer<PreparedStatement,SQLException> pParams,
+			                      FailableFunction<ResultSet,O,SQLException> pMapper) throws SQLException {
+		try (PreparedStatement pstmt = pConnection.prepareStatement(pSql)) {
+			pParams.accept(pstmt);
+			try (ResultSet rs = pstmt.executeQuery()) {
+				return rs.next() ? pMapper.apply(rs) : null;
+			}
+		}
+	}
+
+	/** A set of mutations, which are applied within a single database
+	 * transaction. New users, and jobs are collected in JDBC batches,
+	 * which are executed, when they are full, before any other statement,
+	 * and before the commit.
+	 */
+	private class Transaction implements Batch {
+		private final Connection conn;
+		private final long savedMaxUserId = maxUserId, savedMaxJobId = maxJobId;
+		private final List<Event> events = new ArrayList<>();
+		private final Set<Long> knownUsers = new HashSet<>();
+		private PreparedStatement insertUsers, insertJobs;
+		private int pendingUsers, pendingJobs;
+		private User lastUser;
+		private Job lastJob;
+		private boolean closed;
+
+		Transaction(Connection pConnection) {
+			conn = pConnection;
+		}
+
+		private void flushUsers() throws SQLException {
+			if (pendingUsers > 0) {
+				try {
+					insertUsers.executeBatch();
+				} catch (SQLException e) {
+					if (isIntegrityViolation(e)) {
+						throw new DuplicateElementException(pendingUsers == 1
+								? "Duplicate email address: " + lastUser.getEmail()
+								: "Duplicate email address in batch");
+					}
+					throw e;
+				}
+				pendingUsers = 0;
+			}
+		}
+
+		private void flushJobs() throws SQLException {
+			if (pendingJobs > 0) {
+				try {
+					insertJobs.executeBatch();
+				} catch (SQLException e) {
+					if (isIntegrityViolation(e)) {
+						throw new DuplicateElementException(pendingJobs == 1
+								? "Duplicate combination of user id, and name: " + lastJob.getUserId() + ", " + lastJob.getName()
+								: "Duplicate combination of user id, and name in batch");
+					}
+					throw e;
+				}
+				pendingJobs = 0;
+			}
+		}
+
+		void flush() throws SQLException {
+			flushUsers();
+			flushJobs();
+		}
+
+		private boolean isUser(Long pUserId) throws SQLException {
+			if (knownUsers.contains(pUserId)) {
+				return true;
+			}
+			flushUsers();
+			final Long id = queryOne(conn, "SELECT ID FROM CROND_USERS WHERE ID=?",
+					(ps) -> ps.setLong(1, pUserId.longValue()), (rs) -> Long.valueOf(rs.getLong(1)));
+			if (id == null) {
+				return false;
+			}
+			knownUsers.add(pUserId);
+			return true;
+		}
+
+		@Override
+		public User addUser(String pEmail, String pName) throws DuplicateElementException {
+			assertOpen();
+			final Long id = Long.valueOf(maxUserId+1);
+			final User u = UserImpl.of(id, pEmail, pName);
+			try {
+				if (insertUsers == null) {
+					insertUsers = conn.prepareStatement("INSERT INTO CROND_USERS (ID, EMAIL, NAME) VALUES (?, ?, ?)");
+				}
+				insertUsers.setLong(1, id.longValue());
+				insertUsers.setString(2, u.getEmail());
+				insertUsers.setString(3, u.getName());
+				insertUsers.addBatch();
+				lastUser = u;
+				if (++pendingUsers >= batchSize) {
+					flushUsers();
+				}
+			} catch (SQLException e) {
+				throw Exceptions.show(e);
+			}
+			maxUserId = id.longValue();
+			knownUsers.add(id);
+			events.add(EventImpl.userAdded(u));
+			return u;
+		}
+
+		@Override
+		public Job addJob(Long pUserId, String pName) throws DuplicateElementException, NoSuchElementException {
+			assertOpen();
+			final Long userId = Objects.requireNonNull(pUserId, "User Id");
+			final String name = Objects.requireNonNull(pName, "Name");
+			try {
+				if (!isUser(userId)) {
+					throw new NoSuchElementException("Unknown user id: " + userId);
+				}
+				final Long id = Long.valueOf(maxJobId+1);
+				final Job j = JobImpl.of(id, userId, name);
+				if (insertJobs == null) {
+					insertJobs = conn.prepareStatement("INSERT INTO CROND_JOBS (ID, USER_ID, NAME) VALUES (?, ?, ?)");
+				}
+				insertJobs.setLong(1, id.longValue());
+				insertJobs.setLong(2, userId.longValue());
+				insertJobs.setString(3, name);
+				insertJobs.addBatch();
+				lastJob = j;
+				if (++pendingJobs >= batchSize) {
+					flushJobs();
+				}
+				maxJobId = id.longValue();
+				events.add(EventImpl.jobAdded(j));
+				return j;
+			} catch (SQLException e) {
+				throw Exceptions.show(e);
+			}
+		}
+
+		@Override
+		public void updateUser(User pUser) throws NoSuchElementException, DuplicateElementException {
+			assertOpen();
+			final Long id = Objects.requireNonNull(pUser.getId());
+			final String email = Objects.requireNonNull(pUser.getEmail());
+			try {
+				flush();
+				try (PreparedStatement pstmt = conn.prepareStatement("UPDATE CROND_USERS SET EMAIL=?, NAME=? WHERE ID=?")) {
+					pstmt.setString(1, email);
+					pstmt.setString(2, pUser.getName());
+					pstmt.setLong(3, id.longValue());
+					if (pstmt.executeUpdate() == 0) {
+						throw new NoSuchElementException("Unknown user id: " + id);
+					}
+				} catch (SQLException e) {
+					if (isIntegrityViolation(e)) {
+						throw new DuplicateElementException("Duplicate email address: " + email);
+					}
+					throw e;
+				}
+			} catch (SQLException e) {
+				throw Exceptions.show(e);
+			}
+			events.add(EventImpl.userUpdated(pUser));
+		}
+
+		@Override
+		public void updateJob(Job pJob) throws NoSuchElementException, DuplicateElementException {
+			assertOpen();
+			final Long id = Objects.requireNonNull(pJob.getId());
+			final Long userId = Objects.requireNonNull(pJob.getUserId());
+			final String name = Objects.requireNonNull(pJob.getName());
+			try {
+				flush();
+				if (!isUser(userId)) {
+					throw new NoSuchElementException("Unknown user id: " + userId);
+				}
+				try (PreparedStatement pstmt = conn.prepareStatement("UPDATE CROND_JOBS SET USER_ID=?, NAME=?, SCHEDULE=? WHERE ID=?")) {
+					pstmt.setLong(1, userId.longValue());
+					pstmt.setString(2, name);
+					pstmt.setString(3, pJob.getSchedule());
+					pstmt.setLong(4, id.longValue());
+					if (pstmt.executeUpdate() == 0) {
+						throw new NoSuchElementException("Unknown job id: " + id);
+					}
+				} catch (SQLException e) {
+					if (isIntegrityViolation(e)) {
+						throw new DuplicateElementException("Duplicate combination of user id, and name: "
+								+ userId + ", " + name);
+					}
+					throw e;
+				}
+			} catch (SQLException e) {
+				throw Exceptions.show(e);
+			}
+			events.add(EventImpl.jobUpdated(pJob));
+		}
+
+		@Override
+		public void removeUser(Long pUserId) throws NoSuchElementException {
+			assertOpen();
+			final Long id = Objects.requireNonNull(pUserId);
+			try {
+				flush();
+				final User u = queryOne(conn, SELECT_USER + " WHERE ID=?", (ps) -> ps.setLong(1, id.longValue()),
+						JdbcModel::asUser);
+				if (u == null) {
+					throw new NoSuchElementException("Unknown user id: " + id);
+				}
+				try (PreparedStatement pstmt = conn.prepareStatement("DELETE FROM CROND_USERS WHERE ID=?")) {
+					pstmt.setLong(1, id.longValue());
+					pstmt.executeUpdate();
+				}
+				knownUsers.remove(id);
+				events.add(EventImpl.userDeleted(u));
+			} catch (SQLException e) {
+				throw Exceptions.show(e);
+			}
+		}
+
+		@Override
+		public void removeJob(Long pJobId) throws NoSuchElementException {
+			assertOpen();
+			final Long id = Objects.requireNonNull(pJobId);
+			try {
+				flush();
+				final Job j = queryOne(conn, SELECT_JOB + " WHERE ID=?", (ps) -> ps.setLong(1, id.longValue()),
+						JdbcModel::asJob);
+				if (j == null) {
+					throw new NoSuchElementException("Unknown job id: " + id);
+				}
+				try (PreparedStatement pstmt = conn.prepareStatement("DELETE FROM CROND_JOBS WHERE ID=?")) {
+					pstmt.setLong(1, id.longValue());
+					pstmt.executeUpdate();
+				}
+				events.add(EventImpl.jobDeleted(j));
+			} catch (SQLException e) {
+				throw Exceptions.show(e);
+			}
+		}
+
+		private void assertOpen() {
+			if (closed) {
+				throw new IllegalStateException("This batch has already been completed.");
+			}
+		}
+
+		void commit() throws SQLException {
+			closed = true;
+			flush();
+			conn.commit();
+			close();
+		}
+
+		void rollback() {
+			closed = true;
+			maxUserId = savedMaxUserId;
+			maxJobId = savedMaxJobId;
+			try {
+				conn.rollback();
+			} catch (SQLException e) {
+				// Ignore this, the connection pool will discard the connection.
+			}
+			close();
+		}
+
+		private void close() {
+			for (PreparedStatement pstmt : new PreparedStatement[] {insertUsers, insertJobs}) {
+				if (pstmt != null) {
+					try {
+						pstmt.close();
+					} catch (SQLException e) {
+						// Ignore this
+					}
+				}
+			}
+		}
+	}
+
+	/** Applies the given action as a {@link Transaction}, and reports
+	 * the mutations to the listeners, while still holding the write lock,
+	 * so that listeners receive them in the order of the commits.
+	 * @param pAction The action, which performs the mutations.
+	 * @param pBatch True, if the mutations are to be reported as a
+	 *   batch, false, if the action performs a single mutation.
+	 */
+	private void apply(Consumer<Transaction> pAction, boolean pBatch) {
+		synchronized (writeLock) {
+			final Transaction tx = call((conn) -> {
+				conn.setAutoCommit(false);
+				final Transaction t = new Transaction(conn);
+				try {
+					pAction.accept(t);
+					t.commit();
+				} catch (Throwable th) {
+					t.rollback();
+					throw th;
+				}
+				return t;
+			});
+			if (pBatch) {
+				if (!tx.events.isEmpty()) {
+					note(Collections.unmodifiableList(tx.events));
+				}
+			} else {
+				note(tx.events.get(0));
+			}
+		}
+	}
+
+	@Override
+	public void batch(FailableConsumer<Batch,?> pBatch) {
+		apply((tx) -> {
+			try {
+				pBatch.accept(tx);
+			} catch (Throwable t) {
+				throw Exceptions.show(t);
+			}
+		}, true);
+	}
+
+	@Override
+	public User addUser(String pEmail, String pName) throws DuplicateElementException {
+		final Holder<User> holder = new Holder<>();
+		apply((tx) -> holder.set(tx.addUser(pEmail, pName)), false);
+		return holder.get();
+	}
+
+	@Override
+	public Job addJob(Long pUserId, String pName) throws DuplicateElementException, NoSuchElementException {
+		final Holder<Job> holder = new Holder<>();
+		apply((tx) -> holder.set(tx.addJob(pUserId, pName)), false);
+		return holder.get();
+	}
+
+	@Override
+	public void updateUser(User pUser) throws NoSuchElementException, DuplicateElementException {
+		apply((tx) -> tx.updateUser(pUser), false);
+	}
+
+	@Override
+	public void updateJob(Job pJob) throws NoSuchElementException, DuplicateElementException {
+		apply((tx) -> tx.updateJob(pJob), false);
+	}
+
+	@Override
+	public void removeUser(Long pUserId) throws NoSuchElementException {
+		apply((tx) -> tx.removeUser(pUserId), false);
+	}
+
+	@Override
+	public void removeJob(Long pJobId) throws NoSuchElementException {
+		apply((tx) -> tx.removeJob(pJobId), false);
+	}
+
+	@Override
+	public User getUserById(Long pUserId) {
+		if (pUserId == null) {
+			return null;
+		}
+		return getUserById(pUserId.longValue());
+	}
+
+	@Override
+	public User getUserById(long pUserId) {
+		return call((conn) -> queryOne(conn, SELECT_USER + " WHERE ID=?", (ps) -> ps.setLong(1, pUserId),
+				JdbcModel::asUser));
+	}
+
+	@Override
+	public User getUserByEmail(String pEmail) {
+		final String email = Objects.requireNonNull(pEmail);
+		return call((conn) -> queryOne(conn, SELECT_USER + " WHERE EMAIL=?", (ps) -> ps.setString(1, email),
+				JdbcModel::asUser));
+	}
+
+	@Override
+	public Job getJobById(Long pJobId) {
+		final Long id = Objects.requireNonNull(pJobId);
+		return getJobById(id.longValue());
+	}
+
+	@Override
+	public Job getJobById(long pJobId) {
+		return call((conn) -> queryOne(conn, SELECT_JOB + " WHERE ID=?", (ps) -> ps.setLong(1, pJobId),
+				JdbcModel::asJob));
+	}
+
+	@Override
+	public Job getJobByUserIdAndName(Long pUserId, String pName) {
+		final Long userId = Objects.requireNonNull(pUserId);
+		final String name = Objects.requireNonNull(pName);
+		return call((conn) -> queryOne(conn, SELECT_JOB + " WHERE USER_ID=? AND NAME=?", (ps) -> {
+			ps.setLong(1, userId.longValue());
+			ps.setString(2, name);
+		}, JdbcModel::asJob));
+	}
+
+	/** Runs the given query, and invokes the given consumer for every row.
+	 * @param <O> The row type.
+	 * @param pSql The query.
+	 * @param pParams Sets the queries parameters.
+	 * @param pMapper Converts a row into an object.
+	 * @param pConsumer The consumer, which is being invoked.
+	 */
+	private <O> void forEach(String pSql, FailableConsumer<PreparedStatement,SQLException> pParams,
+			                 FailableFunction<ResultSet,O,SQLException> pMapper, FailableConsumer<O,?> pConsumer) {
+		call((conn) -> {
+			try (PreparedStatement pstmt = conn.prepareStatement(pSql)) {
+				pParams.accept(pstmt);
+				pstmt.setFetchSize(batchSize);
+				try (ResultSet rs = pstmt.executeQuery()) {
+					while (rs.next()) {
+						Functions.accept(pConsumer, pMapper.apply(rs));
+					}
+				}
+			}
+			return null;
+		});
+	}
+
+	@Override
+	public void forEachUser(FailableConsumer<User, ?> pConsumer) {
+		forEach(SELECT_USER + " ORDER BY ID", (ps) -> {}, JdbcModel::asUser, pConsumer);
+	}
+
+	@Override
+	public void forEachJob(FailableConsumer<Job, ?> pConsumer) {
+		forEach(SELECT_JOB + " ORDER BY ID", (ps) -> {}, JdbcModel::asJob, pConsumer);
+	}
+
+	@Override
+	public void forEachJobOfUser(Long pUserId, FailableConsumer<Job, ?> pConsumer) {
+		final Long userId = Objects.requireNonNull(pUserId, "User Id");
+		forEach(SELECT_JOB + " WHERE USER_ID=? ORDER BY ID", (ps) -> ps.setLong(1, userId.longValue()),
+				JdbcModel::asJob, pConsumer);
+	}
+
+	@Override
+	public int countJobsOfUser(Long pUserId) {
+		final Long userId = Objects.requireNonNull(pUserId, "User Id");
+		final Long count = call((conn) -> queryOne(conn, "SELECT COUNT(*) FROM CROND_JOBS WHERE USER_ID=?",
+				(ps) -> ps.setLong(1, userId.longValue()), (rs) -> Long.valueOf(rs.getLong(1))));
+		return count.intValue();
+	}
+
+	/** Appends the WHERE, and ORDER BY clauses, which implement the given
+	 * queries filters, and sort keys, to the given statement. Column names
+	 * are the field names.
+	 * @param pSql The statement, which is being built.
+	 * @param pParams The statements parameters, which are being collected.
+	 * @param pQuery The query.
+	 * @param pUserId The user id, to whose jobs the query is restricted, or null.
+	 * @param pOrdered True, if the ORDER BY clause is required.
+	 */
+	private static <F extends Enum<F>> void appendQuery(StringBuilder pSql, List<Object> pParams,
+			                                            ModelQuery<?,F> pQuery, Long pUserId, boolean pOrdered) {
+		String sep = " WHERE ";
+		if (pUserId != null) {
+			pSql.append(sep).append("USER_ID=?");
+			pParams.add(pUserId);
+			sep = " AND ";
+		}
+		for (Map.Entry<F,String> en : pQuery.getFilters().entrySet()) {
+			final String column = en.getKey().name();
+			final String pattern = en.getValue().replace('%', '*');
+			pSql.append(sep);
+			sep = " AND ";
+			final String value = pQuery.isNumeric(en.getKey()) ? "CAST(" + column + " AS VARCHAR(20))" : column;
+			if (pattern.indexOf('*') >= 0  ||  pattern.indexOf('?') >= 0) {
+				pSql.append(value).append(" LIKE ? ESCAPE '\\'");
+				pParams.add(escapeLike(pattern).replace('*', '%').replace('?', '_'));
+			} else {
+				pSql.append("LOWER(").append(value).append(") LIKE ? ESCAPE '\\'");
+				pParams.add("%" + escapeLike(pattern.toLowerCase()) + "%");
+			}
+		}
+		final Object start = pQuery.getStartValue();
+		if (start != null) {
+			final ModelQuery.SortKey<F> sk = pQuery.getSortKeys().get(0);
+			final String column = sk.getField().name();
+			pSql.append(sep);
+			if (start instanceof Long) {
+				pSql.append(column).append(sk.isAscending() ? ">=?" : "<=?");
+				pParams.add(start);
+			} else if (sk.isAscending()) {
+				pSql.append("LOWER(").append(column).append(")>=?");
+				pParams.add(((String) start).toLowerCase());
+			} else {
+				pSql.append("(LOWER(").append(column).append(")<=? OR ").append(column).append(" IS NULL)");
+				pParams.add(((String) start).toLowerCase());
+			}
+		}
+		if (pOrdered) {
+			pSql.append(" ORDER BY ");
+			boolean ascending = true;
+			for (ModelQuery.SortKey<F> sk : pQuery.getSortKeys()) {
+				final String column = sk.getField().name();
+				if (pQuery.isNumeric(sk.getField())) {
+					pSql.append(column);
+				} else {
+					pSql.append("LOWER(").append(column).append(')');
+				}
+				pSql.append(sk.isAscending() ? " ASC NULLS FIRST, " : " DESC NULLS LAST, ");
+				ascending = sk.isAscending();
+			}
+			pSql.append(ascending ? "ID" : "ID DESC");
+			if (pQuery.getOffset() > 0) {
+				pSql.append(" OFFSET ? ROWS");
+				pParams.add(Long.valueOf(pQuery.getOffset()));
+			}
+			if (pQuery.getLimit() < Integer.MAX_VALUE) {
+				pSql.append(" FETCH NEXT ? ROWS ONLY");
+				pParams.add(Long.valueOf(pQuery.getLimit()));
+			}
+		}
+	}
+
+	private static String escapeLike(String pPattern) {
+		return pPattern.replace("\\", "\\\\").replace("%", "\\%").replace("_", "\\_");
+	}
+
+	private static void setParams(PreparedStatement pStmt, List<Object> pParams) throws SQLException {
+		for (int i = 0;  i < pParams.size();  i++) {
+			final Object o = pParams.get(i);
+			if (o instanceof Long) {
+				pStmt.setLong(i+1, ((Long) o).longValue());
+			} else {
+				pStmt.setString(i+1, (String) o);
+			}
+		}
+	}
+
+	private <O> List<O> query(String pSelect, ModelQuery<O,?> pQuery, Long pUserId,
+			                  FailableFunction<ResultSet,O,SQLException> pMapper) {
+		final StringBuilder sb = new StringBuilder(pSelect);
+		final List<Object> params = new ArrayList<>();
+		appendQuery(sb, params, pQuery, pUserId, true);
+		final List<O> list = new ArrayList<>();
+		forEach(sb.toString(), (ps) -> setParams(ps, params), pMapper, list::add);
+		return list;
+	}
+
+	private int count(String pTable, ModelQuery<?,?> pQuery, Long pUserId) {
+		final StringBuilder sb = new StringBuilder("SELECT COUNT(*) FROM ").append(pTable);
+		final List<Object> params = new ArrayList<>();
+		appendQuery(sb, params, pQuery, pUserId, false);
+		final Long count = call((conn) -> queryOne(conn, sb.toString(), (ps) -> setParams(ps, params),
+				(rs) -> Long.valueOf(rs.getLong(1))));
+		return count.intValue();
+	}
+
+	@Override
+	public List<User> queryUsers(UserQuery pQuery) {
+		return query(SELECT_USER, pQuery, null, JdbcModel::asUser);
+	}
+
+	@Override
+	public int countUsers(UserQuery pQuery) {
+		return count("CROND_USERS", pQuery, null);
+	}
+
+	@Override
+	public List<Job> queryJobs(JobQuery pQuery) {
+		return query(SELECT_JOB, pQuery, pQuery.getUserId(), JdbcModel::asJob);
+	}
+
+	@Override
+	public int countJobs(JobQuery pQuery) {
+		return count("CROND_JOBS", pQuery, pQuery.getUserId());
+	}
+}
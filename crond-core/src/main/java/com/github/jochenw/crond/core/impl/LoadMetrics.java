@@ -0,0 +1,136 @@
+package com.github.jochenw.crond.core.impl;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/** Measures the time, the allocated bytes, and the peak heap usage
+ * of loading the model. The peak heap usage is sampled during the load
+ * (see {@link #recordLoaded()}), rather than taken from the memory pools,
+ * because resetting their peak usage would affect other monitoring tools.
+ */
+public class LoadMetrics {
+	private static final int SAMPLE_INTERVAL = 4096;
+	private final long startNanos = System.nanoTime();
+	private final AtomicLong allocatedBytes = new AtomicLong();
+	private final AtomicLong loaded = new AtomicLong();
+	private final AtomicLong peakHeapBytes = new AtomicLong();
+	private final MemoryMXBean memoryBean = ManagementFactory.getMemoryMXBean();
+	private final Object lock = new Object();
+	private int running;
+	private final com.sun.management.ThreadMXBean threadBean;
+
+	/** Creates a new instance, and takes the first sample of the heap usage.
+	 */
+	public LoadMetrics() {
+		final ThreadMXBean tmb = ManagementFactory.getThreadMXBean();
+		if (tmb instanceof com.sun.management.ThreadMXBean
+				&&  ((com.sun.management.ThreadMXBean) tmb).isThreadAllocatedMemoryEnabled()) {
+			threadBean = (com.sun.management.ThreadMXBean) tmb;
+		} else {
+			threadBean = null;
+		}
+		sample();
+	}
+
+	/** Samples the current heap usage, and updates the peak heap usage.
+	 */
+	public void sample() {
+		final long used = memoryBean.getHeapMemoryUsage().getUsed();
+		peakHeapBytes.accumulateAndGet(used, Math::max);
+	}
+
+	/** Counts a loaded record, and {@link #sample() samples} the heap
+	 * usage after every 4096 records. Thread safe.
+	 */
+	public void recordLoaded() {
+		if (loaded.incrementAndGet() % SAMPLE_INTERVAL == 0) {
+			sample();
+		}
+	}
+
+	/** Runs the given task, and adds the bytes, that the current thread
+	 * allocates while doing so, to the allocated bytes.
+	 * @param pTask The task, which is being run.
+	 */
+	public void measure(Runnable pTask) {
+		synchronized (lock) {
+			++running;
+		}
+		run(pTask);
+	}
+
+	private void run(Runnable pTask) {
+		final long before = getCurrentThreadAllocatedBytes();
+		try {
+			pTask.run();
+		} finally {
+			allocatedBytes.addAndGet(getCurrentThreadAllocatedBytes() - before);
+			sample();
+			synchronized (lock) {
+				--running;
+				lock.notifyAll();
+			}
+		}
+	}
+
+	/** Returns an executor, which runs every task in a new daemon thread,
+	 * while {@link #measure(Runnable) measuring} it.
+	 * @return An executor for measured tasks.
+	 */
+	public Executor newExecutor() {
+		return (r) -> {
+			synchronized (lock) {
+				// Count the task now, because a task may signal its completion
+				// (for example, by completing a future), before it is measured.
+				++running;
+			}
+			final Thread t = new Thread(() -> run(r), "crond-model-loader");
+			t.setDaemon(true);
+			t.start();
+		};
+	}
+
+	private long getCurrentThreadAllocatedBytes() {
+		return threadBean == null ? 0 : threadBean.getCurrentThreadAllocatedBytes();
+	}
+
+	/** Returns the elapsed time since the creation of this instance,
+	 * in milliseconds.
+	 * @return The elapsed time in milliseconds.
+	 */
+	public long getElapsedMillis() {
+		return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+	}
+
+	/** Returns the number of bytes, that have been allocated by the
+	 * measured tasks, or -1, if the JVM doesn't support measuring
+	 * allocations. Waits for the measured tasks to terminate.
+	 * @return The number of allocated bytes, or -1.
+	 */
+	public long getAllocatedBytes() {
+		synchronized (lock) {
+			while (running > 0) {
+				try {
+					lock.wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					break;
+				}
+			}
+		}
+		return threadBean == null ? -1 : allocatedBytes.get();
+	}
+
+	/** Returns the highest heap usage, which has been sampled since the
+	 * creation of this instance, in bytes. Because the heap usage is
+	 * only sampled, a short peak between two samples may be missed.
+	 * @return The peak heap usage in bytes.
+	 */
+	public long getPeakHeapBytes() {
+		return peakHeapBytes.get();
+	}
+}
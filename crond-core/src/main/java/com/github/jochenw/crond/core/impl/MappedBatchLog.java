@@ -0,0 +1,208 @@
+package com.github.jochenw.crond.core.impl;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+import com.github.jochenw.afw.core.util.Objects;
+
+/** An undo log, which makes the batches of the {@link MappedFileModel}
+ * atomic. Before a batch appends, or deletes a record, the records
+ * reference is written to the log. After the batch has been completed
+ * (committed, or rolled back), a commit record is written. If the log
+ * doesn't end with a commit record upon startup, then the process has
+ * crashed in the middle of a batch, and the batches mutations are undone
+ * (see {@link #recover()}).
+ *
+ * Every entry consists of an operation code (byte), and a record reference
+ * (long). An incomplete entry at the end of the log is ignored: The mutation,
+ * which it describes, hasn't been started.
+ *
+ * Instances aren't thread safe: The caller is supposed to hold the models
+ * write lock.
+ */
+public class MappedBatchLog implements AutoCloseable {
+	/** A users record has been appended.
+	 */
+	public static final byte USER_APPENDED = 1;
+	/** A users record has been deleted.
+	 */
+	public static final byte USER_DELETED = 2;
+	/** A jobs record has been appended.
+	 */
+	public static final byte JOB_APPENDED = 3;
+	/** A jobs record has been deleted.
+	 */
+	public static final byte JOB_DELETED = 4;
+	/** The batch has been completed.
+	 */
+	public static final byte COMMIT = 5;
+	private static final int ENTRY_SIZE = 9;
+
+	/** The mutations of an incomplete batch, as returned by {@link MappedBatchLog#recover()}.
+	 */
+	public static class Entries {
+		private final byte[] ops;
+		private final long[] refs;
+
+		Entries(byte[] pOps, long[] pRefs) {
+			ops = pOps;
+			refs = pRefs;
+		}
+
+		/** Returns the number of entries.
+		 * @return The number of entries, or zero, if the last batch is complete.
+		 */
+		public int size() {
+			return ops.length;
+		}
+
+		/** Undoes the mutations of the given kind on the given store: Appended
+		 * records are deleted, and deleted records are restored, unless they
+		 * have been appended by the same batch.
+		 * @param pStore The store, which is being recovered.
+		 * @param pAppended The operation code of an append.
+		 * @param pDeleted The operation code of a deletion.
+		 */
+		public void undo(MappedSegmentStore pStore, byte pAppended, byte pDeleted) {
+			final long[] appended = new long[ops.length];
+			int count = 0;
+			for (int i = 0;  i < ops.length;  i++) {
+				if (ops[i] == pAppended) {
+					appended[count++] = refs[i];
+				}
+			}
+			Arrays.sort(appended, 0, count);
+			for (int i = 0;  i < ops.length;  i++) {
+				if (!pStore.exists(refs[i])) {
+					// An append, which hasn't been completed.
+					continue;
+				}
+				if (ops[i] == pAppended) {
+					pStore.setDeleted(refs[i], true);
+				} else if (ops[i] == pDeleted  &&  Arrays.binarySearch(appended, 0, count, refs[i]) < 0) {
+					pStore.setDeleted(refs[i], false);
+				}
+			}
+		}
+	}
+
+	private final Path file;
+	private final ByteBuffer buffer = ByteBuffer.allocate(ENTRY_SIZE);
+	private FileChannel channel;
+	private boolean fsync;
+
+	/** Creates a new instance, which writes to the given file.
+	 * @param pFile The log file.
+	 */
+	public MappedBatchLog(Path pFile) {
+		file = Objects.requireNonNull(pFile, "File");
+	}
+
+	/** Sets, whether {@link #commit()} forces the log to the storage device.
+	 * @param pFsync True, if the log is supposed to be forced to the storage
+	 *   device.
+	 */
+	public void setFsync(boolean pFsync) {
+		fsync = pFsync;
+	}
+
+	/** Reads the log, and opens it for writing further entries.
+	 * @return The mutations of the last batch, if it is incomplete,
+	 *   or an empty list of entries.
+	 */
+	public Entries recover() {
+		byte[] ops = new byte[0];
+		long[] refs = new long[0];
+		if (Files.isRegularFile(file)) {
+			final ByteBuffer bb;
+			try {
+				bb = ByteBuffer.wrap(Files.readAllBytes(file));
+			} catch (IOException ioe) {
+				throw new UncheckedIOException(ioe);
+			}
+			final int count = bb.capacity() / ENTRY_SIZE;
+			if (count > 0  &&  bb.get((count-1) * ENTRY_SIZE) != COMMIT) {
+				ops = new byte[count];
+				refs = new long[count];
+				for (int i = 0;  i < count;  i++) {
+					ops[i] = bb.get();
+					refs[i] = bb.getLong();
+				}
+			}
+		}
+		try {
+			channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+		} catch (IOException ioe) {
+			throw new UncheckedIOException(ioe);
+		}
+		return new Entries(ops, refs);
+	}
+
+	/** Starts a new batch, discarding the entries of the previous batch.
+	 */
+	public void begin() {
+		try {
+			channel.truncate(0);
+			channel.position(0);
+		} catch (IOException ioe) {
+			throw new UncheckedIOException(ioe);
+		}
+	}
+
+	/** Writes an entry. Must be invoked, before the described mutation
+	 * is performed.
+	 * @param pOp The operation code, for example {@link #USER_APPENDED}.
+	 * @param pRef The reference of the record, which is being appended,
+	 *   or deleted.
+	 */
+	public void add(byte pOp, long pRef) {
+		write(pOp, pRef);
+	}
+
+	/** Writes the commit record. Invoked after the batch has been committed,
+	 * or rolled back.
+	 */
+	public void commit() {
+		write(COMMIT, 0);
+		if (fsync) {
+			try {
+				channel.force(false);
+			} catch (IOException ioe) {
+				throw new UncheckedIOException(ioe);
+			}
+		}
+	}
+
+	private void write(byte pOp, long pRef) {
+		buffer.clear();
+		buffer.put(pOp).putLong(pRef).flip();
+		try {
+			while (buffer.hasRemaining()) {
+				channel.write(buffer);
+			}
+		} catch (IOException ioe) {
+			throw new UncheckedIOException(ioe);
+		}
+	}
+
+	/** Closes the log file.
+	 */
+	@Override
+	public void close() {
+		if (channel != null) {
+			try {
+				channel.close();
+			} catch (IOException ioe) {
+				throw new UncheckedIOException(ioe);
+			} finally {
+				channel = null;
+			}
+		}
+	}
+}
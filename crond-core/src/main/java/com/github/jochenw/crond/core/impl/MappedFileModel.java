@@ -0,0 +1,879 @@
+package com.github.jochenw.crond.core.impl;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+
+import com.github.jochenw.afw.core.function.Functions;
+import com.github.jochenw.afw.core.function.Functions.FailableConsumer;
+import com.github.jochenw.afw.core.log.ILog;
+import com.github.jochenw.afw.core.util.Holder;
+import com.github.jochenw.afw.core.util.Objects;
+import com.github.jochenw.afw.core.util.Objects.DuplicateElementException;
+import com.github.jochenw.afw.di.util.Exceptions;
+import com.github.jochenw.crond.core.beans.EventImpl;
+import com.github.jochenw.crond.core.util.OffHeapHashIndex;
+
+import jakarta.inject.Inject;
+import jakarta.inject.Named;
+
+/** An implementation of {@link IModel}, which keeps users, and jobs in
+ * memory-mapped segment files (see {@link MappedSegmentStore}), rather
+ * than on the heap. The indexes (by id, by email, by user id, and name,
+ * and by user id) are {@link OffHeapHashIndex off-heap hash indexes},
+ * which map to record references. The {@link User}, and {@link Job}
+ * objects, which are returned by this model, are flyweights, which
+ * decode the records fields lazily. As a consequence, the heap footprint
+ * stays flat, regardless of the models size.
+ *
+ * The segment files are kept in the directory {@code mapped.model.dir}.
+ * The segment size is configured by the property
+ * {@code mapped.model.segmentSize} (default 64 MB). Upon startup, the
+ * segments are mapped, and validated, and the indexes are built by a
+ * single pass over the records. Mutations append new records, and mark
+ * the replaced records as deleted, so records are never modified otherwise,
+ * and the flyweights remain valid forever. If {@code mapped.model.fsync}
+ * is true, then every mutation is forced to the storage device.
+ *
+ * The records of deleted, and updated elements are reclaimed upon startup:
+ * If the deleted records of a segment store occupy more space than its
+ * live records, and more than {@code mapped.model.minCompactionSize}
+ * bytes (default: the segment size), then the store is compacted (see
+ * {@link MappedSegmentStore#compact()}). Until the next startup, the
+ * segment files grow with every mutation. The current size is exposed
+ * by {@link #getSegmentBytes()}, and {@link #getDeletedBytes()}.
+ *
+ * Readers, and writers are synchronized by a {@link ReadWriteLock}.
+ * Iterations collect the record references, while holding the read lock,
+ * and invoke the consumer afterwards, so consumers may mutate the model.
+ *
+ * Batches are applied as a whole: If the batch fails, then the records,
+ * which have already been written, are marked as deleted again. The
+ * mutations of a batch are framed by a {@link MappedBatchLog}, so that a
+ * batch, which has been interrupted by a crash, is undone upon startup.
+ */
+public class MappedFileModel extends AbstractModel {
+	private @Inject @Named(value="mapped.model.dir") Path modelDir;
+	private final ReadWriteLock lock = new ReentrantReadWriteLock();
+	private MappedSegmentStore users, jobs;
+	private MappedBatchLog batchLog;
+	private boolean inBatch;
+	private OffHeapHashIndex usersById, usersByEmail, jobsById, jobsByUserIdAndName, jobsByUserId;
+	private long maxUserId, maxJobId;
+	private boolean fsync;
+	private ByteBuffer encodeBuffer = ByteBuffer.allocate(256);
+
+	/** A user, which is backed by a record in the {@link MappedSegmentStore}.
+	 * The record layout is: id (long), email (string), name (string). Strings
+	 * are written as the length of the UTF-8 encoding (int, -1 for null),
+	 * followed by the UTF-8 bytes.
+	 */
+	static class MappedUser implements User {
+		private final ByteBuffer segment;
+		private final int payload;
+		private String email, name;
+
+		MappedUser(ByteBuffer pSegment, int pPayload) {
+			segment = pSegment;
+			payload = pPayload;
+		}
+
+		@Override
+		public Long getId() {
+			return Long.valueOf(segment.getLong(payload));
+		}
+
+		@Override
+		public String getEmail() {
+			String s = email;
+			if (s == null) {
+				s = getString(segment, payload+8);
+				email = s;
+			}
+			return s;
+		}
+
+		@Override
+		public String getName() {
+			String s = name;
+			if (s == null) {
+				s = getString(segment, skipString(segment, payload+8));
+				name = s;
+			}
+			return s;
+		}
+	}
+
+	/** A job, which is backed by a record in the {@link MappedSegmentStore}.
+	 * The record layout is: id (long), user id (long), name (string), and
+	 * schedule (string). Records, which have been written before the
+	 * schedule was introduced, end after the name.
+	 */
+	static class MappedJob implements Job {
+		private final ByteBuffer segment;
+		private final int payload;
+		private String name, schedule;
+		private boolean scheduleDecoded;
+
+		MappedJob(ByteBuffer pSegment, int pPayload) {
+			segment = pSegment;
+			payload = pPayload;
+		}
+
+		@Override
+		public Long getId() {
+			return Long.valueOf(segment.getLong(payload));
+		}
+
+		@Override
+		public Long getUserId() {
+			return Long.valueOf(segment.getLong(payload+8));
+		}
+
+		@Override
+		public String getName() {
+			String s = name;
+			if (s == null) {
+				s = getString(segment, payload+16);
+				name = s;
+			}
+			return s;
+		}
+
+		@Override
+		public String getSchedule() {
+			if (!scheduleDecoded) {
+				final int pos = skipString(segment, payload+16);
+				if (pos < payload + MappedSegmentStore.getPayloadLength(segment, payload)) {
+					schedule = getString(segment, pos);
+				}
+				scheduleDecoded = true;
+			}
+			return schedule;
+		}
+	}
+
+	private static String getString(ByteBuffer pSegment, int pPos) {
+		final int len = pSegment.getInt(pPos);
+		if (len == -1) {
+			return null;
+		}
+		final byte[] bytes = new byte[len];
+		pSegment.get(pPos+4, bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	private static int skipString(ByteBuffer pSegment, int pPos) {
+		return pPos + 4 + Math.max(0, pSegment.getInt(pPos));
+	}
+
+	@Override
+	public void start() {
+		final long startTime = System.currentTimeMillis();
+		final int segmentSize = Integer.parseInt(getProperty("mapped.model.segmentSize", "67108864"));
+		final long minCompactionSize = Long.parseLong(getProperty("mapped.model.minCompactionSize",
+				String.valueOf(segmentSize)));
+		fsync = Boolean.parseBoolean(getProperty("mapped.model.fsync", "false"));
+		final ILog log = getLog();
+		lock.writeLock().lock();
+		try {
+			open(segmentSize);
+			final boolean compactUsers = users.getDeadBytes() > Math.max(minCompactionSize, users.getLiveBytes());
+			final boolean compactJobs = jobs.getDeadBytes() > Math.max(minCompactionSize, jobs.getLiveBytes());
+			if (compactUsers  ||  compactJobs) {
+				// The record references change, so the batch log is discarded, and
+				// the indexes are rebuilt.
+				final long fileBytes = getSegmentBytes();
+				batchLog.begin();
+				batchLog.close();
+				closeOrCompact(users, compactUsers);
+				closeOrCompact(jobs, compactJobs);
+				open(segmentSize);
+				if (log != null) {
+					log.info("start", "Compacted model directory {} from {} to {} bytes",
+							modelDir, Long.valueOf(fileBytes), Long.valueOf(getSegmentBytes()));
+				}
+			}
+			note((l) -> l.initialized());
+		} finally {
+			lock.writeLock().unlock();
+		}
+		if (log != null) {
+			log.info("start", "Mapped model directory {} ({} users, {} jobs) in {} ms, {} bytes off-heap,"
+					+ " {} bytes in segment files ({} bytes deleted)",
+					modelDir, Integer.valueOf(usersById.size()), Integer.valueOf(jobsById.size()),
+					Long.valueOf(System.currentTimeMillis() - startTime), Long.valueOf(getOffHeapBytes()),
+					Long.valueOf(getSegmentBytes()), Long.valueOf(getDeletedBytes()));
+		}
+	}
+
+	private void closeOrCompact(MappedSegmentStore pStore, boolean pCompact) {
+		if (pCompact) {
+			pStore.compact();
+		} else {
+			pStore.close();
+		}
+	}
+
+	/** Maps the segment files, undoes an incomplete batch, and builds
+	 * the indexes. Must be invoked, while holding the write lock.
+	 * @param pSegmentSize The segment size.
+	 */
+	private void open(int pSegmentSize) {
+		users = new MappedSegmentStore(modelDir, "users", pSegmentSize);
+		jobs = new MappedSegmentStore(modelDir, "jobs", pSegmentSize);
+		usersById = new OffHeapHashIndex();
+		usersByEmail = new OffHeapHashIndex();
+		jobsById = new OffHeapHashIndex();
+		jobsByUserIdAndName = new OffHeapHashIndex();
+		jobsByUserId = new OffHeapHashIndex();
+		maxUserId = 0;
+		maxJobId = 0;
+		batchLog = new MappedBatchLog(modelDir.resolve("batch.log"));
+		batchLog.setFsync(fsync);
+		// A batch, which has been interrupted by a crash, is undone before the records are indexed.
+		final MappedBatchLog.Entries incomplete = batchLog.recover();
+		final Consumer<MappedSegmentStore> undoUsers =
+				(s) -> incomplete.undo(s, MappedBatchLog.USER_APPENDED, MappedBatchLog.USER_DELETED);
+		final Consumer<MappedSegmentStore> undoJobs =
+				(s) -> incomplete.undo(s, MappedBatchLog.JOB_APPENDED, MappedBatchLog.JOB_DELETED);
+		users.open(undoUsers, (ref, segment, payload) -> {
+			final long id = segment.getLong(payload);
+			final long oldRef = findUser(id);
+			if (oldRef != 0) {
+				// An update, which has been interrupted before the old record
+				// was deleted: The newer record wins.
+				unindexUser(oldRef);
+				users.setDeleted(oldRef, true);
+			}
+			final String email = getString(segment, payload+8);
+			if (findUser(email) != 0) {
+				throw new IllegalStateException("Invalid segment file in " + modelDir
+						+ ": Duplicate email address: " + email);
+			}
+			indexUser(ref, id, email);
+			maxUserId = Math.max(maxUserId, id);
+		});
+		jobs.open(undoJobs, (ref, segment, payload) -> {
+			final long id = segment.getLong(payload);
+			final long oldRef = findJob(id);
+			if (oldRef != 0) {
+				unindexJob(oldRef);
+				jobs.setDeleted(oldRef, true);
+			}
+			final long userId = segment.getLong(payload+8);
+			final String name = getString(segment, payload+16);
+			if (findJob(userId, name) != 0) {
+				throw new IllegalStateException("Invalid segment file in " + modelDir
+						+ ": Duplicate combination of user id, and name: " + userId + ", " + name);
+			}
+			indexJob(ref, id, userId, name);
+			maxJobId = Math.max(maxJobId, id);
+		});
+		if (incomplete.size() > 0) {
+			if (fsync) {
+				users.force();
+				jobs.force();
+			}
+			batchLog.begin();
+		}
+	}
+
+	@Override
+	public void shutdown() {
+		lock.writeLock().lock();
+		try {
+			if (users != null) {
+				users.close();
+				jobs.close();
+				batchLog.close();
+			}
+		} finally {
+			lock.writeLock().unlock();
+		}
+		super.shutdown();
+	}
+
+	/** Returns the size of the segment files, in bytes. The segment files
+	 * grow with every mutation, because the records of deleted, and
+	 * updated elements are reclaimed only upon startup.
+	 * @return The size of the segment files, in bytes.
+	 * @see #getDeletedBytes()
+	 */
+	public long getSegmentBytes() {
+		lock.readLock().lock();
+		try {
+			return users.getFileBytes() + jobs.getFileBytes();
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/** Returns the number of bytes, which are occupied by the records of
+	 * deleted, and updated elements.
+	 * @return The number of bytes, which are occupied by deleted records.
+	 * @see #getSegmentBytes()
+	 */
+	public long getDeletedBytes() {
+		lock.readLock().lock();
+		try {
+			return users.getDeadBytes() + jobs.getDeadBytes();
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/** Returns the number of bytes, which the indexes occupy outside the heap.
+	 * @return The number of bytes, which the indexes occupy outside the heap.
+	 */
+	public long getOffHeapBytes() {
+		return usersById.getOffHeapBytes() + usersByEmail.getOffHeapBytes() + jobsById.getOffHeapBytes()
+			+ jobsByUserIdAndName.getOffHeapBytes() + jobsByUserId.getOffHeapBytes();
+	}
+
+	private static long hash(long pUserId, String pName) {
+		return OffHeapHashIndex.hash(pName) ^ (pUserId * 0x9e3779b97f4a7c15L);
+	}
+
+	private long findUser(long pId) {
+		return usersById.find(pId, (ref) -> users.getSegment(ref).getLong(MappedSegmentStore.getPayload(ref)) == pId);
+	}
+
+	private long findUser(String pEmail) {
+		return usersByEmail.find(OffHeapHashIndex.hash(pEmail), (ref) ->
+			pEmail.equals(getString(users.getSegment(ref), MappedSegmentStore.getPayload(ref)+8)));
+	}
+
+	private long findJob(long pId) {
+		return jobsById.find(pId, (ref) -> jobs.getSegment(ref).getLong(MappedSegmentStore.getPayload(ref)) == pId);
+	}
+
+	private long findJob(long pUserId, String pName) {
+		return jobsByUserIdAndName.find(hash(pUserId, pName), (ref) -> {
+			final ByteBuffer segment = jobs.getSegment(ref);
+			final int payload = MappedSegmentStore.getPayload(ref);
+			return segment.getLong(payload+8) == pUserId  &&  pName.equals(getString(segment, payload+16));
+		});
+	}
+
+	private MappedUser user(long pRef) {
+		return pRef == 0 ? null : new MappedUser(users.getSegment(pRef), MappedSegmentStore.getPayload(pRef));
+	}
+
+	private MappedJob job(long pRef) {
+		return pRef == 0 ? null : new MappedJob(jobs.getSegment(pRef), MappedSegmentStore.getPayload(pRef));
+	}
+
+	private void indexUser(long pRef, long pId, String pEmail) {
+		usersById.put(pId, pRef);
+		usersByEmail.put(OffHeapHashIndex.hash(pEmail), pRef);
+	}
+
+	private void unindexUser(long pRef) {
+		final MappedUser u = user(pRef);
+		usersById.remove(u.getId().longValue(), pRef);
+		usersByEmail.remove(OffHeapHashIndex.hash(u.getEmail()), pRef);
+	}
+
+	private void indexJob(long pRef, long pId, long pUserId, String pName) {
+		jobsById.put(pId, pRef);
+		jobsByUserIdAndName.put(hash(pUserId, pName), pRef);
+		jobsByUserId.put(pUserId, pRef);
+	}
+
+	private void unindexJob(long pRef) {
+		final MappedJob j = job(pRef);
+		final long userId = j.getUserId().longValue();
+		jobsById.remove(j.getId().longValue(), pRef);
+		jobsByUserIdAndName.remove(hash(userId, j.getName()), pRef);
+		jobsByUserId.remove(userId, pRef);
+	}
+
+	private ByteBuffer encodeBuffer(int pSize) {
+		if (encodeBuffer.capacity() < pSize) {
+			encodeBuffer = ByteBuffer.allocate(Math.max(pSize, encodeBuffer.capacity()*2));
+		}
+		encodeBuffer.clear();
+		return encodeBuffer;
+	}
+
+	private static void putString(ByteBuffer pBuffer, byte[] pBytes) {
+		if (pBytes == null) {
+			pBuffer.putInt(-1);
+		} else {
+			pBuffer.putInt(pBytes.length);
+			pBuffer.put(pBytes);
+		}
+	}
+
+	private static byte[] utf8(String pValue) {
+		return pValue == null ? null : pValue.getBytes(StandardCharsets.UTF_8);
+	}
+
+	private long appendUser(long pId, String pEmail, String pName) {
+		final byte[] email = utf8(pEmail);
+		final byte[] name = utf8(pName);
+		final ByteBuffer bb = encodeBuffer(16 + email.length + (name == null ? 0 : name.length));
+		bb.putLong(pId);
+		putString(bb, email);
+		putString(bb, name);
+		bb.flip();
+		if (inBatch) {
+			batchLog.add(MappedBatchLog.USER_APPENDED, users.nextRef(bb.remaining()));
+		}
+		return users.append(bb);
+	}
+
+	private long appendJob(long pId, long pUserId, String pName, String pSchedule) {
+		final byte[] name = utf8(pName);
+		final byte[] schedule = utf8(pSchedule);
+		final ByteBuffer bb = encodeBuffer(24 + name.length + (schedule == null ? 0 : schedule.length));
+		bb.putLong(pId);
+		bb.putLong(pUserId);
+		putString(bb, name);
+		putString(bb, schedule);
+		bb.flip();
+		if (inBatch) {
+			batchLog.add(MappedBatchLog.JOB_APPENDED, jobs.nextRef(bb.remaining()));
+		}
+		return jobs.append(bb);
+	}
+
+	private void deleteUser(long pRef) {
+		if (inBatch) {
+			batchLog.add(MappedBatchLog.USER_DELETED, pRef);
+		}
+		users.setDeleted(pRef, true);
+	}
+
+	private void deleteJob(long pRef) {
+		if (inBatch) {
+			batchLog.add(MappedBatchLog.JOB_DELETED, pRef);
+		}
+		jobs.setDeleted(pRef, true);
+	}
+
+	/** A set of mutations, which are applied immediately, while holding
+	 * the write lock. If the batch fails, then the mutations are undone
+	 * in reverse order.
+	 */
+	private class Transaction implements Batch {
+		private final long savedMaxUserId = maxUserId, savedMaxJobId = maxJobId;
+		private final List<Runnable> undos = new ArrayList<>();
+		private final List<Event> events = new ArrayList<>();
+		private boolean closed;
+
+		@Override
+		public User addUser(String pEmail, String pName) throws DuplicateElementException {
+			assertOpen();
+			final String email = Objects.requireNonNull(pEmail, "Email");
+			if (findUser(email) != 0) {
+				throw new DuplicateElementException("Duplicate email address: " + email);
+			}
+			final long id = maxUserId+1;
+			final long ref = appendUser(id, email, pName);
+			indexUser(ref, id, email);
+			maxUserId = id;
+			undos.add(() -> {
+				unindexUser(ref);
+				users.setDeleted(ref, true);
+			});
+			final User u = user(ref);
+			events.add(EventImpl.userAdded(u));
+			return u;
+		}
+
+		@Override
+		public Job addJob(Long pUserId, String pName) throws DuplicateElementException, NoSuchElementException {
+			assertOpen();
+			final Long userId = Objects.requireNonNull(pUserId, "User Id");
+			final String name = Objects.requireNonNull(pName, "Name");
+			if (findUser(userId.longValue()) == 0) {
+				throw new NoSuchElementException("Unknown user id: " + userId);
+			}
+			if (findJob(userId.longValue(), name) != 0) {
+				throw new DuplicateElementException("Duplicate combination of user id, and name: "
+						+ userId + ", " + name);
+			}
+			final long id = maxJobId+1;
+			final long ref = appendJob(id, userId.longValue(), name, null);
+			indexJob(ref, id, userId.longValue(), name);
+			maxJobId = id;
+			undos.add(() -> {
+				unindexJob(ref);
+				jobs.setDeleted(ref, true);
+			});
+			final Job j = job(ref);
+			events.add(EventImpl.jobAdded(j));
+			return j;
+		}
+
+		@Override
+		public void updateUser(User pUser) throws NoSuchElementException, DuplicateElementException {
+			assertOpen();
+			final Long id = Objects.requireNonNull(pUser.getId());
+			final String email = Objects.requireNonNull(pUser.getEmail());
+			final long oldRef = findUser(id.longValue());
+			if (oldRef == 0) {
+				throw new NoSuchElementException("Unknown user id: " + id);
+			}
+			final long emailRef = findUser(email);
+			if (emailRef != 0  &&  emailRef != oldRef) {
+				throw new DuplicateElementException("Duplicate email address: " + email);
+			}
+			final long ref = appendUser(id.longValue(), email, pUser.getName());
+			unindexUser(oldRef);
+			deleteUser(oldRef);
+			indexUser(ref, id.longValue(), email);
+			undos.add(() -> {
+				unindexUser(ref);
+				users.setDeleted(ref, true);
+				users.setDeleted(oldRef, false);
+				indexUser(oldRef, id.longValue(), user(oldRef).getEmail());
+			});
+			events.add(EventImpl.userUpdated(user(ref)));
+		}
+
+		@Override
+		public void updateJob(Job pJob) throws NoSuchElementException, DuplicateElementException {
+			assertOpen();
+			final Long id = Objects.requireNonNull(pJob.getId());
+			final Long userId = Objects.requireNonNull(pJob.getUserId());
+			final String name = Objects.requireNonNull(pJob.getName());
+			final long oldRef = findJob(id.longValue());
+			if (oldRef == 0) {
+				throw new NoSuchElementException("Unknown job id: " + id);
+			}
+			if (findUser(userId.longValue()) == 0) {
+				throw new NoSuchElementException("Unknown user id: " + userId);
+			}
+			final long nameRef = findJob(userId.longValue(), name);
+			if (nameRef != 0  &&  nameRef != oldRef) {
+				throw new DuplicateElementException("Duplicate combination of user id, and name: "
+						+ userId + ", " + name);
+			}
+			final long ref = appendJob(id.longValue(), userId.longValue(), name, pJob.getSchedule());
+			unindexJob(oldRef);
+			deleteJob(oldRef);
+			indexJob(ref, id.longValue(), userId.longValue(), name);
+			undos.add(() -> {
+				unindexJob(ref);
+				jobs.setDeleted(ref, true);
+				jobs.setDeleted(oldRef, false);
+				final MappedJob oldJob = job(oldRef);
+				indexJob(oldRef, id.longValue(), oldJob.getUserId().longValue(), oldJob.getName());
+			});
+			events.add(EventImpl.jobUpdated(job(ref)));
+		}
+
+		@Override
+		public void removeUser(Long pUserId) throws NoSuchElementException {
+			assertOpen();
+			final Long id = Objects.requireNonNull(pUserId);
+			final long ref = findUser(id.longValue());
+			if (ref == 0) {
+				throw new NoSuchElementException("Unknown user id: " + id);
+			}
+			final MappedUser u = user(ref);
+			unindexUser(ref);
+			deleteUser(ref);
+			undos.add(() -> {
+				users.setDeleted(ref, false);
+				indexUser(ref, id.longValue(), u.getEmail());
+			});
+			events.add(EventImpl.userDeleted(u));
+		}
+
+		@Override
+		public void removeJob(Long pJobId) throws NoSuchElementException {
+			assertOpen();
+			final Long id = Objects.requireNonNull(pJobId);
+			final long ref = findJob(id.longValue());
+			if (ref == 0) {
+				throw new NoSuchElementException("Unknown job id: " + id);
+			}
+			final MappedJob j = job(ref);
+			unindexJob(ref);
+			deleteJob(ref);
+			undos.add(() -> {
+				jobs.setDeleted(ref, false);
+				indexJob(ref, id.longValue(), j.getUserId().longValue(), j.getName());
+			});
+			events.add(EventImpl.jobDeleted(j));
+		}
+
+		private void assertOpen() {
+			if (closed) {
+				throw new IllegalStateException("This batch has already been completed.");
+			}
+		}
+
+		void commit() {
+			closed = true;
+			if (fsync  &&  !events.isEmpty()) {
+				users.force();
+				jobs.force();
+			}
+		}
+
+		void rollback() {
+			closed = true;
+			for (int i = undos.size()-1;  i >= 0;  i--) {
+				undos.get(i).run();
+			}
+			maxUserId = savedMaxUserId;
+			maxJobId = savedMaxJobId;
+		}
+	}
+
+	/** Applies the given action as a {@link Transaction}, and reports
+	 * the mutations to the listeners, while still holding the write lock.
+	 * @param pAction The action, which performs the mutations.
+	 * @param pBatch True, if the mutations are to be reported as a
+	 *   batch, false, if the action performs a single mutation.
+	 */
+	private void apply(Consumer<Transaction> pAction, boolean pBatch) {
+		lock.writeLock().lock();
+		try {
+			final Transaction tx = new Transaction();
+			if (pBatch) {
+				batchLog.begin();
+				inBatch = true;
+			}
+			try {
+				pAction.accept(tx);
+				tx.commit();
+			} catch (RuntimeException|Error e) {
+				tx.rollback();
+				throw e;
+			} finally {
+				if (pBatch) {
+					inBatch = false;
+					batchLog.commit();
+				}
+			}
+			if (pBatch) {
+				if (!tx.events.isEmpty()) {
+					note(Collections.unmodifiableList(tx.events));
+				}
+			} else {
+				note(tx.events.get(0));
+			}
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	@Override
+	public void batch(FailableConsumer<Batch,?> pBatch) {
+		apply((tx) -> {
+			try {
+				pBatch.accept(tx);
+			} catch (Throwable t) {
+				throw Exceptions.show(t);
+			}
+		}, true);
+	}
+
+	@Override
+	public User addUser(String pEmail, String pName) throws DuplicateElementException {
+		final Holder<User> holder = new Holder<>();
+		apply((tx) -> holder.set(tx.addUser(pEmail, pName)), false);
+		return holder.get();
+	}
+
+	@Override
+	public Job addJob(Long pUserId, String pName) throws DuplicateElementException, NoSuchElementException {
+		final Holder<Job> holder = new Holder<>();
+		apply((tx) -> holder.set(tx.addJob(pUserId, pName)), false);
+		return holder.get();
+	}
+
+	@Override
+	public void updateUser(User pUser) throws NoSuchElementException, DuplicateElementException {
+		apply((tx) -> tx.updateUser(pUser), false);
+	}
+
+	@Override
+	public void updateJob(Job pJob) throws NoSuchElementException, DuplicateElementException {
+		apply((tx) -> tx.updateJob(pJob), false);
+	}
+
+	@Override
+	public void removeUser(Long pUserId) throws NoSuchElementException {
+		apply((tx) -> tx.removeUser(pUserId), false);
+	}
+
+	@Override
+	public void removeJob(Long pJobId) throws NoSuchElementException {
+		apply((tx) -> tx.removeJob(pJobId), false);
+	}
+
+	@Override
+	public User getUserById(Long pUserId) {
+		if (pUserId == null) {
+			return null;
+		}
+		return getUserById(pUserId.longValue());
+	}
+
+	@Override
+	public User getUserById(long pUserId) {
+		lock.readLock().lock();
+		try {
+			return user(findUser(pUserId));
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public User getUserByEmail(String pEmail) {
+		final String email = Objects.requireNonNull(pEmail);
+		lock.readLock().lock();
+		try {
+			return user(findUser(email));
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public Job getJobById(Long pJobId) {
+		final Long id = Objects.requireNonNull(pJobId);
+		return getJobById(id.longValue());
+	}
+
+	@Override
+	public Job getJobById(long pJobId) {
+		lock.readLock().lock();
+		try {
+			return job(findJob(pJobId));
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public Job getJobByUserIdAndName(Long pUserId, String pName) {
+		final Long userId = Objects.requireNonNull(pUserId);
+		final String name = Objects.requireNonNull(pName);
+		lock.readLock().lock();
+		try {
+			return job(findJob(userId.longValue(), name));
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/** A list of record references, together with the segments, which
+	 * contain them. Collected, while holding the read lock, so that the
+	 * consumers can be invoked without holding it.
+	 */
+	private static class Refs {
+		private final ByteBuffer[] segments;
+		private long[] refs = new long[64];
+		private int size;
+
+		Refs(MappedSegmentStore pStore) {
+			segments = new ByteBuffer[pStore.getSegmentCount()];
+			for (int i = 0;  i < segments.length;  i++) {
+				segments[i] = pStore.getSegment((long) i << 32);
+			}
+		}
+
+		void add(long pRef) {
+			if (size == refs.length) {
+				refs = Arrays.copyOf(refs, size*2);
+			}
+			refs[size++] = pRef;
+		}
+
+		ByteBuffer getSegment(int pIndex) {
+			return segments[(int) (refs[pIndex] >>> 32)];
+		}
+
+		int getPayload(int pIndex) {
+			return MappedSegmentStore.getPayload(refs[pIndex]);
+		}
+	}
+
+	@Override
+	public void forEachUser(FailableConsumer<User, ?> pConsumer) {
+		final Refs refs;
+		lock.readLock().lock();
+		try {
+			refs = new Refs(users);
+			usersById.forEachValue(refs::add);
+		} finally {
+			lock.readLock().unlock();
+		}
+		// Sorting the references yields the order of creation.
+		Arrays.sort(refs.refs, 0, refs.size);
+		for (int i = 0;  i < refs.size;  i++) {
+			Functions.accept(pConsumer, new MappedUser(refs.getSegment(i), refs.getPayload(i)));
+		}
+	}
+
+	@Override
+	public void forEachJob(FailableConsumer<Job, ?> pConsumer) {
+		final Refs refs;
+		lock.readLock().lock();
+		try {
+			refs = new Refs(jobs);
+			jobsById.forEachValue(refs::add);
+		} finally {
+			lock.readLock().unlock();
+		}
+		Arrays.sort(refs.refs, 0, refs.size);
+		for (int i = 0;  i < refs.size;  i++) {
+			Functions.accept(pConsumer, new MappedJob(refs.getSegment(i), refs.getPayload(i)));
+		}
+	}
+
+	@Override
+	public void forEachJobOfUser(Long pUserId, FailableConsumer<Job, ?> pConsumer) {
+		final long userId = Objects.requireNonNull(pUserId, "User Id").longValue();
+		final Refs refs;
+		lock.readLock().lock();
+		try {
+			refs = new Refs(jobs);
+			jobsByUserId.forEach(userId, (ref) -> {
+				if (jobs.getSegment(ref).getLong(MappedSegmentStore.getPayload(ref)+8) == userId) {
+					refs.add(ref);
+				}
+			});
+		} finally {
+			lock.readLock().unlock();
+		}
+		Arrays.sort(refs.refs, 0, refs.size);
+		for (int i = 0;  i < refs.size;  i++) {
+			Functions.accept(pConsumer, new MappedJob(refs.getSegment(i), refs.getPayload(i)));
+		}
+	}
+
+	@Override
+	public int countJobsOfUser(Long pUserId) {
+		final long userId = Objects.requireNonNull(pUserId, "User Id").longValue();
+		final int[] count = new int[1];
+		lock.readLock().lock();
+		try {
+			jobsByUserId.forEach(userId, (ref) -> {
+				if (jobs.getSegment(ref).getLong(MappedSegmentStore.getPayload(ref)+8) == userId) {
+					count[0]++;
+				}
+			});
+		} finally {
+			lock.readLock().unlock();
+		}
+		return count[0];
+	}
+}
@@ -0,0 +1,442 @@
+package com.github.jochenw.crond.core.impl;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+import com.github.jochenw.afw.core.util.Objects;
+
+/** An append only store of variable length records, which are kept in
+ * memory-mapped segment files. Used by the {@link MappedFileModel}.
+ *
+ * Every segment file has a fixed size, and starts with a header of
+ * {@link #HEADER_SIZE} bytes: The magic number {@link #MAGIC} (int),
+ * the format version (int), the segment number (int), and a reserved
+ * int. The header is followed by the records. Every record consists of
+ * the payload length (int), the CRC32 checksum of the payload (int), the
+ * flags (byte, see {@link #FLAG_DELETED}), and the payload. A payload
+ * length of zero marks the end of the segment. Records never span
+ * segments.
+ *
+ * Records are never modified, except for the flags. A record is
+ * identified by a reference (long), which consists of the segment
+ * number (upper 32 bits), and the position of the record within the
+ * segment (lower 32 bits). References are always positive.
+ *
+ * As records are never modified, the records, which have been deleted,
+ * or replaced, occupy space, until the store is {@link #compact() compacted}.
+ *
+ * Instances aren't thread safe: Writers must be serialized, and readers
+ * must not run concurrently with a writer. However, the buffers, which
+ * are returned by {@link #getSegment(long)}, may be read at any time,
+ * because the records, which they contain, never change.
+ */
+public class MappedSegmentStore {
+	/** The magic number, which identifies a segment file ("CRDS").
+	 */
+	public static final int MAGIC = 0x43524453;
+	/** The current format version.
+	 */
+	public static final int VERSION = 1;
+	/** The size of the segment header, in bytes.
+	 */
+	public static final int HEADER_SIZE = 16;
+	/** The size of the record header, in bytes.
+	 */
+	public static final int RECORD_HEADER_SIZE = 9;
+	/** The flag, which marks a deleted record.
+	 */
+	public static final byte FLAG_DELETED = 1;
+
+	/** A visitor for the records, which is being invoked by
+	 * {@link MappedSegmentStore#open(Visitor)}.
+	 */
+	@FunctionalInterface
+	public interface Visitor {
+		/** Called for a live (not deleted) record.
+		 * @param pRef The records reference.
+		 * @param pSegment The segment buffer, which contains the record.
+		 * @param pPayload The payloads position within the segment.
+		 */
+		public void record(long pRef, ByteBuffer pSegment, int pPayload);
+	}
+
+	private final Path dir;
+	private final String prefix;
+	private final int segmentSize;
+	private final List<MappedByteBuffer> segments = new ArrayList<>();
+	private final CRC32 crc = new CRC32();
+	private int endPos;
+	private long liveBytes, deadBytes;
+
+	/** Creates a new instance.
+	 * @param pDir The directory, which contains the segment files.
+	 * @param pPrefix The segment file names prefix, for example "users".
+	 * @param pSegmentSize The size of a segment file, in bytes.
+	 */
+	public MappedSegmentStore(Path pDir, String pPrefix, int pSegmentSize) {
+		dir = Objects.requireNonNull(pDir, "Directory");
+		prefix = Objects.requireNonNull(pPrefix, "Prefix");
+		if (pSegmentSize < 4096) {
+			throw new IllegalArgumentException("Invalid segment size: " + pSegmentSize);
+		}
+		segmentSize = pSegmentSize;
+	}
+
+	/** Returns the path of the segment file with the given number.
+	 * @param pSegment The segment number.
+	 * @return The segment files path.
+	 */
+	protected Path getSegmentFile(int pSegment) {
+		return dir.resolve(String.format("%s-%05d.seg", prefix, Integer.valueOf(pSegment)));
+	}
+
+	/** Maps the existing segment files, validates their headers, and
+	 * records, and invokes the given visitor for all live records, in
+	 * the order of their creation. A record with an invalid checksum
+	 * at the end of the last segment is considered an incomplete write,
+	 * and is discarded.
+	 * @param pVisitor The visitor, which is being invoked for the live
+	 *   records.
+	 * @throws IllegalStateException A segment file is invalid.
+	 */
+	public void open(Visitor pVisitor) {
+		open(null, pVisitor);
+	}
+
+	/** Maps the existing segment files, invokes the given recovery action,
+	 * and validates the records, invoking the given visitor for all live
+	 * records, in the order of their creation. (See {@link #open(Visitor)}.)
+	 * @param pRecovery The recovery action, or null. Invoked after the segments
+	 *   have been mapped, but before the records are visited. May invoke
+	 *   {@link #setDeleted(long, boolean)}, for example to undo an
+	 *   incomplete batch.
+	 * @param pVisitor The visitor, which is being invoked for the live
+	 *   records.
+	 * @throws IllegalStateException A segment file is invalid.
+	 */
+	public void open(Consumer<MappedSegmentStore> pRecovery, Visitor pVisitor) {
+		try {
+			Files.createDirectories(dir);
+			completeCompaction();
+		} catch (IOException ioe) {
+			throw new UncheckedIOException(ioe);
+		}
+		for (int i = 0;  Files.isRegularFile(getSegmentFile(i));  i++) {
+			segments.add(map(i, false));
+		}
+		if (segments.isEmpty()) {
+			segments.add(map(0, true));
+		}
+		if (pRecovery != null) {
+			pRecovery.accept(this);
+			// The statistics are computed by the scan.
+			liveBytes = 0;
+			deadBytes = 0;
+		}
+		for (int i = 0;  i < segments.size();  i++) {
+			endPos = scan(i, i == segments.size()-1, pVisitor);
+		}
+	}
+
+	private MappedByteBuffer map(int pSegment, boolean pCreate) {
+		final Path file = getSegmentFile(pSegment);
+		try (FileChannel fc = pCreate
+				? FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE)
+				: FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+			if (!pCreate  &&  fc.size() != segmentSize) {
+				throw new IllegalStateException("Invalid segment file " + file + ": Expected size "
+						+ segmentSize + ", got " + fc.size());
+			}
+			final MappedByteBuffer mbb = fc.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+			if (pCreate) {
+				mbb.putInt(0, MAGIC);
+				mbb.putInt(4, VERSION);
+				mbb.putInt(8, pSegment);
+			} else {
+				if (mbb.getInt(0) != MAGIC) {
+					throw new IllegalStateException("Invalid segment file " + file + ": Invalid magic number");
+				}
+				if (mbb.getInt(4) != VERSION) {
+					throw new IllegalStateException("Invalid segment file " + file + ": Unsupported version "
+							+ mbb.getInt(4));
+				}
+				if (mbb.getInt(8) != pSegment) {
+					throw new IllegalStateException("Invalid segment file " + file + ": Expected segment number "
+							+ pSegment + ", got " + mbb.getInt(8));
+				}
+			}
+			return mbb;
+		} catch (IOException ioe) {
+			throw new UncheckedIOException(ioe);
+		}
+	}
+
+	private int scan(int pSegment, boolean pLast, Visitor pVisitor) {
+		final MappedByteBuffer mbb = segments.get(pSegment);
+		int pos = HEADER_SIZE;
+		while (pos + RECORD_HEADER_SIZE <= segmentSize) {
+			final int len = mbb.getInt(pos);
+			if (len == 0) {
+				break;
+			}
+			final int payload = pos + RECORD_HEADER_SIZE;
+			if (len < 0  ||  len > segmentSize - payload  ||  checksum(mbb, payload, len) != mbb.getInt(pos+4)) {
+				if (pLast) {
+					// An incomplete write: Discard the remainder of the segment.
+					for (int i = pos;  i < segmentSize  &&  i < payload + Math.max(0, len);  i++) {
+						mbb.put(i, (byte) 0);
+					}
+					break;
+				}
+				throw new IllegalStateException("Invalid segment file " + getSegmentFile(pSegment)
+						+ ": Invalid record at position " + pos);
+			}
+			if ((mbb.get(pos+8) & FLAG_DELETED) == 0) {
+				liveBytes += RECORD_HEADER_SIZE + len;
+				pVisitor.record(ref(pSegment, pos), mbb, payload);
+			} else {
+				deadBytes += RECORD_HEADER_SIZE + len;
+			}
+			pos = payload + len;
+		}
+		return pos;
+	}
+
+	private int checksum(ByteBuffer pBuffer, int pOffset, int pLength) {
+		crc.reset();
+		crc.update(pBuffer.duplicate().position(pOffset).limit(pOffset + pLength));
+		return (int) crc.getValue();
+	}
+
+	private static long ref(int pSegment, int pPos) {
+		return ((long) pSegment << 32) | pPos;
+	}
+
+	/** Returns the segment buffer, which contains the given record.
+	 * @param pRef The records reference.
+	 * @return The segment buffer, which contains the record.
+	 */
+	public ByteBuffer getSegment(long pRef) {
+		return segments.get((int) (pRef >>> 32));
+	}
+
+	/** Returns the position of the given records payload within the
+	 * segment.
+	 * @param pRef The records reference.
+	 * @return The payloads position.
+	 */
+	public static int getPayload(long pRef) {
+		return (int) pRef + RECORD_HEADER_SIZE;
+	}
+
+	/** Returns the length of the record, whose payload starts at the
+	 * given position.
+	 * @param pSegment The segment buffer, which contains the record.
+	 * @param pPayload The payloads position within the segment.
+	 * @return The payloads length, in bytes.
+	 */
+	public static int getPayloadLength(ByteBuffer pSegment, int pPayload) {
+		return pSegment.getInt(pPayload - RECORD_HEADER_SIZE);
+	}
+
+	/** Returns, whether the given reference denotes a complete record.
+	 * @param pRef The records reference.
+	 * @return True, if the referenced segment exists, and contains a
+	 *   record at the given position.
+	 */
+	public boolean exists(long pRef) {
+		final int segment = (int) (pRef >>> 32);
+		final int pos = (int) pRef;
+		return segment >= 0  &&  segment < segments.size()  &&  pos >= HEADER_SIZE
+				&&  pos + RECORD_HEADER_SIZE <= segmentSize  &&  segments.get(segment).getInt(pos) > 0;
+	}
+
+	/** Returns the reference of the record, which will be created by
+	 * the next invocation of {@link #append(ByteBuffer)}.
+	 * @param pLength The payload length of the next record.
+	 * @return The next records reference.
+	 */
+	public long nextRef(int pLength) {
+		if (endPos + RECORD_HEADER_SIZE + pLength > segmentSize) {
+			return ref(segments.size(), HEADER_SIZE);
+		}
+		return ref(segments.size()-1, endPos);
+	}
+
+	/** Appends a new record.
+	 * @param pPayload The records payload, from the current position
+	 *   up to the limit.
+	 * @return The new records reference.
+	 */
+	public long append(ByteBuffer pPayload) {
+		final int len = pPayload.remaining();
+		if (len == 0  ||  len > segmentSize - HEADER_SIZE - RECORD_HEADER_SIZE) {
+			throw new IllegalArgumentException("Invalid record length: " + len);
+		}
+		if (endPos + RECORD_HEADER_SIZE + len > segmentSize) {
+			segments.add(map(segments.size(), true));
+			endPos = HEADER_SIZE;
+		}
+		final int segment = segments.size()-1;
+		final MappedByteBuffer mbb = segments.get(segment);
+		final int pos = endPos;
+		mbb.put(pos + RECORD_HEADER_SIZE, pPayload, pPayload.position(), len);
+		mbb.putInt(pos+4, checksum(mbb, pos + RECORD_HEADER_SIZE, len));
+		mbb.put(pos+8, (byte) 0);
+		// The length comes last: It makes the record visible to the next scan.
+		mbb.putInt(pos, len);
+		endPos = pos + RECORD_HEADER_SIZE + len;
+		liveBytes += RECORD_HEADER_SIZE + len;
+		return ref(segment, pos);
+	}
+
+	/** Marks the given record as deleted, or live.
+	 * @param pRef The records reference.
+	 * @param pDeleted True, if the record is being deleted, false,
+	 *   if it is being restored.
+	 */
+	public void setDeleted(long pRef, boolean pDeleted) {
+		final ByteBuffer bb = getSegment(pRef);
+		final int pos = (int) pRef;
+		final int bytes = RECORD_HEADER_SIZE + bb.getInt(pos);
+		bb.put(pos+8, pDeleted ? FLAG_DELETED : 0);
+		if (pDeleted) {
+			liveBytes -= bytes;
+			deadBytes += bytes;
+		} else {
+			liveBytes += bytes;
+			deadBytes -= bytes;
+		}
+	}
+
+	/** Returns the number of bytes, which are occupied by live records.
+	 * @return The number of bytes, which are occupied by live records.
+	 */
+	public long getLiveBytes() {
+		return liveBytes;
+	}
+
+	/** Returns the number of bytes, which are occupied by deleted records.
+	 * @return The number of bytes, which are occupied by deleted records.
+	 */
+	public long getDeadBytes() {
+		return deadBytes;
+	}
+
+	/** Returns the number of segments.
+	 * @return The number of segments.
+	 */
+	public int getSegmentCount() {
+		return segments.size();
+	}
+
+	/** Returns the size of the segment files, in bytes.
+	 * @return The size of the segment files, in bytes.
+	 */
+	public long getFileBytes() {
+		return (long) segments.size() * segmentSize;
+	}
+
+	/** Rewrites the live records into new segment files, which replace the
+	 * current segment files, so that the space of the deleted records is
+	 * reclaimed. The records references change, so the store is closed
+	 * afterwards, and must be {@link #open(Visitor) opened} again. The
+	 * new segment files are written with the prefix "&lt;prefix&gt;.compact",
+	 * and forced to the storage device. Afterwards, a marker file is created,
+	 * and the new segment files are renamed. If the process crashes before
+	 * the marker file has been created, then the next {@link #open(Visitor)}
+	 * discards the new segment files, otherwise it completes the renaming.
+	 * @throws UncheckedIOException Writing the new segment files failed.
+	 */
+	public void compact() {
+		final MappedSegmentStore target = new MappedSegmentStore(dir, prefix + ".compact", segmentSize);
+		try {
+			deleteSegmentFiles(target, 0);
+			target.open((ref, segment, payload) -> {});
+			for (MappedByteBuffer mbb : segments) {
+				int pos = HEADER_SIZE;
+				while (pos + RECORD_HEADER_SIZE <= segmentSize) {
+					final int len = mbb.getInt(pos);
+					if (len == 0) {
+						break;
+					}
+					final int payload = pos + RECORD_HEADER_SIZE;
+					if ((mbb.get(pos+8) & FLAG_DELETED) == 0) {
+						target.append(mbb.duplicate().position(payload).limit(payload + len));
+					}
+					pos = payload + len;
+				}
+			}
+			final int count = target.getSegmentCount();
+			target.close();
+			close();
+			Files.write(getCompactionMarker(), Integer.toString(count).getBytes(StandardCharsets.US_ASCII));
+			ModelFileFormat.forceDirectory(getCompactionMarker());
+			completeCompaction();
+		} catch (IOException ioe) {
+			throw new UncheckedIOException(ioe);
+		}
+	}
+
+	private Path getCompactionMarker() {
+		return dir.resolve(prefix + ".compacted");
+	}
+
+	/** Completes a compaction, which has been interrupted, or discards
+	 * its segment files, if the compaction has been incomplete.
+	 */
+	private void completeCompaction() throws IOException {
+		final MappedSegmentStore target = new MappedSegmentStore(dir, prefix + ".compact", segmentSize);
+		final Path marker = getCompactionMarker();
+		if (Files.isRegularFile(marker)) {
+			final int count = Integer.parseInt(new String(Files.readAllBytes(marker), StandardCharsets.US_ASCII).trim());
+			for (int i = 0;  i < count;  i++) {
+				final Path file = target.getSegmentFile(i);
+				if (Files.isRegularFile(file)) {
+					Files.move(file, getSegmentFile(i), StandardCopyOption.REPLACE_EXISTING,
+							   StandardCopyOption.ATOMIC_MOVE);
+				}
+			}
+			deleteSegmentFiles(this, count);
+			Files.delete(marker);
+			ModelFileFormat.forceDirectory(marker);
+		} else {
+			deleteSegmentFiles(target, 0);
+		}
+	}
+
+	private static void deleteSegmentFiles(MappedSegmentStore pStore, int pFirst) throws IOException {
+		for (int i = pFirst;  Files.deleteIfExists(pStore.getSegmentFile(i));  i++) {
+			// Nothing to do.
+		}
+	}
+
+	/** Forces all changes to the storage device.
+	 */
+	public void force() {
+		for (MappedByteBuffer mbb : segments) {
+			mbb.force();
+		}
+	}
+
+	/** Forces all changes to the storage device, and releases the segments.
+	 * The buffers, which have been returned by {@link #getSegment(long)},
+	 * remain valid until they are garbage collected.
+	 */
+	public void close() {
+		force();
+		segments.clear();
+	}
+}
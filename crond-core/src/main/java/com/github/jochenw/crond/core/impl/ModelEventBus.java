@@ -0,0 +1,679 @@
+package com.github.jochenw.crond.core.impl;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import com.github.jochenw.afw.core.log.ILog;
+import com.github.jochenw.afw.core.util.Objects;
+import com.github.jochenw.crond.core.api.IModel.Event;
+import com.github.jochenw.crond.core.api.IModel.Listener;
+import com.github.jochenw.crond.core.api.IModel.SynchronousListener;
+import com.github.jochenw.crond.core.beans.EventImpl;
+
+/** Dispatches model events to the {@link Listener listeners}. Every
+ * listener has its own bounded ring buffer, which is drained by a
+ * small, shared pool of worker threads, so that a slow listener
+ * delays neither the mutating threads, nor the other listeners.
+ * Events are delivered to a listener in the order of publication,
+ * and never concurrently.
+ *
+ * Listeners, which implement {@link SynchronousListener}, are invoked
+ * directly by the publishing thread instead.
+ *
+ * If a listeners ring buffer is full, the configured
+ * {@link OverflowPolicy} applies.
+ *
+ * A listener, which throws an exception, doesn't affect the publishing
+ * thread, or the other listeners: The exception is logged, and counted
+ * (see {@link ListenerStats#getFailed()}). Errors, which are thrown by a
+ * {@link SynchronousListener}, are passed on to the publishing thread.
+ */
+public class ModelEventBus {
+	/** Controls, what happens, if a listeners ring buffer is full.
+	 */
+	public enum OverflowPolicy {
+		/** The publishing thread waits, until the listener has caught up.
+		 * Note, that the publishing thread typically holds the models
+		 * write lock, so a slow listener blocks all writers.
+		 * If the publishing thread is the listener itself (because the
+		 * listener mutates the model), or if the listener doesn't catch
+		 * up within the configured timeout (for example, because it waits
+		 * for the publishing thread), {@link #DROP_AND_RESYNC} applies
+		 * instead.
+		 */
+		BLOCK,
+		/** The queued events are discarded, and the listener receives a
+		 * single {@link Listener#initialized()} notification instead, upon
+		 * which it is supposed to reload the model.
+		 */
+		DROP_AND_RESYNC,
+		/** Further events are merged into a single batch, which keeps only
+		 * the latest event per user, or job, and which is being delivered
+		 * by invoking {@link Listener#batchApplied(List)}, after the ring
+		 * buffer has been drained.
+		 */
+		COALESCE;
+
+		/** Parses the given policy name. Valid names are "block",
+		 * "drop-and-resync", and "coalesce".
+		 * @param pName The policy name.
+		 * @return The parsed policy.
+		 * @throws IllegalArgumentException The policy name is invalid.
+		 */
+		public static OverflowPolicy of(String pName) {
+			final String name = Objects.requireNonNull(pName, "Name").trim().toLowerCase();
+			switch (name) {
+			  case "block": return BLOCK;
+			  case "drop-and-resync": return DROP_AND_RESYNC;
+			  case "coalesce": return COALESCE;
+			  default: throw new IllegalArgumentException("Invalid overflow policy: " + pName);
+			}
+		}
+	}
+
+	/** Statistics about the event delivery to a single listener.
+	 */
+	public interface ListenerStats {
+		/** Returns the listener.
+		 * @return The listener.
+		 */
+		public Listener getListener();
+		/** Returns, whether the listener is invoked synchronously.
+		 * @return True, if the listener is a {@link SynchronousListener}.
+		 */
+		public boolean isSynchronous();
+		/** Returns the number of notifications, which have been published,
+		 * but not yet delivered.
+		 * @return The number of pending notifications.
+		 */
+		public int getQueued();
+		/** Returns the age of the oldest pending notification, in
+		 * nanoseconds, or 0, if there is no pending notification.
+		 * @return The current lag of the listener, in nanoseconds.
+		 */
+		public long getLagNanos();
+		/** Returns the maximum delay between the publication, and the
+		 * delivery of a notification, in nanoseconds.
+		 * @return The maximum lag of the listener, in nanoseconds.
+		 */
+		public long getMaxLagNanos();
+		/** Returns the number of notifications, which have been delivered.
+		 * @return The number of delivered notifications.
+		 */
+		public long getDelivered();
+		/** Returns the number of notifications, which have been dropped
+		 * by the policy {@link OverflowPolicy#DROP_AND_RESYNC}.
+		 * @return The number of dropped notifications.
+		 */
+		public long getDropped();
+		/** Returns the number of events, which have been merged into
+		 * other events by the policy {@link OverflowPolicy#COALESCE}.
+		 * @return The number of coalesced events.
+		 */
+		public long getCoalesced();
+		/** Returns the number of notifications, which the listener has
+		 * failed to process, because it has thrown an exception.
+		 * @return The number of failed notifications.
+		 */
+		public long getFailed();
+	}
+
+	private static final Consumer<Listener> RESYNC = (l) -> l.initialized();
+	private static final int MAX_DRAIN = 256;
+
+	private final OverflowPolicy policy;
+	private final int capacity;
+	private final int threads;
+	private final long blockTimeoutNanos;
+	private final ILog log;
+	private final Object lock = new Object();
+	private volatile Subscription[] subscriptions = new Subscription[0];
+	private volatile boolean stopped;
+	private ExecutorService executor;
+
+	/** Creates a new instance.
+	 * @param pPolicy The overflow policy.
+	 * @param pCapacity The size of the per listener ring buffers.
+	 * @param pThreads The number of worker threads.
+	 * @param pBlockTimeoutMillis The maximum time, that a publishing thread
+	 *   waits for a listener with the policy {@link OverflowPolicy#BLOCK}.
+	 * @param pLog The logger, which is being used to report listener errors.
+	 */
+	public ModelEventBus(OverflowPolicy pPolicy, int pCapacity, int pThreads,
+			             long pBlockTimeoutMillis, ILog pLog) {
+		policy = Objects.requireNonNull(pPolicy, "Policy");
+		if (pCapacity <= 0) {
+			throw new IllegalArgumentException("Invalid capacity: " + pCapacity);
+		}
+		if (pThreads <= 0) {
+			throw new IllegalArgumentException("Invalid number of threads: " + pThreads);
+		}
+		capacity = pCapacity;
+		threads = pThreads;
+		blockTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(pBlockTimeoutMillis);
+		log = pLog;
+	}
+
+	/** Registers the given listener.
+	 * @param pListener The listener, which is being registered.
+	 */
+	public void addListener(Listener pListener) {
+		final Subscription subscription = new Subscription(Objects.requireNonNull(pListener, "Listener"));
+		synchronized (lock) {
+			final Subscription[] subs = Arrays.copyOf(subscriptions, subscriptions.length+1);
+			subs[subs.length-1] = subscription;
+			subscriptions = subs;
+		}
+	}
+
+	/** Removes the given listener. Pending notifications for the
+	 * listener are discarded.
+	 * @param pListener The listener, which is being removed.
+	 */
+	public void removeListener(Listener pListener) {
+		synchronized (lock) {
+			final Subscription[] subs = subscriptions;
+			for (int i = 0;  i < subs.length;  i++) {
+				if (subs[i].listener.equals(pListener)) {
+					final Subscription[] newSubs = new Subscription[subs.length-1];
+					System.arraycopy(subs, 0, newSubs, 0, i);
+					System.arraycopy(subs, i+1, newSubs, i, newSubs.length-i);
+					subscriptions = newSubs;
+					subs[i].cancel();
+					return;
+				}
+			}
+		}
+	}
+
+	/** Publishes a single event.
+	 * @param pEvent The event, which is being published.
+	 */
+	public void publish(Event pEvent) {
+		offer(Objects.requireNonNull(pEvent, "Event"));
+	}
+
+	/** Publishes a batch of events, which is being delivered by invoking
+	 * {@link Listener#batchApplied(List)}.
+	 * @param pEvents The events, which are being published. The list must
+	 *   not be modified afterwards.
+	 */
+	public void publish(List<Event> pEvents) {
+		offer(Objects.requireNonNull(pEvents, "Events"));
+	}
+
+	/** Publishes an arbitrary notification.
+	 * @param pNotification The notification, which invokes a method on
+	 *   the given listener.
+	 */
+	public void publish(Consumer<Listener> pNotification) {
+		offer(Objects.requireNonNull(pNotification, "Notification"));
+	}
+
+	/** Returns the statistics of the currently registered listeners.
+	 * @return The statistics of the currently registered listeners.
+	 */
+	public List<ListenerStats> getStats() {
+		return Collections.unmodifiableList(Arrays.asList((ListenerStats[]) subscriptions));
+	}
+
+	/** Stops the worker threads, after delivering the pending notifications.
+	 * @param pTimeoutMillis The maximum time to wait for the pending
+	 *   notifications.
+	 */
+	public void shutdown(long pTimeoutMillis) {
+		final ExecutorService es;
+		synchronized (lock) {
+			stopped = true;
+			es = executor;
+			executor = null;
+		}
+		if (es != null) {
+			es.shutdown();
+			try {
+				if (!es.awaitTermination(pTimeoutMillis, TimeUnit.MILLISECONDS)  &&  log != null) {
+					log.warn("shutdown", "Timeout while delivering pending model events");
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	private void offer(Object pEntry) {
+		final Subscription[] subs = subscriptions;
+		for (Subscription sub : subs) {
+			sub.offer(pEntry);
+		}
+	}
+
+	private void execute(Subscription pSubscription) {
+		final ExecutorService es;
+		synchronized (lock) {
+			if (executor == null  &&  !stopped) {
+				final AtomicInteger num = new AtomicInteger();
+				executor = Executors.newFixedThreadPool(threads, (r) -> {
+					final Thread t = new Thread(r, "crond-model-events-" + num.incrementAndGet());
+					t.setDaemon(true);
+					return t;
+				});
+			}
+			es = executor;
+		}
+		if (es != null) {
+			try {
+				es.execute(pSubscription);
+				return;
+			} catch (RejectedExecutionException e) {
+				// The bus has been stopped.
+			}
+		}
+		pSubscription.unschedule();
+	}
+
+	/** Delivers the given notification to the given listener.
+	 * @return True, if the notification has been processed, or false,
+	 *   if the listener has thrown an exception.
+	 */
+	private boolean deliver(Listener pListener, Object pEntry) {
+		try {
+			if (pEntry instanceof Event) {
+				((Event) pEntry).fire(pListener);
+			} else if (pEntry instanceof List) {
+				@SuppressWarnings("unchecked")
+				final List<Event> events = (List<Event>) pEntry;
+				pListener.batchApplied(events);
+			} else {
+				@SuppressWarnings("unchecked")
+				final Consumer<Listener> notification = (Consumer<Listener>) pEntry;
+				notification.accept(pListener);
+			}
+			return true;
+		} catch (Throwable t) {
+			if (log != null) {
+				log.error("deliver", "Listener " + pListener + " failed", t);
+			}
+			if (t instanceof Error  &&  pListener instanceof SynchronousListener) {
+				throw (Error) t;
+			}
+			return false;
+		}
+	}
+
+	/** Delivers the values of a coalesced overflow map: Consecutive events
+	 * are delivered as a batch, other notifications as they are.
+	 * @param pListener The listener, which is being notified.
+	 * @param pEntries The values of the coalesced overflow map.
+	 * @return The number of notifications, which the listener has failed to process.
+	 */
+	private int deliverCoalesced(Listener pListener, List<Object> pEntries) {
+		int failed = 0;
+		List<Event> events = null;
+		for (Object o : pEntries) {
+			if (o instanceof Event) {
+				if (events == null) {
+					events = new ArrayList<>();
+				}
+				events.add((Event) o);
+			} else {
+				if (events != null  &&  !deliver(pListener, events)) {
+					++failed;
+				}
+				events = null;
+				if (!deliver(pListener, o)) {
+					++failed;
+				}
+			}
+		}
+		if (events != null  &&  !deliver(pListener, events)) {
+			++failed;
+		}
+		return failed;
+	}
+
+	/** The contents of a coalesced overflow map, as taken by the
+	 * delivering thread.
+	 */
+	private static final class Coalesced {
+		private final List<Object> entries;
+
+		Coalesced(List<Object> pEntries) {
+			entries = pEntries;
+		}
+	}
+
+	/** Key of a user, or job, in the coalesced overflow map.
+	 */
+	private static final class EntityKey {
+		private final boolean job;
+		private final long id;
+
+		EntityKey(Event pEvent) {
+			job = pEvent.getJob() != null;
+			id = job ? pEvent.getJob().getId().longValue() : pEvent.getUser().getId().longValue();
+		}
+
+		@Override
+		public int hashCode() {
+			return Long.hashCode(id) * 31 + (job ? 1 : 0);
+		}
+
+		@Override
+		public boolean equals(Object pOther) {
+			if (pOther instanceof EntityKey) {
+				final EntityKey other = (EntityKey) pOther;
+				return other.job == job  &&  other.id == id;
+			}
+			return false;
+		}
+	}
+
+	private static boolean isAdded(Event pEvent) {
+		return pEvent.getType() == Event.Type.USER_ADDED  ||  pEvent.getType() == Event.Type.JOB_ADDED;
+	}
+
+	private static boolean isDeleted(Event pEvent) {
+		return pEvent.getType() == Event.Type.USER_DELETED  ||  pEvent.getType() == Event.Type.JOB_DELETED;
+	}
+
+	/** Merges two events on the same user, or job.
+	 * @param pOld The older event.
+	 * @param pNew The newer event.
+	 * @return The merged event, or null, if the events cancel each other.
+	 */
+	private static Event merge(Event pOld, Event pNew) {
+		if (isAdded(pOld)) {
+			if (isDeleted(pNew)) {
+				return null;
+			} else if (pNew.getJob() == null) {
+				return EventImpl.userAdded(pNew.getUser());
+			} else {
+				return EventImpl.jobAdded(pNew.getJob());
+			}
+		} else if (isDeleted(pOld)  &&  isAdded(pNew)) {
+			if (pNew.getJob() == null) {
+				return EventImpl.userUpdated(pNew.getUser());
+			} else {
+				return EventImpl.jobUpdated(pNew.getJob());
+			}
+		} else {
+			return pNew;
+		}
+	}
+
+	/** A single listeners ring buffer, and delivery state. All fields are
+	 * guarded by the instance itself.
+	 */
+	private final class Subscription implements ListenerStats, Runnable {
+		private final Listener listener;
+		private final boolean synchronous;
+		private final Object[] entries;
+		private final long[] times;
+		private int head, count;
+		private LinkedHashMap<Object,Object> overflow;
+		private long overflowSince;
+		private boolean scheduled, cancelled;
+		private Thread drainer;
+		private long delivered, dropped, coalesced, failed, maxLagNanos;
+
+		Subscription(Listener pListener) {
+			listener = pListener;
+			synchronous = pListener instanceof SynchronousListener;
+			entries = synchronous ? null : new Object[capacity];
+			times = synchronous ? null : new long[capacity];
+		}
+
+		void offer(Object pEntry) {
+			if (synchronous) {
+				final boolean success = deliver(listener, pEntry);
+				synchronized (this) {
+					++delivered;
+					if (!success) {
+						++failed;
+					}
+				}
+				return;
+			}
+			final boolean schedule;
+			synchronized (this) {
+				if (cancelled  ||  stopped) {
+					return;
+				}
+				final long now = System.nanoTime();
+				if (overflow != null) {
+					coalesce(pEntry);
+				} else if (count == entries.length) {
+					switch (policy) {
+					  case BLOCK:
+						if (drainer == Thread.currentThread()  ||  !awaitSpace()) {
+							resync(now);
+						} else if (!cancelled) {
+							enqueue(pEntry, now);
+						}
+						break;
+					  case DROP_AND_RESYNC:
+						resync(now);
+						break;
+					  case COALESCE:
+						overflow = new LinkedHashMap<>();
+						overflowSince = now;
+						coalesce(pEntry);
+						break;
+					  default:
+						throw new IllegalStateException("Invalid overflow policy: " + policy);
+					}
+				} else {
+					enqueue(pEntry, now);
+				}
+				schedule = !scheduled  &&  !cancelled;
+				if (schedule) {
+					scheduled = true;
+				}
+			}
+			if (schedule) {
+				execute(this);
+			}
+		}
+
+		private void enqueue(Object pEntry, long pNow) {
+			final int idx = (head+count) % entries.length;
+			entries[idx] = pEntry;
+			times[idx] = pNow;
+			++count;
+		}
+
+		/** Waits, until the ring buffer has space. Must be invoked, while
+		 * synchronized on this instance.
+		 * @return True, if the ring buffer has space, or the subscription
+		 *   has been cancelled. False, if the timeout has expired, or the
+		 *   thread has been interrupted.
+		 */
+		private boolean awaitSpace() {
+			final long deadline = System.nanoTime() + blockTimeoutNanos;
+			while (count == entries.length  &&  !cancelled) {
+				final long remaining = deadline - System.nanoTime();
+				if (remaining <= 0) {
+					if (log != null) {
+						log.warn("offer", "Timeout while waiting for listener " + listener
+								+ ", forcing a resync");
+					}
+					return false;
+				}
+				try {
+					TimeUnit.NANOSECONDS.timedWait(this, remaining);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return false;
+				}
+			}
+			return true;
+		}
+
+		/** Replaces the pending notifications (including the current one)
+		 * with a single {@link Listener#initialized()} notification.
+		 * @param pNow The current time.
+		 */
+		private void resync(long pNow) {
+			dropped += count + 1;
+			Arrays.fill(entries, null);
+			head = 0;
+			count = 0;
+			overflow = null;
+			enqueue(RESYNC, pNow);
+		}
+
+		private void coalesce(Object pEntry) {
+			if (pEntry instanceof Event) {
+				coalesce((Event) pEntry);
+			} else if (pEntry instanceof List) {
+				@SuppressWarnings("unchecked")
+				final List<Event> events = (List<Event>) pEntry;
+				events.forEach(this::coalesce);
+			} else {
+				overflow.put(new Object(), pEntry);
+			}
+		}
+
+		private void coalesce(Event pEvent) {
+			final EntityKey key = new EntityKey(pEvent);
+			final Event old = (Event) overflow.get(key);
+			if (old == null) {
+				overflow.put(key, pEvent);
+			} else {
+				++coalesced;
+				final Event merged = merge(old, pEvent);
+				if (merged == null) {
+					overflow.remove(key);
+				} else {
+					overflow.put(key, merged);
+				}
+			}
+		}
+
+		void cancel() {
+			synchronized (this) {
+				cancelled = true;
+				if (entries != null) {
+					Arrays.fill(entries, null);
+					count = 0;
+				}
+				overflow = null;
+				notifyAll();
+			}
+		}
+
+		synchronized void unschedule() {
+			scheduled = false;
+		}
+
+		@Override
+		public void run() {
+			for (int i = 0;  stopped  ||  i < MAX_DRAIN;  i++) {
+				final Object entry;
+				final long since;
+				synchronized (this) {
+					if (cancelled) {
+						scheduled = false;
+						return;
+					}
+					if (count > 0) {
+						entry = entries[head];
+						since = times[head];
+						entries[head] = null;
+						head = (head+1) % entries.length;
+						--count;
+						notifyAll();
+					} else if (overflow != null) {
+						entry = new Coalesced(new ArrayList<>(overflow.values()));
+						since = overflowSince;
+						overflow = null;
+					} else {
+						scheduled = false;
+						return;
+					}
+					drainer = Thread.currentThread();
+				}
+				int failures = 0;
+				try {
+					if (entry instanceof Coalesced) {
+						failures = deliverCoalesced(listener, ((Coalesced) entry).entries);
+					} else if (!deliver(listener, entry)) {
+						failures = 1;
+					}
+				} finally {
+					synchronized (this) {
+						drainer = null;
+						++delivered;
+						failed += failures;
+						final long lag = System.nanoTime() - since;
+						if (lag > maxLagNanos) {
+							maxLagNanos = lag;
+						}
+					}
+				}
+			}
+			// Give other listeners a chance.
+			execute(this);
+		}
+
+		@Override
+		public Listener getListener() {
+			return listener;
+		}
+
+		@Override
+		public boolean isSynchronous() {
+			return synchronous;
+		}
+
+		@Override
+		public synchronized int getQueued() {
+			return count + (overflow == null ? 0 : overflow.size());
+		}
+
+		@Override
+		public synchronized long getLagNanos() {
+			if (count > 0) {
+				return System.nanoTime() - times[head];
+			} else if (overflow != null) {
+				return System.nanoTime() - overflowSince;
+			} else {
+				return 0;
+			}
+		}
+
+		@Override
+		public synchronized long getMaxLagNanos() {
+			return maxLagNanos;
+		}
+
+		@Override
+		public synchronized long getDelivered() {
+			return delivered;
+		}
+
+		@Override
+		public synchronized long getDropped() {
+			return dropped;
+		}
+
+		@Override
+		public synchronized long getCoalesced() {
+			return coalesced;
+		}
+
+		@Override
+		public synchronized long getFailed() {
+			return failed;
+		}
+	}
+}
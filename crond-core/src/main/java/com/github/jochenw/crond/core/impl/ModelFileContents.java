@@ -0,0 +1,19 @@
+package com.github.jochenw.crond.core.impl;
+
+import java.util.Map;
+
+import com.github.jochenw.crond.core.api.IModel.Job;
+import com.github.jochenw.crond.core.api.IModel.User;
+
+/** The contents of a model file, as returned by a model file reader.
+ */
+public interface ModelFileContents {
+	/** Returns the users, keyed by id.
+	 * @return The users, keyed by id.
+	 */
+	public Map<Long,User> getUsers();
+	/** Returns the jobs, keyed by id.
+	 * @return The jobs, keyed by id.
+	 */
+	public Map<Long,Job> getJobs();
+}
@@ -0,0 +1,46 @@
+package com.github.jochenw.crond.core.impl;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.TreeMap;
+
+import com.github.jochenw.crond.core.api.IModel.Job;
+import com.github.jochenw.crond.core.api.IModel.User;
+
+/** Converts model files between the {@link ModelFileFormat formats}.
+ * The conversion is lossless: Users, and jobs are written in ascending
+ * order of their ids, so that converting back, and forth yields the
+ * same files.
+ */
+public class ModelFileConverter {
+	/** Converts the given input file into the given output file.
+	 * @param pInFile The input file.
+	 * @param pInFormat The input files format.
+	 * @param pOutFile The output file.
+	 * @param pOutFormat The output files format.
+	 */
+	public void convert(Path pInFile, ModelFileFormat pInFormat, Path pOutFile, ModelFileFormat pOutFormat) {
+		final ModelFileContents contents = pInFormat.read(pInFile);
+		final TreeMap<Long,User> users = new TreeMap<>(contents.getUsers());
+		final TreeMap<Long,Job> jobs = new TreeMap<>(contents.getJobs());
+		pOutFormat.write(pOutFile, users.values(), jobs.values());
+	}
+
+	/** Converts the given input file into the given output file, detecting
+	 * the formats by {@link ModelFileFormat#of(Path) file name}.
+	 * @param pInFile The input file.
+	 * @param pOutFile The output file.
+	 */
+	public void convert(Path pInFile, Path pOutFile) {
+		convert(pInFile, ModelFileFormat.of(pInFile), pOutFile, ModelFileFormat.of(pOutFile));
+	}
+
+	public static void main(String[] pArgs) {
+		if (pArgs.length != 2) {
+			System.err.println("Usage: java " + ModelFileConverter.class.getName() + " <inputFile> <outputFile>");
+			System.err.println("Files with the extension .bin are binary, other files are XML.");
+			System.exit(1);
+		}
+		new ModelFileConverter().convert(Paths.get(pArgs[0]), Paths.get(pArgs[1]));
+	}
+}
@@ -0,0 +1,147 @@
+package com.github.jochenw.crond.core.impl;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.concurrent.Executor;
+
+import org.xml.sax.InputSource;
+
+import com.github.jochenw.afw.core.util.Objects;
+import com.github.jochenw.crond.core.api.IModel.Job;
+import com.github.jochenw.crond.core.api.IModel.User;
+
+/** The supported model file formats.
+ */
+public enum ModelFileFormat {
+	/** The XML format, as read by the {@link XmlModelFileReader}, and
+	 * written by the {@link XmlModelFileChannelWriter}.
+	 */
+	XML {
+		@Override
+		public ModelFileContents read(Path pModelFile) {
+			try (InputStream is = Files.newInputStream(pModelFile);
+				 BufferedInputStream bis = new BufferedInputStream(is)) {
+				final InputSource isource = new InputSource(bis);
+				isource.setSystemId(pModelFile.toString());
+				return XmlModelFileReader.read(isource);
+			} catch (IOException ioe) {
+				throw new UncheckedIOException(ioe);
+			}
+		}
+
+		@Override
+		public void load(Path pModelFile, ModelFileSink pSink, Executor pExecutor) {
+			try (InputStream is = Files.newInputStream(pModelFile);
+				 BufferedInputStream bis = new BufferedInputStream(is);
+				 PipelinedModelFileSink sink = new PipelinedModelFileSink(pSink, pExecutor)) {
+				final InputSource isource = new InputSource(bis);
+				isource.setSystemId(pModelFile.toString());
+				XmlModelFileReader.read(isource, sink);
+			} catch (IOException ioe) {
+				throw new UncheckedIOException(ioe);
+			}
+		}
+
+		@Override
+		public void write(Path pModelFile, Collection<User> pUsers, Collection<Job> pJobs) {
+			WRITERS.get().write(pModelFile, pUsers, pJobs);
+		}
+	},
+	/** The binary format, as read by the {@link BinaryModelFileReader}, and
+	 * written by the {@link BinaryModelFileWriter}.
+	 */
+	BINARY {
+		@Override
+		public ModelFileContents read(Path pModelFile) {
+			return BinaryModelFileReader.read(pModelFile);
+		}
+
+		@Override
+		public void load(Path pModelFile, ModelFileSink pSink, Executor pExecutor) {
+			BinaryModelFileReader.load(pModelFile, pSink, pExecutor);
+		}
+
+		@Override
+		public void write(Path pModelFile, Collection<User> pUsers, Collection<Job> pJobs) {
+			new BinaryModelFileWriter().write(pModelFile, pUsers, pJobs);
+		}
+	};
+
+	/** The XML writers, one per thread, so that their buffers can be reused.
+	 */
+	private static final ThreadLocal<XmlModelFileChannelWriter> WRITERS =
+			ThreadLocal.withInitial(XmlModelFileChannelWriter::new);
+
+	/** Reads the given model file.
+	 * @param pModelFile The model file, which is being read.
+	 * @return The model files contents.
+	 */
+	public abstract ModelFileContents read(Path pModelFile);
+
+	/** Reads the given model file, passing the users, and jobs to the
+	 * given sink, possibly from multiple threads. (See {@link ModelFileSink}.)
+	 * @param pModelFile The model file, which is being read.
+	 * @param pSink The sink, which receives the users, and jobs.
+	 * @param pExecutor The executor, which is being used to run
+	 *   additional tasks.
+	 */
+	public abstract void load(Path pModelFile, ModelFileSink pSink, Executor pExecutor);
+
+	/** Writes the given users, and jobs to the given model file. The
+	 * file is written to a temporary file first, which replaces the
+	 * model file atomically, so that a crash doesn't leave an incomplete
+	 * model file behind.
+	 * @param pModelFile The model file, which is being written.
+	 * @param pUsers The users, which are being written.
+	 * @param pJobs The jobs, which are being written.
+	 */
+	public abstract void write(Path pModelFile, Collection<User> pUsers, Collection<Job> pJobs);
+
+	/** Forces the directory, which contains the given file, to the storage
+	 * device, so that a preceding move of the file survives a crash.
+	 * @param pFile The file, whose directory is being forced.
+	 */
+	public static void forceDirectory(Path pFile) {
+		final Path dir = pFile.toAbsolutePath().getParent();
+		try (FileChannel fc = FileChannel.open(dir, StandardOpenOption.READ)) {
+			fc.force(true);
+		} catch (IOException ioe) {
+			// Windows doesn't support opening a directory, and doesn't require it.
+			if (!System.getProperty("os.name", "").startsWith("Windows")) {
+				throw new UncheckedIOException(ioe);
+			}
+		}
+	}
+
+	/** Parses the given format name. Valid names are "xml", and "binary".
+	 * @param pName The format name.
+	 * @return The parsed format.
+	 * @throws IllegalArgumentException The format name is invalid.
+	 */
+	public static ModelFileFormat of(String pName) {
+		final String name = Objects.requireNonNull(pName, "Name").trim().toLowerCase();
+		switch (name) {
+		  case "xml": return XML;
+		  case "binary": return BINARY;
+		  default: throw new IllegalArgumentException("Invalid model file format: " + pName);
+		}
+	}
+
+	/** Returns the format of the given model file, based on the file
+	 * name: Files with the extension ".bin" are {@link #BINARY}, all
+	 * other files are {@link #XML}.
+	 * @param pModelFile The model file.
+	 * @return The model files format.
+	 */
+	public static ModelFileFormat of(Path pModelFile) {
+		final String fileName = pModelFile.getFileName().toString().toLowerCase();
+		return fileName.endsWith(".bin") ? BINARY : XML;
+	}
+}
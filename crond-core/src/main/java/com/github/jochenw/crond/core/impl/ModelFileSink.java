@@ -0,0 +1,24 @@
+package com.github.jochenw.crond.core.impl;
+
+import com.github.jochenw.crond.core.api.IModel.Job;
+import com.github.jochenw.crond.core.api.IModel.User;
+
+/** A consumer for the users, and jobs, that are being read from a model
+ * file. Allows loading a model file straight into the final data
+ * structures, without materializing its contents first.
+ *
+ * Implementations must accept concurrent invocations of
+ * {@link #addUser(User)}, and {@link #addJob(Job)}, but not concurrent
+ * invocations of the same method: Users, and jobs may be delivered by
+ * different threads.
+ */
+public interface ModelFileSink {
+	/** Called for every user in the model file.
+	 * @param pUser The user, which has been read.
+	 */
+	public void addUser(User pUser);
+	/** Called for every job in the model file.
+	 * @param pJob The job, which has been read.
+	 */
+	public void addJob(Job pJob);
+}
@@ -0,0 +1,558 @@
+package com.github.jochenw.crond.core.impl;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.CRC32C;
+
+import com.github.jochenw.afw.core.util.Objects;
+import com.github.jochenw.crond.core.api.IModel.Job;
+import com.github.jochenw.crond.core.api.IModel.User;
+import com.github.jochenw.crond.core.beans.JobImpl;
+import com.github.jochenw.crond.core.beans.UserImpl;
+
+/** An append-only journal of model mutations, which is kept next to the
+ * model file. The journal contains all mutations since the last snapshot
+ * (the model file itself). Every record is an idempotent "put", or "delete"
+ * operation, so replaying the journal on top of a snapshot, that already
+ * contains some of the records, is harmless.
+ *
+ * A record consists of the body length (int), the CRC32 checksum of the
+ * body (int), and the body: An operation code (byte), the element id
+ * (long), and the operation specific fields. Fields, which have been
+ * added later (like the jobs schedule), are appended at the end of the
+ * body, so that older records, which lack them, remain readable. Strings are written as
+ * length-prefixed UTF-8, with a length of -1 indicating null. An incomplete,
+ * or corrupt record at the end of the journal (as caused by a crash while
+ * writing) is silently discarded.
+ *
+ * The mutations of a batch are written as a single batch record (see
+ * {@link #beginBatch()}), whose body contains the number of operations,
+ * and the operations, each consisting of its length (int), and its body.
+ * So a crash while writing a batch discards the batch as a whole.
+ *
+ * After a compaction, the journal starts with a snapshot record, which
+ * identifies the snapshot by its size, and checksum. If the process crashes
+ * after the snapshot has been replaced, but before the journal has been
+ * {@link #reset(long, long) reset}, then the snapshot record doesn't match
+ * the new snapshot, and the stale records are skipped upon replay.
+ *
+ * Records are collected in memory, until the journal is
+ * {@link #flush() flushed}.
+ *
+ * Instances are not thread safe: The caller is supposed to hold the
+ * models write lock.
+ */
+public class ModelJournal implements AutoCloseable {
+	/** The target of a {@link ModelJournal#replay(Target) replay}, which
+	 * receives the journals records.
+	 */
+	public interface Target {
+		/** Adds, or updates the given user.
+		 * @param pUser The added, or updated user.
+		 */
+		public void putUser(User pUser);
+		/** Removes the user with the given id, if present.
+		 * @param pUserId The removed users id.
+		 */
+		public void removeUser(Long pUserId);
+		/** Adds, or updates the given job.
+		 * @param pJob The added, or updated job.
+		 */
+		public void putJob(Job pJob);
+		/** Removes the job with the given id, if present.
+		 * @param pJobId The removed jobs id.
+		 */
+		public void removeJob(Long pJobId);
+		/** Called, if the journal starts with a snapshot record, before any
+		 * other records are passed to the target.
+		 * @param pSize The size of the snapshot, which the journal belongs to.
+		 * @param pChecksum The {@link ModelJournal#checksum(Path) checksum}
+		 *   of the snapshot, which the journal belongs to.
+		 * @return True, if the journal belongs to the current snapshot, and
+		 *   the records are to be replayed, or false, if the journal is stale,
+		 *   and the records are to be skipped.
+		 */
+		public default boolean isSnapshot(long pSize, long pChecksum) {
+			return true;
+		}
+	}
+
+	private static final byte PUT_USER = 1;
+	private static final byte DELETE_USER = 2;
+	private static final byte PUT_JOB = 3;
+	private static final byte DELETE_JOB = 4;
+	private static final byte SNAPSHOT = 5;
+	private static final byte BATCH = 6;
+
+	private final Path file;
+	private final CRC32 crc = new CRC32();
+	private ByteBuffer buffer = ByteBuffer.allocate(512);
+	private FileChannel channel;
+	private long size;
+	private int recordStart;
+	private int batchStart = -1;
+	private int batchSize;
+	private boolean fsync;
+	private boolean snapshot;
+
+	/** Creates a new instance, which writes to the given file.
+	 * @param pFile The journal file.
+	 */
+	public ModelJournal(Path pFile) {
+		file = Objects.requireNonNull(pFile, "File");
+	}
+
+	/** Returns the journal file, which belongs to the given model file.
+	 * @param pModelFile The model file.
+	 * @return The journal file, which is a sibling of the model file.
+	 */
+	public static Path pathOf(Path pModelFile) {
+		return pModelFile.resolveSibling(pModelFile.getFileName().toString() + ".journal");
+	}
+
+	/** Calculates the checksum of the given snapshot, as stored in the
+	 * journals snapshot record.
+	 * @param pSnapshot The snapshot file.
+	 * @return The snapshots checksum.
+	 */
+	public static long checksum(Path pSnapshot) {
+		final CRC32C checksum = new CRC32C();
+		final ByteBuffer bb = ByteBuffer.allocateDirect(65536);
+		try (FileChannel fc = FileChannel.open(pSnapshot, StandardOpenOption.READ)) {
+			while (fc.read(bb) != -1) {
+				bb.flip();
+				checksum.update(bb);
+				bb.clear();
+			}
+		} catch (IOException ioe) {
+			throw new UncheckedIOException(ioe);
+		}
+		return checksum.getValue();
+	}
+
+	/** Returns the journal file.
+	 * @return The journal file.
+	 */
+	public Path getFile() {
+		return file;
+	}
+
+	/** Sets, whether {@link #flush()} forces the written records to
+	 * the storage device. By default, the records are only passed to
+	 * the operating system.
+	 * @param pFsync True, if records are supposed to be forced to the
+	 *   storage device.
+	 */
+	public void setFsync(boolean pFsync) {
+		fsync = pFsync;
+	}
+
+	/** Returns, whether {@link #flush()} forces the written records to
+	 * the storage device.
+	 * @return True, if records are forced to the storage device.
+	 */
+	public boolean isFsync() {
+		return fsync;
+	}
+
+	/** Returns the current size of the journal, in bytes, including
+	 * the records, that haven't yet been flushed, but excluding the
+	 * snapshot record.
+	 * @return The current size of the journal, in bytes.
+	 */
+	public long getSize() {
+		return size;
+	}
+
+	/** Returns, whether the journal starts with a snapshot record.
+	 * @return True, if the journal has been {@link #reset(long, long) reset}
+	 *   after writing a snapshot, or if the replayed journal started with
+	 *   a matching snapshot record.
+	 */
+	public boolean hasSnapshotRecord() {
+		return snapshot;
+	}
+
+	/** Appends a record, which adds, or updates the given user.
+	 * @param pUser The added, or updated user.
+	 */
+	public void putUser(User pUser) {
+		begin(PUT_USER, pUser.getId());
+		putString(pUser.getEmail());
+		putString(pUser.getName());
+		end();
+	}
+
+	/** Appends a record, which removes the user with the given id.
+	 * @param pUserId The removed users id.
+	 */
+	public void removeUser(Long pUserId) {
+		begin(DELETE_USER, pUserId);
+		end();
+	}
+
+	/** Appends a record, which adds, or updates the given job.
+	 * @param pJob The added, or updated job.
+	 */
+	public void putJob(Job pJob) {
+		begin(PUT_JOB, pJob.getId());
+		ensureCapacity(8);
+		buffer.putLong(pJob.getUserId().longValue());
+		putString(pJob.getName());
+		putString(pJob.getSchedule());
+		end();
+	}
+
+	/** Appends a record, which removes the job with the given id.
+	 * @param pJobId The removed jobs id.
+	 */
+	public void removeJob(Long pJobId) {
+		begin(DELETE_JOB, pJobId);
+		end();
+	}
+
+	/** Starts a batch record: The records, which are appended until
+	 * {@link #endBatch()} is invoked, are written as a single record,
+	 * so that they are replayed all, or none.
+	 */
+	public void beginBatch() {
+		if (batchStart != -1) {
+			throw new IllegalStateException("A batch has already been started.");
+		}
+		begin(BATCH, Long.valueOf(0));
+		batchStart = recordStart;
+		batchSize = 0;
+	}
+
+	/** Completes the batch record, which has been started by
+	 * {@link #beginBatch()}. An empty batch is discarded.
+	 */
+	public void endBatch() {
+		if (batchStart == -1) {
+			throw new IllegalStateException("No batch has been started.");
+		}
+		recordStart = batchStart;
+		batchStart = -1;
+		if (batchSize == 0) {
+			buffer.position(recordStart);
+		} else {
+			buffer.putLong(recordStart + 9, batchSize);
+			end();
+		}
+	}
+
+	/** Replays the journal by applying the records to the given maps.
+	 * Afterwards, the journal file is truncated to the last valid record,
+	 * and opened for appending further records.
+	 * @param pUsers The map of users, which is being updated.
+	 * @param pJobs The map of jobs, which is being updated.
+	 * @return The number of records, that have been replayed.
+	 */
+	public int replay(Map<Long,User> pUsers, Map<Long,Job> pJobs) {
+		return replay(new Target() {
+			@Override
+			public void putUser(User pUser) {
+				pUsers.put(pUser.getId(), pUser);
+			}
+
+			@Override
+			public void removeUser(Long pUserId) {
+				pUsers.remove(pUserId);
+			}
+
+			@Override
+			public void putJob(Job pJob) {
+				pJobs.put(pJob.getId(), pJob);
+			}
+
+			@Override
+			public void removeJob(Long pJobId) {
+				pJobs.remove(pJobId);
+			}
+		});
+	}
+
+	/** Replays the journal by passing the records to the given target.
+	 * Afterwards, the journal file is truncated to the last valid record,
+	 * and opened for appending further records. If the target rejects the
+	 * journals snapshot record, then the journal is stale: No records are
+	 * replayed, and the journal file is truncated to zero length.
+	 * @param pTarget The target, which receives the records.
+	 * @return The number of records, that have been replayed.
+	 */
+	public int replay(Target pTarget) {
+		int records = 0;
+		long validSize = 0;
+		long snapshotRecordSize = 0;
+		snapshot = false;
+		if (Files.isRegularFile(file)) {
+			try (InputStream is = Files.newInputStream(file);
+				 BufferedInputStream bis = new BufferedInputStream(is);
+				 DataInputStream dis = new DataInputStream(bis)) {
+				for (;;) {
+					final byte[] body;
+					final int checksum;
+					try {
+						final int length = dis.readInt();
+						if (length <= 0) {
+							break;
+						}
+						checksum = dis.readInt();
+						body = new byte[length];
+						dis.readFully(body);
+					} catch (EOFException e) {
+						break;
+					}
+					crc.reset();
+					crc.update(body);
+					if ((int) crc.getValue() != checksum) {
+						break;
+					}
+					final ByteBuffer bb = ByteBuffer.wrap(body);
+					if (validSize == 0  &&  bb.get(0) == SNAPSHOT) {
+						bb.get();
+						final long snapshotSize = bb.getLong();
+						if (!pTarget.isSnapshot(snapshotSize, bb.getLong())) {
+							break;
+						}
+						snapshot = true;
+						snapshotRecordSize = 8 + body.length;
+						validSize += snapshotRecordSize;
+						continue;
+					}
+					apply(bb, pTarget);
+					validSize += 8 + body.length;
+					++records;
+				}
+			} catch (IOException ioe) {
+				throw new UncheckedIOException(ioe);
+			}
+		}
+		open();
+		try {
+			if (channel.size() > validSize) {
+				channel.truncate(validSize);
+			}
+		} catch (IOException ioe) {
+			throw new UncheckedIOException(ioe);
+		}
+		size = validSize - snapshotRecordSize;
+		return records;
+	}
+
+	/** Writes all records, that have been collected in memory, to the
+	 * journal file. If writing fails, then the journal file is truncated
+	 * to its previous size, so that it doesn't end with an incomplete
+	 * record, and the records are kept in memory, so that they are written
+	 * by the next invocation.
+	 */
+	public void flush() {
+		final int length = buffer.position();
+		if (length > 0) {
+			open();
+			long start = -1;
+			try {
+				start = channel.position();
+				buffer.flip();
+				while (buffer.hasRemaining()) {
+					channel.write(buffer);
+				}
+				if (fsync) {
+					channel.force(false);
+				}
+				buffer.clear();
+			} catch (IOException ioe) {
+				buffer.limit(buffer.capacity());
+				buffer.position(length);
+				if (start != -1) {
+					try {
+						channel.truncate(start);
+						channel.position(start);
+					} catch (IOException e) {
+						ioe.addSuppressed(e);
+					}
+				}
+				throw new UncheckedIOException(ioe);
+			}
+		}
+	}
+
+	/** Discards the records, that haven't been flushed yet. Invoked, if
+	 * the mutations, which they describe, are being rolled back, because
+	 * {@link #flush()} has failed.
+	 */
+	public void discard() {
+		size -= buffer.position();
+		buffer.clear();
+		batchStart = -1;
+	}
+
+	/** Discards all records. Invoked after writing a new snapshot.
+	 */
+	public void reset() {
+		buffer.clear();
+		batchStart = -1;
+		open();
+		try {
+			channel.truncate(0);
+			channel.position(0);
+		} catch (IOException ioe) {
+			throw new UncheckedIOException(ioe);
+		}
+		size = 0;
+		snapshot = false;
+	}
+
+	/** Discards all records, and writes a snapshot record, which identifies
+	 * the given snapshot. Invoked after writing a new snapshot.
+	 * @param pSnapshotSize The size of the new snapshot.
+	 * @param pSnapshotChecksum The {@link #checksum(Path) checksum} of the new snapshot.
+	 */
+	public void reset(long pSnapshotSize, long pSnapshotChecksum) {
+		reset();
+		begin(SNAPSHOT, Long.valueOf(pSnapshotSize));
+		ensureCapacity(8);
+		buffer.putLong(pSnapshotChecksum);
+		end();
+		flush();
+		size = 0;
+		snapshot = true;
+	}
+
+	/** Flushes the journal, and closes the journal file.
+	 */
+	@Override
+	public void close() {
+		flush();
+		if (channel != null) {
+			try {
+				channel.close();
+			} catch (IOException ioe) {
+				throw new UncheckedIOException(ioe);
+			} finally {
+				channel = null;
+			}
+		}
+	}
+
+	protected void apply(ByteBuffer pBody, Target pTarget) {
+		final byte op = pBody.get();
+		final Long id = Long.valueOf(pBody.getLong());
+		switch (op) {
+		case PUT_USER: {
+				final String email = getString(pBody);
+				final String name = getString(pBody);
+				pTarget.putUser(UserImpl.of(id, email, name));
+			}
+			break;
+		case DELETE_USER:
+			pTarget.removeUser(id);
+			break;
+		case PUT_JOB: {
+				final Long userId = Long.valueOf(pBody.getLong());
+				final String name = getString(pBody);
+				final String schedule = pBody.hasRemaining() ? getString(pBody) : null;
+				pTarget.putJob(JobImpl.of(id, userId, name, schedule));
+			}
+			break;
+		case DELETE_JOB:
+			pTarget.removeJob(id);
+			break;
+		case SNAPSHOT:
+			// Only valid at the start of the journal, see replay().
+			break;
+		case BATCH:
+			for (long l = id.longValue();  l > 0;  l--) {
+				final int length = pBody.getInt();
+				apply(ByteBuffer.wrap(pBody.array(), pBody.arrayOffset() + pBody.position(), length).slice(), pTarget);
+				pBody.position(pBody.position() + length);
+			}
+			break;
+		default:
+			throw new IllegalStateException("Invalid operation code in journal file "
+					+ file + ": " + op);
+		}
+	}
+
+	private void open() {
+		if (channel == null) {
+			try {
+				channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+				channel.position(channel.size());
+			} catch (IOException ioe) {
+				throw new UncheckedIOException(ioe);
+			}
+		}
+	}
+
+	private void begin(byte pOp, Long pId) {
+		ensureCapacity(17);
+		recordStart = buffer.position();
+		if (batchStart == -1) {
+			buffer.position(recordStart + 8); // Reserve space for length, and checksum.
+		} else {
+			buffer.position(recordStart + 4); // Reserve space for the length.
+		}
+		buffer.put(pOp);
+		buffer.putLong(pId.longValue());
+	}
+
+	private void end() {
+		if (batchStart != -1) {
+			// An operation within a batch record.
+			buffer.putInt(recordStart, buffer.position() - recordStart - 4);
+			++batchSize;
+			return;
+		}
+		final int length = buffer.position() - recordStart - 8;
+		crc.reset();
+		crc.update(buffer.array(), recordStart + 8, length);
+		buffer.putInt(recordStart, length);
+		buffer.putInt(recordStart + 4, (int) crc.getValue());
+		size += 8 + length;
+	}
+
+	private void putString(String pValue) {
+		if (pValue == null) {
+			ensureCapacity(4);
+			buffer.putInt(-1);
+		} else {
+			final byte[] bytes = pValue.getBytes(StandardCharsets.UTF_8);
+			ensureCapacity(4 + bytes.length);
+			buffer.putInt(bytes.length);
+			buffer.put(bytes);
+		}
+	}
+
+	private String getString(ByteBuffer pBody) {
+		final int length = pBody.getInt();
+		if (length == -1) {
+			return null;
+		}
+		final String s = new String(pBody.array(), pBody.arrayOffset() + pBody.position(), length,
+				                    StandardCharsets.UTF_8);
+		pBody.position(pBody.position() + length);
+		return s;
+	}
+
+	private void ensureCapacity(int pBytes) {
+		if (buffer.remaining() < pBytes) {
+			final ByteBuffer bb = ByteBuffer.allocate(Math.max(buffer.capacity()*2, buffer.position() + pBytes + 64));
+			buffer.flip();
+			bb.put(buffer);
+			buffer = bb;
+		}
+	}
+}
@@ -0,0 +1,225 @@
+package com.github.jochenw.crond.core.impl;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import com.github.jochenw.afw.core.log.ILog;
+import com.github.jochenw.afw.core.util.Objects;
+
+/** A background thread, which persists the model on behalf of the
+ * threads, that mutate it. Mutating threads are merely
+ * {@link #dirty() marking} the model as dirty, and the persister
+ * coalesces all mutations, that have been made in the meantime,
+ * into a single write. If a write fails, then the model is marked as
+ * dirty again, so that the write is retried.
+ */
+public class ModelPersister {
+	/** The durability mode, which controls, when the persister
+	 * writes.
+	 */
+	public enum Mode {
+		/** Every mutation is written immediately, by the mutating
+		 * thread. No persister thread is being used.
+		 */
+		SYNC,
+		/** Mutations are written by the persister thread, at most
+		 * the configured latency after the first unwritten mutation.
+		 */
+		GROUP_COMMIT,
+		/** Mutations are written by the persister thread, at most
+		 * once per configured interval.
+		 */
+		PERIODIC;
+
+		/** Parses the given mode name. Valid names are "sync",
+		 * "group-commit", and "periodic".
+		 * @param pName The mode name.
+		 * @return The parsed mode.
+		 * @throws IllegalArgumentException The mode name is invalid.
+		 */
+		public static Mode of(String pName) {
+			final String name = Objects.requireNonNull(pName, "Name").trim().toLowerCase();
+			switch (name) {
+			  case "sync": return SYNC;
+			  case "group-commit": return GROUP_COMMIT;
+			  case "periodic": return PERIODIC;
+			  default: throw new IllegalArgumentException("Invalid durability mode: " + pName);
+			}
+		}
+	}
+
+	private final Mode mode;
+	private final long latencyNanos;
+	private final Runnable writer;
+	private final ILog log;
+	private final Object lock = new Object();
+	private CompletableFuture<Void> pending, inProgress;
+	private long dirtySince, lastWrite;
+	private boolean stopped;
+	private Thread thread;
+
+	/** Creates a new instance.
+	 * @param pMode The durability mode. Must not be {@link Mode#SYNC}.
+	 * @param pLatencyMillis The maximum latency ({@link Mode#GROUP_COMMIT}),
+	 *   or the interval ({@link Mode#PERIODIC}) in milliseconds.
+	 * @param pWriter The writer, which is being invoked to persist the model.
+	 * @param pLog The logger, which is being used to report write errors.
+	 */
+	public ModelPersister(Mode pMode, long pLatencyMillis, Runnable pWriter, ILog pLog) {
+		mode = Objects.requireNonNull(pMode, "Mode");
+		if (mode == Mode.SYNC) {
+			throw new IllegalArgumentException("The mode SYNC doesn't require a persister.");
+		}
+		latencyNanos = TimeUnit.MILLISECONDS.toNanos(pLatencyMillis);
+		writer = Objects.requireNonNull(pWriter, "Writer");
+		log = pLog;
+	}
+
+	/** Starts the persister thread.
+	 */
+	public void start() {
+		lastWrite = System.nanoTime() - latencyNanos;
+		thread = new Thread(this::run, "crond-model-persister");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/** Stops the persister thread, after writing all pending mutations.
+	 */
+	public void shutdown() {
+		synchronized (lock) {
+			stopped = true;
+			lock.notifyAll();
+		}
+		if (thread != null) {
+			try {
+				thread.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			thread = null;
+		}
+	}
+
+	/** Marks the model as dirty. Invoked after a mutation.
+	 * @return A future, which completes, when the mutation has been written.
+	 * @throws IllegalStateException The persister has already been stopped.
+	 */
+	public CompletableFuture<Void> dirty() {
+		return dirty(null);
+	}
+
+	/** Publishes a mutation by invoking the given action, and marks the
+	 * model as dirty. The action is invoked only, if the persister is
+	 * still running, so that a mutation isn't published, if it can't be
+	 * written anymore.
+	 * @param pPublisher The action, which publishes the mutation, or null.
+	 * @return A future, which completes, when the mutation has been written.
+	 * @throws IllegalStateException The persister has already been stopped.
+	 */
+	public CompletableFuture<Void> dirty(Runnable pPublisher) {
+		synchronized (lock) {
+			if (stopped) {
+				throw new IllegalStateException("The persister has already been stopped.");
+			}
+			if (pPublisher != null) {
+				pPublisher.run();
+			}
+			if (pending == null) {
+				pending = new CompletableFuture<>();
+				dirtySince = System.nanoTime();
+				lock.notifyAll();
+			}
+			return pending;
+		}
+	}
+
+	/** Returns a future, which completes, when all mutations, that have been
+	 * made so far, are written.
+	 * @return A future, which completes, when all mutations are written.
+	 */
+	public CompletableFuture<Void> flush() {
+		synchronized (lock) {
+			if (pending != null) {
+				return pending;
+			} else if (inProgress != null) {
+				return inProgress;
+			} else {
+				return CompletableFuture.completedFuture(null);
+			}
+		}
+	}
+
+	private void run() {
+		for (;;) {
+			final CompletableFuture<Void> future;
+			synchronized (lock) {
+				for (;;) {
+					if (pending == null) {
+						if (stopped) {
+							return;
+						}
+						awaitNanos(0);
+						continue;
+					}
+					if (stopped) {
+						break;
+					}
+					final long deadline;
+					if (mode == Mode.PERIODIC) {
+						deadline = lastWrite + latencyNanos;
+					} else {
+						deadline = dirtySince + latencyNanos;
+					}
+					final long remaining = deadline - System.nanoTime();
+					if (remaining <= 0) {
+						break;
+					}
+					awaitNanos(remaining);
+				}
+				future = pending;
+				pending = null;
+				inProgress = future;
+			}
+			try {
+				writer.run();
+				future.complete(null);
+			} catch (Throwable t) {
+				if (log != null) {
+					log.error("run", "Failed to persist the model", t);
+				}
+				synchronized (lock) {
+					// Retry, unless this has been the final write.
+					if (!stopped  &&  pending == null) {
+						pending = new CompletableFuture<>();
+						dirtySince = System.nanoTime();
+					}
+				}
+				future.completeExceptionally(t);
+			} finally {
+				synchronized (lock) {
+					inProgress = null;
+					lastWrite = System.nanoTime();
+				}
+			}
+		}
+	}
+
+	/** Waits for a notification on {@link #lock}. Must be invoked, while
+	 * synchronized on {@link #lock}.
+	 * @param pNanos The maximum waiting time in nanoseconds, or 0 for waiting
+	 *   without timeout.
+	 */
+	private void awaitNanos(long pNanos) {
+		try {
+			if (pNanos == 0) {
+				lock.wait();
+			} else {
+				TimeUnit.NANOSECONDS.timedWait(lock, pNanos);
+			}
+		} catch (InterruptedException e) {
+			// Ignore this: The persister is stopped by shutdown() only, so
+			// that mutations, which have already been published, are written.
+		}
+	}
+}
@@ -0,0 +1,136 @@
+package com.github.jochenw.crond.core.impl;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.function.Consumer;
+
+import com.github.jochenw.afw.core.util.Objects;
+import com.github.jochenw.afw.di.util.Exceptions;
+import com.github.jochenw.crond.core.api.IModel.Job;
+import com.github.jochenw.crond.core.api.IModel.User;
+
+/** A {@link ModelFileSink}, which passes users, and jobs in batches to
+ * two worker tasks, which invoke the target sink. This allows a single
+ * threaded parser to run concurrently with the (independent) building
+ * of the user, and job indexes.
+ */
+public class PipelinedModelFileSink implements ModelFileSink, AutoCloseable {
+	private static final int BATCH_SIZE = 512;
+	private static final Object[] END = new Object[0];
+
+	/** Passes the batches of one entity type to a worker task.
+	 */
+	private static class Pipe {
+		private final BlockingQueue<Object[]> queue = new ArrayBlockingQueue<>(16);
+		private final CompletableFuture<Void> future;
+		private volatile Throwable failure;
+		private Object[] batch = new Object[BATCH_SIZE];
+		private int size;
+
+		Pipe(Executor pExecutor, Consumer<Object> pConsumer) {
+			future = CompletableFuture.runAsync(() -> run(pConsumer), pExecutor);
+		}
+
+		private void run(Consumer<Object> pConsumer) {
+			for (;;) {
+				final Object[] objects;
+				try {
+					objects = queue.take();
+				} catch (InterruptedException e) {
+					throw Exceptions.show(e);
+				}
+				if (objects == END) {
+					break;
+				}
+				if (failure == null) {
+					try {
+						for (Object o : objects) {
+							if (o == null) {
+								break;
+							}
+							pConsumer.accept(o);
+						}
+					} catch (Throwable t) {
+						// Keep draining the queue, so that the producer doesn't block.
+						failure = t;
+					}
+				}
+			}
+			if (failure != null) {
+				throw Exceptions.show(failure);
+			}
+		}
+
+		void add(Object pObject) {
+			batch[size++] = pObject;
+			if (size == batch.length) {
+				put(batch);
+				batch = new Object[BATCH_SIZE];
+				size = 0;
+			}
+		}
+
+		void put(Object[] pBatch) {
+			if (failure != null) {
+				throw Exceptions.show(failure);
+			}
+			try {
+				queue.put(pBatch);
+			} catch (InterruptedException e) {
+				throw Exceptions.show(e);
+			}
+		}
+
+		void close() {
+			if (size > 0) {
+				put(batch);
+				size = 0;
+			}
+			put(END);
+			try {
+				future.join();
+			} catch (CompletionException e) {
+				throw Exceptions.show(e.getCause());
+			}
+		}
+	}
+
+	private final Pipe users, jobs;
+
+	/** Creates a new instance, which starts two worker tasks, using
+	 * the given executor.
+	 * @param pTarget The target sink.
+	 * @param pExecutor The executor, which runs the worker tasks.
+	 */
+	public PipelinedModelFileSink(ModelFileSink pTarget, Executor pExecutor) {
+		final ModelFileSink target = Objects.requireNonNull(pTarget, "Target");
+		final Executor executor = Objects.requireNonNull(pExecutor, "Executor");
+		users = new Pipe(executor, (o) -> target.addUser((User) o));
+		jobs = new Pipe(executor, (o) -> target.addJob((Job) o));
+	}
+
+	@Override
+	public void addUser(User pUser) {
+		users.add(pUser);
+	}
+
+	@Override
+	public void addJob(Job pJob) {
+		jobs.add(pJob);
+	}
+
+	/** Passes the remaining users, and jobs to the worker tasks, and
+	 * waits for their termination.
+	 */
+	@Override
+	public void close() {
+		try {
+			users.close();
+		} finally {
+			jobs.close();
+		}
+	}
+}
@@ -0,0 +1,199 @@
+package com.github.jochenw.crond.core.impl;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import com.github.jochenw.afw.core.util.Objects;
+import com.github.jochenw.crond.core.api.IModel;
+import com.github.jochenw.crond.core.api.IModel.Job;
+import com.github.jochenw.crond.core.api.IModel.SynchronousListener;
+import com.github.jochenw.crond.core.api.IModel.User;
+import com.github.jochenw.crond.core.api.JobQuery;
+import com.github.jochenw.crond.core.api.UserQuery;
+import com.github.jochenw.crond.core.util.TrigramIndex;
+
+/** A full text index on user names, email addresses, and job names,
+ * which resolves the filters of a {@link UserQuery}, or {@link JobQuery}
+ * to a set of candidate ids by intersecting {@link TrigramIndex trigram}
+ * posting lists. The candidates must be verified by applying the queries
+ * {@link UserQuery#asPredicate() predicate}, so the results are the same
+ * as with a full scan. The index is updated incrementally, as a
+ * {@link SynchronousListener}.
+ */
+public class SearchIndex implements SynchronousListener {
+	private final IModel model;
+	private final ReadWriteLock lock = new ReentrantReadWriteLock();
+	private final TrigramIndex userNames = new TrigramIndex();
+	private final TrigramIndex userEmails = new TrigramIndex();
+	private final TrigramIndex jobNames = new TrigramIndex();
+	private final Map<Long,User> users = new HashMap<>();
+	private final Map<Long,Job> jobs = new HashMap<>();
+
+	/** Creates a new instance. The index is empty, until the model
+	 * reports, that it has been initialized.
+	 * @param pModel The indexed model.
+	 */
+	public SearchIndex(IModel pModel) {
+		model = Objects.requireNonNull(pModel, "Model");
+	}
+
+	@Override
+	public void initialized() {
+		lock.writeLock().lock();
+		try {
+			userNames.clear();
+			userEmails.clear();
+			jobNames.clear();
+			users.clear();
+			jobs.clear();
+			model.forEachUser(this::addUser);
+			model.forEachJob(this::addJob);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	private void addUser(User pUser) {
+		final long id = pUser.getId().longValue();
+		userNames.add(id, pUser.getName());
+		userEmails.add(id, pUser.getEmail());
+		users.put(pUser.getId(), pUser);
+	}
+
+	private void removeUser(Long pUserId) {
+		final User user = users.remove(pUserId);
+		if (user != null) {
+			userNames.remove(pUserId.longValue(), user.getName());
+			userEmails.remove(pUserId.longValue(), user.getEmail());
+		}
+	}
+
+	private void addJob(Job pJob) {
+		jobNames.add(pJob.getId().longValue(), pJob.getName());
+		jobs.put(pJob.getId(), pJob);
+	}
+
+	private void removeJob(Long pJobId) {
+		final Job job = jobs.remove(pJobId);
+		if (job != null) {
+			jobNames.remove(pJobId.longValue(), job.getName());
+		}
+	}
+
+	@Override
+	public void userAdded(User pUser) {
+		lock.writeLock().lock();
+		try {
+			addUser(pUser);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	@Override
+	public void userUpdated(User pUser) {
+		lock.writeLock().lock();
+		try {
+			removeUser(pUser.getId());
+			addUser(pUser);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	@Override
+	public void userDeleted(User pUser) {
+		lock.writeLock().lock();
+		try {
+			removeUser(pUser.getId());
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	@Override
+	public void jobAdded(Job pJob) {
+		lock.writeLock().lock();
+		try {
+			addJob(pJob);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	@Override
+	public void jobUpdated(Job pJob) {
+		lock.writeLock().lock();
+		try {
+			removeJob(pJob.getId());
+			addJob(pJob);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	@Override
+	public void jobDeleted(Job pJob) {
+		lock.writeLock().lock();
+		try {
+			removeJob(pJob.getId());
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/** Returns the candidate ids for the given queries filters on name,
+	 * and email.
+	 * @param pQuery The query.
+	 * @return The sorted candidate ids, or null, if the index can't
+	 *   restrict the candidates (because the query has no filters on
+	 *   indexed fields, or the patterns are too short).
+	 */
+	public long[] findUsers(UserQuery pQuery) {
+		lock.readLock().lock();
+		try {
+			long[] result = null;
+			for (Map.Entry<UserQuery.Field,String> en : pQuery.getFilters().entrySet()) {
+				final TrigramIndex index;
+				switch (en.getKey()) {
+				  case NAME: index = userNames; break;
+				  case EMAIL: index = userEmails; break;
+				  default: index = null; break;
+				}
+				result = find(index, en.getValue(), result);
+			}
+			return result;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/** Returns the candidate ids for the given queries filter on the
+	 * job name.
+	 * @param pQuery The query.
+	 * @return The sorted candidate ids, or null, if the index can't
+	 *   restrict the candidates.
+	 */
+	public long[] findJobs(JobQuery pQuery) {
+		final String pattern = pQuery.getFilters().get(JobQuery.Field.NAME);
+		lock.readLock().lock();
+		try {
+			return find(jobNames, pattern, null);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	private long[] find(TrigramIndex pIndex, String pPattern, long[] pCandidates) {
+		if (pIndex == null  ||  pPattern == null) {
+			return pCandidates;
+		}
+		final long[] ids = pIndex.find(pPattern);
+		if (ids == null) {
+			return pCandidates;
+		}
+		return pCandidates == null ? ids : TrigramIndex.intersect(pCandidates, ids);
+	}
+}
@@ -0,0 +1,270 @@
+package com.github.jochenw.crond.core.impl;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NavigableMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.Predicate;
+
+import com.github.jochenw.afw.core.util.Objects;
+import com.github.jochenw.crond.core.api.IModel;
+import com.github.jochenw.crond.core.api.IModel.Job;
+import com.github.jochenw.crond.core.api.IModel.SynchronousListener;
+import com.github.jochenw.crond.core.api.IModel.User;
+import com.github.jochenw.crond.core.api.JobQuery;
+import com.github.jochenw.crond.core.api.ModelQuery;
+import com.github.jochenw.crond.core.api.UserQuery;
+
+/** Sorted secondary indexes on the users (by id, name, and email), and
+ * on the jobs (by name within a user). The indexes are concurrent skip
+ * lists, which are keyed by precomputed collation keys, so that queries,
+ * which are sorted by a single indexed field, are answered by a range
+ * scan in the order of the index, rather than by a sort. The indexes are
+ * updated incrementally, as a {@link SynchronousListener}, and rebuilt,
+ * if the model is {@link IModel.Listener#initialized() reinitialized}.
+ *
+ * The skip lists don't know the position of a key, so the leading
+ * {@link ModelQuery#getOffset() offset} results of a page are skipped
+ * one by one, and the cost of a page grows with its offset. Deep pages are
+ * therefore requested by a {@link ModelQuery.AbstractBuilder#startAt(String)
+ * start value} (the sort key of the last result of the previous page),
+ * which is located in O(log n) time.
+ *
+ * As the indexes are updated after a mutation has become visible, a
+ * query, which runs concurrently with a mutation, may or may not observe
+ * that mutation.
+ */
+public class SortedIndexes implements SynchronousListener {
+	/** An index key: A group (the user id for jobs, otherwise 0), a
+	 * collation key (null first), and the id.
+	 */
+	static final class Key implements Comparable<Key> {
+		private final long group;
+		private final String key;
+		private final long id;
+
+		Key(long pGroup, String pKey, long pId) {
+			group = pGroup;
+			key = pKey;
+			id = pId;
+		}
+
+		@Override
+		public int compareTo(Key pOther) {
+			int res = Long.compare(group, pOther.group);
+			if (res == 0) {
+				if (key == null) {
+					res = pOther.key == null ? 0 : -1;
+				} else if (pOther.key == null) {
+					res = 1;
+				} else {
+					res = key.compareTo(pOther.key);
+				}
+				if (res == 0) {
+					res = Long.compare(id, pOther.id);
+				}
+			}
+			return res;
+		}
+
+		@Override
+		public boolean equals(Object pOther) {
+			return pOther instanceof Key  &&  compareTo((Key) pOther) == 0;
+		}
+
+		@Override
+		public int hashCode() {
+			return Long.hashCode(group) * 31 + Long.hashCode(id);
+		}
+	}
+
+	private final IModel model;
+	private final ConcurrentSkipListMap<Long,User> usersById = new ConcurrentSkipListMap<>();
+	private final ConcurrentSkipListMap<Key,User> usersByName = new ConcurrentSkipListMap<>();
+	private final ConcurrentSkipListMap<Key,User> usersByEmail = new ConcurrentSkipListMap<>();
+	private final ConcurrentMap<Long,Job> jobsById = new ConcurrentHashMap<>();
+	private final ConcurrentSkipListMap<Key,Job> jobsByUserIdAndName = new ConcurrentSkipListMap<>();
+
+	/** Creates a new instance. The indexes are empty, until the model
+	 * reports, that it has been initialized.
+	 * @param pModel The indexed model.
+	 */
+	public SortedIndexes(IModel pModel) {
+		model = Objects.requireNonNull(pModel, "Model");
+	}
+
+	/** Returns the collation key of the given string: The string with
+	 * every character being case-folded in the same way as by
+	 * {@link String#compareToIgnoreCase(String)}, so that comparing
+	 * collation keys is equivalent to comparing the strings, ignoring case.
+	 * @param pValue The string, or null.
+	 * @return The collation key, or null.
+	 */
+	public static String collationKey(String pValue) {
+		if (pValue == null) {
+			return null;
+		}
+		final char[] chars = pValue.toCharArray();
+		for (int i = 0;  i < chars.length;  i++) {
+			chars[i] = Character.toLowerCase(Character.toUpperCase(chars[i]));
+		}
+		return new String(chars);
+	}
+
+	private static Key nameKey(User pUser) {
+		return new Key(0, collationKey(pUser.getName()), pUser.getId().longValue());
+	}
+
+	private static Key emailKey(User pUser) {
+		return new Key(0, collationKey(pUser.getEmail()), pUser.getId().longValue());
+	}
+
+	private static Key jobKey(Job pJob) {
+		return new Key(pJob.getUserId().longValue(), collationKey(pJob.getName()), pJob.getId().longValue());
+	}
+
+	@Override
+	public void initialized() {
+		usersById.clear();
+		usersByName.clear();
+		usersByEmail.clear();
+		jobsById.clear();
+		jobsByUserIdAndName.clear();
+		model.forEachUser(this::userAdded);
+		model.forEachJob(this::jobAdded);
+	}
+
+	@Override
+	public void userAdded(User pUser) {
+		usersById.put(pUser.getId(), pUser);
+		usersByName.put(nameKey(pUser), pUser);
+		usersByEmail.put(emailKey(pUser), pUser);
+	}
+
+	@Override
+	public void userUpdated(User pUser) {
+		final User oldUser = usersById.get(pUser.getId());
+		if (oldUser != null) {
+			usersByName.remove(nameKey(oldUser));
+			usersByEmail.remove(emailKey(oldUser));
+		}
+		userAdded(pUser);
+	}
+
+	@Override
+	public void userDeleted(User pUser) {
+		final User oldUser = usersById.remove(pUser.getId());
+		if (oldUser != null) {
+			usersByName.remove(nameKey(oldUser));
+			usersByEmail.remove(emailKey(oldUser));
+		}
+	}
+
+	@Override
+	public void jobAdded(Job pJob) {
+		jobsById.put(pJob.getId(), pJob);
+		jobsByUserIdAndName.put(jobKey(pJob), pJob);
+	}
+
+	@Override
+	public void jobUpdated(Job pJob) {
+		final Job oldJob = jobsById.get(pJob.getId());
+		if (oldJob != null) {
+			jobsByUserIdAndName.remove(jobKey(oldJob));
+		}
+		jobAdded(pJob);
+	}
+
+	@Override
+	public void jobDeleted(Job pJob) {
+		final Job oldJob = jobsById.remove(pJob.getId());
+		if (oldJob != null) {
+			jobsByUserIdAndName.remove(jobKey(oldJob));
+		}
+	}
+
+	/** Answers the given query by a range scan, if it is sorted by at most
+	 * one field.
+	 * @param pQuery The query.
+	 * @return The requested page of users, or null, if the query can't
+	 *   be answered by a range scan.
+	 */
+	public List<User> queryUsers(UserQuery pQuery) {
+		final List<ModelQuery.SortKey<UserQuery.Field>> sortKeys = pQuery.getSortKeys();
+		if (sortKeys.isEmpty()) {
+			return scan(usersById, pQuery);
+		} else if (sortKeys.size() > 1) {
+			return null;
+		}
+		final ModelQuery.SortKey<UserQuery.Field> sk = sortKeys.get(0);
+		final Object start = pQuery.getStartValue();
+		switch (sk.getField()) {
+		  case ID: {
+			  NavigableMap<Long,User> map = usersById;
+			  if (start != null) {
+				  map = sk.isAscending() ? map.tailMap((Long) start, true) : map.headMap((Long) start, true);
+			  }
+			  return scan(sk.isAscending() ? map : map.descendingMap(), pQuery);
+		  }
+		  case NAME:
+			  return scan(usersByName, 0, start, sk.isAscending(), pQuery);
+		  case EMAIL:
+			  return scan(usersByEmail, 0, start, sk.isAscending(), pQuery);
+		  default:
+			  throw new IllegalStateException("Invalid field: " + sk.getField());
+		}
+	}
+
+	/** Answers the given query by a range scan, if it is restricted to
+	 * the jobs of a single user, and sorted by name.
+	 * @param pQuery The query.
+	 * @return The requested page of jobs, or null, if the query can't
+	 *   be answered by a range scan.
+	 */
+	public List<Job> queryJobs(JobQuery pQuery) {
+		final List<ModelQuery.SortKey<JobQuery.Field>> sortKeys = pQuery.getSortKeys();
+		if (pQuery.getUserId() == null  ||  sortKeys.size() != 1
+				||  sortKeys.get(0).getField() != JobQuery.Field.NAME) {
+			return null;
+		}
+		final long userId = pQuery.getUserId().longValue();
+		return scan(jobsByUserIdAndName, userId, pQuery.getStartValue(), sortKeys.get(0).isAscending(), pQuery);
+	}
+
+	private <O> List<O> scan(ConcurrentSkipListMap<Key,O> pMap, long pGroup, Object pStart, boolean pAscending,
+			                 ModelQuery<O,?> pQuery) {
+		final NavigableMap<Key,O> map;
+		if (pStart == null) {
+			map = pMap.subMap(new Key(pGroup, null, Long.MIN_VALUE), true, new Key(pGroup+1, null, Long.MIN_VALUE), false);
+		} else if (pAscending) {
+			// Nulls come first, and are therefore excluded.
+			final Key from = new Key(pGroup, collationKey((String) pStart), Long.MIN_VALUE);
+			map = pMap.subMap(from, true, new Key(pGroup+1, null, Long.MIN_VALUE), false);
+		} else {
+			final Key to = new Key(pGroup, collationKey((String) pStart), Long.MAX_VALUE);
+			map = pMap.subMap(new Key(pGroup, null, Long.MIN_VALUE), true, to, true);
+		}
+		return scan(pAscending ? map : map.descendingMap(), pQuery);
+	}
+
+	private <O> List<O> scan(NavigableMap<?,O> pMap, ModelQuery<O,?> pQuery) {
+		final Predicate<O> predicate = pQuery.asPredicate();
+		final List<O> list = new ArrayList<>(Math.min(pQuery.getLimit(), 1024));
+		int skip = pQuery.getOffset();
+		for (O o : pMap.values()) {
+			if (list.size() >= pQuery.getLimit()) {
+				break;
+			}
+			if (predicate.test(o)) {
+				if (skip > 0) {
+					--skip;
+				} else {
+					list.add(o);
+				}
+			}
+		}
+		return list;
+	}
+}
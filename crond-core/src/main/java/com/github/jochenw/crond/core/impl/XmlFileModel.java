@@ -1,25 +1,33 @@
 package com.github.jochenw.crond.core.impl;
 
-import java.io.BufferedInputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.UncheckedIOException;
-import java.lang.reflect.UndeclaredThrowableException;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
 import java.util.NoSuchElementException;
-
-import org.xml.sax.InputSource;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
 
 import com.github.jochenw.afw.core.function.Functions;
 import com.github.jochenw.afw.core.function.Functions.FailableConsumer;
-import com.github.jochenw.afw.core.util.Locked;
+import com.github.jochenw.afw.core.log.ILog;
+import com.github.jochenw.afw.core.util.Holder;
 import com.github.jochenw.afw.core.util.Objects;
 import com.github.jochenw.afw.core.util.Objects.DuplicateElementException;
+import com.github.jochenw.afw.di.util.Exceptions;
+import com.github.jochenw.crond.core.api.JobQuery;
+import com.github.jochenw.crond.core.api.ModelQuery;
+import com.github.jochenw.crond.core.api.UserQuery;
+import com.github.jochenw.crond.core.beans.EventImpl;
 import com.github.jochenw.crond.core.beans.JobImpl;
 import com.github.jochenw.crond.core.beans.UserImpl;
+import com.github.jochenw.crond.core.util.LongObjectMap;
+import com.github.jochenw.crond.core.util.PersistentHashMap;
 
 import jakarta.inject.Inject;
 import jakarta.inject.Named;
@@ -27,57 +35,279 @@ import jakarta.inject.Named;
 /** An implementation of {@link IModel}, which persists data in a single
  * XML file. This is well suited for development, but not for productive
  * operation.
+ *
+ * Despite the name, the model file may also use the compact
+ * {@link ModelFileFormat#BINARY binary format}, which is considerably
+ * faster to load. The format is chosen by the property
+ * {@code xml.model.format} ("xml", or "binary"), or, if that isn't set,
+ * by the model files extension (".bin" means binary). Use the
+ * {@link ModelFileConverter} to convert existing model files.
+ *
+ * By default, every mutation rewrites the complete model file. If the
+ * property {@code xml.model.journal} is set to true, then mutations are
+ * appended to a {@link ModelJournal journal} next to the model file instead.
+ * The model file is rewritten (compacted) only, if the journal grows larger
+ * than the model file itself (but at least
+ * {@code xml.model.journal.minCompactionSize} bytes), upon startup, and
+ * upon shutdown. If {@code xml.model.journal.fsync} is true, then journal
+ * writes, and the replacement of the model file upon compaction are forced
+ * to the storage device.
+ *
+ * The property {@code xml.model.durability} controls, which thread performs
+ * the writes: With "sync" (the default), the mutating thread writes, while
+ * holding the write lock. With "group-commit", or "periodic", mutating threads
+ * hand over to a {@link ModelPersister}, which coalesces all mutations within
+ * {@code xml.model.durability.latency} milliseconds into a single write.
+ * Use {@link #flush()} to wait for the mutations being written.
+ *
+ * Unless the property {@code xml.model.sortedIndexes} is false, the model
+ * maintains {@link SortedIndexes}, which answer sorted queries by range
+ * scans. Likewise, unless {@code xml.model.searchIndex} is false, a
+ * {@link SearchIndex} resolves substring, and wildcard filters.
+ *
+ * Reading is wait-free: The model data is kept in an immutable
+ * {@link UserData snapshot}, which is published through a volatile
+ * reference. Readers (including iterations) operate on the snapshot,
+ * that was current, when they started, and never block writers.
+ * Writers are serialized, and publish a new snapshot atomically after
+ * every mutation. The snapshots maps are persistent ({@link LongObjectMap},
+ * and {@link PersistentHashMap}), so a new snapshot shares most of its
+ * structure with the previous one.
  */
 public class XmlFileModel extends AbstractModel {
 	private @Inject @Named(value="xml.model.file") Path modelFile;
-	private final Locked<UserData> userData = new Locked<>(new UserData());
+	private final Object writeLock = new Object();
+	private volatile UserData userData = new UserData();
 	private long maxUserId, maxJobId;
+	private ModelJournal journal;
+	private long minCompactionSize, snapshotSize;
+	private ModelPersister persister;
+	private SortedIndexes sortedIndexes;
+	private SearchIndex searchIndex;
+	private ModelFileFormat format = ModelFileFormat.XML;
 
+	/** A snapshot of the model data. Once published as {@link #userData},
+	 * a snapshot (including its maps) is never modified.
+	 */
 	public static class UserData {
-		private final Map<Long,User> usersById = new HashMap<>();
-		private final Map<String,User> usersByEmail = new HashMap<>();
-		private final Map<Long,Job> jobsById = new HashMap<>();
-		private final Map<String,Job> jobsByUserIdAndName = new HashMap<>();
+		private LongObjectMap<User> usersById;
+		private PersistentHashMap<String,User> usersByEmail;
+		private LongObjectMap<Job> jobsById;
+		private LongObjectMap<PersistentHashMap<String,Job>> jobsByUserId;
+
+		UserData() {
+			usersById = LongObjectMap.empty();
+			usersByEmail = PersistentHashMap.empty();
+			jobsById = LongObjectMap.empty();
+			jobsByUserId = LongObjectMap.empty();
+		}
+
+		/** Creates a new instance, which is a copy of the given snapshot.
+		 * @param pData The snapshot, which is being copied.
+		 */
+		UserData(UserData pData) {
+			usersById = pData.usersById;
+			usersByEmail = pData.usersByEmail;
+			jobsById = pData.jobsById;
+			jobsByUserId = pData.jobsByUserId;
+		}
+
+		/** Returns the job with the given user id, and name, or null.
+		 * @param pUserId The users id.
+		 * @param pName The jobs name.
+		 * @return The job with the given user id, and name, or null.
+		 */
+		Job getJob(long pUserId, String pName) {
+			final PersistentHashMap<String,Job> jobs = jobsByUserId.get(pUserId);
+			return jobs == null ? null : jobs.get(pName);
+		}
+
+		/** Adds the given job to the per-user index, possibly replacing
+		 * another job with the same user id, and name.
+		 * @param pJob The job, which is being added.
+		 */
+		void putJob(Job pJob) {
+			final long userId = pJob.getUserId().longValue();
+			final PersistentHashMap<String,Job> jobs = jobsByUserId.get(userId);
+			final PersistentHashMap<String,Job> map = jobs == null ? PersistentHashMap.empty() : jobs;
+			jobsByUserId = jobsByUserId.put(userId, map.put(pJob.getName(), pJob));
+		}
+
+		/** Removes the given job from the per-user index.
+		 * @param pJob The job, which is being removed.
+		 */
+		void removeJob(Job pJob) {
+			final long userId = pJob.getUserId().longValue();
+			final PersistentHashMap<String,Job> jobs = jobsByUserId.get(userId);
+			if (jobs != null) {
+				final PersistentHashMap<String,Job> map = jobs.remove(pJob.getName());
+				if (map.isEmpty()) {
+					jobsByUserId = jobsByUserId.remove(userId);
+				} else {
+					jobsByUserId = jobsByUserId.put(userId, map);
+				}
+			}
+		}
 	}
 
 	@Override
 	public void start() {
+		final String formatName = getProperty("xml.model.format", null);
+		format = formatName == null ? ModelFileFormat.of(modelFile) : ModelFileFormat.of(formatName);
+		if (Boolean.parseBoolean(getProperty("xml.model.journal", "false"))) {
+			journal = new ModelJournal(ModelJournal.pathOf(modelFile));
+			minCompactionSize = Long.parseLong(getProperty("xml.model.journal.minCompactionSize", "1048576"));
+			journal.setFsync(Boolean.parseBoolean(getProperty("xml.model.journal.fsync", "false")));
+		}
+		if (Boolean.parseBoolean(getProperty("xml.model.sortedIndexes", "true"))) {
+			sortedIndexes = new SortedIndexes(this);
+			addListener(sortedIndexes);
+		}
+		if (Boolean.parseBoolean(getProperty("xml.model.searchIndex", "true"))) {
+			searchIndex = new SearchIndex(this);
+			addListener(searchIndex);
+		}
 		readModelFile();
+		final ModelPersister.Mode mode = ModelPersister.Mode.of(getProperty("xml.model.durability", "sync"));
+		if (mode != ModelPersister.Mode.SYNC) {
+			final long latency = Long.parseLong(getProperty("xml.model.durability.latency",
+					mode == ModelPersister.Mode.PERIODIC ? "1000" : "50"));
+			persister = new ModelPersister(mode, latency, this::persist, getLog());
+			persister.start();
+		}
 	}
 
-	protected void readModelFile() {
-		try (InputStream is = Files.newInputStream(modelFile);
-			 BufferedInputStream bis = new BufferedInputStream(is)) {
-			final InputSource isource = new InputSource(bis);
-			isource.setSystemId(modelFile.toString());
-			final XmlModelFileReader ch = XmlModelFileReader.read(isource);
-			apply(ch);
-		} catch (IOException ioe) {
-			throw new UncheckedIOException(ioe);
-		} catch (Exception e) {
-			throw new UndeclaredThrowableException(e);
+	@Override
+	public void shutdown() {
+		if (persister != null) {
+			persister.shutdown();
+			persister = null;
+		}
+		if (journal != null) {
+			synchronized (writeLock) {
+				if (journal.getSize() > 0) {
+					compact(userData);
+				}
+				journal.close();
+			}
 		}
+		super.shutdown();
 	}
 
-	protected void apply(XmlModelFileReader pData) {
-		userData.runWriteLocked((ud) -> {
-			ud.usersById.clear();
-			ud.usersByEmail.clear();
-			ud.jobsById.clear();
-			ud.jobsByUserIdAndName.clear();
+	/** Loads the model file, and replays the journal, if any. The model
+	 * file is streamed directly into a new snapshot, without intermediate
+	 * maps. (See {@link ModelFileFormat#load(Path, ModelFileSink, java.util.concurrent.Executor)}.)
+	 * The time, and memory required for loading are logged.
+	 */
+	protected void readModelFile() {
+		final LoadMetrics metrics = new LoadMetrics();
+		final UserData ud = new UserData();
+		final int[] records = new int[1];
+		synchronized (writeLock) {
 			maxUserId = 0;
-			pData.getUsers().values().forEach((u) -> {
-				addUser(ud, u);
-			});
-			pData.getJobs().values().forEach((j) -> {
-				addJob(ud, j);
+			maxJobId = 0;
+			metrics.measure(() -> {
+				// If journaling is enabled, then the model file may be missing,
+				// because everything is in the journal.
+				if (journal == null  ||  Files.exists(modelFile)) {
+					format.load(modelFile, new ModelFileSink() {
+						@Override
+						public void addUser(User pUser) {
+							XmlFileModel.this.addUser(ud, pUser);
+							metrics.recordLoaded();
+						}
+
+						@Override
+						public void addJob(Job pJob) {
+							XmlFileModel.this.addJob(ud, pJob);
+							metrics.recordLoaded();
+						}
+					}, metrics.newExecutor());
+				}
+				if (journal != null) {
+					records[0] = journal.replay(new JournalReplay(ud));
+				}
 			});
-		});
-		note((l) -> l.initialized());
+			userData = ud;
+			note((l) -> l.initialized());
+			if (records[0] > 0) {
+				compact(ud);
+			} else if (journal != null  &&  !journal.hasSnapshotRecord()) {
+				// A new journal: Identify the snapshot, which it belongs to.
+				if (Files.exists(modelFile)) {
+					resetJournal();
+				} else {
+					compact(ud);
+				}
+			}
+		}
+		final ILog log = getLog();
+		if (log != null) {
+			log.info("readModelFile", "Loaded model file {} ({} users, {} jobs, {} journal records) in {} ms,"
+					+ " allocated {} bytes, peak heap {} bytes",
+					modelFile, Integer.valueOf(ud.usersById.size()), Integer.valueOf(ud.jobsById.size()),
+					Integer.valueOf(records[0]), Long.valueOf(metrics.getElapsedMillis()),
+					Long.valueOf(metrics.getAllocatedBytes()), Long.valueOf(metrics.getPeakHeapBytes()));
+		}
+	}
+
+	/** Applies the records of the journal to a snapshot, which hasn't been
+	 * published yet. Records replace, rather than add users, and jobs.
+	 * A stale journal (one, that belongs to an older snapshot, because the
+	 * process crashed while compacting) isn't applied at all.
+	 */
+	private class JournalReplay implements ModelJournal.Target {
+		private final UserData ud;
+
+		JournalReplay(UserData pUserData) {
+			ud = pUserData;
+		}
+
+		@Override
+		public boolean isSnapshot(long pSize, long pChecksum) {
+			try {
+				return Files.isRegularFile(modelFile)  &&  Files.size(modelFile) == pSize
+						&&  ModelJournal.checksum(modelFile) == pChecksum;
+			} catch (IOException ioe) {
+				throw new UncheckedIOException(ioe);
+			}
+		}
+
+		@Override
+		public void putUser(User pUser) {
+			removeUser(pUser.getId());
+			addUser(ud, pUser);
+		}
+
+		@Override
+		public void removeUser(Long pUserId) {
+			final User u = ud.usersById.get(pUserId.longValue());
+			if (u != null) {
+				ud.usersById = ud.usersById.remove(pUserId.longValue());
+				ud.usersByEmail = ud.usersByEmail.remove(u.getEmail());
+			}
+		}
+
+		@Override
+		public void putJob(Job pJob) {
+			removeJob(pJob.getId());
+			addJob(ud, pJob);
+		}
+
+		@Override
+		public void removeJob(Long pJobId) {
+			final Job j = ud.jobsById.get(pJobId.longValue());
+			if (j != null) {
+				ud.jobsById = ud.jobsById.remove(pJobId.longValue());
+				ud.removeJob(j);
+			}
+		}
 	}
 
 	/** Called to add a new job to the model. Assumes, that the
-	 * current thread holds an exclusive lock on {@link #userData}.
+	 * current thread holds the {@link #writeLock} (or works on behalf
+	 * of the thread, that holds it, while loading), and that the
+	 * given snapshot hasn't been published yet.
 	 * @param pUserData The user data.
 	 * @param pJob The new job.
 	 */
@@ -85,193 +315,580 @@ public class XmlFileModel extends AbstractModel {
 		final Long jobId = Objects.requireNonNull(pJob.getId());
 		final Long userId = Objects.requireNonNull(pJob.getUserId());
 		final String name = Objects.requireNonNull(pJob.getName());
-		final String userIdAndName = asUserIdAndName(userId, name);
-		if (pUserData.jobsById.put(jobId, pJob) != null) {
+		if (pUserData.jobsById.containsKey(jobId.longValue())) {
 			throw new DuplicateElementException("Duplicate job id: " + jobId);
 		}
+		pUserData.jobsById = pUserData.jobsById.put(jobId.longValue(), pJob);
 		if (jobId.longValue() > maxJobId) {
 			maxJobId = jobId.longValue();
 		}
-		if (pUserData.jobsByUserIdAndName.put(userIdAndName, pJob) != null) {
+		if (pUserData.getJob(userId.longValue(), name) != null) {
 			throw new DuplicateElementException("Duplicate combination of user id, and name: " + userId + ", " + name);
 		}
-	}
-	private String asUserIdAndName(Long pUserId, String pName) {
-		return pUserId + ":" + pName;
+		pUserData.putJob(pJob);
 	}
 	/** Called to add a new user to the model. Assumes, that the
-	 * current thread holds an exclusive lock on {@link #userData}.
+	 * current thread holds the {@link #writeLock} (or works on behalf
+	 * of the thread, that holds it, while loading), and that the
+	 * given snapshot hasn't been published yet.
 	 * @param pUserData The user data, 
 	 * @param pUser The new user.
 	 */
 	private void addUser(UserData pUserData, User pUser) {
 		final Long userId = Objects.requireNonNull(pUser.getId());
 		final String email = Objects.requireNonNull(pUser.getEmail());
-		if (pUserData.usersById.put(userId, pUser) != null) {
+		if (pUserData.usersById.containsKey(userId.longValue())) {
 			throw new DuplicateElementException("Duplicate user id: " + userId);
 		}
+		pUserData.usersById = pUserData.usersById.put(userId.longValue(), pUser);
 		if (userId.longValue() > maxUserId) {
 			maxUserId = userId.longValue();
 		}
-		if (pUserData.usersByEmail.put(email, pUser) != null) {
+		if (pUserData.usersByEmail.containsKey(email)) {
 			throw new DuplicateElementException("Duplicate email address: " + email);
 		}
+		pUserData.usersByEmail = pUserData.usersByEmail.put(email, pUser);
 	}
 
-	@Override
-	public User addUser(String pEmail, String pName) throws DuplicateElementException {
-		final User user = userData.callWriteLocked((ud) -> {
-			final long userId = Long.valueOf(maxUserId+1);
-			final User u = UserImpl.of(Long.valueOf(userId), pEmail, pName);
-			addUser(ud, u);
-			save(ud);
+	/** A set of mutations, which is being applied to a new
+	 * {@link UserData snapshot} as a whole. The snapshot is
+	 * published, if all mutations succeed, or discarded otherwise.
+	 * Must only be used, while holding the {@link #writeLock}.
+	 */
+	private class Transaction implements Batch {
+		private final UserData ud;
+		private final long savedMaxUserId, savedMaxJobId;
+		private final List<Consumer<ModelJournal>> records = new ArrayList<>();
+		private final List<Event> events = new ArrayList<>();
+		private boolean closed;
+
+		Transaction(UserData pSnapshot) {
+			ud = new UserData(pSnapshot);
+			savedMaxUserId = maxUserId;
+			savedMaxJobId = maxJobId;
+		}
+
+		@Override
+		public User addUser(String pEmail, String pName) throws DuplicateElementException {
+			assertOpen();
+			final Long id = Long.valueOf(maxUserId+1);
+			final User u = UserImpl.of(id, pEmail, pName);
+			final String email = u.getEmail();
+			if (ud.usersByEmail.containsKey(email)) {
+				throw new DuplicateElementException("Duplicate email address: " + email);
+			}
+			ud.usersById = ud.usersById.put(id.longValue(), u);
+			ud.usersByEmail = ud.usersByEmail.put(email, u);
+			maxUserId = id.longValue();
+			records.add((j) -> j.putUser(u));
+			events.add(EventImpl.userAdded(u));
 			return u;
-		});
-		note((l) -> l.userAdded(user));
-		return user;
+		}
+
+		@Override
+		public Job addJob(Long pUserId, String pName) throws DuplicateElementException, NoSuchElementException {
+			assertOpen();
+			final Long userId = Objects.requireNonNull(pUserId, "User Id");
+			final String name = Objects.requireNonNull(pName, "Name");
+			if (!ud.usersById.containsKey(userId.longValue())) {
+				throw new NoSuchElementException("Unknown user id: " + userId);
+			}
+			if (ud.getJob(userId.longValue(), name) != null) {
+				throw new DuplicateElementException("Duplicate combination of user id, and name: "
+						+ userId + ", " + name);
+			}
+			final Long id = Long.valueOf(maxJobId+1);
+			final Job j = JobImpl.of(id, userId, name);
+			ud.jobsById = ud.jobsById.put(id.longValue(), j);
+			ud.putJob(j);
+			maxJobId = id.longValue();
+			records.add((jnl) -> jnl.putJob(j));
+			events.add(EventImpl.jobAdded(j));
+			return j;
+		}
+
+		@Override
+		public void updateUser(User pUser) throws NoSuchElementException, DuplicateElementException {
+			assertOpen();
+			final Long id = Objects.requireNonNull(pUser.getId());
+			final String email = Objects.requireNonNull(pUser.getEmail());
+			final User oldUser = ud.usersById.get(id.longValue());
+			if (oldUser == null) {
+				throw new NoSuchElementException("Unknown user id: " + id);
+			}
+			final User emailUser = ud.usersByEmail.get(email);
+			if (emailUser != null  &&  !id.equals(emailUser.getId())) {
+				throw new DuplicateElementException("Duplicate email address: " + email);
+			}
+			ud.usersByEmail = ud.usersByEmail.remove(oldUser.getEmail()).put(email, pUser);
+			ud.usersById = ud.usersById.put(id.longValue(), pUser);
+			records.add((j) -> j.putUser(pUser));
+			events.add(EventImpl.userUpdated(pUser));
+		}
+
+		@Override
+		public void updateJob(Job pJob) throws NoSuchElementException, DuplicateElementException {
+			assertOpen();
+			final Long id = Objects.requireNonNull(pJob.getId());
+			final Long userId = Objects.requireNonNull(pJob.getUserId());
+			final String name = Objects.requireNonNull(pJob.getName());
+			final Job oldJob = ud.jobsById.get(id.longValue());
+			if (oldJob == null) {
+				throw new NoSuchElementException("Unknown job id: " + id);
+			}
+			if (!ud.usersById.containsKey(userId.longValue())) {
+				throw new NoSuchElementException("Unknown user id: " + userId);
+			}
+			final Job nameJob = ud.getJob(userId.longValue(), name);
+			if (nameJob != null  &&  !id.equals(nameJob.getId())) {
+				throw new DuplicateElementException("Duplicate combination of user id, and name: "
+						+ userId + ", " + name);
+			}
+			ud.removeJob(oldJob);
+			ud.putJob(pJob);
+			ud.jobsById = ud.jobsById.put(id.longValue(), pJob);
+			records.add((j) -> j.putJob(pJob));
+			events.add(EventImpl.jobUpdated(pJob));
+		}
+
+		@Override
+		public void removeUser(Long pUserId) throws NoSuchElementException {
+			assertOpen();
+			final Long id = Objects.requireNonNull(pUserId);
+			final User u = ud.usersById.get(id.longValue());
+			if (u == null) {
+				throw new NoSuchElementException("Unknown user id: " + id);
+			}
+			final String email = Objects.requireNonNull(u.getEmail());
+			ud.usersById = ud.usersById.remove(id.longValue());
+			ud.usersByEmail = ud.usersByEmail.remove(email);
+			records.add((j) -> j.removeUser(id));
+			events.add(EventImpl.userDeleted(u));
+		}
+
+		@Override
+		public void removeJob(Long pJobId) throws NoSuchElementException {
+			assertOpen();
+			final Long id = Objects.requireNonNull(pJobId);
+			final Job j = ud.jobsById.get(id.longValue());
+			if (j == null) {
+				throw new NoSuchElementException("Unknown job id: " + id);
+			}
+			ud.jobsById = ud.jobsById.remove(id.longValue());
+			ud.removeJob(j);
+			records.add((jnl) -> jnl.removeJob(id));
+			events.add(EventImpl.jobDeleted(j));
+		}
+
+		private void assertOpen() {
+			if (closed) {
+				throw new IllegalStateException("This batch has already been completed.");
+			}
+		}
+
+		/** Persists the mutations, and publishes the new snapshot. The
+		 * journal records of multiple mutations are written as a single
+		 * batch record, so that they are replayed all, or none.
+		 */
+		void commit() {
+			closed = true;
+			if (records.size() == 1) {
+				save(ud, records.get(0));
+			} else if (!records.isEmpty()) {
+				save(ud, (j) -> {
+					j.beginBatch();
+					records.forEach((r) -> r.accept(j));
+					j.endBatch();
+				});
+			}
+		}
+
+		/** Discards the new snapshot.
+		 */
+		void rollback() {
+			closed = true;
+			maxUserId = savedMaxUserId;
+			maxJobId = savedMaxJobId;
+		}
 	}
 
-	@Override
-	public void updateUser(User pUser) {
-		final Long id = Objects.requireNonNull(pUser.getId());
-		final String email = Objects.requireNonNull(pUser.getEmail());
-		userData.runWriteLocked((ud) -> {
-			ud.usersById.compute(id, (i,u) -> {
-				if (u == null) {
-					throw new NoSuchElementException("Unknown user id: " + i);
-				} else {
-					return pUser;
-				}
-			});
-			ud.usersByEmail.compute(email, (e,u) -> {
-				if (u != null) {
-					if (!id.equals(u.getId())) {
-						throw new DuplicateElementException("Duplicate email address: " + e);
-					}
+	/** Applies the given action as a {@link Transaction} on the
+	 * {@link #userData}, and reports the mutations to the listeners.
+	 * The mutations are reported, while still holding the write lock,
+	 * so that listeners receive them in the order of the commits.
+	 * @param pAction The action, which performs the mutations.
+	 * @param pBatch True, if the mutations are to be reported as a
+	 *   batch, false, if the action performs a single mutation.
+	 */
+	private void apply(Consumer<Transaction> pAction, boolean pBatch) {
+		synchronized (writeLock) {
+			final Transaction tx = new Transaction(userData);
+			try {
+				pAction.accept(tx);
+				tx.commit();
+			} catch (RuntimeException|Error e) {
+				tx.rollback();
+				throw e;
+			}
+			if (pBatch) {
+				if (!tx.events.isEmpty()) {
+					note(Collections.unmodifiableList(tx.events));
 				}
-				return pUser;
-			});
-			save(ud);
-		});
-		note((l) -> l.userUpdated(pUser));
+			} else {
+				note(tx.events.get(0));
+			}
+		}
 	}
 
-	@Override
-	public User getUserById(Long pId) {
-		return userData.callReadLocked((ud) -> {
-			return ud.usersById.get(pId);
-		});
+	/** Applies the given action as a {@link Transaction} on the
+	 * {@link #userData}, and reports the (single) mutation to
+	 * the listeners.
+	 * @param pAction The action, which performs a single mutation.
+	 */
+	private void applySingle(Consumer<Transaction> pAction) {
+		apply(pAction, false);
 	}
 
 	@Override
-	public void removeUser(Long pUserId) throws NoSuchElementException {
-		final Long id = Objects.requireNonNull(pUserId);
-		final User user = userData.callWriteLocked((ud) -> {
-			final User u = ud.usersById.remove(id);
-			if (u == null) {
-				throw new NoSuchElementException("Unknown user id: " + id);
+	public void batch(FailableConsumer<Batch,?> pBatch) {
+		apply((tx) -> {
+			try {
+				pBatch.accept(tx);
+			} catch (Throwable t) {
+				throw Exceptions.show(t);
 			}
-			final String email = Objects.requireNonNull(u.getEmail());
-			ud.usersByEmail.remove(email);
-			save(ud);
-			return u;
-		});
-		note((l) -> l.userDeleted(user));
+		}, true);
 	}
 
-	/** Must be invoked, while synchronized on {@link #usersById}.
-	 */
-	protected void save(UserData pUserData) {
-		new XmlModelFileWriter().write(modelFile, pUserData.usersById.values(),
-				pUserData.jobsById.values(), false);
+	@Override
+	public User addUser(String pEmail, String pName) throws DuplicateElementException {
+		final Holder<User> holder = new Holder<>();
+		applySingle((tx) -> holder.set(tx.addUser(pEmail, pName)));
+		return holder.get();
 	}
 
 	@Override
 	public Job addJob(Long pUserId, String pName) throws DuplicateElementException, NoSuchElementException {
-		final Job job = userData.callWriteLocked((ud) -> {
-			final long jobId = Long.valueOf(maxJobId+1);
-			final Job j = JobImpl.of(Long.valueOf(jobId), pUserId, pName);
-			addJob(ud, j);
-			save(ud);
-			return j;
-		});
-		note((l) -> l.jobAdded(job));
-		return job;
+		final Holder<Job> holder = new Holder<>();
+		applySingle((tx) -> holder.set(tx.addJob(pUserId, pName)));
+		return holder.get();
+	}
+
+	@Override
+	public void updateUser(User pUser) throws NoSuchElementException, DuplicateElementException {
+		applySingle((tx) -> tx.updateUser(pUser));
 	}
 
 	@Override
 	public void updateJob(Job pJob) throws NoSuchElementException, DuplicateElementException {
-		final Long id = Objects.requireNonNull(pJob.getId());
-		final Long userId = Objects.requireNonNull(pJob.getUserId());
-		final String name = Objects.requireNonNull(pJob.getName());
-		final String userIdAndName = asUserIdAndName(userId, name);
-		userData.runWriteLocked((ud) -> {
-			ud.jobsById.compute(id, (i,j) -> {
-				if (j == null) {
-					throw new NoSuchElementException("Unknown job id: " + i);
-				} else {
-					return pJob;
+		applySingle((tx) -> tx.updateJob(pJob));
+	}
+
+	@Override
+	public void removeUser(Long pUserId) throws NoSuchElementException {
+		applySingle((tx) -> tx.removeUser(pUserId));
+	}
+
+	@Override
+	public void removeJob(Long pJobId) throws NoSuchElementException {
+		applySingle((tx) -> tx.removeJob(pJobId));
+	}
+
+	@Override
+	public User getUserById(Long pId) {
+		if (pId == null) {
+			return null;
+		}
+		return getUserById(pId.longValue());
+	}
+
+	@Override
+	public User getUserById(long pId) {
+		return userData.usersById.get(pId);
+	}
+
+	/** Writes the given snapshot to the model file.
+	 * @param pUserData The snapshot, which is being written.
+	 */
+	protected void save(UserData pUserData) {
+		format.write(modelFile, pUserData.usersById.values(), pUserData.jobsById.values());
+	}
+
+	/** Persists a single mutation, and publishes the new snapshot. Must be
+	 * invoked, while holding the {@link #writeLock}. If journaling is enabled,
+	 * then the mutation is appended to the journal. Otherwise, the complete
+	 * model file is rewritten. If a {@link ModelPersister} is present, then
+	 * the actual write is left to the persister thread: In that case, the
+	 * snapshot is published first, so that the persister thread can't write
+	 * an older snapshot, after it has been notified. The snapshot is
+	 * published only, if the persister is still running.
+	 * @param pUserData The new snapshot.
+	 * @param pRecord Writes the journal record, which describes the mutation.
+	 */
+	protected void save(UserData pUserData, Consumer<ModelJournal> pRecord) {
+		if (persister == null) {
+			if (journal != null) {
+				pRecord.accept(journal);
+			}
+			try {
+				persist(pUserData);
+			} catch (RuntimeException|Error e) {
+				if (journal != null) {
+					// The mutation is rolled back, so its records must not
+					// be written by the next flush.
+					journal.discard();
 				}
+				throw e;
+			}
+			userData = pUserData;
+		} else {
+			persister.dirty(() -> {
+				if (journal != null) {
+					pRecord.accept(journal);
+				}
+				userData = pUserData;
 			});
-			ud.jobsByUserIdAndName.compute(userIdAndName, (uian, j) -> {
-				if (j != null) {
-					if (!id.equals(j.getId())) {
-						throw new DuplicateElementException("Duplicate combination of user id, and name: "
-								+ userId + ", " + name);
+		}
+	}
+
+	/** Writes all pending mutations. Must be invoked, while holding the
+	 * {@link #writeLock}.
+	 * @param pUserData The user data.
+	 */
+	protected void persist(UserData pUserData) {
+		if (journal == null) {
+			save(pUserData);
+		} else {
+			journal.flush();
+			if (journal.getSize() > Math.max(minCompactionSize, snapshotSize)) {
+				try {
+					compact(pUserData);
+				} catch (RuntimeException e) {
+					// The mutations are safe in the journal, so this isn't
+					// reported to the caller. The compaction is retried
+					// upon the next write.
+					final ILog log = getLog();
+					if (log != null) {
+						log.error("persist", "Failed to compact the model file", e);
 					}
 				}
-				return pJob;
-			});
-			save(ud);
-		});
-		note((l) -> l.jobUpdated(pJob));
+			}
+		}
 	}
 
-	@Override
-	public void removeJob(Long pJobId) throws NoSuchElementException {
-		final Long id = Objects.requireNonNull(pJobId);
-		final Job job = userData.callWriteLocked((ud) -> {
-			final Job j = ud.jobsById.remove(id);
-			if (j == null) {
-				throw new NoSuchElementException("Unknown job id: " + id);
+	/** Called by the {@link ModelPersister persister thread} to write all
+	 * pending mutations.
+	 */
+	protected void persist() {
+		if (journal == null) {
+			// No lock required, the snapshot is immutable.
+			save(userData);
+		} else {
+			synchronized (writeLock) {
+				persist(userData);
 			}
-			final Long userId = Objects.requireNonNull(j.getUserId());
-			final String name = Objects.requireNonNull(j.getName());
-			final String userIdAndName = asUserIdAndName(userId, name);
-			ud.jobsByUserIdAndName.remove(userIdAndName);
-			save(ud);
-			return j;
-		});
-		note((l) -> l.jobDeleted(job));
+		}
+	}
+
+	@Override
+	public CompletableFuture<Void> flush() {
+		final ModelPersister mp = persister;
+		if (mp == null) {
+			return CompletableFuture.completedFuture(null);
+		} else {
+			return mp.flush();
+		}
+	}
+
+	/** Writes a new snapshot of the model file, and discards the journal.
+	 * Must be invoked, while holding the {@link #writeLock}.
+	 * The model file is replaced atomically (see
+	 * {@link ModelFileFormat#write}),
+	 * so that a crash doesn't leave an incomplete model file behind.
+	 * A crash after replacing the model file, but before resetting the
+	 * journal, leaves a stale journal behind, which is skipped upon startup.
+	 * If the journal is forced to the storage device, then so is the move
+	 * of the model file, before the journal is discarded.
+	 * @param pUserData The user data.
+	 */
+	protected void compact(UserData pUserData) {
+		save(pUserData);
+		if (journal.isFsync()) {
+			ModelFileFormat.forceDirectory(modelFile);
+		}
+		resetJournal();
+	}
+
+	/** Discards the journal, and starts it with a snapshot record, which
+	 * identifies the current model file. Must be invoked, while holding
+	 * the {@link #writeLock}.
+	 */
+	private void resetJournal() {
+		try {
+			snapshotSize = Files.size(modelFile);
+		} catch (IOException ioe) {
+			throw new UncheckedIOException(ioe);
+		}
+		journal.reset(snapshotSize, ModelJournal.checksum(modelFile));
 	}
 
 	@Override
 	public User getUserByEmail(String pEmail) {
 		final String email = Objects.requireNonNull(pEmail);
-		return userData.callReadLocked((ud) -> ud.usersByEmail.get(email));
+		return userData.usersByEmail.get(email);
 	}
 
 	@Override
 	public Job getJobById(Long pJobId) {
 		final Long id = Objects.requireNonNull(pJobId);
-		return userData.callReadLocked((ud) -> ud.jobsById.get(id));
+		return getJobById(id.longValue());
+	}
+
+	@Override
+	public Job getJobById(long pJobId) {
+		return userData.jobsById.get(pJobId);
 	}
 
 	@Override
 	public Job getJobByUserIdAndName(Long pUserId, String pName) {
 		final Long userId = Objects.requireNonNull(pUserId);
 		final String name = Objects.requireNonNull(pName);
-		final String id = asUserIdAndName(userId, name);
-		return userData.callReadLocked((ud) -> ud.jobsByUserIdAndName.get(id));
+		return userData.getJob(userId.longValue(), name);
 	}
 
 	@Override
 	public void forEachUser(FailableConsumer<User, ?> pConsumer) {
-		userData.runReadLocked((ud) -> ud.usersById.values().forEach((u) -> Functions.accept(pConsumer, u)));
+		userData.usersById.values().forEach((u) -> Functions.accept(pConsumer, u));
 	}
 
 	@Override
 	public void forEachJob(FailableConsumer<Job, ?> pConsumer) {
-		userData.runReadLocked((ud) -> ud.jobsById.values().forEach((j) -> Functions.accept(pConsumer, j)));
+		userData.jobsById.values().forEach((j) -> Functions.accept(pConsumer, j));
+	}
+
+	@Override
+	public void forEachJobOfUser(Long pUserId, FailableConsumer<Job, ?> pConsumer) {
+		final Long userId = Objects.requireNonNull(pUserId, "User Id");
+		final PersistentHashMap<String,Job> jobs = userData.jobsByUserId.get(userId.longValue());
+		if (jobs != null) {
+			jobs.values().forEach((j) -> Functions.accept(pConsumer, j));
+		}
+	}
+
+	@Override
+	public int countJobsOfUser(Long pUserId) {
+		final Long userId = Objects.requireNonNull(pUserId, "User Id");
+		final PersistentHashMap<String,Job> jobs = userData.jobsByUserId.get(userId.longValue());
+		return jobs == null ? 0 : jobs.size();
+	}
+
+	@Override
+	public List<User> queryUsers(UserQuery pQuery) {
+		final UserData ud = userData;
+		final List<ModelQuery.SortKey<UserQuery.Field>> sortKeys = pQuery.getSortKeys();
+		if (!pQuery.isFiltered()  &&  (sortKeys.isEmpty()
+				||  (sortKeys.size() == 1  &&  sortKeys.get(0).getField() == UserQuery.Field.ID
+				     &&  pQuery.getStartAt() == null))) {
+			// The users are ordered by id, which is the iteration order of the
+			// snapshot, so the page is located without visiting the skipped users.
+			final int size = ud.usersById.size();
+			final boolean ascending = sortKeys.isEmpty()  ||  sortKeys.get(0).isAscending();
+			final int offset = Math.min(pQuery.getOffset(), size);
+			final int length = (int) Math.min(pQuery.getLimit(), (long) size - offset);
+			final List<User> list = new ArrayList<>(length);
+			final Iterator<User> iter = ud.usersById.iterator(ascending ? offset : size - offset - length);
+			while (list.size() < length  &&  iter.hasNext()) {
+				list.add(iter.next());
+			}
+			if (!ascending) {
+				Collections.reverse(list);
+			}
+			return list;
+		}
+		final long[] ids = searchIndex == null ? null : searchIndex.findUsers(pQuery);
+		// Prefer a range scan on a sorted index, unless the search index
+		// is selective.
+		if (sortedIndexes != null  &&  (ids == null  ||  ids.length > ud.usersById.size() / 8)) {
+			final List<User> list = sortedIndexes.queryUsers(pQuery);
+			if (list != null) {
+				return list;
+			}
+		}
+		final UserQuery.Selector<User> selector = pQuery.newSelector();
+		if (ids == null) {
+			ud.usersById.values().forEach(selector::accept);
+		} else {
+			forEach(ud.usersById, ids, selector::accept);
+		}
+		return selector.getResult();
+	}
+
+	@Override
+	public int countUsers(UserQuery pQuery) {
+		final UserData ud = userData;
+		if (!pQuery.isFiltered()) {
+			return ud.usersById.size();
+		}
+		final long[] ids = searchIndex == null ? null : searchIndex.findUsers(pQuery);
+		if (ids == null) {
+			return super.countUsers(pQuery);
+		}
+		return count(ud.usersById, ids, pQuery.asPredicate());
+	}
+
+	@Override
+	public List<Job> queryJobs(JobQuery pQuery) {
+		final long[] ids = searchIndex == null ? null : searchIndex.findJobs(pQuery);
+		if (ids == null) {
+			if (sortedIndexes != null) {
+				final List<Job> list = sortedIndexes.queryJobs(pQuery);
+				if (list != null) {
+					return list;
+				}
+			}
+			return super.queryJobs(pQuery);
+		}
+		final JobQuery.Selector<Job> selector = pQuery.newSelector();
+		forEach(userData.jobsById, ids, selector::accept);
+		return selector.getResult();
+	}
+
+	@Override
+	public int countJobs(JobQuery pQuery) {
+		if (!pQuery.isFiltered()) {
+			if (pQuery.getUserId() == null) {
+				return userData.jobsById.size();
+			} else {
+				return countJobsOfUser(pQuery.getUserId());
+			}
+		}
+		final long[] ids = searchIndex == null ? null : searchIndex.findJobs(pQuery);
+		if (ids == null) {
+			return super.countJobs(pQuery);
+		}
+		return count(userData.jobsById, ids, pQuery.asPredicate());
+	}
+
+	/** Invokes the given consumer for the objects with the given ids,
+	 * which are (still) present in the given map.
+	 */
+	private static <O> void forEach(LongObjectMap<O> pMap, long[] pIds, Consumer<O> pConsumer) {
+		for (long id : pIds) {
+			final O o = pMap.get(id);
+			if (o != null) {
+				pConsumer.accept(o);
+			}
+		}
+	}
+
+	private static <O> int count(LongObjectMap<O> pMap, long[] pIds, Predicate<O> pPredicate) {
+		int count = 0;
+		for (long id : pIds) {
+			final O o = pMap.get(id);
+			if (o != null  &&  pPredicate.test(o)) {
+				++count;
+			}
+		}
+		return count;
 	}
 }
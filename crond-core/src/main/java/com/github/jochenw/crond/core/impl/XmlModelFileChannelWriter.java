@@ -0,0 +1,250 @@
+package com.github.jochenw.crond.core.impl;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+
+import com.github.jochenw.crond.core.api.IModel.Job;
+import com.github.jochenw.crond.core.api.IModel.User;
+
+/** A fast replacement for the {@link XmlModelFileWriter}, which encodes
+ * the model file by hand into a reusable direct buffer, and writes that
+ * buffer to a {@link FileChannel}. The output is byte for byte the same
+ * as the output of the {@link XmlModelFileWriter} (without pretty printing),
+ * including the escaping rules of the JDK's serializer: Control characters,
+ * and supplementary characters are written as decimal character references,
+ * the characters {@code "&<>} as entity references, and everything else as
+ * UTF-8.
+ *
+ * Instances are reusable, but not thread safe.
+ */
+public class XmlModelFileChannelWriter {
+	private static final byte[] START = ascii("<?xml version=\"1.0\" encoding=\"UTF-8\"?><model xmlns=\""
+			+ XmlModelFileWriter.NS + "\">");
+	private static final byte[] END = ascii("</model>");
+	private static final byte[] NO_USERS = ascii("<users/>");
+	private static final byte[] START_USERS = ascii("<users>");
+	private static final byte[] END_USERS = ascii("</users>");
+	private static final byte[] NO_JOBS = ascii("<jobs/>");
+	private static final byte[] START_JOBS = ascii("<jobs>");
+	private static final byte[] END_JOBS = ascii("</jobs>");
+	private static final byte[] USER_ID = ascii("<user id=\"");
+	private static final byte[] USER_EMAIL = ascii("\" email=\"");
+	private static final byte[] USER_NAME = ascii("\" name=\"");
+	private static final byte[] JOB_ID = ascii("<job id=\"");
+	private static final byte[] JOB_USER_ID = ascii("\" userId=\"");
+	private static final byte[] JOB_NAME = ascii("\" name=\"");
+	private static final byte[] JOB_SCHEDULE = ascii("\" schedule=\"");
+	private static final byte[] END_EMPTY_ELEMENT = ascii("\"/>");
+	private static final byte[] QUOT = ascii("&quot;");
+	private static final byte[] AMP = ascii("&amp;");
+	private static final byte[] LT = ascii("&lt;");
+	private static final byte[] GT = ascii("&gt;");
+
+	private final ByteBuffer buffer;
+	private WritableByteChannel channel;
+
+	/** Creates a new instance with a buffer of 64 KB.
+	 */
+	public XmlModelFileChannelWriter() {
+		this(65536);
+	}
+
+	/** Creates a new instance with the given buffer size.
+	 * @param pBufferSize The buffer size, in bytes.
+	 */
+	public XmlModelFileChannelWriter(int pBufferSize) {
+		if (pBufferSize < 64) {
+			throw new IllegalArgumentException("Invalid buffer size: " + pBufferSize);
+		}
+		buffer = ByteBuffer.allocateDirect(pBufferSize);
+	}
+
+	private static byte[] ascii(String pValue) {
+		return pValue.getBytes(StandardCharsets.US_ASCII);
+	}
+
+	/** Writes the given users, and jobs to the given model file. The data
+	 * is written to a temporary file first, which is forced to the storage
+	 * device, and moved to the model files location atomically afterwards.
+	 * (Otherwise, a crash after the move might leave an incomplete model
+	 * file behind.)
+	 * @param pModelFile The model file, which is being written.
+	 * @param pUsers The users, which are being written.
+	 * @param pJobs The jobs, which are being written.
+	 */
+	public void write(Path pModelFile, Collection<User> pUsers, Collection<Job> pJobs) {
+		final Path tempFile = pModelFile.resolveSibling(pModelFile.getFileName().toString() + ".tmp");
+		try {
+			try (FileChannel fc = FileChannel.open(tempFile, StandardOpenOption.CREATE,
+					                               StandardOpenOption.TRUNCATE_EXISTING,
+					                               StandardOpenOption.WRITE)) {
+				write(pUsers, pJobs, fc);
+				fc.force(true);
+			}
+			Files.move(tempFile, pModelFile, StandardCopyOption.REPLACE_EXISTING,
+					   StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException ioe) {
+			throw new UncheckedIOException(ioe);
+		}
+	}
+
+	/** Writes the given users, and jobs to the given channel.
+	 * @param pUsers The users, which are being written.
+	 * @param pJobs The jobs, which are being written.
+	 * @param pChannel The channel, which is being written to.
+	 * @throws IOException Writing to the channel failed.
+	 */
+	public void write(Collection<User> pUsers, Collection<Job> pJobs, WritableByteChannel pChannel)
+			throws IOException {
+		channel = pChannel;
+		buffer.clear();
+		try {
+			put(START);
+			if (pUsers == null  ||  pUsers.isEmpty()) {
+				put(NO_USERS);
+			} else {
+				put(START_USERS);
+				for (User u : pUsers) {
+					put(USER_ID);
+					putLong(u.getId().longValue());
+					put(USER_EMAIL);
+					putEscaped(u.getEmail());
+					final String name = u.getName();
+					if (name != null) {
+						put(USER_NAME);
+						putEscaped(name);
+					}
+					put(END_EMPTY_ELEMENT);
+				}
+				put(END_USERS);
+			}
+			if (pJobs == null  ||  pJobs.isEmpty()) {
+				put(NO_JOBS);
+			} else {
+				put(START_JOBS);
+				for (Job j : pJobs) {
+					put(JOB_ID);
+					putLong(j.getId().longValue());
+					put(JOB_USER_ID);
+					putLong(j.getUserId().longValue());
+					put(JOB_NAME);
+					putEscaped(j.getName());
+					final String schedule = j.getSchedule();
+					if (schedule != null) {
+						put(JOB_SCHEDULE);
+						putEscaped(schedule);
+					}
+					put(END_EMPTY_ELEMENT);
+				}
+				put(END_JOBS);
+			}
+			put(END);
+			drain();
+		} finally {
+			channel = null;
+		}
+	}
+
+	private void drain() throws IOException {
+		buffer.flip();
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+		buffer.clear();
+	}
+
+	private void ensureCapacity(int pBytes) throws IOException {
+		if (buffer.remaining() < pBytes) {
+			drain();
+		}
+	}
+
+	private void put(byte[] pBytes) throws IOException {
+		if (pBytes.length <= buffer.capacity()) {
+			ensureCapacity(pBytes.length);
+			buffer.put(pBytes);
+		} else {
+			drain();
+			final ByteBuffer bb = ByteBuffer.wrap(pBytes);
+			while (bb.hasRemaining()) {
+				channel.write(bb);
+			}
+		}
+	}
+
+	private void putLong(long pValue) throws IOException {
+		ensureCapacity(20);
+		if (pValue < 0) {
+			if (pValue == Long.MIN_VALUE) {
+				put(ascii(Long.toString(pValue)));
+				return;
+			}
+			buffer.put((byte) '-');
+			putDigits(-pValue);
+		} else {
+			putDigits(pValue);
+		}
+	}
+
+	private void putDigits(long pValue) {
+		if (pValue >= 10) {
+			putDigits(pValue / 10);
+		}
+		buffer.put((byte) ('0' + (int) (pValue % 10)));
+	}
+
+	private void putEscaped(String pValue) throws IOException {
+		final int len = pValue.length();
+		for (int i = 0;  i < len;  i++) {
+			final char c = pValue.charAt(i);
+			// Reserve space for the longest possible output: A character
+			// reference of a supplementary character.
+			ensureCapacity(10);
+			if (c < 0x80) {
+				if (c < 0x20) {
+					putCharRef(c);
+				} else {
+					switch (c) {
+					  case '"': buffer.put(QUOT); break;
+					  case '&': buffer.put(AMP); break;
+					  case '<': buffer.put(LT); break;
+					  case '>': buffer.put(GT); break;
+					  default: buffer.put((byte) c); break;
+					}
+				}
+			} else if (c < 0x800) {
+				buffer.put((byte) (0xC0 | (c >> 6)));
+				buffer.put((byte) (0x80 | (c & 0x3F)));
+			} else if (Character.isHighSurrogate(c)) {
+				if (i+1 < len  &&  Character.isLowSurrogate(pValue.charAt(i+1))) {
+					putCharRef(Character.toCodePoint(c, pValue.charAt(++i)));
+				} else {
+					throw new IOException("Invalid UTF-16 surrogate detected: "
+							+ Integer.toHexString(c));
+				}
+			} else if (Character.isLowSurrogate(c)) {
+				putCharRef(c);
+			} else {
+				buffer.put((byte) (0xE0 | (c >> 12)));
+				buffer.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+				buffer.put((byte) (0x80 | (c & 0x3F)));
+			}
+		}
+	}
+
+	private void putCharRef(int pCodePoint) {
+		buffer.put((byte) '&');
+		buffer.put((byte) '#');
+		putDigits(pCodePoint);
+		buffer.put((byte) ';');
+	}
+}
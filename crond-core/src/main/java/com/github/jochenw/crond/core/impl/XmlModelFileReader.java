@@ -22,13 +22,31 @@ import com.github.jochenw.crond.core.api.IModel.User;
 import com.github.jochenw.crond.core.beans.JobImpl;
 import com.github.jochenw.crond.core.beans.UserImpl;
 
-public class XmlModelFileReader extends AbstractContentHandler {
+public class XmlModelFileReader extends AbstractContentHandler implements ModelFileContents {
 	private final Map<Long,User> users = new HashMap<>();
 	private final Map<Long,Job> jobs = new HashMap<>();
 	private final Set<String> emailAddresses = new HashSet<>();
 	private final Set<String> userIdsAndEmails = new HashSet<>();
+	private final ModelFileSink sink;
 	private boolean inUsers, inJobs;
 
+	/** Creates a new instance, which collects the users, and jobs
+	 * in maps.
+	 */
+	public XmlModelFileReader() {
+		this(null);
+	}
+
+	/** Creates a new instance, which passes the users, and jobs to
+	 * the given sink, rather than collecting them in maps.
+	 * @param pSink The sink, which receives the users, and jobs,
+	 *   or null, to collect them in maps. The sink is responsible
+	 *   for detecting duplicates.
+	 */
+	public XmlModelFileReader(ModelFileSink pSink) {
+		sink = pSink;
+	}
+
 	@Override
 	public void startDocument() throws SAXException {
 		users.clear();
@@ -70,12 +88,16 @@ public class XmlModelFileReader extends AbstractContentHandler {
 					final String email = requireAttribute(pAttrs, "email");
 					final String name = requireAttribute(pAttrs, "name");
 					final User user = UserImpl.of(userId, email, name);
-					final User duplicatedUser = users.put(userId, user);
-					if (duplicatedUser != null) {
-						throw error("Duplicate user id: " + userId);
-					}
-					if (!emailAddresses.add(email)) {
-						throw error("Duplicate email address: " + email);
+					if (sink == null) {
+						final User duplicatedUser = users.put(userId, user);
+						if (duplicatedUser != null) {
+							throw error("Duplicate user id: " + userId);
+						}
+						if (!emailAddresses.add(email)) {
+							throw error("Duplicate email address: " + email);
+						}
+					} else {
+						sink.addUser(user);
 					}
 				} else {
 					throw error("Expected model/users/user element at level 3, got " + asQName(pUri, pLocalName));
@@ -85,14 +107,20 @@ public class XmlModelFileReader extends AbstractContentHandler {
 					final Long jobId = requireLongAttribute(pAttrs, "id");
 					final Long userId = requireLongAttribute(pAttrs, "userId");
 					final String name = requireAttribute(pAttrs, "name");
-					final Job job = JobImpl.of(jobId, userId, name);
-					final Job duplicatedJob = jobs.put(jobId, job);
-					if (duplicatedJob != null) {
-						throw error("Duplicate job id: " + jobId);
-					}
-					final String userIdAndName = userId + ":" + name;
-					if (!userIdsAndEmails.add(userIdAndName)) {
-						throw error("Duplicate combination of user id, and name: " + userId + ", " + name);
+					final String scheduleStr = pAttrs.getValue(XMLConstants.NULL_NS_URI, "schedule");
+					final String schedule = scheduleStr == null  ||  scheduleStr.length() == 0 ? null : scheduleStr;
+					final Job job = JobImpl.of(jobId, userId, name, schedule);
+					if (sink == null) {
+						final Job duplicatedJob = jobs.put(jobId, job);
+						if (duplicatedJob != null) {
+							throw error("Duplicate job id: " + jobId);
+						}
+						final String userIdAndName = userId + ":" + name;
+						if (!userIdsAndEmails.add(userIdAndName)) {
+							throw error("Duplicate combination of user id, and name: " + userId + ", " + name);
+						}
+					} else {
+						sink.addJob(job);
 					}
 				} else {
 					throw error("Expected model/jobs/job element at level 3, got " + asQName(pUri, pLocalName));
@@ -158,20 +186,33 @@ public class XmlModelFileReader extends AbstractContentHandler {
 		}
 	}
 
+	@Override
 	public Map<Long,User> getUsers() {
 		return users;
 	}
 
+	@Override
 	public Map<Long,Job> getJobs() {
 		return jobs;
 	}
 	
 	public static XmlModelFileReader read(InputSource pSource) {
+		return read(pSource, null);
+	}
+
+	/** Reads the given model file, passing the users, and jobs to the
+	 * given sink.
+	 * @param pSource The model file, which is being read.
+	 * @param pSink The sink, which receives the users, and jobs, or null,
+	 *   to collect them in maps.
+	 * @return The reader, which has been used to read the model file.
+	 */
+	public static XmlModelFileReader read(InputSource pSource, ModelFileSink pSink) {
 		try {
 			SAXParserFactory spf = SAXParserFactory.newInstance();
 			spf.setNamespaceAware(true);
 			spf.setValidating(false);
-			final XmlModelFileReader xmfr = new XmlModelFileReader();
+			final XmlModelFileReader xmfr = new XmlModelFileReader(pSink);
 			final XMLReader xr = spf.newSAXParser().getXMLReader();
 			xr.setContentHandler(xmfr);
 			xr.parse(pSource);
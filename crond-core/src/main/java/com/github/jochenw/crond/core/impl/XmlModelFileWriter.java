@@ -18,7 +18,6 @@ import javax.xml.transform.sax.SAXTransformerFactory;
 import javax.xml.transform.sax.TransformerHandler;
 import javax.xml.transform.stream.StreamResult;
 
-import org.apache.logging.log4j.core.jackson.XmlConstants;
 import org.xml.sax.Attributes;
 import org.xml.sax.SAXException;
 import org.xml.sax.helpers.AttributesImpl;
@@ -30,7 +29,19 @@ import com.github.jochenw.crond.core.api.IModel.User;
 public class XmlModelFileWriter {
 	public static String NS = "http://namespaces.github.com/jochenw/crond/xmlModelFile/1.0.0";
 
+	/** Writes the given users, and jobs to the given model file. Without
+	 * pretty printing, the {@link XmlModelFileChannelWriter} is used, which
+	 * creates the same output, but is considerably faster.
+	 * @param pModelFile The model file, which is being written.
+	 * @param pUsers The users, which are being written.
+	 * @param pJobs The jobs, which are being written.
+	 * @param pPrettyPrint True, if the output should be indented.
+	 */
 	public void write(Path pModelFile, Collection<User> pUsers, Collection<Job> pJobs, boolean pPrettyPrint) {
+		if (!pPrettyPrint) {
+			new XmlModelFileChannelWriter().write(pModelFile, pUsers, pJobs);
+			return;
+		}
 		try (OutputStream os = Files.newOutputStream(pModelFile);
 			 BufferedOutputStream bos = new BufferedOutputStream(os)) {
 			write(pUsers, pJobs, pPrettyPrint, bos, pModelFile.toString());
@@ -76,6 +87,10 @@ public class XmlModelFileWriter {
 				attrs.addAttribute(XMLConstants.NULL_NS_URI, "id", "id", "CDATA", j.getId().toString());
 				attrs.addAttribute(XMLConstants.NULL_NS_URI, "userId", "userId", "CDATA", j.getUserId().toString());
 				attrs.addAttribute(XMLConstants.NULL_NS_URI, "name", "name", "CDATA", j.getName());
+				final String schedule = j.getSchedule();
+				if (schedule != null) {
+					attrs.addAttribute(XMLConstants.NULL_NS_URI, "schedule", "schedule", "CDATA", schedule);
+				}
 				th.startElement(NS, "job", "job", attrs);
 				th.endElement(NS, "job", "job");
 			}
@@ -0,0 +1,493 @@
+package com.github.jochenw.crond.core.sched;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Clock;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.regex.Pattern;
+
+import com.github.jochenw.afw.core.log.ILog;
+import com.github.jochenw.afw.core.util.Objects;
+import com.github.jochenw.crond.core.api.IModel.Job;
+
+/** A member of a cluster of crond nodes, which share the same model. The
+ * job id space is split into a fixed number of partitions, and every
+ * partition is owned by at most one node, which fires the partitions jobs.
+ *
+ * Membership is based on lease files in a shared directory: Every node
+ * periodically rewrites its lease file ("&lt;nodeId&gt;.lease"), which holds
+ * the time of its last heartbeat, and the partitions, that it has
+ * claimed. A node, whose heartbeat is older than the lease timeout, is
+ * considered dead. The partitions are assigned to the live nodes by
+ * consistent hashing (with virtual nodes), so a joining, or dying node
+ * moves only its own share of the partitions.
+ *
+ * Upon every heartbeat, a node releases the partitions, which are assigned
+ * to other nodes now, before it publishes its lease, and it claims an
+ * assigned partition only, if no other live node claims it anymore. A
+ * node claims nothing with its first heartbeat: It publishes a lease
+ * without claims, and claims partitions only after it has read back its
+ * own lease, so that nodes, which start at the same time, know each other
+ * before claiming. So, a partition moves within two heartbeats, and isn't
+ * owned by two nodes at the same time, provided that the nodes clocks
+ * are synchronized well within the lease timeout, and that reading, and
+ * writing the leases takes less than the heartbeat interval. A node, whose
+ * own lease has expired (for example, because the process has been
+ * suspended), doesn't own any partitions, until its next heartbeat.
+ *
+ * Nodes may run in separate processes, or in the same process, as long
+ * as their node ids are different.
+ */
+public class ClusterNode {
+	/** Receives a notification, if the set of owned partitions has changed,
+	 * or if the node owns its partitions again after its lease had expired.
+	 */
+	public interface OwnershipListener {
+		/** Called, if partitions have been claimed, or released, or if the
+		 * nodes expired lease has been renewed. Invoked by the heartbeat thread.
+		 */
+		public void ownershipChanged();
+	}
+
+	private static final Pattern NODE_ID = Pattern.compile("[A-Za-z0-9._-]+");
+	private static final String LEASE_SUFFIX = ".lease";
+
+	/** A lease, as read from a lease file.
+	 */
+	private static class Lease {
+		private final String nodeId;
+		private final long heartbeatMillis;
+		private final BitSet partitions;
+
+		Lease(String pNodeId, long pHeartbeatMillis, BitSet pPartitions) {
+			nodeId = pNodeId;
+			heartbeatMillis = pHeartbeatMillis;
+			partitions = pPartitions;
+		}
+	}
+
+	private final Path dir;
+	private final String nodeId;
+	private final int partitions;
+	private final int virtualNodes;
+	private final long heartbeatMillis;
+	private final long leaseTimeoutMillis;
+	private final Clock clock;
+	private final ILog log;
+	private final List<OwnershipListener> listeners = new CopyOnWriteArrayList<>();
+	private final Object lock = new Object();
+	private volatile BitSet owned = new BitSet();
+	private volatile long lastHeartbeatMillis = Long.MIN_VALUE;
+	private volatile List<String> liveNodes = Collections.emptyList();
+	private long[] ringPoints = new long[0];
+	private String[] ringNodes = new String[0];
+	private volatile Thread thread;
+	private volatile boolean running;
+	private volatile long rebalances;
+
+	/** Creates a new instance.
+	 * @param pDir The shared directory, which contains the lease files.
+	 * @param pNodeId The nodes id, which must be unique within the cluster,
+	 *   and consist of letters, digits, '.', '_', and '-'.
+	 * @param pPartitions The number of partitions, which must be the same
+	 *   on all nodes.
+	 * @param pVirtualNodes The number of points per node on the hash ring.
+	 * @param pHeartbeatMillis The interval between two heartbeats, in milliseconds.
+	 * @param pLeaseTimeoutMillis The time after the last heartbeat, when a
+	 *   node is considered dead, in milliseconds. Must be larger than the
+	 *   heartbeat interval.
+	 * @param pClock The clock, which provides the heartbeat times.
+	 * @param pLog The logger, which is being used to report rebalancing, and
+	 *   errors, or null.
+	 */
+	public ClusterNode(Path pDir, String pNodeId, int pPartitions, int pVirtualNodes, long pHeartbeatMillis,
+			long pLeaseTimeoutMillis, Clock pClock, ILog pLog) {
+		dir = Objects.requireNonNull(pDir, "Directory");
+		nodeId = Objects.requireNonNull(pNodeId, "Node id");
+		if (!NODE_ID.matcher(pNodeId).matches()) {
+			throw new IllegalArgumentException("Invalid node id: " + pNodeId);
+		}
+		if (pPartitions <= 0) {
+			throw new IllegalArgumentException("Invalid number of partitions: " + pPartitions);
+		}
+		if (pVirtualNodes <= 0) {
+			throw new IllegalArgumentException("Invalid number of virtual nodes: " + pVirtualNodes);
+		}
+		if (pHeartbeatMillis <= 0  ||  pLeaseTimeoutMillis <= pHeartbeatMillis) {
+			throw new IllegalArgumentException("Invalid heartbeat interval, or lease timeout: "
+					+ pHeartbeatMillis + ", " + pLeaseTimeoutMillis);
+		}
+		partitions = pPartitions;
+		virtualNodes = pVirtualNodes;
+		heartbeatMillis = pHeartbeatMillis;
+		leaseTimeoutMillis = pLeaseTimeoutMillis;
+		clock = Objects.requireNonNull(pClock, "Clock");
+		log = pLog;
+	}
+
+	/** Creates a new instance, which is configured by the given properties:
+	 * "crond.cluster.partitions" (default 256), "crond.cluster.virtualNodes"
+	 * (default 64), "crond.cluster.heartbeat" (milliseconds, default 2000),
+	 * and "crond.cluster.leaseTimeout" (milliseconds, default 10000).
+	 * @param pDir The shared directory, which contains the lease files.
+	 * @param pNodeId The nodes id.
+	 * @param pProperties The configuration properties.
+	 * @param pClock The clock, which provides the heartbeat times.
+	 * @param pLog The logger, or null.
+	 * @return The created instance.
+	 */
+	public static ClusterNode of(Path pDir, String pNodeId, Properties pProperties, Clock pClock, ILog pLog) {
+		final int partitions = Integer.parseInt(pProperties.getProperty("crond.cluster.partitions", "256"));
+		final int virtualNodes = Integer.parseInt(pProperties.getProperty("crond.cluster.virtualNodes", "64"));
+		final long heartbeat = Long.parseLong(pProperties.getProperty("crond.cluster.heartbeat", "2000"));
+		final long leaseTimeout = Long.parseLong(pProperties.getProperty("crond.cluster.leaseTimeout", "10000"));
+		return new ClusterNode(pDir, pNodeId, partitions, virtualNodes, heartbeat, leaseTimeout, pClock, pLog);
+	}
+
+	/** Adds a listener, which is notified, if the owned partitions change.
+	 * @param pListener The listener, which is being added.
+	 */
+	public void addListener(OwnershipListener pListener) {
+		listeners.add(Objects.requireNonNull(pListener, "Listener"));
+	}
+
+	/** Removes a listener.
+	 * @param pListener The listener, which is being removed.
+	 */
+	public void removeListener(OwnershipListener pListener) {
+		listeners.remove(pListener);
+	}
+
+	/** Performs the first heartbeat, which publishes the nodes membership,
+	 * and starts the heartbeat thread. Partitions are claimed with the
+	 * following heartbeats.
+	 */
+	public void start() {
+		if (running) {
+			throw new IllegalStateException("The cluster node is already running.");
+		}
+		running = true;
+		heartbeat();
+		final Thread t = new Thread(this::run, "crond-cluster-" + nodeId);
+		t.setDaemon(true);
+		thread = t;
+		t.start();
+	}
+
+	/** Stops the heartbeat thread, releases all partitions, and removes
+	 * the lease file, so that the other nodes can claim the partitions
+	 * immediately.
+	 * @throws InterruptedException The current thread has been interrupted,
+	 *   while waiting for the heartbeat thread to terminate.
+	 */
+	public void shutdown() throws InterruptedException {
+		running = false;
+		final Thread t = thread;
+		if (t != null) {
+			LockSupport.unpark(t);
+			t.join();
+			thread = null;
+		}
+		synchronized (lock) {
+			final boolean changed = !owned.isEmpty();
+			owned = new BitSet();
+			if (changed) {
+				notifyListeners();
+			}
+			try {
+				Files.deleteIfExists(leaseFile(nodeId));
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+	}
+
+	private void run() {
+		while (running) {
+			LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(heartbeatMillis));
+			if (!running) {
+				break;
+			}
+			try {
+				heartbeat();
+			} catch (RuntimeException e) {
+				if (log != null) {
+					log.error("run", "Heartbeat failed", e);
+				}
+			}
+		}
+	}
+
+	/** Reads the leases of all nodes, rebalances the partitions, and
+	 * renews this nodes lease. Invoked by the heartbeat thread.
+	 */
+	void heartbeat() {
+		synchronized (lock) {
+			final long now = clock.millis();
+			final List<Lease> leases = readLeases();
+			final List<String> nodes = new ArrayList<>();
+			final BitSet claimedByOthers = new BitSet();
+			boolean published = false;
+			nodes.add(nodeId);
+			for (Lease lease : leases) {
+				if (lease.nodeId.equals(nodeId)) {
+					published = lastHeartbeatMillis != Long.MIN_VALUE  &&  lease.heartbeatMillis == lastHeartbeatMillis;
+				} else if (now - lease.heartbeatMillis <= leaseTimeoutMillis) {
+					nodes.add(lease.nodeId);
+					claimedByOthers.or(lease.partitions);
+				}
+			}
+			Collections.sort(nodes);
+			if (!nodes.equals(liveNodes)) {
+				buildRing(nodes);
+				liveNodes = Collections.unmodifiableList(nodes);
+				++rebalances;
+				if (log != null) {
+					log.info("heartbeat", "Live nodes: " + nodes);
+				}
+			}
+			final boolean expired = isExpired(now);
+			final BitSet oldOwned = expired ? new BitSet() : owned;
+			final BitSet newOwned = new BitSet(partitions);
+			for (int p = 0;  p < partitions;  p++) {
+				// Unclaimed partitions are claimed only, if this nodes membership has been
+				// published: Otherwise, other nodes, which don't know this node, may claim
+				// the same partitions.
+				if (nodeId.equals(ownerOf(p))  &&  (oldOwned.get(p)  ||  (published  &&  !claimedByOthers.get(p)))) {
+					newOwned.set(p);
+				}
+			}
+			final BitSet released = (BitSet) owned.clone();
+			released.andNot(newOwned);
+			if (!released.isEmpty()) {
+				// Stop firing the released partitions, before the other nodes can claim them.
+				final BitSet retained = (BitSet) owned.clone();
+				retained.and(newOwned);
+				owned = retained;
+				notifyListeners();
+			}
+			writeLease(now, newOwned);
+			lastHeartbeatMillis = now;
+			if (!newOwned.equals(owned)) {
+				owned = newOwned;
+				notifyListeners();
+			} else if (expired  &&  !newOwned.isEmpty()) {
+				// While the lease was expired, the jobs have been rejected, although the
+				// owned partitions haven't changed.
+				notifyListeners();
+			}
+		}
+	}
+
+	private boolean isExpired(long pNow) {
+		return lastHeartbeatMillis == Long.MIN_VALUE  ||  pNow - lastHeartbeatMillis > leaseTimeoutMillis;
+	}
+
+	private void notifyListeners() {
+		for (OwnershipListener listener : listeners) {
+			listener.ownershipChanged();
+		}
+	}
+
+	private Path leaseFile(String pNodeId) {
+		return dir.resolve(pNodeId + LEASE_SUFFIX);
+	}
+
+	private List<Lease> readLeases() {
+		final List<Lease> leases = new ArrayList<>();
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, "*" + LEASE_SUFFIX)) {
+			for (Path file : stream) {
+				final Lease lease = readLease(file);
+				if (lease != null) {
+					leases.add(lease);
+				}
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		return leases;
+	}
+
+	private Lease readLease(Path pFile) {
+		final Properties props = new Properties();
+		try (InputStream in = Files.newInputStream(pFile)) {
+			props.load(in);
+		} catch (NoSuchFileException e) {
+			// The node has been shut down meanwhile.
+			return null;
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		final String id = props.getProperty("node");
+		final String heartbeat = props.getProperty("heartbeat");
+		final String claims = props.getProperty("partitions");
+		final String count = props.getProperty("partitionCount");
+		if (id == null  ||  heartbeat == null  ||  claims == null  ||  count == null) {
+			return null;
+		}
+		try {
+			if (Integer.parseInt(count) != partitions) {
+				throw new IllegalStateException("Node " + id + " uses " + count
+						+ " partitions, expected " + partitions);
+			}
+			final long[] words = new long[(claims.length() + 15) / 16];
+			for (int i = 0;  i < words.length;  i++) {
+				words[i] = Long.parseUnsignedLong(claims.substring(16*i, Math.min(claims.length(), 16*(i+1))), 16);
+			}
+			return new Lease(id, Long.parseLong(heartbeat), BitSet.valueOf(words));
+		} catch (NumberFormatException e) {
+			return null;
+		}
+	}
+
+	private void writeLease(long pNow, BitSet pClaims) {
+		final StringBuilder sb = new StringBuilder();
+		for (long word : pClaims.toLongArray()) {
+			final String hex = Long.toHexString(word);
+			for (int i = hex.length();  i < 16;  i++) {
+				sb.append('0');
+			}
+			sb.append(hex);
+		}
+		final Properties props = new Properties();
+		props.setProperty("node", nodeId);
+		props.setProperty("heartbeat", String.valueOf(pNow));
+		props.setProperty("partitionCount", String.valueOf(partitions));
+		props.setProperty("partitions", sb.toString());
+		final Path file = leaseFile(nodeId);
+		// Not ending with ".lease", so that a partially written file is never read.
+		final Path tmpFile = dir.resolve(nodeId + ".tmp");
+		try {
+			try (OutputStream out = Files.newOutputStream(tmpFile)) {
+				props.store(out, null);
+			}
+			Files.move(tmpFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	private void buildRing(List<String> pNodes) {
+		final int n = pNodes.size() * virtualNodes;
+		final long[] points = new long[n];
+		final String[] owners = new String[n];
+		final long[] keys = new long[n];
+		for (int i = 0;  i < pNodes.size();  i++) {
+			for (int j = 0;  j < virtualNodes;  j++) {
+				keys[i*virtualNodes + j] = mix(hash(pNodes.get(i) + '#' + j));
+			}
+		}
+		final Integer[] order = new Integer[n];
+		for (int i = 0;  i < n;  i++) {
+			order[i] = Integer.valueOf(i);
+		}
+		Arrays.sort(order, (i1, i2) -> Long.compare(keys[i1.intValue()], keys[i2.intValue()]));
+		for (int i = 0;  i < n;  i++) {
+			points[i] = keys[order[i].intValue()];
+			owners[i] = pNodes.get(order[i].intValue() / virtualNodes);
+		}
+		ringPoints = points;
+		ringNodes = owners;
+	}
+
+	/** Returns the node, to which the given partition is assigned by
+	 * the hash ring.
+	 */
+	private String ownerOf(int pPartition) {
+		final long key = mix(0x9e3779b97f4a7c15L * (pPartition + 1));
+		int i = Arrays.binarySearch(ringPoints, key);
+		if (i < 0) {
+			i = -(i + 1);
+		}
+		return ringNodes[i == ringPoints.length ? 0 : i];
+	}
+
+	private static long hash(String pValue) {
+		long hash = 0xcbf29ce484222325L;
+		for (byte b : pValue.getBytes(StandardCharsets.UTF_8)) {
+			hash = (hash ^ (b & 0xff)) * 0x100000001b3L;
+		}
+		return hash;
+	}
+
+	/** The finalizer of the SplitMix64 generator: Spreads the bits of the
+	 * given value over the whole range.
+	 */
+	private static long mix(long pValue) {
+		long z = pValue;
+		z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+		z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+		return z ^ (z >>> 31);
+	}
+
+	/** Returns the partition of the given job id.
+	 * @param pJobId The job id.
+	 * @return The partition number, from 0 to the number of partitions - 1.
+	 */
+	public int partitionOf(long pJobId) {
+		return (int) Long.remainderUnsigned(mix(pJobId), partitions);
+	}
+
+	/** Returns, whether this node owns the given job, and is supposed to
+	 * fire it.
+	 * @param pJob The job.
+	 * @return True, if this node owns the jobs partition, and its lease
+	 *   hasn't expired.
+	 */
+	public boolean owns(Job pJob) {
+		return owns(pJob.getId().longValue());
+	}
+
+	/** Returns, whether this node owns the job with the given id.
+	 * @param pJobId The job id.
+	 * @return True, if this node owns the jobs partition, and its lease
+	 *   hasn't expired.
+	 */
+	public boolean owns(long pJobId) {
+		return !isExpired(clock.millis())  &&  owned.get(partitionOf(pJobId));
+	}
+
+	/** Returns the partitions, which are owned by this node.
+	 * @return A copy of the set of owned partitions.
+	 */
+	public BitSet getOwnedPartitions() {
+		return (BitSet) owned.clone();
+	}
+
+	/** Returns the ids of the live nodes, as of the last heartbeat.
+	 * @return The sorted ids of the live nodes, including this node.
+	 */
+	public List<String> getLiveNodes() {
+		return liveNodes;
+	}
+
+	/** Returns the nodes id.
+	 * @return The nodes id.
+	 */
+	public String getNodeId() {
+		return nodeId;
+	}
+
+	/** Returns the number of times, the set of live nodes has changed.
+	 * @return The number of rebalances.
+	 */
+	public long getRebalances() {
+		return rebalances;
+	}
+}
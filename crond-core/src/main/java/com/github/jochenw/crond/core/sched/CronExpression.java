@@ -0,0 +1,578 @@
+package com.github.jochenw.crond.core.sched;
+
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.temporal.ChronoField;
+import java.time.zone.ZoneOffsetTransition;
+import java.time.zone.ZoneRules;
+import java.util.List;
+import java.util.Locale;
+
+import com.github.jochenw.afw.core.util.Objects;
+
+/** A compiled cron expression. The expression is compiled into one
+ * bitset per field, so that matching a field is a single bit test, and
+ * finding the next matching value of a field is a single
+ * {@link Long#numberOfTrailingZeros(long)}. The {@link #nextFireTime(ZonedDateTime)}
+ * jumps field by field (month, day, hour, minute, second), rather than
+ * iterating over every minute.
+ *
+ * The syntax is the classic five field syntax (minute, hour, day of month,
+ * month, day of week), optionally preceded by a seconds field. Every field
+ * is a comma separated list of values ("5"), ranges ("1-5"), wildcards
+ * ("*", or "?"), each optionally followed by a step ("*&#47;15", "1-30/2",
+ * or "5/10"). Months, and days of week may also be given as english
+ * three letter names ("JAN", "MON"). Days of week are 0 (Sunday) to 7
+ * (Sunday again). The macros "@yearly", "@annually", "@monthly",
+ * "@weekly", "@daily", "@midnight", and "@hourly" are supported as well.
+ * As with Vixie cron, if both the day of month, and the day of week are
+ * restricted (neither is "*", or "?"), then a day matches, if either
+ * field matches.
+ *
+ * Fire times are computed in the local time of the given time zone, with
+ * the following rules for daylight saving time transitions: A local time,
+ * which is skipped (because the clocks are set forward), fires once at
+ * the end of the gap. A local time, which occurs twice (because the
+ * clocks are set back), fires only once, at the earlier occurrence, unless
+ * the search starts within the later occurrence.
+ *
+ * Instances are immutable, and thread safe.
+ */
+public final class CronExpression {
+	private static final String[] MONTH_NAMES = {"JAN", "FEB", "MAR", "APR", "MAY", "JUN",
+			"JUL", "AUG", "SEP", "OCT", "NOV", "DEC"};
+	private static final String[] DAY_NAMES = {"SUN", "MON", "TUE", "WED", "THU", "FRI", "SAT"};
+	/** The maximum number of years, which are searched for the next fire time.
+	 * A satisfiable expression matches at least once in eight years (February 29).
+	 */
+	private static final int MAX_YEARS = 10;
+
+	private final String expression;
+	private final long seconds, minutes, hours, daysOfMonth, months, daysOfWeek;
+	private final boolean domRestricted, dowRestricted;
+
+	private CronExpression(String pExpression, long pSeconds, long pMinutes, long pHours, long pDaysOfMonth,
+			               long pMonths, long pDaysOfWeek, boolean pDomRestricted, boolean pDowRestricted) {
+		expression = pExpression;
+		seconds = pSeconds;
+		minutes = pMinutes;
+		hours = pHours;
+		daysOfMonth = pDaysOfMonth;
+		months = pMonths;
+		daysOfWeek = pDaysOfWeek;
+		domRestricted = pDomRestricted;
+		dowRestricted = pDowRestricted;
+	}
+
+	/** Compiles the given cron expression.
+	 * @param pExpression The cron expression.
+	 * @return The compiled expression.
+	 * @throws NullPointerException The expression is null.
+	 * @throws IllegalArgumentException The expression is invalid.
+	 */
+	public static CronExpression compile(String pExpression) {
+		final String expression = Objects.requireNonNull(pExpression, "Expression").trim();
+		final String[] fields = expandMacro(expression).split("\\s+");
+		final int offset;
+		if (fields.length == 5) {
+			offset = 0;
+		} else if (fields.length == 6) {
+			offset = 1;
+		} else {
+			throw error(expression, "Expected 5, or 6 fields, got " + fields.length);
+		}
+		final long seconds = offset == 0 ? 1L : parseField(expression, fields[0], 0, 59, null);
+		final long minutes = parseField(expression, fields[offset], 0, 59, null);
+		final long hours = parseField(expression, fields[offset+1], 0, 23, null);
+		final long daysOfMonth = parseField(expression, fields[offset+2], 1, 31, null);
+		final long months = parseField(expression, fields[offset+3], 1, 12, MONTH_NAMES);
+		long daysOfWeek = parseField(expression, fields[offset+4], 0, 7, DAY_NAMES);
+		if ((daysOfWeek & (1L << 7)) != 0) {
+			daysOfWeek = (daysOfWeek & 0x7F) | 1L;
+		}
+		return new CronExpression(expression, seconds, minutes, hours, daysOfMonth, months, daysOfWeek,
+				                  isRestricted(fields[offset+2]), isRestricted(fields[offset+4]));
+	}
+
+	private static String expandMacro(String pExpression) {
+		if (!pExpression.startsWith("@")) {
+			return pExpression;
+		}
+		switch (pExpression.toLowerCase(Locale.ROOT)) {
+		  case "@yearly":
+		  case "@annually": return "0 0 1 1 *";
+		  case "@monthly": return "0 0 1 * *";
+		  case "@weekly": return "0 0 * * 0";
+		  case "@daily":
+		  case "@midnight": return "0 0 * * *";
+		  case "@hourly": return "0 * * * *";
+		  default: throw error(pExpression, "Unknown macro");
+		}
+	}
+
+	private static boolean isRestricted(String pField) {
+		return !"*".equals(pField)  &&  !"?".equals(pField);
+	}
+
+	private static IllegalArgumentException error(String pExpression, String pMsg) {
+		return new IllegalArgumentException("Invalid cron expression '" + pExpression + "': " + pMsg);
+	}
+
+	private static long parseField(String pExpression, String pField, int pMin, int pMax, String[] pNames) {
+		long bits = 0;
+		for (String part : pField.split(",", -1)) {
+			final int slash = part.indexOf('/');
+			final String range = slash == -1 ? part : part.substring(0, slash);
+			final int step;
+			if (slash == -1) {
+				step = 1;
+			} else {
+				step = parseNumber(pExpression, part.substring(slash+1), 1, pMax);
+			}
+			final int from, to;
+			if ("*".equals(range)  ||  "?".equals(range)) {
+				from = pMin;
+				to = pMax;
+			} else {
+				final int dash = range.indexOf('-');
+				if (dash == -1) {
+					from = parseValue(pExpression, range, pMin, pMax, pNames);
+					// "5/10" is equivalent to "5-max/10"
+					to = slash == -1 ? from : pMax;
+				} else {
+					from = parseValue(pExpression, range.substring(0, dash), pMin, pMax, pNames);
+					to = parseValue(pExpression, range.substring(dash+1), pMin, pMax, pNames);
+					if (to < from) {
+						throw error(pExpression, "Invalid range: " + range);
+					}
+				}
+			}
+			for (int i = from;  i <= to;  i += step) {
+				bits |= 1L << i;
+			}
+		}
+		return bits;
+	}
+
+	private static int parseValue(String pExpression, String pValue, int pMin, int pMax, String[] pNames) {
+		if (pNames != null) {
+			for (int i = 0;  i < pNames.length;  i++) {
+				if (pNames[i].equalsIgnoreCase(pValue)) {
+					// Month names start at 1, day names at 0.
+					return i + pMin;
+				}
+			}
+		}
+		return parseNumber(pExpression, pValue, pMin, pMax);
+	}
+
+	private static int parseNumber(String pExpression, String pValue, int pMin, int pMax) {
+		final int value;
+		try {
+			value = Integer.parseInt(pValue);
+		} catch (NumberFormatException e) {
+			throw error(pExpression, "Invalid value: '" + pValue + "'");
+		}
+		if (value < pMin  ||  value > pMax) {
+			throw error(pExpression, "Value out of range [" + pMin + "," + pMax + "]: " + value);
+		}
+		return value;
+	}
+
+	/** Returns the smallest bit in the given bitset, which is at least
+	 * the given value.
+	 * @return The bit number, or -1, if there is no such bit.
+	 */
+	private static int next(long pBits, int pFrom) {
+		final long bits = pBits & (-1L << pFrom);
+		return bits == 0 ? -1 : Long.numberOfTrailingZeros(bits);
+	}
+
+	/** Returns the bitset of the matching days (bit 1 for the first day)
+	 * in the given month.
+	 */
+	private long getDays(int pYear, int pMonth, int pLength) {
+		final long monthDays = (-1L >>> (63 - pLength)) & ~1L;
+		if (!dowRestricted) {
+			return daysOfMonth & monthDays;
+		}
+		// Rotate the days of week, so that bit 0 is the weekday of the first
+		// day of the month, and repeat the pattern for every week.
+		final int first = LocalDate.of(pYear, pMonth, 1).getDayOfWeek().getValue() % 7;
+		final long week = ((daysOfWeek >>> first) | (daysOfWeek << (7 - first))) & 0x7F;
+		final long days = ((week | (week << 7) | (week << 14) | (week << 21) | (week << 28)) << 1) & monthDays;
+		return domRestricted ? (daysOfMonth & monthDays) | days : days;
+	}
+
+	/** Returns, whether the given local time matches this expression.
+	 * @param pTime The local time. Fractions of a second are ignored.
+	 * @return True, if the local time matches this expression.
+	 */
+	public boolean matches(LocalDateTime pTime) {
+		final int month = pTime.getMonthValue();
+		final int length = pTime.toLocalDate().lengthOfMonth();
+		return (seconds & (1L << pTime.getSecond())) != 0
+			&&  (minutes & (1L << pTime.getMinute())) != 0
+			&&  (hours & (1L << pTime.getHour())) != 0
+			&&  (months & (1L << month)) != 0
+			&&  (getDays(pTime.getYear(), month, length) & (1L << pTime.getDayOfMonth())) != 0;
+	}
+
+	/** Returns the first local time after the given local time (inclusive),
+	 * which matches this expression.
+	 * @return The matching local time, or null, if there is none before the
+	 *   given year.
+	 */
+	private LocalDateTime nextLocal(LocalDateTime pTime, int pMaxYear) {
+		int year = pTime.getYear();
+		int month = pTime.getMonthValue();
+		int day = pTime.getDayOfMonth();
+		int hour = pTime.getHour();
+		int minute = pTime.getMinute();
+		int second = pTime.getSecond();
+		// Overflowing values (month 13, day 32, hour 24, ...) are allowed: They
+		// don't match, which rolls over to the next value of the enclosing field.
+		while (year <= pMaxYear) {
+			final int m = next(months, month);
+			if (m == -1) {
+				++year;
+				month = 1;
+				day = 1;
+				hour = minute = second = 0;
+				continue;
+			}
+			if (m != month) {
+				month = m;
+				day = 1;
+				hour = minute = second = 0;
+			}
+			final int length = LocalDate.of(year, month, 1).lengthOfMonth();
+			final int d = day > length ? -1 : next(getDays(year, month, length), day);
+			if (d == -1) {
+				++month;
+				day = 1;
+				hour = minute = second = 0;
+				continue;
+			}
+			if (d != day) {
+				day = d;
+				hour = minute = second = 0;
+			}
+			final int h = next(hours, hour);
+			if (h == -1) {
+				++day;
+				hour = minute = second = 0;
+				continue;
+			}
+			if (h != hour) {
+				hour = h;
+				minute = second = 0;
+			}
+			final int mi = next(minutes, minute);
+			if (mi == -1) {
+				++hour;
+				minute = second = 0;
+				continue;
+			}
+			if (mi != minute) {
+				minute = mi;
+				second = 0;
+			}
+			final int s = next(seconds, second);
+			if (s == -1) {
+				++minute;
+				second = 0;
+				continue;
+			}
+			return LocalDateTime.of(year, month, day, hour, minute, s);
+		}
+		return null;
+	}
+
+	/** Returns the next fire time after the given time.
+	 * @param pTime The time, after which the next fire time is being searched.
+	 *   The time zone of this time determines the local time, in which the
+	 *   expression is evaluated.
+	 * @return The next fire time, which is strictly after the given time,
+	 *   in the same time zone, or null, if the expression never matches.
+	 */
+	public ZonedDateTime nextFireTime(ZonedDateTime pTime) {
+		final ZoneId zone = pTime.getZone();
+		final ZoneRules rules = zone.getRules();
+		LocalDateTime time = pTime.toLocalDateTime().with(ChronoField.NANO_OF_SECOND, 0).plusSeconds(1);
+		final int maxYear = time.getYear() + MAX_YEARS;
+		for (;;) {
+			final LocalDateTime local = nextLocal(time, maxYear);
+			if (local == null) {
+				return null;
+			}
+			final List<ZoneOffset> offsets = rules.getValidOffsets(local);
+			if (offsets.isEmpty()) {
+				// The local time is skipped: Fire at the end of the gap.
+				final ZoneOffsetTransition transition = rules.getTransition(local);
+				final ZonedDateTime zdt = ZonedDateTime.ofInstant(transition.getInstant(), zone);
+				if (zdt.isAfter(pTime)) {
+					return zdt;
+				}
+			} else {
+				// The offsets are ordered: The earlier occurrence comes first.
+				for (ZoneOffset offset : offsets) {
+					final ZonedDateTime zdt = ZonedDateTime.ofStrict(local, offset, zone);
+					if (zdt.isAfter(pTime)) {
+						return zdt;
+					}
+				}
+			}
+			time = local.plusSeconds(1);
+		}
+	}
+
+	/** Returns the largest bit in the given bitset, which is at most
+	 * the given value.
+	 * @return The bit number, or -1, if there is no such bit.
+	 */
+	private static int prev(long pBits, int pTo) {
+		final long bits = pBits & (-1L >>> (63 - pTo));
+		return bits == 0 ? -1 : 63 - Long.numberOfLeadingZeros(bits);
+	}
+
+	/** Returns the last local time before the given local time (inclusive),
+	 * which matches this expression.
+	 * @return The matching local time, or null, if there is none after the
+	 *   given year.
+	 */
+	private LocalDateTime prevLocal(LocalDateTime pTime, int pMinYear) {
+		int year = pTime.getYear();
+		int month = pTime.getMonthValue();
+		int day = pTime.getDayOfMonth();
+		int hour = pTime.getHour();
+		int minute = pTime.getMinute();
+		int second = pTime.getSecond();
+		// Underflowing values (month 0, day 0, hour -1, ...) are allowed: They
+		// don't match, which rolls back to the previous value of the enclosing field.
+		while (year >= pMinYear) {
+			final int m = month < 1 ? -1 : prev(months, month);
+			if (m == -1) {
+				--year;
+				month = 12;
+				day = 31;
+				hour = 23;
+				minute = second = 59;
+				continue;
+			}
+			if (m != month) {
+				month = m;
+				day = 31;
+				hour = 23;
+				minute = second = 59;
+			}
+			final int length = LocalDate.of(year, month, 1).lengthOfMonth();
+			final int d = day < 1 ? -1 : prev(getDays(year, month, length), Math.min(day, length));
+			if (d == -1) {
+				--month;
+				day = 31;
+				hour = 23;
+				minute = second = 59;
+				continue;
+			}
+			if (d != day) {
+				day = d;
+				hour = 23;
+				minute = second = 59;
+			}
+			final int h = hour < 0 ? -1 : prev(hours, hour);
+			if (h == -1) {
+				--day;
+				hour = 23;
+				minute = second = 59;
+				continue;
+			}
+			if (h != hour) {
+				hour = h;
+				minute = second = 59;
+			}
+			final int mi = minute < 0 ? -1 : prev(minutes, minute);
+			if (mi == -1) {
+				--hour;
+				minute = second = 59;
+				continue;
+			}
+			if (mi != minute) {
+				minute = mi;
+				second = 59;
+			}
+			final int sec = second < 0 ? -1 : prev(seconds, second);
+			if (sec == -1) {
+				--minute;
+				second = 59;
+				continue;
+			}
+			return LocalDateTime.of(year, month, day, hour, minute, sec);
+		}
+		return null;
+	}
+
+	/** Returns the last fire time within the given interval.
+	 * @param pFrom The start of the interval (exclusive). The time zone of
+	 *   this time determines the local time, in which the expression is
+	 *   evaluated.
+	 * @param pTo The end of the interval (inclusive).
+	 * @return The last fire time, which is after {@code pFrom}, and not after
+	 *   {@code pTo}, in the time zone of {@code pFrom}, or null, if there is
+	 *   no such fire time.
+	 */
+	public ZonedDateTime lastFireTime(ZonedDateTime pFrom, ZonedDateTime pTo) {
+		final ZoneId zone = pFrom.getZone();
+		final ZoneRules rules = zone.getRules();
+		final ZonedDateTime to = pTo.withZoneSameInstant(zone);
+		LocalDateTime time = to.toLocalDateTime().with(ChronoField.NANO_OF_SECOND, 0);
+		final int minYear = pFrom.getYear() - 1;
+		for (;;) {
+			final LocalDateTime local = prevLocal(time, minYear);
+			if (local == null) {
+				return null;
+			}
+			ZonedDateTime candidate = null;
+			final List<ZoneOffset> offsets = rules.getValidOffsets(local);
+			if (offsets.isEmpty()) {
+				// The local time is skipped: It fires at the end of the gap.
+				final ZonedDateTime zdt = ZonedDateTime.ofInstant(rules.getTransition(local).getInstant(), zone);
+				if (!zdt.isAfter(to)) {
+					candidate = zdt;
+				}
+			} else {
+				// The later occurrence comes last.
+				for (int i = offsets.size() - 1;  i >= 0;  i--) {
+					final ZonedDateTime zdt = ZonedDateTime.ofStrict(local, offsets.get(i), zone);
+					if (!zdt.isAfter(to)) {
+						candidate = zdt;
+						break;
+					}
+				}
+			}
+			if (candidate != null) {
+				return candidate.isAfter(pFrom) ? candidate : null;
+			}
+			time = local.minusSeconds(1);
+		}
+	}
+
+	/** Returns the number of fire times within the given interval. The
+	 * number is computed from the bitsets, month by month, and day by day,
+	 * without enumerating the fire times, so it is cheap even for long
+	 * intervals. It is the number of matching local times, so an interval,
+	 * which contains a daylight saving time transition, may differ from
+	 * {@link #nextFireTime(ZonedDateTime)} by the fire times of the skipped,
+	 * or repeated hour.
+	 * @param pFrom The start of the interval (exclusive). The time zone of
+	 *   this time determines the local time, in which the expression is
+	 *   evaluated.
+	 * @param pTo The end of the interval (inclusive).
+	 * @return The number of fire times, which are after {@code pFrom}, and
+	 *   not after {@code pTo}.
+	 */
+	public long countFireTimes(ZonedDateTime pFrom, ZonedDateTime pTo) {
+		final LocalDateTime from = pFrom.toLocalDateTime().with(ChronoField.NANO_OF_SECOND, 0).plusSeconds(1);
+		final LocalDateTime to = pTo.withZoneSameInstant(pFrom.getZone()).toLocalDateTime()
+				.with(ChronoField.NANO_OF_SECOND, 0).plusSeconds(1);
+		if (!to.isAfter(from)) {
+			return 0;
+		}
+		final LocalDate fromDate = from.toLocalDate();
+		final LocalDate toDate = to.toLocalDate();
+		if (fromDate.equals(toDate)) {
+			return dayMatches(fromDate) ? countBefore(to) - countBefore(from) : 0;
+		}
+		final long perDay = (long) Long.bitCount(hours) * Long.bitCount(minutes) * Long.bitCount(seconds);
+		long count = dayMatches(fromDate) ? perDay - countBefore(from) : 0;
+		count += countDays(fromDate.plusDays(1), toDate) * perDay;
+		if (dayMatches(toDate)) {
+			count += countBefore(to);
+		}
+		return count;
+	}
+
+	private boolean dayMatches(LocalDate pDate) {
+		final int month = pDate.getMonthValue();
+		return (months & (1L << month)) != 0
+			&&  (getDays(pDate.getYear(), month, pDate.lengthOfMonth()) & (1L << pDate.getDayOfMonth())) != 0;
+	}
+
+	/** Returns the number of matching times of day before the given
+	 * time of day.
+	 */
+	private long countBefore(LocalDateTime pTime) {
+		final long lower = (1L << pTime.getHour()) - 1;
+		long count = (long) Long.bitCount(hours & lower) * Long.bitCount(minutes) * Long.bitCount(seconds);
+		if ((hours & (1L << pTime.getHour())) != 0) {
+			count += (long) Long.bitCount(minutes & ((1L << pTime.getMinute()) - 1)) * Long.bitCount(seconds);
+			if ((minutes & (1L << pTime.getMinute())) != 0) {
+				count += Long.bitCount(seconds & ((1L << pTime.getSecond()) - 1));
+			}
+		}
+		return count;
+	}
+
+	/** Returns the number of matching days from the given start date
+	 * (inclusive) to the given end date (exclusive).
+	 */
+	private long countDays(LocalDate pFrom, LocalDate pTo) {
+		long count = 0;
+		LocalDate month = pFrom.withDayOfMonth(1);
+		while (month.isBefore(pTo)) {
+			final int length = month.lengthOfMonth();
+			if ((months & (1L << month.getMonthValue())) != 0) {
+				long days = getDays(month.getYear(), month.getMonthValue(), length);
+				if (month.getYear() == pFrom.getYear()  &&  month.getMonthValue() == pFrom.getMonthValue()) {
+					days &= -1L << pFrom.getDayOfMonth();
+				}
+				if (month.getYear() == pTo.getYear()  &&  month.getMonthValue() == pTo.getMonthValue()) {
+					days &= (1L << pTo.getDayOfMonth()) - 1;
+				}
+				count += Long.bitCount(days);
+			}
+			month = month.plusMonths(1);
+		}
+		return count;
+	}
+
+	/** Returns the expression, which has been compiled.
+	 * @return The expression, which has been compiled.
+	 */
+	public String getExpression() {
+		return expression;
+	}
+
+	@Override
+	public boolean equals(Object pOther) {
+		if (this == pOther) {
+			return true;
+		}
+		if (!(pOther instanceof CronExpression)) {
+			return false;
+		}
+		final CronExpression other = (CronExpression) pOther;
+		return seconds == other.seconds  &&  minutes == other.minutes  &&  hours == other.hours
+			&&  daysOfMonth == other.daysOfMonth  &&  months == other.months  &&  daysOfWeek == other.daysOfWeek
+			&&  domRestricted == other.domRestricted  &&  dowRestricted == other.dowRestricted;
+	}
+
+	@Override
+	public int hashCode() {
+		long h = seconds;
+		h = h * 31 + minutes;
+		h = h * 31 + hours;
+		h = h * 31 + daysOfMonth;
+		h = h * 31 + months;
+		h = h * 31 + daysOfWeek;
+		return Long.hashCode(h) * 4 + (domRestricted ? 2 : 0) + (dowRestricted ? 1 : 0);
+	}
+
+	@Override
+	public String toString() {
+		return expression;
+	}
+}
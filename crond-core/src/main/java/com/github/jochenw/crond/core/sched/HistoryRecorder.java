@@ -0,0 +1,45 @@
+package com.github.jochenw.crond.core.sched;
+
+import com.github.jochenw.afw.core.util.Objects;
+import com.github.jochenw.crond.core.api.IModel;
+import com.github.jochenw.crond.core.api.IExecutionHistory;
+import com.github.jochenw.crond.core.api.IExecutionHistory.Status;
+import com.github.jochenw.crond.core.beans.RunRecordImpl;
+import com.github.jochenw.crond.core.sched.JobExecutor.Run;
+
+/** Adds the runs, which have been terminated by a {@link JobExecutor},
+ * to an {@link IExecutionHistory}. If registered as a {@link IModel.Listener},
+ * the recent runs of deleted jobs are removed from the history.
+ */
+public class HistoryRecorder implements JobExecutor.RunListener, IModel.Listener {
+	private final IExecutionHistory history;
+
+	/** Creates a new instance.
+	 * @param pHistory The history, which receives the terminated runs.
+	 */
+	public HistoryRecorder(IExecutionHistory pHistory) {
+		history = Objects.requireNonNull(pHistory, "History");
+	}
+
+	@Override
+	public void runTerminated(Run pRun) {
+		final Status status;
+		switch (pRun.getState()) {
+		  case SUCCEEDED: status = Status.SUCCEEDED; break;
+		  case FAILED: status = Status.FAILED; break;
+		  case TIMED_OUT: status = Status.TIMED_OUT; break;
+		  case CANCELLED: status = Status.CANCELLED; break;
+		  default: throw new IllegalStateException("Run hasn't terminated: " + pRun);
+		}
+		final long endMillis = pRun.getEndMillis();
+		// A run, which has been cancelled while queued, has never started.
+		final long startMillis = pRun.getStartMillis() == 0 ? endMillis : pRun.getStartMillis();
+		history.add(RunRecordImpl.of(pRun.getJob().getId(), pRun.getJob().getUserId(), startMillis, endMillis,
+				status, status == Status.SUCCEEDED ? 0 : 1));
+	}
+
+	@Override
+	public void jobDeleted(IModel.Job pJob) {
+		history.remove(pJob.getId());
+	}
+}
@@ -0,0 +1,637 @@
+package com.github.jochenw.crond.core.sched;
+
+import java.time.Clock;
+import java.time.ZonedDateTime;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.github.jochenw.afw.core.log.ILog;
+import com.github.jochenw.afw.core.util.Objects;
+import com.github.jochenw.crond.core.api.IModel.Job;
+
+/** Executes the jobs, which are fired by the {@link JobScheduler}. The
+ * number of concurrently running jobs is limited globally, and per
+ * user (as given by {@link Job#getUserId()}). Runs, which exceed these
+ * limits, are queued per user, and the users with queued runs are served
+ * round robin, so that a user with many due jobs cannot starve the
+ * others.
+ *
+ * Runs are executed by virtual threads, if the Java runtime supports
+ * them (Java 21, or later), or by a pool of platform threads, which has
+ * one thread per global permit, otherwise. See {@link ThreadMode}.
+ *
+ * A run may be cancelled, and it is cancelled automatically after the
+ * configured timeout. Cancelling a running job interrupts its thread:
+ * The permits are released only after the {@link JobRunner} has
+ * actually returned, so the concurrency limits hold even for jobs,
+ * which ignore the interrupt.
+ */
+public class JobExecutor implements JobScheduler.FireHandler {
+	/** Executes a single job.
+	 */
+	public interface JobRunner {
+		/** Called to execute the given job. Implementations should
+		 * terminate quickly, if the current thread is being interrupted.
+		 * @param pJob The job, which is being executed.
+		 * @param pFireTime The jobs scheduled fire time.
+		 * @throws Exception Executing the job has failed.
+		 */
+		public void run(Job pJob, ZonedDateTime pFireTime) throws Exception;
+	}
+
+	/** Notified, when a run has terminated.
+	 */
+	public interface RunListener {
+		/** Called, when the given run has terminated, or has been
+		 * cancelled, before it was started. Invoked by the thread, which
+		 * has executed the run, or cancelled it, so implementations must
+		 * be quick.
+		 * @param pRun The terminated run.
+		 */
+		public void runTerminated(Run pRun);
+	}
+
+	/** The state of a run.
+	 */
+	public enum State {
+		/** The run is waiting for a permit.
+		 */
+		QUEUED,
+		/** The run is executing.
+		 */
+		RUNNING,
+		/** The run has completed successfully.
+		 */
+		SUCCEEDED,
+		/** The run has thrown an exception.
+		 */
+		FAILED,
+		/** The run has been cancelled, because it exceeded the timeout.
+		 */
+		TIMED_OUT,
+		/** The run has been cancelled.
+		 */
+		CANCELLED;
+
+		/** Returns, whether the state is final.
+		 * @return True, if the run has terminated.
+		 */
+		public boolean isTerminated() {
+			return this != QUEUED  &&  this != RUNNING;
+		}
+	}
+
+	/** Controls, which kind of threads execute the runs.
+	 */
+	public enum ThreadMode {
+		/** Virtual threads, if available, otherwise platform threads.
+		 */
+		AUTO,
+		/** One virtual thread per run. Requires Java 21, or later.
+		 */
+		VIRTUAL,
+		/** A pool of platform threads with one thread per global permit.
+		 */
+		PLATFORM;
+
+		/** Parses the given mode name. Valid names are "auto", "virtual",
+		 * and "platform".
+		 * @param pName The mode name.
+		 * @return The parsed mode.
+		 * @throws IllegalArgumentException The mode name is invalid.
+		 */
+		public static ThreadMode of(String pName) {
+			final String name = Objects.requireNonNull(pName, "Name").trim().toLowerCase();
+			switch (name) {
+			  case "auto": return AUTO;
+			  case "virtual": return VIRTUAL;
+			  case "platform": return PLATFORM;
+			  default: throw new IllegalArgumentException("Invalid thread mode: " + pName);
+			}
+		}
+	}
+
+	/** A single execution of a job.
+	 */
+	public final class Run implements Runnable {
+		private final Job job;
+		private final ZonedDateTime fireTime;
+		private final long queuedMillis;
+		private final UserQueue userQueue;
+		private State state = State.QUEUED;
+		private State stopState;
+		private Thread thread;
+		private ScheduledFuture<?> timeoutFuture;
+		private long startMillis, endMillis;
+		private Throwable error;
+
+		Run(Job pJob, ZonedDateTime pFireTime, UserQueue pUserQueue) {
+			job = pJob;
+			fireTime = pFireTime;
+			userQueue = pUserQueue;
+			queuedMillis = clock.millis();
+		}
+
+		/** Returns the job, which is being executed.
+		 * @return The job, which is being executed.
+		 */
+		public Job getJob() {
+			return job;
+		}
+
+		/** Returns the jobs scheduled fire time.
+		 * @return The jobs scheduled fire time.
+		 */
+		public ZonedDateTime getFireTime() {
+			return fireTime;
+		}
+
+		/** Returns the runs current state.
+		 * @return The runs current state.
+		 */
+		public State getState() {
+			synchronized (lock) {
+				return state;
+			}
+		}
+
+		/** Returns the time, when the run has been queued.
+		 * @return The time, when the run has been queued, in epoch milliseconds.
+		 */
+		public long getQueuedMillis() {
+			return queuedMillis;
+		}
+
+		/** Returns the time, when the run has been started.
+		 * @return The time, when the run has been started, in epoch milliseconds,
+		 *   or 0, if the run hasn't been started.
+		 */
+		public long getStartMillis() {
+			synchronized (lock) {
+				return startMillis;
+			}
+		}
+
+		/** Returns the time, when the run has terminated.
+		 * @return The time, when the run has terminated, in epoch milliseconds,
+		 *   or 0, if the run hasn't terminated yet.
+		 */
+		public long getEndMillis() {
+			synchronized (lock) {
+				return endMillis;
+			}
+		}
+
+		/** Returns the exception, which has been thrown by the run.
+		 * @return The exception, which has been thrown by the run, if the
+		 *   state is {@link State#FAILED}, otherwise null.
+		 */
+		public Throwable getError() {
+			synchronized (lock) {
+				return error;
+			}
+		}
+
+		/** Cancels the run. A queued run is removed from the queue, a running
+		 * run is interrupted.
+		 * @return True, if the run has been cancelled, false, if it had
+		 *   already terminated.
+		 */
+		public boolean cancel() {
+			return stop(State.CANCELLED);
+		}
+
+		private boolean stop(State pState) {
+			synchronized (lock) {
+				if (state == State.QUEUED) {
+					userQueue.runs.remove(this);
+					if (userQueue.runs.isEmpty()) {
+						ready.remove(userQueue);
+						release(userQueue);
+					}
+					--queued;
+					state = pState;
+					endMillis = clock.millis();
+					lock.notifyAll();
+				} else if (state == State.RUNNING  &&  stopState == null) {
+					stopState = pState;
+					if (thread != null) {
+						thread.interrupt();
+					}
+					return true;
+				} else {
+					return false;
+				}
+			}
+			terminated(this);
+			return true;
+		}
+
+		@Override
+		public void run() {
+			final boolean cancelled;
+			synchronized (lock) {
+				thread = Thread.currentThread();
+				cancelled = stopState != null;
+				if (!cancelled  &&  timeoutMillis > 0) {
+					timeoutFuture = timeouts.schedule(() -> stop(State.TIMED_OUT), timeoutMillis, TimeUnit.MILLISECONDS);
+				}
+			}
+			Throwable th = null;
+			if (!cancelled) {
+				try {
+					runner.run(job, fireTime);
+				} catch (Throwable t) {
+					th = t;
+				}
+			}
+			synchronized (lock) {
+				thread = null;
+				if (timeoutFuture != null) {
+					timeoutFuture.cancel(false);
+				}
+				finish(this, th);
+				dispatch();
+			}
+			// No more interrupts after clearing the thread: Don't pass
+			// a pending interrupt to the next run of a pooled thread.
+			Thread.interrupted();
+			terminated(this);
+		}
+
+		@Override
+		public String toString() {
+			return "Run[job=" + job.getId() + ", fireTime=" + fireTime + ", state=" + getState() + "]";
+		}
+	}
+
+	/** The runs of a single user. All fields are guarded by the lock.
+	 */
+	private static final class UserQueue {
+		private final Long userId;
+		private final ArrayDeque<Run> runs = new ArrayDeque<>();
+		private int running;
+
+		UserQueue(Long pUserId) {
+			userId = pUserId;
+		}
+	}
+
+	private final JobRunner runner;
+	private final int maxConcurrent, maxConcurrentPerUser;
+	private final long timeoutMillis;
+	private final Clock clock;
+	private final ILog log;
+	private final boolean virtual;
+	private final Executor executor;
+	private final ExecutorService pool;
+	private final ScheduledThreadPoolExecutor timeouts;
+	private final List<RunListener> listeners = new CopyOnWriteArrayList<>();
+	private final Object lock = new Object();
+	/** The users with queued runs, and a free per user permit, in the
+	 * order, in which they are served.
+	 */
+	private final ArrayDeque<UserQueue> ready = new ArrayDeque<>();
+	private final Map<Long,UserQueue> users = new HashMap<>();
+	private final Set<Run> runningRuns = new HashSet<>();
+	private int running, queued;
+	private long started;
+	private boolean stopped;
+
+	/** Creates a new instance.
+	 * @param pRunner The runner, which executes the jobs.
+	 * @param pThreadMode The kind of threads, which execute the runs.
+	 * @param pMaxConcurrent The maximum number of concurrently running jobs.
+	 * @param pMaxConcurrentPerUser The maximum number of concurrently running
+	 *   jobs of a single user.
+	 * @param pTimeoutMillis The maximum duration of a run, in milliseconds,
+	 *   or 0 (no timeout).
+	 * @param pClock The clock, which provides the runs timestamps.
+	 * @param pLog The logger, which is being used to report listener errors.
+	 * @throws IllegalStateException The thread mode {@link ThreadMode#VIRTUAL}
+	 *   has been requested, but virtual threads aren't available.
+	 */
+	public JobExecutor(JobRunner pRunner, ThreadMode pThreadMode, int pMaxConcurrent,
+			           int pMaxConcurrentPerUser, long pTimeoutMillis, Clock pClock, ILog pLog) {
+		runner = Objects.requireNonNull(pRunner, "Runner");
+		final ThreadMode threadMode = Objects.requireNonNull(pThreadMode, "Thread mode");
+		if (pMaxConcurrent <= 0) {
+			throw new IllegalArgumentException("Invalid number of concurrent jobs: " + pMaxConcurrent);
+		}
+		if (pMaxConcurrentPerUser <= 0) {
+			throw new IllegalArgumentException("Invalid number of concurrent jobs per user: " + pMaxConcurrentPerUser);
+		}
+		if (pTimeoutMillis < 0) {
+			throw new IllegalArgumentException("Invalid timeout: " + pTimeoutMillis);
+		}
+		maxConcurrent = pMaxConcurrent;
+		maxConcurrentPerUser = Math.min(pMaxConcurrentPerUser, pMaxConcurrent);
+		timeoutMillis = pTimeoutMillis;
+		clock = Objects.requireNonNull(pClock, "Clock");
+		log = pLog;
+		final ThreadFactory virtualThreads = threadMode == ThreadMode.PLATFORM ? null : newVirtualThreadFactory();
+		if (virtualThreads != null) {
+			virtual = true;
+			pool = null;
+			executor = (r) -> virtualThreads.newThread(r).start();
+		} else if (threadMode == ThreadMode.VIRTUAL) {
+			throw new IllegalStateException("Virtual threads require Java 21, or later.");
+		} else {
+			virtual = false;
+			final ThreadPoolExecutor tpe = new ThreadPoolExecutor(maxConcurrent, maxConcurrent, 60, TimeUnit.SECONDS,
+					new LinkedBlockingQueue<>(), newThreadFactory("crond-job-"));
+			tpe.allowCoreThreadTimeOut(true);
+			pool = tpe;
+			executor = tpe;
+		}
+		if (timeoutMillis > 0) {
+			timeouts = new ScheduledThreadPoolExecutor(1, newThreadFactory("crond-job-timeouts-"));
+			timeouts.setRemoveOnCancelPolicy(true);
+		} else {
+			timeouts = null;
+		}
+	}
+
+	/** Creates a new instance, which is configured by the following properties:
+	 * <ul>
+	 *   <li>{@code crond.executor.threads}: The {@link ThreadMode} (default "auto").</li>
+	 *   <li>{@code crond.executor.maxConcurrent}: The maximum number of
+	 *     concurrently running jobs (default 64).</li>
+	 *   <li>{@code crond.executor.maxConcurrentPerUser}: The maximum number
+	 *     of concurrently running jobs per user (default 4).</li>
+	 *   <li>{@code crond.executor.timeout}: The maximum duration of a run, in
+	 *     milliseconds (default 0, no timeout).</li>
+	 * </ul>
+	 * @param pRunner The runner, which executes the jobs.
+	 * @param pProperties The configuration properties.
+	 * @param pClock The clock, which provides the runs timestamps.
+	 * @param pLog The logger, which is being used to report listener errors.
+	 * @return The created instance.
+	 */
+	public static JobExecutor of(JobRunner pRunner, Properties pProperties, Clock pClock, ILog pLog) {
+		final Properties props = Objects.requireNonNull(pProperties, "Properties");
+		return new JobExecutor(pRunner, ThreadMode.of(props.getProperty("crond.executor.threads", "auto")),
+				Integer.parseInt(props.getProperty("crond.executor.maxConcurrent", "64")),
+				Integer.parseInt(props.getProperty("crond.executor.maxConcurrentPerUser", "4")),
+				Long.parseLong(props.getProperty("crond.executor.timeout", "0")), pClock, pLog);
+	}
+
+	private static ThreadFactory newThreadFactory(String pPrefix) {
+		final AtomicInteger num = new AtomicInteger();
+		return (r) -> {
+			final Thread t = new Thread(r, pPrefix + num.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		};
+	}
+
+	/** Creates a factory for virtual threads. The Java 21 API is invoked
+	 * reflectively, because the baseline is Java 17.
+	 * @return The created factory, or null, if virtual threads aren't
+	 *   available.
+	 */
+	private static ThreadFactory newVirtualThreadFactory() {
+		try {
+			final Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+			Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, "crond-job-", Long.valueOf(1));
+			return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+		} catch (ReflectiveOperationException | LinkageError e) {
+			return null;
+		}
+	}
+
+	/** Returns, whether the runs are executed by virtual threads.
+	 * @return True, if the runs are executed by virtual threads, false,
+	 *   if they are executed by a pool of platform threads.
+	 */
+	public boolean isVirtual() {
+		return virtual;
+	}
+
+	/** Registers a listener, which is being notified about terminated runs.
+	 * @param pListener The listener, which is being registered.
+	 */
+	public void addListener(RunListener pListener) {
+		listeners.add(Objects.requireNonNull(pListener, "Listener"));
+	}
+
+	/** Removes a listener.
+	 * @param pListener The listener, which is being removed.
+	 */
+	public void removeListener(RunListener pListener) {
+		listeners.remove(pListener);
+	}
+
+	@Override
+	public void fire(Job pJob, ZonedDateTime pFireTime) {
+		submit(pJob, pFireTime);
+	}
+
+	/** Submits a run of the given job. The run is started immediately,
+	 * if the concurrency limits permit, otherwise it is queued.
+	 * @param pJob The job, which is being executed.
+	 * @param pFireTime The jobs scheduled fire time.
+	 * @return The created run.
+	 * @throws IllegalStateException The executor has been shut down.
+	 */
+	public Run submit(Job pJob, ZonedDateTime pFireTime) {
+		final Job job = Objects.requireNonNull(pJob, "Job");
+		final Long userId = Objects.requireNonNull(job.getUserId(), "User id");
+		Objects.requireNonNull(pFireTime, "Fire time");
+		synchronized (lock) {
+			if (stopped) {
+				throw new IllegalStateException("The executor has been shut down.");
+			}
+			UserQueue uq = users.get(userId);
+			if (uq == null) {
+				uq = new UserQueue(userId);
+				users.put(userId, uq);
+			}
+			final Run run = new Run(job, pFireTime, uq);
+			if (uq.runs.isEmpty()  &&  uq.running < maxConcurrentPerUser) {
+				ready.add(uq);
+			}
+			uq.runs.add(run);
+			++queued;
+			dispatch();
+			return run;
+		}
+	}
+
+	/** Starts queued runs, as long as permits are available. Invoked
+	 * with the lock being held.
+	 */
+	private void dispatch() {
+		while (running < maxConcurrent  &&  !ready.isEmpty()) {
+			final UserQueue uq = ready.poll();
+			final Run run = uq.runs.poll();
+			--queued;
+			++running;
+			++started;
+			++uq.running;
+			if (!uq.runs.isEmpty()  &&  uq.running < maxConcurrentPerUser) {
+				// Back to the end of the line.
+				ready.add(uq);
+			}
+			run.state = State.RUNNING;
+			run.startMillis = clock.millis();
+			runningRuns.add(run);
+			try {
+				executor.execute(run);
+			} catch (RejectedExecutionException | OutOfMemoryError e) {
+				// No thread is available, so the run has failed.
+				finish(run, e);
+				if (e instanceof OutOfMemoryError) {
+					throw e;
+				}
+				terminated(run);
+			}
+		}
+	}
+
+	/** Updates the state of a terminated run, and releases its permits.
+	 * Invoked with the lock being held.
+	 */
+	private void finish(Run pRun, Throwable pError) {
+		if (pRun.stopState != null) {
+			pRun.state = pRun.stopState;
+		} else if (pError == null) {
+			pRun.state = State.SUCCEEDED;
+		} else {
+			pRun.state = State.FAILED;
+			pRun.error = pError;
+		}
+		pRun.endMillis = clock.millis();
+		runningRuns.remove(pRun);
+		--running;
+		final UserQueue uq = pRun.userQueue;
+		--uq.running;
+		if (!uq.runs.isEmpty()  &&  uq.running == maxConcurrentPerUser - 1) {
+			// The user has been waiting for this permit.
+			ready.add(uq);
+		}
+		release(uq);
+		lock.notifyAll();
+	}
+
+	/** Removes the given users queue, if it is no longer in use. Invoked
+	 * with the lock being held.
+	 */
+	private void release(UserQueue pUserQueue) {
+		if (pUserQueue.running == 0  &&  pUserQueue.runs.isEmpty()) {
+			users.remove(pUserQueue.userId);
+		}
+	}
+
+	private void terminated(Run pRun) {
+		for (RunListener listener : listeners) {
+			try {
+				listener.runTerminated(pRun);
+			} catch (Throwable t) {
+				if (log != null) {
+					log.error("terminated", "Listener " + listener + " failed", t);
+				}
+			}
+		}
+	}
+
+	/** Returns the number of queued runs.
+	 * @return The number of queued runs.
+	 */
+	public int getQueued() {
+		synchronized (lock) {
+			return queued;
+		}
+	}
+
+	/** Returns the number of running jobs.
+	 * @return The number of running jobs.
+	 */
+	public int getRunning() {
+		synchronized (lock) {
+			return running;
+		}
+	}
+
+	/** Returns the number of runs, which have been started.
+	 * @return The number of runs, which have been started.
+	 */
+	public long getStarted() {
+		synchronized (lock) {
+			return started;
+		}
+	}
+
+	/** Stops the executor: Queued runs are cancelled, and running jobs
+	 * may complete within the given timeout, after which they are
+	 * cancelled, too.
+	 * @param pTimeoutMillis The maximum time to wait for the running jobs.
+	 * @return True, if all jobs have terminated, false, if the timeout has
+	 *   elapsed, and cancelled jobs are still running.
+	 * @throws InterruptedException The current thread has been interrupted.
+	 */
+	public boolean shutdown(long pTimeoutMillis) throws InterruptedException {
+		final List<Run> runs = new ArrayList<>();
+		synchronized (lock) {
+			stopped = true;
+			for (UserQueue uq : users.values()) {
+				runs.addAll(uq.runs);
+			}
+		}
+		for (Run run : runs) {
+			run.cancel();
+		}
+		final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(pTimeoutMillis);
+		final boolean terminated = awaitIdle(deadline);
+		if (!terminated) {
+			if (log != null) {
+				log.warn("shutdown", "Timeout while waiting for running jobs, cancelling them");
+			}
+			synchronized (lock) {
+				runs.clear();
+				runs.addAll(runningRuns);
+			}
+			for (Run run : runs) {
+				run.cancel();
+			}
+		}
+		if (pool != null) {
+			pool.shutdown();
+		}
+		if (timeouts != null) {
+			timeouts.shutdownNow();
+		}
+		return terminated;
+	}
+
+	private boolean awaitIdle(long pDeadlineNanos) throws InterruptedException {
+		synchronized (lock) {
+			while (running > 0  ||  queued > 0) {
+				final long millis = TimeUnit.NANOSECONDS.toMillis(pDeadlineNanos - System.nanoTime());
+				if (millis <= 0) {
+					return false;
+				}
+				lock.wait(millis);
+			}
+			return true;
+		}
+	}
+}
@@ -0,0 +1,551 @@
+package com.github.jochenw.crond.core.sched;
+
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Predicate;
+
+import com.github.jochenw.afw.core.log.ILog;
+import com.github.jochenw.afw.core.util.Objects;
+import com.github.jochenw.crond.core.api.IModel;
+import com.github.jochenw.crond.core.api.IModel.Job;
+import com.github.jochenw.crond.core.api.IModel.SynchronousListener;
+
+/** The scheduler, which fires the jobs according to their
+ * {@link Job#getSchedule() schedules}. The timers are kept in a
+ * {@link TimingWheel}, which is owned by a single ticker thread, so
+ * arming, and cancelling a timer is O(1), and needs no lock.
+ *
+ * The scheduler is registered as a {@link SynchronousListener}: Model
+ * notifications are converted into commands (arm, or cancel a jobs timer),
+ * which are appended to a lock free queue, and executed by the ticker
+ * thread at the beginning of the next tick. The model is scanned only
+ * upon start, and if the model has been {@link IModel.Listener#initialized()
+ * reinitialized}.
+ *
+ * Fire times are computed in the time zone of the schedulers
+ * {@link Clock}. A fire time, which is detected later than the
+ * {@link MisfireHandler#getThresholdMillis() misfire threshold}, (the
+ * ticker thread has been stalled, or the fire time precedes the start,
+ * as reported by the {@link FireTimeSource}) is passed to the
+ * {@link MisfireHandler}, together with all other missed fire times.
+ *
+ * If a {@link SchedulerCheckpoint} is configured, the timers are re-armed
+ * from the checkpoint upon start: The next fire time is recomputed only
+ * for jobs, which aren't checkpointed, or whose schedule has changed.
+ *
+ * If a {@link #setJobFilter(Predicate) job filter} is configured (for
+ * example, a {@link ClusterNode}, which owns a subset of the jobs), only
+ * the accepted jobs are scheduled. If the filters result changes, the
+ * scheduler must be notified by invoking {@link #refilter()}.
+ *
+ * A failing command, or fire (for example, because a listener, or the
+ * model throws an exception) is logged, and counted as a
+ * {@link #getFailedFires() failed fire}, but doesn't stop the ticker thread.
+ */
+public class JobScheduler implements SynchronousListener {
+	/** Receives the jobs, which are due. Invoked by the ticker thread, so
+	 * implementations must be quick, and must not block: Typically, the
+	 * job is handed over to an executor.
+	 */
+	public interface FireHandler {
+		/** Called, if a job is due.
+		 * @param pJob The job, which is due.
+		 * @param pFireTime The scheduled fire time.
+		 */
+		public void fire(Job pJob, ZonedDateTime pFireTime);
+	}
+
+	/** Provides the last fire times of the jobs, as known from a previous
+	 * run of the scheduler. Used upon start, to detect the fire times, which
+	 * have been missed, while the scheduler wasn't running.
+	 */
+	public interface FireTimeSource {
+		/** Returns the given jobs last fire time.
+		 * @param pJob The job.
+		 * @return The jobs last fire time, or null, if it is unknown.
+		 */
+		public ZonedDateTime getLastFireTime(Job pJob);
+	}
+
+	/** The state of a scheduled job. Owned by the ticker thread.
+	 */
+	private static class Entry {
+		private Job job;
+		private CronExpression schedule;
+		private long scheduleHash;
+		private ZonedDateTime nextFireTime;
+		private ZonedDateTime lastFireTime;
+		private TimingWheel.Timer<Entry> timer;
+	}
+
+	private final IModel model;
+	private final FireHandler fireHandler;
+	private final Clock clock;
+	private final long tickMillis;
+	private final ILog log;
+	private final Queue<Runnable> commands = new ConcurrentLinkedQueue<>();
+	private final TimingWheel<Entry> wheel;
+	private final Map<Long,Entry> entries = new HashMap<>();
+	private MisfireHandler misfireHandler;
+	private FireTimeSource fireTimeSource;
+	private SchedulerCheckpoint checkpoint;
+	private boolean restore;
+	private volatile Predicate<Job> jobFilter;
+	private volatile Thread ticker;
+	private volatile boolean running;
+	private volatile int scheduledJobs, restoredJobs;
+	private volatile long firedJobs, invalidSchedules, failedFires;
+
+	/** Creates a new instance.
+	 * @param pModel The model, which provides the jobs.
+	 * @param pFireHandler The handler, which receives the jobs, that are due.
+	 * @param pClock The clock, which provides the current time, and time zone.
+	 * @param pTickMillis The length of a tick, in milliseconds. This is the
+	 *   schedulers resolution: Jobs are fired at the end of the tick, which
+	 *   contains their fire time.
+	 */
+	public JobScheduler(IModel pModel, FireHandler pFireHandler, Clock pClock, long pTickMillis) {
+		this(pModel, pFireHandler, pClock, pTickMillis, null);
+	}
+
+	/** Creates a new instance.
+	 * @param pModel The model, which provides the jobs.
+	 * @param pFireHandler The handler, which receives the jobs, that are due.
+	 * @param pClock The clock, which provides the current time, and time zone.
+	 * @param pTickMillis The length of a tick, in milliseconds. This is the
+	 *   schedulers resolution: Jobs are fired at the end of the tick, which
+	 *   contains their fire time.
+	 * @param pLog The logger, which is being used to report failures, or null.
+	 */
+	public JobScheduler(IModel pModel, FireHandler pFireHandler, Clock pClock, long pTickMillis, ILog pLog) {
+		model = Objects.requireNonNull(pModel, "Model");
+		fireHandler = Objects.requireNonNull(pFireHandler, "Fire handler");
+		clock = Objects.requireNonNull(pClock, "Clock");
+		if (pTickMillis <= 0) {
+			throw new IllegalArgumentException("Invalid tick length: " + pTickMillis);
+		}
+		tickMillis = pTickMillis;
+		log = pLog;
+		wheel = new TimingWheel<>(Math.floorDiv(clock.millis(), tickMillis));
+		misfireHandler = MisfireHandler.of(new Properties());
+	}
+
+	/** Sets the handler for missed fire times. Must be invoked before
+	 * the scheduler is started.
+	 * @param pMisfireHandler The handler for missed fire times.
+	 */
+	public void setMisfireHandler(MisfireHandler pMisfireHandler) {
+		misfireHandler = Objects.requireNonNull(pMisfireHandler, "Misfire handler");
+	}
+
+	/** Returns the handler for missed fire times.
+	 * @return The handler for missed fire times.
+	 */
+	public MisfireHandler getMisfireHandler() {
+		return misfireHandler;
+	}
+
+	/** Sets the source of the last fire times, which are used to detect
+	 * the fire times, that have been missed before the start. Must be
+	 * invoked before the scheduler is started.
+	 * @param pFireTimeSource The source of the last fire times, or null
+	 *   (the default), if missed fire times aren't detected upon start.
+	 */
+	public void setFireTimeSource(FireTimeSource pFireTimeSource) {
+		fireTimeSource = pFireTimeSource;
+	}
+
+	/** Sets the checkpoint, which is used to re-arm the timers upon start,
+	 * and which receives the changed timers. Must be invoked before the
+	 * scheduler is started. The checkpoint must be {@link SchedulerCheckpoint#open()
+	 * opened} by the caller, and closed after the scheduler has been shut down.
+	 * @param pCheckpoint The checkpoint, or null (the default).
+	 */
+	public void setCheckpoint(SchedulerCheckpoint pCheckpoint) {
+		checkpoint = pCheckpoint;
+		restore = pCheckpoint != null;
+	}
+
+	/** Sets the filter, which selects the jobs, that are scheduled. The
+	 * filter is also applied immediately before firing a job. Must be
+	 * invoked before the scheduler is started.
+	 * @param pJobFilter The job filter, or null (the default), if all
+	 *   jobs are scheduled.
+	 */
+	public void setJobFilter(Predicate<Job> pJobFilter) {
+		jobFilter = pJobFilter;
+	}
+
+	/** Requests to reapply the job filter, because its result has changed:
+	 * Timers of jobs, which are rejected now, are cancelled, and jobs, which
+	 * are accepted now, are scheduled. Thread safe.
+	 */
+	public void refilter() {
+		commands.add(this::rescan);
+	}
+
+	/** Registers the scheduler with the model, and starts the ticker thread.
+	 */
+	public void start() {
+		if (running) {
+			throw new IllegalStateException("The scheduler is already running.");
+		}
+		running = true;
+		register();
+		final Thread t = new Thread(this::run, "crond-scheduler");
+		t.setDaemon(true);
+		ticker = t;
+		t.start();
+	}
+
+	/** Unregisters the scheduler from the model, and stops the ticker thread.
+	 * @throws InterruptedException The current thread has been interrupted,
+	 *   while waiting for the ticker thread to terminate.
+	 */
+	public void shutdown() throws InterruptedException {
+		model.removeListener(this);
+		running = false;
+		final Thread t = ticker;
+		if (t != null) {
+			LockSupport.unpark(t);
+			t.join();
+			ticker = null;
+		}
+	}
+
+	/** Registers the scheduler with the model, and requests loading the
+	 * jobs, which already exist.
+	 */
+	void register() {
+		model.addListener(this);
+		commands.add(this::reload);
+	}
+
+	private void run() {
+		while (running) {
+			try {
+				tick();
+			} catch (RuntimeException e) {
+				failed("run", "Tick failed", e);
+			}
+			final long now = clock.millis();
+			final long nextTick = (Math.floorDiv(now, tickMillis) + 1) * tickMillis;
+			LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(Math.max(1, nextTick - now)));
+		}
+	}
+
+	/** Executes the pending commands, fires the jobs, which are due
+	 * at the current time, and releases pending catch-up runs. Invoked by
+	 * the ticker thread.
+	 */
+	void tick() {
+		for (Runnable command = commands.poll();  command != null;  command = commands.poll()) {
+			try {
+				command.run();
+			} catch (RuntimeException e) {
+				failed("tick", "Command failed", e);
+			}
+		}
+		final long now = clock.millis();
+		wheel.advance(Math.floorDiv(now, tickMillis), (t) -> {
+			final Entry entry = t.getPayload();
+			try {
+				fire(entry);
+			} catch (RuntimeException e) {
+				failed("tick", "Failed to fire job " + entry.job.getId(), e);
+			}
+		});
+		try {
+			misfireHandler.release(now, this::submit);
+		} catch (RuntimeException e) {
+			failed("tick", "Failed to release catch-up runs", e);
+		}
+		scheduledJobs = wheel.size();
+	}
+
+	/** Logs, and counts a failure of the ticker thread.
+	 */
+	private void failed(String pMethod, String pMessage, RuntimeException pException) {
+		++failedFires;
+		if (log != null) {
+			log.error(pMethod, pMessage, pException);
+		}
+	}
+
+	private long deadline(ZonedDateTime pTime) {
+		// Round up, so that a job is never fired before its fire time.
+		return -Math.floorDiv(-pTime.toInstant().toEpochMilli(), tickMillis);
+	}
+
+	private void fire(Entry pEntry) {
+		final Predicate<Job> filter = jobFilter;
+		if (filter != null  &&  !filter.test(pEntry.job)) {
+			// The job has been handed over (the command to cancel it is still pending), or
+			// the filter is temporarily rejecting it (an expired lease): Skip this fire time.
+			arm(pEntry, pEntry.schedule.nextFireTime(now()));
+			return;
+		}
+		final ZonedDateTime fireTime = pEntry.nextFireTime;
+		final ZonedDateTime now = now();
+		if (now.toInstant().toEpochMilli() - fireTime.toInstant().toEpochMilli() > misfireHandler.getThresholdMillis()) {
+			// Rearming from the missed fire time would fire every missed fire time, one per tick.
+			misfireHandler.misfired(pEntry.job, pEntry.schedule, fireTime, now);
+			// The missed fire times are handled: A restart mustn't catch them up again.
+			pEntry.lastFireTime = now;
+			arm(pEntry, pEntry.schedule.nextFireTime(now));
+		} else {
+			submit(pEntry.job, fireTime);
+			pEntry.lastFireTime = fireTime;
+			arm(pEntry, pEntry.schedule.nextFireTime(fireTime));
+		}
+	}
+
+	private void submit(Job pJob, ZonedDateTime pFireTime) {
+		++firedJobs;
+		try {
+			fireHandler.fire(pJob, pFireTime);
+		} catch (RuntimeException e) {
+			failed("submit", "Fire handler failed for job " + pJob.getId(), e);
+		}
+	}
+
+	private void arm(Entry pEntry, ZonedDateTime pNextFireTime) {
+		pEntry.nextFireTime = pNextFireTime;
+		if (pNextFireTime == null) {
+			// The schedule will never match again.
+			wheel.cancel(pEntry.timer);
+			entries.remove(pEntry.job.getId());
+			if (checkpoint != null) {
+				checkpoint.remove(pEntry.job.getId().longValue());
+			}
+		} else {
+			wheel.schedule(pEntry.timer, deadline(pNextFireTime));
+			if (checkpoint != null) {
+				checkpoint.update(pEntry.job.getId().longValue(), pNextFireTime.toInstant().toEpochMilli(),
+						pEntry.lastFireTime == null ? Long.MIN_VALUE : pEntry.lastFireTime.toInstant().toEpochMilli(),
+						pEntry.scheduleHash);
+			}
+		}
+	}
+
+	private void arm(Job pJob) {
+		final String schedule = pJob.getSchedule();
+		final Predicate<Job> filter = jobFilter;
+		if (schedule == null  ||  (filter != null  &&  !filter.test(pJob))) {
+			cancel(pJob.getId());
+			return;
+		}
+		Entry entry = entries.get(pJob.getId());
+		if (entry != null  &&  entry.timer.isPending()  &&  schedule.equals(entry.schedule.getExpression())) {
+			// The schedule hasn't changed, so the timer remains valid.
+			entry.job = pJob;
+			return;
+		}
+		final CronExpression cronExpression;
+		try {
+			cronExpression = CronExpression.compile(schedule);
+		} catch (IllegalArgumentException e) {
+			++invalidSchedules;
+			cancel(pJob.getId());
+			return;
+		}
+		if (entry == null) {
+			entry = new Entry();
+			entry.timer = wheel.newTimer(entry);
+			entries.put(pJob.getId(), entry);
+		}
+		entry.job = pJob;
+		entry.schedule = cronExpression;
+		entry.scheduleHash = SchedulerCheckpoint.hash(schedule, clock.getZone());
+		misfireHandler.cancel(pJob.getId());
+		arm(entry, cronExpression.nextFireTime(now()));
+	}
+
+	/** Re-arms the given jobs timer from the checkpoint.
+	 * @return True, if the timer has been re-armed, or false, if the job
+	 *   isn't checkpointed, or its schedule has changed.
+	 */
+	private boolean restore(Job pJob) {
+		final String schedule = pJob.getSchedule();
+		final Predicate<Job> filter = jobFilter;
+		if (filter != null  &&  !filter.test(pJob)) {
+			return false;
+		}
+		final SchedulerCheckpoint.Record record = schedule == null ? null : checkpoint.get(pJob.getId().longValue());
+		if (record == null) {
+			return false;
+		}
+		final long hash = SchedulerCheckpoint.hash(schedule, clock.getZone());
+		if (record.getScheduleHash() != hash) {
+			return false;
+		}
+		final CronExpression cronExpression;
+		try {
+			cronExpression = CronExpression.compile(schedule);
+		} catch (IllegalArgumentException e) {
+			return false;
+		}
+		final Entry entry = new Entry();
+		entry.timer = wheel.newTimer(entry);
+		entry.job = pJob;
+		entry.schedule = cronExpression;
+		entry.scheduleHash = hash;
+		if (record.getLastFireMillis() != Long.MIN_VALUE) {
+			entry.lastFireTime = ZonedDateTime.ofInstant(Instant.ofEpochMilli(record.getLastFireMillis()), clock.getZone());
+		}
+		entries.put(pJob.getId(), entry);
+		// A next fire time, which has passed meanwhile, is detected as a misfire.
+		arm(entry, ZonedDateTime.ofInstant(Instant.ofEpochMilli(record.getNextFireMillis()), clock.getZone()));
+		++restoredJobs;
+		return true;
+	}
+
+	private void cancel(Long pJobId) {
+		misfireHandler.cancel(pJobId);
+		final Entry entry = entries.remove(pJobId);
+		if (entry != null) {
+			wheel.cancel(entry.timer);
+			if (checkpoint != null) {
+				checkpoint.remove(pJobId.longValue());
+			}
+		}
+	}
+
+	private void reload() {
+		for (Entry entry : entries.values()) {
+			wheel.cancel(entry.timer);
+		}
+		entries.clear();
+		misfireHandler.clear();
+		final FireTimeSource source = fireTimeSource;
+		// The source is consulted only once: Later reloads mustn't repeat the catch-up.
+		fireTimeSource = null;
+		final boolean restoring = restore;
+		restore = false;
+		model.forEachJob((j) -> {
+			try {
+				if (restoring  &&  restore(j)) {
+					return;
+				}
+				arm(j);
+				final Entry entry = entries.get(j.getId());
+				final ZonedDateTime lastFireTime = source == null  ||  entry == null ? null : source.getLastFireTime(j);
+				if (lastFireTime != null) {
+					final ZonedDateTime first = entry.schedule.nextFireTime(lastFireTime);
+					if (first != null  &&  first.isBefore(entry.nextFireTime)) {
+						// Within the misfire threshold, the first missed fire time is simply fired late.
+						arm(entry, first);
+					}
+				}
+			} catch (RuntimeException e) {
+				// A single job mustn't prevent the others from being scheduled.
+				failed("reload", "Failed to schedule job " + j.getId(), e);
+			}
+		});
+		if (checkpoint != null) {
+			// Jobs, which have been deleted meanwhile.
+			checkpoint.removeIf((id) -> !entries.containsKey(Long.valueOf(id)));
+		}
+	}
+
+	private void rescan() {
+		final Predicate<Job> filter = jobFilter;
+		if (filter == null) {
+			return;
+		}
+		final List<Long> rejected = new ArrayList<>();
+		for (Entry entry : entries.values()) {
+			try {
+				if (!filter.test(entry.job)) {
+					rejected.add(entry.job.getId());
+				}
+			} catch (RuntimeException e) {
+				failed("rescan", "Failed to filter job " + entry.job.getId(), e);
+			}
+		}
+		rejected.forEach(this::cancel);
+		model.forEachJob((j) -> {
+			try {
+				if (!entries.containsKey(j.getId())  &&  filter.test(j)) {
+					arm(j);
+				}
+			} catch (RuntimeException e) {
+				failed("rescan", "Failed to schedule job " + j.getId(), e);
+			}
+		});
+	}
+
+	private ZonedDateTime now() {
+		return ZonedDateTime.ofInstant(Instant.ofEpochMilli(clock.millis()), clock.getZone());
+	}
+
+	@Override
+	public void jobAdded(Job pJob) {
+		commands.add(() -> arm(pJob));
+	}
+
+	@Override
+	public void jobUpdated(Job pJob) {
+		commands.add(() -> arm(pJob));
+	}
+
+	@Override
+	public void jobDeleted(Job pJob) {
+		final Long id = pJob.getId();
+		commands.add(() -> cancel(id));
+	}
+
+	@Override
+	public void initialized() {
+		commands.add(this::reload);
+	}
+
+	/** Returns the number of jobs, which are currently scheduled.
+	 * @return The number of jobs, which are currently scheduled.
+	 */
+	public int getScheduledJobs() {
+		return scheduledJobs;
+	}
+
+	/** Returns the number of jobs, whose timer has been re-armed from
+	 * the checkpoint.
+	 * @return The number of jobs, which have been restored from the checkpoint.
+	 */
+	public int getRestoredJobs() {
+		return restoredJobs;
+	}
+
+	/** Returns the number of jobs, which have been fired.
+	 * @return The number of jobs, which have been fired.
+	 */
+	public long getFiredJobs() {
+		return firedJobs;
+	}
+
+	/** Returns the number of jobs, which have been ignored, because
+	 * their schedule is invalid.
+	 * @return The number of jobs with an invalid schedule.
+	 */
+	public long getInvalidSchedules() {
+		return invalidSchedules;
+	}
+
+	/** Returns the number of times, the {@link FireHandler} has thrown
+	 * an exception, or the ticker thread has failed to execute a command,
+	 * or to fire a job.
+	 * @return The number of failures.
+	 */
+	public long getFailedFires() {
+		return failedFires;
+	}
+}
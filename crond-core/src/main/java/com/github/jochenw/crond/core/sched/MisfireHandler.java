@@ -0,0 +1,266 @@
+package com.github.jochenw.crond.core.sched;
+
+import java.time.ZonedDateTime;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.function.Function;
+
+import com.github.jochenw.afw.core.util.Objects;
+import com.github.jochenw.crond.core.api.IModel.Job;
+
+/** Handles the fire times, which have been missed by the {@link JobScheduler},
+ * because the scheduler wasn't running (a restart), or because the ticker
+ * thread has been stalled (a suspended system, or a long pause).
+ *
+ * The missed fire times are counted in bulk from the compiled schedule,
+ * without enumerating them. Depending on the jobs {@link Policy}, catch-up
+ * runs are queued, and released to the {@link JobScheduler.FireHandler} at a
+ * limited rate, so that a restart doesn't fire all the missed runs at once.
+ * The catch-up queue is served round robin, so a single job with many
+ * missed runs doesn't delay the catch-up of other jobs.
+ *
+ * Instances are owned by the schedulers ticker thread, and aren't thread safe.
+ */
+public class MisfireHandler {
+	/** The policy for handling the missed fire times of a job.
+	 */
+	public enum Policy {
+		/** A single catch-up run is fired, using the last missed fire time.
+		 */
+		FIRE_ONCE,
+		/** A catch-up run is fired for every missed fire time, up to
+		 * the maximum number of catch-up runs per job.
+		 */
+		FIRE_ALL,
+		/** The missed fire times are ignored.
+		 */
+		SKIP;
+
+		/** Parses the given policy name, like "fire-once", or "FIRE_ONCE".
+		 * @param pValue The policy name.
+		 * @return The parsed policy.
+		 * @throws IllegalArgumentException The policy name is invalid.
+		 */
+		public static Policy of(String pValue) {
+			final String value = Objects.requireNonNull(pValue, "Value").trim().replace('-', '_');
+			for (Policy policy : values()) {
+				if (policy.name().equalsIgnoreCase(value)) {
+					return policy;
+				}
+			}
+			throw new IllegalArgumentException("Invalid misfire policy: " + pValue);
+		}
+	}
+
+	/** The pending catch-up runs of a single job.
+	 */
+	private static class CatchUp {
+		private Job job;
+		private CronExpression schedule;
+		private ZonedDateTime nextFireTime;
+		private long remaining;
+		private boolean cancelled;
+	}
+
+	private final Function<Job,Policy> policies;
+	private final long thresholdMillis;
+	private final double ratePerSecond;
+	private final long maxCatchUps;
+	private final ArrayDeque<CatchUp> queue = new ArrayDeque<>();
+	private final Map<Long,CatchUp> catchUps = new HashMap<>();
+	private double tokens = 1;
+	private long lastReleaseMillis = Long.MIN_VALUE;
+	private volatile long misfires, skippedRuns, releasedRuns;
+	private volatile int pendingRuns;
+
+	/** Creates a new instance.
+	 * @param pPolicies Returns the policy of a given job.
+	 * @param pThresholdMillis The misfire threshold, in milliseconds: A fire
+	 *   time is considered missed, if it is detected later than this.
+	 * @param pRatePerSecond The maximum number of catch-up runs, which are
+	 *   released per second.
+	 * @param pMaxCatchUps The maximum number of catch-up runs per job, and
+	 *   misfire, if the policy is {@link Policy#FIRE_ALL}.
+	 */
+	public MisfireHandler(Function<Job,Policy> pPolicies, long pThresholdMillis, double pRatePerSecond,
+			long pMaxCatchUps) {
+		policies = Objects.requireNonNull(pPolicies, "Policies");
+		if (pThresholdMillis < 0) {
+			throw new IllegalArgumentException("Invalid misfire threshold: " + pThresholdMillis);
+		}
+		if (!(pRatePerSecond > 0)) {
+			throw new IllegalArgumentException("Invalid catch-up rate: " + pRatePerSecond);
+		}
+		if (pMaxCatchUps <= 0) {
+			throw new IllegalArgumentException("Invalid maximum number of catch-up runs: " + pMaxCatchUps);
+		}
+		thresholdMillis = pThresholdMillis;
+		ratePerSecond = pRatePerSecond;
+		maxCatchUps = pMaxCatchUps;
+	}
+
+	/** Creates a new instance, which is configured by the given properties:
+	 * "crond.misfire.policy" (the policy of all jobs, default "fire-once"),
+	 * "crond.misfire.threshold" (milliseconds, default 60000),
+	 * "crond.misfire.rate" (catch-up runs per second, default 10), and
+	 * "crond.misfire.maxCatchUps" (default 100).
+	 * @param pProperties The configuration properties.
+	 * @return The created instance.
+	 */
+	public static MisfireHandler of(Properties pProperties) {
+		final Policy policy = Policy.of(pProperties.getProperty("crond.misfire.policy", "fire-once"));
+		final long threshold = Long.parseLong(pProperties.getProperty("crond.misfire.threshold", "60000"));
+		final double rate = Double.parseDouble(pProperties.getProperty("crond.misfire.rate", "10"));
+		final long maxCatchUps = Long.parseLong(pProperties.getProperty("crond.misfire.maxCatchUps", "100"));
+		return new MisfireHandler((j) -> policy, threshold, rate, maxCatchUps);
+	}
+
+	/** Returns the misfire threshold, in milliseconds.
+	 * @return The misfire threshold, in milliseconds: A fire time is
+	 *   considered missed, if it is detected later than this.
+	 */
+	public long getThresholdMillis() {
+		return thresholdMillis;
+	}
+
+	/** Called, if the given job has missed its fire times from {@code pFirst}
+	 * to {@code pNow}. Queues the catch-up runs, as requested by the jobs
+	 * policy. Pending catch-up runs of the same job are replaced.
+	 * @param pJob The job, which has missed its fire times.
+	 * @param pSchedule The jobs compiled schedule.
+	 * @param pFirst The first missed fire time.
+	 * @param pNow The current time.
+	 * @return The number of missed fire times.
+	 */
+	long misfired(Job pJob, CronExpression pSchedule, ZonedDateTime pFirst, ZonedDateTime pNow) {
+		final long count = 1 + pSchedule.countFireTimes(pFirst, pNow);
+		misfires += count;
+		cancel(pJob.getId());
+		final Policy policy = policies.apply(pJob);
+		final CatchUp catchUp = new CatchUp();
+		catchUp.job = pJob;
+		catchUp.schedule = pSchedule;
+		switch (policy) {
+		  case FIRE_ONCE:
+			final ZonedDateTime last = pSchedule.lastFireTime(pFirst.minusSeconds(1), pNow);
+			catchUp.nextFireTime = last == null ? pFirst : last;
+			catchUp.remaining = 1;
+			break;
+		  case FIRE_ALL:
+			// The earliest fire times are used: They are enumerated lazily, as the runs are released.
+			catchUp.nextFireTime = pFirst;
+			catchUp.remaining = Math.min(count, maxCatchUps);
+			break;
+		  case SKIP:
+			skippedRuns += count;
+			return count;
+		  default:
+			throw new IllegalStateException("Invalid policy: " + policy);
+		}
+		skippedRuns += count - catchUp.remaining;
+		catchUps.put(pJob.getId(), catchUp);
+		queue.add(catchUp);
+		pendingRuns += catchUp.remaining;
+		return count;
+	}
+
+	/** Drops the pending catch-up runs of the given job.
+	 * @param pJobId The jobs id.
+	 */
+	void cancel(Long pJobId) {
+		final CatchUp catchUp = catchUps.remove(pJobId);
+		if (catchUp != null) {
+			catchUp.cancelled = true;
+			pendingRuns -= catchUp.remaining;
+			skippedRuns += catchUp.remaining;
+		}
+	}
+
+	/** Drops all pending catch-up runs.
+	 */
+	void clear() {
+		for (CatchUp catchUp : catchUps.values()) {
+			catchUp.cancelled = true;
+		}
+		skippedRuns += pendingRuns;
+		pendingRuns = 0;
+		catchUps.clear();
+		queue.clear();
+	}
+
+	/** Releases as many catch-up runs, as the rate limit permits.
+	 * @param pNowMillis The current time, in milliseconds.
+	 * @param pFireHandler The handler, which receives the catch-up runs.
+	 * @return The number of released catch-up runs.
+	 */
+	int release(long pNowMillis, JobScheduler.FireHandler pFireHandler) {
+		if (lastReleaseMillis != Long.MIN_VALUE  &&  pNowMillis > lastReleaseMillis) {
+			// The bucket holds at most one seconds worth of tokens.
+			tokens = Math.min(Math.max(1, ratePerSecond),
+					tokens + (pNowMillis - lastReleaseMillis) * ratePerSecond / 1000);
+		}
+		lastReleaseMillis = pNowMillis;
+		int released = 0;
+		while (tokens >= 1) {
+			final CatchUp catchUp = queue.poll();
+			if (catchUp == null) {
+				break;
+			}
+			if (catchUp.cancelled) {
+				continue;
+			}
+			final ZonedDateTime fireTime = catchUp.nextFireTime;
+			tokens -= 1;
+			--pendingRuns;
+			++released;
+			if (--catchUp.remaining > 0) {
+				catchUp.nextFireTime = catchUp.schedule.nextFireTime(fireTime);
+			}
+			if (catchUp.remaining > 0  &&  catchUp.nextFireTime != null) {
+				queue.add(catchUp);
+			} else {
+				pendingRuns -= catchUp.remaining;
+				skippedRuns += catchUp.remaining;
+				catchUps.remove(catchUp.job.getId());
+			}
+			pFireHandler.fire(catchUp.job, fireTime);
+		}
+		if (queue.isEmpty()) {
+			// Don't accumulate tokens while idle.
+			tokens = Math.min(tokens, 1);
+		}
+		releasedRuns += released;
+		return released;
+	}
+
+	/** Returns the number of missed fire times.
+	 * @return The number of missed fire times, which have been detected.
+	 */
+	public long getMisfires() {
+		return misfires;
+	}
+
+	/** Returns the number of missed fire times, which haven't been, and
+	 * won't be caught up.
+	 * @return The number of missed fire times without a catch-up run.
+	 */
+	public long getSkippedRuns() {
+		return skippedRuns;
+	}
+
+	/** Returns the number of catch-up runs, which have been released.
+	 * @return The number of released catch-up runs.
+	 */
+	public long getReleasedRuns() {
+		return releasedRuns;
+	}
+
+	/** Returns the number of catch-up runs, which are waiting for release.
+	 * @return The number of pending catch-up runs.
+	 */
+	public int getPendingRuns() {
+		return pendingRuns;
+	}
+}
@@ -0,0 +1,567 @@
+package com.github.jochenw.crond.core.sched;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Queue;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import com.github.jochenw.afw.core.util.Objects;
+
+/** Captures the output of job runs (typically a processes stdout, or
+ * stderr) into spool files, without buffering the output in the heap.
+ * The output is read into pooled direct buffers, and written to the
+ * spool files straight from these buffers, so the memory per running
+ * capture is bounded by a small constant: One buffer (two, if
+ * compression is enabled), the tail ring, and, with compression, a
+ * {@link Deflater}.
+ *
+ * The spool files of a run are named
+ * {@code <dir>/<jobId>/<runId>-<stream>.<n>.log}, or {@code .log.gz}, if
+ * compression is enabled. If a spool file exceeds the maximum file size,
+ * the next file is started, and only the most recent files are kept, so
+ * the disk space per run is bounded, too. With compression, every spool
+ * file is a complete gzip file.
+ *
+ * The last bytes of the output are kept in a ring buffer, which can be
+ * {@link Spool#tail(long) polled}, or observed by an {@link OutputListener},
+ * for example by the UI. When the capture is closed, the ring is
+ * persisted as {@code <runId>-<stream>.tail}, where
+ * {@link #readTail(Long, long, String)} finds it.
+ *
+ * After a spool has been closed, only the files of the most recent runs
+ * of the job (by run id) are kept, so the disk space per job is bounded.
+ */
+public class OutputCapture {
+	private static final byte[] NO_INPUT = new byte[0];
+
+	/** Notified about captured output.
+	 */
+	public interface OutputListener {
+		/** Called, when output has been captured. Invoked by the pumping
+		 * thread, so implementations must be quick, and must copy the
+		 * data, if they need it later.
+		 * @param pSpool The spool, which has captured the output.
+		 * @param pOffset The offset of the first byte within the output.
+		 * @param pData The captured output, from the current position
+		 *   up to the limit. The buffer is read only.
+		 */
+		public void output(Spool pSpool, long pOffset, ByteBuffer pData);
+		/** Called, when the capture has been closed.
+		 * @param pSpool The spool, which has been closed.
+		 */
+		public default void closed(Spool pSpool) {}
+	}
+
+	/** The end of a captured output, as returned by {@link Spool#tail(long)}.
+	 */
+	public static class Tail {
+		private final long offset;
+		private final byte[] data;
+		private final boolean closed;
+
+		Tail(long pOffset, byte[] pData, boolean pClosed) {
+			offset = pOffset;
+			data = pData;
+			closed = pClosed;
+		}
+
+		/** Returns the offset of the first byte.
+		 * @return The offset of the first byte within the output.
+		 */
+		public long getOffset() {
+			return offset;
+		}
+
+		/** Returns the data.
+		 * @return The data, which starts at {@link #getOffset()}.
+		 */
+		public byte[] getData() {
+			return data;
+		}
+
+		/** Returns the offset of the next byte.
+		 * @return The offset, which must be passed to the next call of
+		 *   {@link Spool#tail(long)}, in order to receive new data only.
+		 */
+		public long getEndOffset() {
+			return offset + data.length;
+		}
+
+		/** Returns, whether the capture has been closed.
+		 * @return True, if the capture has been closed, so there will
+		 *   be no more data.
+		 */
+		public boolean isClosed() {
+			return closed;
+		}
+	}
+
+	/** The captured output of a single stream of a single run.
+	 * Instances aren't thread safe, except for {@link #tail(long)}, and
+	 * {@link #getSize()}: The output must be written by a single thread.
+	 */
+	public class Spool implements AutoCloseable {
+		private final Path dir;
+		private final String name;
+		private final byte[] ring = new byte[tailSize];
+		private final CRC32 crc;
+		private final Deflater deflater;
+		private final ByteBuffer out;
+		private final CopyOnWriteArrayList<OutputListener> listeners = new CopyOnWriteArrayList<>();
+		private FileChannel channel;
+		private int fileNumber = -1;
+		private long size, fileSize;
+		private boolean closed;
+
+		Spool(Path pDir, String pName) {
+			dir = pDir;
+			name = pName;
+			if (compress) {
+				crc = new CRC32();
+				deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+				out = acquire();
+			} else {
+				crc = null;
+				deflater = null;
+				out = null;
+			}
+		}
+
+		/** Registers a listener, which is being notified about the captured output.
+		 * @param pListener The listener, which is being registered.
+		 */
+		public void addListener(OutputListener pListener) {
+			listeners.add(Objects.requireNonNull(pListener, "Listener"));
+		}
+
+		/** Removes a listener.
+		 * @param pListener The listener, which is being removed.
+		 */
+		public void removeListener(OutputListener pListener) {
+			listeners.remove(pListener);
+		}
+
+		/** Returns the path of the spool file with the given number.
+		 * @param pNumber The file number.
+		 * @return The spool files path.
+		 */
+		public Path getFile(int pNumber) {
+			return dir.resolve(name + "." + pNumber + (compress ? ".log.gz" : ".log"));
+		}
+
+		/** Returns the number of the current spool file.
+		 * @return The number of the current spool file, or -1, if no output
+		 *   has been written yet. The files with the numbers
+		 *   {@code max(0, n - maxFiles + 1)} to n exist.
+		 */
+		public int getFileNumber() {
+			return fileNumber;
+		}
+
+		/** Returns the number of bytes, which have been captured.
+		 * @return The number of bytes, which have been captured.
+		 */
+		public synchronized long getSize() {
+			return size;
+		}
+
+		/** Reads the given channel until the end of the stream is reached,
+		 * and writes the data to the spool, using a pooled buffer.
+		 * @param pChannel The channel, which is being read.
+		 * @throws IOException Reading, or writing has failed.
+		 */
+		public void pump(ReadableByteChannel pChannel) throws IOException {
+			final ByteBuffer bb = acquire();
+			try {
+				for (;;) {
+					bb.clear();
+					if (pChannel.read(bb) == -1) {
+						break;
+					}
+					bb.flip();
+					write(bb);
+				}
+			} finally {
+				release(bb);
+			}
+		}
+
+		/** Reads the given stream until the end of the stream is reached,
+		 * and writes the data to the spool.
+		 * @param pStream The stream, which is being read.
+		 * @throws IOException Reading, or writing has failed.
+		 */
+		public void pump(InputStream pStream) throws IOException {
+			pump(Channels.newChannel(pStream));
+		}
+
+		/** Writes the given data to the spool.
+		 * @param pData The data, from the current position up to the limit.
+		 *   Upon return, the position is equal to the limit.
+		 * @throws IOException Writing has failed.
+		 */
+		public void write(ByteBuffer pData) throws IOException {
+			if (closed) {
+				throw new IllegalStateException("The spool has been closed.");
+			}
+			if (!pData.hasRemaining()) {
+				return;
+			}
+			final long offset;
+			synchronized (this) {
+				offset = size;
+				final ByteBuffer data = pData.duplicate();
+				while (data.hasRemaining()) {
+					final int pos = (int) (size % ring.length);
+					final int len = Math.min(data.remaining(), ring.length - pos);
+					data.get(ring, pos, len);
+					size += len;
+				}
+			}
+			for (OutputListener listener : listeners) {
+				listener.output(this, offset, pData.asReadOnlyBuffer());
+			}
+			if (channel == null) {
+				nextFile();
+			}
+			if (deflater == null) {
+				while (pData.hasRemaining()) {
+					fileSize += channel.write(pData);
+				}
+			} else {
+				crc.update(pData.duplicate());
+				deflater.setInput(pData);
+				while (!deflater.needsInput()) {
+					deflate(Deflater.NO_FLUSH);
+				}
+				// Don't keep a reference to the callers buffer, which is being reused.
+				deflater.setInput(NO_INPUT);
+			}
+			if (fileSize >= maxFileSize) {
+				finishFile();
+			}
+		}
+
+		private void deflate(int pFlush) throws IOException {
+			out.clear();
+			deflater.deflate(out, pFlush);
+			out.flip();
+			while (out.hasRemaining()) {
+				fileSize += channel.write(out);
+			}
+		}
+
+		private void nextFile() throws IOException {
+			Files.createDirectories(dir);
+			++fileNumber;
+			channel = FileChannel.open(getFile(fileNumber), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+					StandardOpenOption.TRUNCATE_EXISTING);
+			fileSize = 0;
+			if (fileNumber >= maxFiles) {
+				Files.deleteIfExists(getFile(fileNumber - maxFiles));
+			}
+			if (deflater != null) {
+				// The gzip header: Magic, method (deflate), no flags, no time, no extra flags, unknown OS.
+				final ByteBuffer header = ByteBuffer.wrap(new byte[] {0x1f, (byte) 0x8b, 8, 0, 0, 0, 0, 0, 0, (byte) 0xff});
+				while (header.hasRemaining()) {
+					fileSize += channel.write(header);
+				}
+			}
+		}
+
+		private void finishFile() throws IOException {
+			if (deflater != null) {
+				deflater.finish();
+				while (!deflater.finished()) {
+					deflate(Deflater.NO_FLUSH);
+				}
+				final ByteBuffer trailer = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+				trailer.putInt((int) crc.getValue()).putInt((int) deflater.getBytesRead()).flip();
+				while (trailer.hasRemaining()) {
+					channel.write(trailer);
+				}
+				deflater.reset();
+				crc.reset();
+			}
+			channel.close();
+			channel = null;
+		}
+
+		/** Returns the end of the captured output, as far as it is still
+		 * kept in memory.
+		 * @param pOffset The offset of the first byte, which is being requested.
+		 *   Use 0 to request as much as possible, and {@link Tail#getEndOffset()}
+		 *   of the previous result to request new data only.
+		 * @return The end of the captured output, starting at the given
+		 *   offset, or later, if the data at the given offset is no longer
+		 *   available.
+		 */
+		public synchronized Tail tail(long pOffset) {
+			final long start = Math.max(Math.max(0, pOffset), size - ring.length);
+			if (start >= size) {
+				return new Tail(size, new byte[0], closed);
+			}
+			final byte[] data = new byte[(int) (size - start)];
+			final int pos = (int) (start % ring.length);
+			final int len = Math.min(data.length, ring.length - pos);
+			System.arraycopy(ring, pos, data, 0, len);
+			System.arraycopy(ring, 0, data, len, data.length - len);
+			return new Tail(start, data, closed);
+		}
+
+		/** Finishes the current spool file, persists the tail, releases
+		 * the pooled buffers, and removes the files of expired runs.
+		 * @throws IOException Writing has failed.
+		 */
+		@Override
+		public void close() throws IOException {
+			if (closed) {
+				return;
+			}
+			try {
+				if (channel != null) {
+					finishFile();
+				}
+				final Tail tail;
+				synchronized (this) {
+					closed = true;
+					tail = tail(0);
+				}
+				Files.createDirectories(dir);
+				try (FileChannel fc = FileChannel.open(dir.resolve(name + ".tail"), StandardOpenOption.CREATE,
+						StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+					final ByteBuffer bb = ByteBuffer.allocate(8 + tail.data.length);
+					bb.putLong(tail.offset).put(tail.data).flip();
+					while (bb.hasRemaining()) {
+						fc.write(bb);
+					}
+				}
+				expire(dir);
+			} finally {
+				closed = true;
+				if (channel != null) {
+					// Finishing the file has failed: Don't leak the channel.
+					try {
+						channel.close();
+					} catch (IOException e) {
+						// Ignore this, and report the original exception.
+					}
+					channel = null;
+				}
+				if (deflater != null) {
+					deflater.end();
+					release(out);
+				}
+			}
+			for (OutputListener listener : listeners) {
+				listener.closed(this);
+			}
+		}
+	}
+
+	private final Path dir;
+	private final int bufferSize, tailSize, maxFiles, maxRuns, poolSize;
+	private final long maxFileSize;
+	private final boolean compress;
+	private final Queue<ByteBuffer> pool = new ConcurrentLinkedQueue<>();
+	private final AtomicInteger pooled = new AtomicInteger();
+
+	/** Creates a new instance.
+	 * @param pDir The spool directory.
+	 * @param pBufferSize The size of the pooled direct buffers, in bytes.
+	 * @param pPoolSize The maximum number of buffers, which are kept in the pool.
+	 * @param pMaxFileSize The size, after which a new spool file is started, in bytes.
+	 * @param pMaxFiles The maximum number of spool files per run, and stream.
+	 * @param pCompress True, if the spool files are being compressed.
+	 * @param pTailSize The number of bytes, which are kept in memory per run, and
+	 *   stream, for {@link Spool#tail(long)}.
+	 * @param pMaxRuns The number of runs per job, which are kept on disk, or 0
+	 *   for keeping all runs.
+	 */
+	public OutputCapture(Path pDir, int pBufferSize, int pPoolSize, long pMaxFileSize, int pMaxFiles,
+			             boolean pCompress, int pTailSize, int pMaxRuns) {
+		dir = Objects.requireNonNull(pDir, "Directory");
+		if (pBufferSize < 512) {
+			throw new IllegalArgumentException("Invalid buffer size: " + pBufferSize);
+		}
+		if (pPoolSize < 0) {
+			throw new IllegalArgumentException("Invalid pool size: " + pPoolSize);
+		}
+		if (pMaxFileSize < pBufferSize) {
+			throw new IllegalArgumentException("Invalid maximum file size: " + pMaxFileSize);
+		}
+		if (pMaxFiles <= 0) {
+			throw new IllegalArgumentException("Invalid maximum number of files: " + pMaxFiles);
+		}
+		if (pTailSize <= 0) {
+			throw new IllegalArgumentException("Invalid tail size: " + pTailSize);
+		}
+		if (pMaxRuns < 0) {
+			throw new IllegalArgumentException("Invalid maximum number of runs: " + pMaxRuns);
+		}
+		bufferSize = pBufferSize;
+		poolSize = pPoolSize;
+		maxFileSize = pMaxFileSize;
+		maxFiles = pMaxFiles;
+		compress = pCompress;
+		tailSize = pTailSize;
+		maxRuns = pMaxRuns;
+	}
+
+	/** Creates a new instance, which keeps the files of all runs.
+	 * @param pDir The spool directory.
+	 * @param pBufferSize The size of the pooled direct buffers, in bytes.
+	 * @param pPoolSize The maximum number of buffers, which are kept in the pool.
+	 * @param pMaxFileSize The size, after which a new spool file is started, in bytes.
+	 * @param pMaxFiles The maximum number of spool files per run, and stream.
+	 * @param pCompress True, if the spool files are being compressed.
+	 * @param pTailSize The number of bytes, which are kept in memory per run, and
+	 *   stream, for {@link Spool#tail(long)}.
+	 */
+	public OutputCapture(Path pDir, int pBufferSize, int pPoolSize, long pMaxFileSize, int pMaxFiles,
+			             boolean pCompress, int pTailSize) {
+		this(pDir, pBufferSize, pPoolSize, pMaxFileSize, pMaxFiles, pCompress, pTailSize, 0);
+	}
+
+	/** Creates a new instance, which is configured by the following properties:
+	 * <ul>
+	 *   <li>{@code capture.bufferSize}: The size of the pooled direct buffers
+	 *     (default 8192).</li>
+	 *   <li>{@code capture.poolSize}: The maximum number of pooled buffers
+	 *     (default 64).</li>
+	 *   <li>{@code capture.maxFileSize}: The size, after which a new spool
+	 *     file is started (default 10485760).</li>
+	 *   <li>{@code capture.maxFiles}: The maximum number of spool files per
+	 *     run, and stream (default 5).</li>
+	 *   <li>{@code capture.compress}: Whether the spool files are gzip
+	 *     compressed (default false).</li>
+	 *   <li>{@code capture.tailSize}: The number of bytes, which are kept in
+	 *     memory per run, and stream (default 16384).</li>
+	 *   <li>{@code capture.maxRuns}: The number of runs per job, which are
+	 *     kept on disk, or 0 for keeping all runs (default 100).</li>
+	 * </ul>
+	 * @param pDir The spool directory.
+	 * @param pProperties The configuration properties.
+	 * @return The created instance.
+	 */
+	public static OutputCapture of(Path pDir, Properties pProperties) {
+		final Properties props = Objects.requireNonNull(pProperties, "Properties");
+		return new OutputCapture(pDir, Integer.parseInt(props.getProperty("capture.bufferSize", "8192")),
+				Integer.parseInt(props.getProperty("capture.poolSize", "64")),
+				Long.parseLong(props.getProperty("capture.maxFileSize", "10485760")),
+				Integer.parseInt(props.getProperty("capture.maxFiles", "5")),
+				Boolean.parseBoolean(props.getProperty("capture.compress", "false")),
+				Integer.parseInt(props.getProperty("capture.tailSize", "16384")),
+				Integer.parseInt(props.getProperty("capture.maxRuns", "100")));
+	}
+
+	private ByteBuffer acquire() {
+		final ByteBuffer bb = pool.poll();
+		if (bb == null) {
+			return ByteBuffer.allocateDirect(bufferSize);
+		}
+		pooled.decrementAndGet();
+		return bb;
+	}
+
+	private void release(ByteBuffer pBuffer) {
+		if (pooled.incrementAndGet() <= poolSize) {
+			pBuffer.clear();
+			pool.add(pBuffer);
+		} else {
+			pooled.decrementAndGet();
+		}
+	}
+
+	/** Deletes the files of the oldest runs in the given job directory,
+	 * if there are more than {@code maxRuns} runs.
+	 * @param pJobDir The job directory.
+	 * @throws IOException Listing, or deleting the files has failed.
+	 */
+	private void expire(Path pJobDir) throws IOException {
+		if (maxRuns == 0) {
+			return;
+		}
+		final TreeMap<Long,List<Path>> runs = new TreeMap<>();
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(pJobDir)) {
+			for (Path file : files) {
+				final String name = file.getFileName().toString();
+				final int offset = name.indexOf('-');
+				if (offset > 0) {
+					try {
+						final Long runId = Long.valueOf(name.substring(0, offset));
+						runs.computeIfAbsent(runId, (id) -> new ArrayList<>()).add(file);
+					} catch (NumberFormatException e) {
+						// Not a spool file: Ignore it.
+					}
+				}
+			}
+		}
+		while (runs.size() > maxRuns) {
+			final Map.Entry<Long,List<Path>> oldest = runs.pollFirstEntry();
+			for (Path file : oldest.getValue()) {
+				Files.deleteIfExists(file);
+			}
+		}
+	}
+
+	private Path getJobDir(Long pJobId) {
+		return dir.resolve(Objects.requireNonNull(pJobId, "Job id").toString());
+	}
+
+	private static String getName(long pRunId, String pStream) {
+		return pRunId + "-" + Objects.requireNonNull(pStream, "Stream");
+	}
+
+	/** Opens a new spool.
+	 * @param pJobId The id of the job, which is being executed.
+	 * @param pRunId The id of the run, for example its start time, which
+	 *   must be unique per job.
+	 * @param pStream The name of the captured stream, for example "stdout".
+	 * @return The opened spool.
+	 */
+	public Spool open(Long pJobId, long pRunId, String pStream) {
+		return new Spool(getJobDir(pJobId), getName(pRunId, pStream));
+	}
+
+	/** Returns the persisted tail of a closed spool.
+	 * @param pJobId The id of the job, which has been executed.
+	 * @param pRunId The id of the run.
+	 * @param pStream The name of the captured stream.
+	 * @return The persisted tail, or null, if there is no such spool.
+	 */
+	public Tail readTail(Long pJobId, long pRunId, String pStream) {
+		final Path file = getJobDir(pJobId).resolve(getName(pRunId, pStream) + ".tail");
+		try {
+			final ByteBuffer bb = ByteBuffer.wrap(Files.readAllBytes(file));
+			final long offset = bb.getLong();
+			final byte[] data = new byte[bb.remaining()];
+			bb.get(data);
+			return new Tail(offset, data, true);
+		} catch (NoSuchFileException e) {
+			return null;
+		} catch (IOException ioe) {
+			throw new UncheckedIOException(ioe);
+		}
+	}
+}
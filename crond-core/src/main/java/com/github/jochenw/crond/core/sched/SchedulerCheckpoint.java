@@ -0,0 +1,497 @@
+package com.github.jochenw.crond.core.sched;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.LongPredicate;
+
+import com.github.jochenw.afw.core.log.ILog;
+import com.github.jochenw.afw.core.util.Objects;
+import com.github.jochenw.crond.core.impl.ModelPersister;
+
+/** A checkpoint of the {@link JobScheduler schedulers} state, which allows
+ * to re-arm the timers upon restart without recomputing the next fire
+ * times.
+ *
+ * The checkpoint file starts with a header of {@link #HEADER_SIZE} bytes:
+ * The magic number {@link #MAGIC} (int), the format version (int), the
+ * number of records (long), and two reserved longs. The header is followed
+ * by records of {@link #RECORD_SIZE} bytes, sorted by job id: The job id
+ * (long), the next fire time (long, epoch milliseconds), the last fire
+ * time (long, epoch milliseconds, or {@link Long#MIN_VALUE}, if unknown),
+ * and the {@link #hash(String, ZoneId) schedule hash} (long).
+ *
+ * The scheduler reports changes by invoking {@link #update(long, long, long, long)},
+ * and {@link #remove(long)}, which merely collect the changes. The changes
+ * are written in the background by a {@link ModelPersister}, at most once
+ * per configured interval. If only existing records have changed, these
+ * records are overwritten in place. Records are aligned to their size, so
+ * a record never spans a disk sector. Otherwise (jobs have been added, or
+ * removed), the file is rewritten, and replaced atomically. If writing
+ * fails, the file is rewritten by the next run of the background thread,
+ * or by {@link #close()}.
+ */
+public class SchedulerCheckpoint implements AutoCloseable {
+	/** The magic number, which identifies a checkpoint file ("CRNC").
+	 */
+	public static final int MAGIC = 0x43524E43;
+	/** The current format version.
+	 */
+	public static final int VERSION = 1;
+	/** The size of the file header, in bytes.
+	 */
+	public static final int HEADER_SIZE = 32;
+	/** The size of a record, in bytes.
+	 */
+	public static final int RECORD_SIZE = 32;
+	private static final long[] REMOVED = new long[0];
+
+	/** A checkpointed job.
+	 */
+	public static final class Record {
+		private final long jobId, nextFireMillis, lastFireMillis, scheduleHash;
+
+		Record(long pJobId, long pNextFireMillis, long pLastFireMillis, long pScheduleHash) {
+			jobId = pJobId;
+			nextFireMillis = pNextFireMillis;
+			lastFireMillis = pLastFireMillis;
+			scheduleHash = pScheduleHash;
+		}
+
+		/** Returns the job id.
+		 * @return The job id.
+		 */
+		public long getJobId() { return jobId; }
+		/** Returns the next fire time.
+		 * @return The next fire time, in epoch milliseconds.
+		 */
+		public long getNextFireMillis() { return nextFireMillis; }
+		/** Returns the last fire time.
+		 * @return The last fire time, in epoch milliseconds, or
+		 *   {@link Long#MIN_VALUE}, if the job hasn't been fired.
+		 */
+		public long getLastFireMillis() { return lastFireMillis; }
+		/** Returns the schedule hash.
+		 * @return The {@link SchedulerCheckpoint#hash(String, ZoneId) schedule hash}.
+		 */
+		public long getScheduleHash() { return scheduleHash; }
+	}
+
+	private final Path file;
+	private final long intervalMillis;
+	private final ILog log;
+	private final Map<Long,long[]> changes = new ConcurrentHashMap<>();
+	private final Object lock = new Object();
+	// The records, which have been written: Guarded by lock.
+	private long[] ids = new long[0];
+	private long[] values = new long[0];
+	private int size;
+	private boolean rewrite, failed;
+	private FileChannel channel;
+	private volatile ModelPersister persister;
+	private volatile long writes, rewrites;
+
+	/** Creates a new instance.
+	 * @param pFile The checkpoint file.
+	 * @param pIntervalMillis The minimum interval between two writes, in
+	 *   milliseconds.
+	 * @param pLog The logger, which is being used to report write errors,
+	 *   or null.
+	 */
+	public SchedulerCheckpoint(Path pFile, long pIntervalMillis, ILog pLog) {
+		file = Objects.requireNonNull(pFile, "File");
+		if (pIntervalMillis < 0) {
+			throw new IllegalArgumentException("Invalid checkpoint interval: " + pIntervalMillis);
+		}
+		intervalMillis = pIntervalMillis;
+		log = pLog;
+	}
+
+	/** Creates a new instance, which is configured by the given properties:
+	 * "crond.checkpoint.interval" (milliseconds, default 1000).
+	 * @param pFile The checkpoint file.
+	 * @param pProperties The configuration properties.
+	 * @param pLog The logger, which is being used to report write errors,
+	 *   or null.
+	 * @return The created instance.
+	 */
+	public static SchedulerCheckpoint of(Path pFile, Properties pProperties, ILog pLog) {
+		final long interval = Long.parseLong(pProperties.getProperty("crond.checkpoint.interval", "1000"));
+		return new SchedulerCheckpoint(pFile, interval, pLog);
+	}
+
+	/** Returns the hash of the given schedule. The time zone is included,
+	 * because it affects the fire times.
+	 * @param pSchedule The schedule.
+	 * @param pZone The time zone, in which the fire times are computed.
+	 * @return The 64 bit FNV-1a hash of the schedule, and the zone id.
+	 */
+	public static long hash(String pSchedule, ZoneId pZone) {
+		long hash = 0xcbf29ce484222325L;
+		for (byte b : (pSchedule + '\n' + pZone.getId()).getBytes(StandardCharsets.UTF_8)) {
+			hash = (hash ^ (b & 0xff)) * 0x100000001b3L;
+		}
+		return hash;
+	}
+
+	/** Reads the checkpoint file, if it exists, and starts writing changes
+	 * in the background. A checkpoint file, which is invalid, or truncated,
+	 * is ignored, and rewritten with the next change.
+	 * @throws UncheckedIOException Reading the checkpoint file has failed.
+	 */
+	public void open() {
+		synchronized (lock) {
+			size = 0;
+			rewrite = true;
+			if (Files.isRegularFile(file)) {
+				try (FileChannel fc = FileChannel.open(file, StandardOpenOption.READ)) {
+					read(fc);
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			}
+		}
+		if (intervalMillis > 0) {
+			persister = new ModelPersister(ModelPersister.Mode.PERIODIC, intervalMillis, this::flush, log);
+			persister.start();
+		}
+	}
+
+	private void read(FileChannel pChannel) throws IOException {
+		final long fileSize = pChannel.size();
+		if (fileSize < HEADER_SIZE) {
+			return;
+		}
+		final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+		readFully(pChannel, header, 0);
+		header.flip();
+		final long count = (fileSize - HEADER_SIZE) / RECORD_SIZE;
+		if (header.getInt() != MAGIC  ||  header.getInt() != VERSION  ||  header.getLong() != count
+				||  HEADER_SIZE + count * RECORD_SIZE != fileSize) {
+			return;
+		}
+		final int n = (int) count;
+		ids = new long[n];
+		values = new long[3*n];
+		final ByteBuffer buffer = ByteBuffer.allocate(RECORD_SIZE * 1024);
+		long position = HEADER_SIZE;
+		for (int i = 0;  i < n; ) {
+			buffer.clear();
+			buffer.limit(Math.min(buffer.capacity(), (n - i) * RECORD_SIZE));
+			readFully(pChannel, buffer, position);
+			position += buffer.limit();
+			buffer.flip();
+			while (buffer.hasRemaining()) {
+				final long id = buffer.getLong();
+				if (i > 0  &&  id <= ids[i-1]) {
+					// Not sorted: The file is invalid.
+					return;
+				}
+				ids[i] = id;
+				values[3*i] = buffer.getLong();
+				values[3*i+1] = buffer.getLong();
+				values[3*i+2] = buffer.getLong();
+				++i;
+			}
+		}
+		size = n;
+		rewrite = false;
+	}
+
+	private static void readFully(FileChannel pChannel, ByteBuffer pBuffer, long pPosition) throws IOException {
+		long position = pPosition;
+		while (pBuffer.hasRemaining()) {
+			final int res = pChannel.read(pBuffer, position);
+			if (res == -1) {
+				throw new IOException("Unexpected end of file");
+			}
+			position += res;
+		}
+	}
+
+	/** Returns the given jobs checkpointed state, including changes,
+	 * which haven't been written yet.
+	 * @param pJobId The job id.
+	 * @return The jobs state, or null, if the job isn't checkpointed.
+	 */
+	public Record get(long pJobId) {
+		final long[] change = changes.get(Long.valueOf(pJobId));
+		if (change != null) {
+			return change == REMOVED ? null : new Record(pJobId, change[0], change[1], change[2]);
+		}
+		synchronized (lock) {
+			final int i = Arrays.binarySearch(ids, 0, size, pJobId);
+			return i < 0 ? null : new Record(pJobId, values[3*i], values[3*i+1], values[3*i+2]);
+		}
+	}
+
+	/** Records the given jobs state.
+	 * @param pJobId The job id.
+	 * @param pNextFireMillis The next fire time, in epoch milliseconds.
+	 * @param pLastFireMillis The last fire time, in epoch milliseconds, or
+	 *   {@link Long#MIN_VALUE}, if the job hasn't been fired.
+	 * @param pScheduleHash The {@link #hash(String, ZoneId) schedule hash}.
+	 */
+	public void update(long pJobId, long pNextFireMillis, long pLastFireMillis, long pScheduleHash) {
+		changes.put(Long.valueOf(pJobId), new long[] {pNextFireMillis, pLastFireMillis, pScheduleHash});
+		dirty();
+	}
+
+	/** Removes the given jobs state.
+	 * @param pJobId The job id.
+	 */
+	public void remove(long pJobId) {
+		changes.put(Long.valueOf(pJobId), REMOVED);
+		dirty();
+	}
+
+	/** Removes the state of all jobs, which match the given predicate.
+	 * @param pJobIds The predicate, which is applied to the job ids.
+	 */
+	public void removeIf(LongPredicate pJobIds) {
+		final List<Long> removed = new ArrayList<>();
+		synchronized (lock) {
+			for (int i = 0;  i < size;  i++) {
+				if (pJobIds.test(ids[i])) {
+					removed.add(Long.valueOf(ids[i]));
+				}
+			}
+		}
+		changes.forEach((id, change) -> {
+			if (change != REMOVED  &&  pJobIds.test(id.longValue())) {
+				removed.add(id);
+			}
+		});
+		if (!removed.isEmpty()) {
+			for (Long id : removed) {
+				changes.put(id, REMOVED);
+			}
+			dirty();
+		}
+	}
+
+	private void dirty() {
+		final ModelPersister p = persister;
+		if (p != null) {
+			p.dirty();
+		}
+	}
+
+	/** Writes the pending changes. Invoked by the background thread.
+	 * @throws UncheckedIOException Writing the checkpoint file has failed.
+	 */
+	public void flush() {
+		synchronized (lock) {
+			final boolean[] updated = new boolean[size];
+			final boolean[] removed = new boolean[size];
+			final List<long[]> inserted = new ArrayList<>();
+			boolean structural = false;
+			for (Long id : changes.keySet()) {
+				final long[] change = changes.remove(id);
+				if (change == null) {
+					continue;
+				}
+				final int i = Arrays.binarySearch(ids, 0, size, id.longValue());
+				if (change == REMOVED) {
+					if (i >= 0) {
+						removed[i] = true;
+						structural = true;
+					}
+				} else if (i >= 0) {
+					System.arraycopy(change, 0, values, 3*i, 3);
+					updated[i] = true;
+				} else {
+					inserted.add(new long[] {id.longValue(), change[0], change[1], change[2]});
+					structural = true;
+				}
+			}
+			if (structural) {
+				merge(removed, inserted);
+			}
+			try {
+				if (structural  ||  rewrite) {
+					rewriteFile();
+				} else {
+					writeInPlace(updated);
+				}
+				failed = false;
+			} catch (IOException e) {
+				// The in-memory state is complete, but the files state is unknown:
+				// Rewrite the file with the next run, even if nothing changes.
+				// (The persister retries the write.)
+				rewrite = true;
+				failed = true;
+				throw new UncheckedIOException(e);
+			}
+		}
+	}
+
+	private void merge(boolean[] pRemoved, List<long[]> pInserted) {
+		pInserted.sort((r1, r2) -> Long.compare(r1[0], r2[0]));
+		int newSize = size + pInserted.size();
+		for (boolean b : pRemoved) {
+			if (b) {
+				--newSize;
+			}
+		}
+		final long[] newIds = new long[newSize];
+		final long[] newValues = new long[3*newSize];
+		int i = 0, j = 0, k = 0;
+		while (i < size  ||  j < pInserted.size()) {
+			if (j == pInserted.size()  ||  (i < size  &&  ids[i] < pInserted.get(j)[0])) {
+				if (!pRemoved[i]) {
+					newIds[k] = ids[i];
+					System.arraycopy(values, 3*i, newValues, 3*k, 3);
+					++k;
+				}
+				++i;
+			} else {
+				final long[] record = pInserted.get(j++);
+				newIds[k] = record[0];
+				System.arraycopy(record, 1, newValues, 3*k, 3);
+				++k;
+			}
+		}
+		ids = newIds;
+		values = newValues;
+		size = newSize;
+	}
+
+	private void rewriteFile() throws IOException {
+		final Path tmpFile = file.resolveSibling(file.getFileName() + ".tmp");
+		try (FileChannel fc = FileChannel.open(tmpFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING)) {
+			final ByteBuffer buffer = ByteBuffer.allocate(RECORD_SIZE * 1024);
+			buffer.putInt(MAGIC).putInt(VERSION).putLong(size).putLong(0).putLong(0);
+			for (int i = 0;  i < size;  i++) {
+				if (!buffer.hasRemaining()) {
+					write(fc, buffer);
+				}
+				buffer.putLong(ids[i]).putLong(values[3*i]).putLong(values[3*i+1]).putLong(values[3*i+2]);
+			}
+			write(fc, buffer);
+			fc.force(true);
+		}
+		if (channel != null) {
+			channel.close();
+			channel = null;
+		}
+		Files.move(tmpFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		rewrite = false;
+		++rewrites;
+	}
+
+	private void writeInPlace(boolean[] pUpdated) throws IOException {
+		final ByteBuffer buffer = ByteBuffer.allocate(RECORD_SIZE * 1024);
+		long position = -1;
+		for (int i = 0;  i < size;  i++) {
+			if (!pUpdated[i]) {
+				continue;
+			}
+			final long recordPosition = HEADER_SIZE + (long) i * RECORD_SIZE;
+			if (position != -1  &&  (!buffer.hasRemaining()  ||  position + buffer.position() != recordPosition)) {
+				// Not contiguous: Write the current range.
+				writeAt(buffer, position);
+				position = -1;
+			}
+			if (position == -1) {
+				position = recordPosition;
+			}
+			buffer.putLong(ids[i]).putLong(values[3*i]).putLong(values[3*i+1]).putLong(values[3*i+2]);
+		}
+		if (position != -1) {
+			writeAt(buffer, position);
+			channel.force(false);
+			++writes;
+		}
+	}
+
+	private void writeAt(ByteBuffer pBuffer, long pPosition) throws IOException {
+		if (channel == null) {
+			channel = FileChannel.open(file, StandardOpenOption.WRITE);
+		}
+		pBuffer.flip();
+		long position = pPosition;
+		while (pBuffer.hasRemaining()) {
+			position += channel.write(pBuffer, position);
+		}
+		pBuffer.clear();
+	}
+
+	private static void write(FileChannel pChannel, ByteBuffer pBuffer) throws IOException {
+		pBuffer.flip();
+		while (pBuffer.hasRemaining()) {
+			pChannel.write(pBuffer);
+		}
+		pBuffer.clear();
+	}
+
+	/** Stops the background thread, and writes the pending changes.
+	 * Must be invoked after the scheduler has been shut down.
+	 * @throws UncheckedIOException Writing the checkpoint file has failed.
+	 */
+	@Override
+	public void close() {
+		final ModelPersister p = persister;
+		persister = null;
+		if (p != null) {
+			p.shutdown();
+		}
+		final boolean retry;
+		synchronized (lock) {
+			retry = failed;
+		}
+		if (retry  ||  !changes.isEmpty()) {
+			flush();
+		}
+		synchronized (lock) {
+			if (channel != null) {
+				try {
+					channel.close();
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				} finally {
+					channel = null;
+				}
+			}
+		}
+	}
+
+	/** Returns the number of written records, excluding pending changes.
+	 * @return The number of records in the checkpoint file.
+	 */
+	public int getSize() {
+		synchronized (lock) {
+			return size;
+		}
+	}
+
+	/** Returns the number of incremental writes.
+	 * @return The number of times, that changed records have been
+	 *   overwritten in place.
+	 */
+	public long getWrites() {
+		return writes;
+	}
+
+	/** Returns the number of full writes.
+	 * @return The number of times, that the checkpoint file has been
+	 *   rewritten.
+	 */
+	public long getRewrites() {
+		return rewrites;
+	}
+}
@@ -0,0 +1,257 @@
+package com.github.jochenw.crond.core.sched;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+import com.github.jochenw.afw.core.util.Objects;
+
+/** A hierarchical timing wheel, as described by Varghese, and Lauck
+ * ("Hashed and Hierarchical Timing Wheels"). Time is measured in ticks.
+ * There are {@link #LEVELS} wheels of 64 slots each: A timer, whose
+ * deadline is less than 64 ticks ahead, is kept in the first wheel, a
+ * timer, which is less than 64*64 ticks ahead, in the second, and so on.
+ * Whenever the first wheel has completed a round, the timers of the next
+ * slot of the second wheel are redistributed (cascaded) into the first
+ * wheel, and so on.
+ *
+ * Every slot is a doubly linked list of timers, so scheduling, and
+ * cancelling a timer is O(1), and doesn't allocate, if the timer is being
+ * reused. Per wheel, a bitmap of the occupied slots allows to skip empty
+ * slots quickly.
+ *
+ * Instances aren't thread safe: All methods must be invoked by the same
+ * thread (typically, a single ticker thread).
+ * @param <T> The type of the timers payload.
+ */
+public class TimingWheel<T> {
+	/** The number of wheels.
+	 */
+	public static final int LEVELS = 10;
+	private static final int BITS = 6;
+	private static final int SLOTS = 1 << BITS;
+	private static final int MASK = SLOTS - 1;
+	/** The maximum distance of a timers slot from the current tick. Timers,
+	 * which are further ahead, are kept in the last slot of the last wheel
+	 * first, and redistributed, when that slot is reached.
+	 */
+	private static final long MAX_DELTA = (1L << (BITS * LEVELS)) - 1;
+
+	/** A timer, which may be scheduled, cancelled, and rescheduled.
+	 * @param <T> The type of the timers payload.
+	 */
+	public static final class Timer<T> {
+		private final T payload;
+		private long deadline;
+		private int bucket = -1;
+		private Timer<T> prev, next;
+
+		Timer(T pPayload) {
+			payload = pPayload;
+		}
+
+		/** Returns the timers payload.
+		 * @return The timers payload.
+		 */
+		public T getPayload() {
+			return payload;
+		}
+
+		/** Returns the timers deadline.
+		 * @return The tick, in which the timer expires (or has expired).
+		 */
+		public long getDeadline() {
+			return deadline;
+		}
+
+		/** Returns, whether the timer is scheduled, and hasn't expired yet.
+		 * @return True, if the timer is scheduled, and hasn't expired yet.
+		 */
+		public boolean isPending() {
+			return bucket != -1;
+		}
+	}
+
+	/** The list heads (sentinels) of all slots, wheel by wheel.
+	 */
+	private final List<Timer<T>> heads;
+	private final long[] occupied = new long[LEVELS];
+	private long tick;
+	private int size;
+
+	/** Creates a new instance.
+	 * @param pTick The first tick, which is being processed by
+	 *   {@link #advance(long, Consumer)}.
+	 */
+	public TimingWheel(long pTick) {
+		tick = pTick;
+		heads = new ArrayList<>(LEVELS * SLOTS);
+		for (int i = 0;  i < LEVELS * SLOTS;  i++) {
+			final Timer<T> head = new Timer<>(null);
+			head.prev = head;
+			head.next = head;
+			heads.add(head);
+		}
+	}
+
+	/** Creates a new timer, which isn't scheduled yet.
+	 * @param pPayload The timers payload.
+	 * @return The created timer.
+	 */
+	public Timer<T> newTimer(T pPayload) {
+		return new Timer<>(pPayload);
+	}
+
+	/** Schedules the given timer. If the timer is already pending, then it
+	 * is rescheduled.
+	 * @param pTimer The timer, which is being scheduled.
+	 * @param pDeadline The tick, in which the timer expires. A deadline
+	 *   in the past is treated like the next tick, which is being processed.
+	 */
+	public void schedule(Timer<T> pTimer, long pDeadline) {
+		final Timer<T> timer = Objects.requireNonNull(pTimer, "Timer");
+		if (timer.bucket != -1) {
+			unlink(timer);
+		} else {
+			++size;
+		}
+		timer.deadline = pDeadline;
+		link(timer);
+	}
+
+	/** Cancels the given timer.
+	 * @param pTimer The timer, which is being cancelled.
+	 * @return True, if the timer was pending, otherwise false.
+	 */
+	public boolean cancel(Timer<T> pTimer) {
+		if (pTimer.bucket == -1) {
+			return false;
+		}
+		unlink(pTimer);
+		--size;
+		return true;
+	}
+
+	private void link(Timer<T> pTimer) {
+		long d = Math.max(pTimer.deadline, tick);
+		long delta = d - tick;
+		if (delta > MAX_DELTA) {
+			delta = MAX_DELTA;
+			d = tick + MAX_DELTA;
+		}
+		final int level = delta < SLOTS ? 0 : (63 - Long.numberOfLeadingZeros(delta)) / BITS;
+		final int slot = (int) (d >>> (BITS * level)) & MASK;
+		final int bucket = level * SLOTS + slot;
+		final Timer<T> head = heads.get(bucket);
+		pTimer.bucket = bucket;
+		pTimer.next = head;
+		pTimer.prev = head.prev;
+		head.prev.next = pTimer;
+		head.prev = pTimer;
+		occupied[level] |= 1L << slot;
+	}
+
+	private void unlink(Timer<T> pTimer) {
+		final int bucket = pTimer.bucket;
+		pTimer.prev.next = pTimer.next;
+		pTimer.next.prev = pTimer.prev;
+		pTimer.prev = null;
+		pTimer.next = null;
+		pTimer.bucket = -1;
+		final Timer<T> head = heads.get(bucket);
+		if (head.next == head) {
+			occupied[bucket / SLOTS] &= ~(1L << (bucket & MASK));
+		}
+	}
+
+	/** Removes all timers from the given slot.
+	 * @return The first timer of the detached list, or null. The list
+	 *   is terminated by null.
+	 */
+	private Timer<T> detach(int pLevel, int pSlot) {
+		final Timer<T> head = heads.get(pLevel * SLOTS + pSlot);
+		if (head.next == head) {
+			return null;
+		}
+		final Timer<T> first = head.next;
+		head.prev.next = null;
+		head.next = head;
+		head.prev = head;
+		occupied[pLevel] &= ~(1L << pSlot);
+		return first;
+	}
+
+	private void cascade(int pLevel) {
+		if (pLevel >= LEVELS) {
+			return;
+		}
+		final int slot = (int) (tick >>> (BITS * pLevel)) & MASK;
+		if (slot == 0) {
+			cascade(pLevel+1);
+		}
+		Timer<T> timer = detach(pLevel, slot);
+		while (timer != null) {
+			final Timer<T> next = timer.next;
+			link(timer);
+			timer = next;
+		}
+	}
+
+	/** Processes all ticks up to, and including the given tick. Expired
+	 * timers are passed to the given consumer, in the order of their
+	 * deadlines. The consumer may schedule, or cancel timers: Timers,
+	 * which are scheduled for the current tick, or earlier, expire in
+	 * the next tick.
+	 * @param pTick The last tick, which is being processed.
+	 * @param pConsumer The consumer, which is being invoked for the
+	 *   expired timers.
+	 * @return The number of expired timers.
+	 */
+	public int advance(long pTick, Consumer<Timer<T>> pConsumer) {
+		int expired = 0;
+		while (tick <= pTick) {
+			if (size == 0) {
+				tick = pTick + 1;
+				break;
+			}
+			final int slot = (int) tick & MASK;
+			if (slot == 0) {
+				cascade(1);
+			}
+			Timer<T> timer = detach(0, slot);
+			++tick;
+			while (timer != null) {
+				final Timer<T> next = timer.next;
+				timer.prev = null;
+				timer.next = null;
+				timer.bucket = -1;
+				--size;
+				++expired;
+				pConsumer.accept(timer);
+				timer = next;
+			}
+			// Skip the empty slots of the first wheel, up to the end of its round.
+			final int nextSlot = (int) tick & MASK;
+			if (nextSlot != 0) {
+				final long rest = occupied[0] & (-1L << nextSlot);
+				final long nextTick = rest == 0 ? (tick | MASK) + 1 : (tick & ~(long) MASK) | Long.numberOfTrailingZeros(rest);
+				tick = Math.min(nextTick, pTick + 1);
+			}
+		}
+		return expired;
+	}
+
+	/** Returns the next tick, which is being processed.
+	 * @return The next tick, which is being processed.
+	 */
+	public long getTick() {
+		return tick;
+	}
+
+	/** Returns the number of pending timers.
+	 * @return The number of pending timers.
+	 */
+	public int size() {
+		return size;
+	}
+}
@@ -0,0 +1,364 @@
+package com.github.jochenw.crond.core.util;
+
+import java.util.AbstractCollection;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import com.github.jochenw.afw.core.util.Objects;
+
+/** An immutable, persistent map with primitive long keys. Like the
+ * {@link PersistentHashMap}, mutators return a new map, which shares
+ * most of its structure with the original map.
+ *
+ * Internally, the map is a bitmap compressed radix trie, which consumes
+ * the key in groups of 5 bits, with the least significant bits at the
+ * leaves. Keys are neither boxed, nor stored at all: The path through
+ * the trie is the key. This makes the map particularly compact for dense
+ * keys, like sequentially assigned ids, where every leaf holds up to 32
+ * values in a single array. Every node knows the number of values below
+ * it, so that an iteration can start at any position in O(log n) time
+ * (see {@link #iterator(int)}).
+ *
+ * Values must not be null. Keys are treated as unsigned numbers, so
+ * iteration is in ascending order of non-negative keys.
+ * @param <V> The value type.
+ */
+public final class LongObjectMap<V> {
+	/** A consumer for the maps entries.
+	 * @param <V> The value type.
+	 */
+	@FunctionalInterface
+	public interface EntryConsumer<V> {
+		public void accept(long pKey, V pValue);
+	}
+
+	private static final int MAX_SHIFT = 60;
+	private static final LongObjectMap<?> EMPTY = new LongObjectMap<>(null, 0, 0);
+
+	private final Node root;
+	private final int rootShift;
+	private final int size;
+
+	private LongObjectMap(Node pRoot, int pRootShift, int pSize) {
+		root = pRoot;
+		rootShift = pRootShift;
+		size = pSize;
+	}
+
+	/** Returns the empty map.
+	 * @param <V> The value type.
+	 * @return The empty map.
+	 */
+	@SuppressWarnings("unchecked")
+	public static <V> LongObjectMap<V> empty() {
+		return (LongObjectMap<V>) EMPTY;
+	}
+
+	/** Returns the number of entries.
+	 * @return The number of entries.
+	 */
+	public int size() {
+		return size;
+	}
+
+	/** Returns, whether the map is empty.
+	 * @return True, if the map is empty, otherwise false.
+	 */
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	/** Returns the value, which is mapped to the given key, or null.
+	 * @param pKey The key, which is being queried.
+	 * @return The value, which is mapped to the given key, or null.
+	 */
+	@SuppressWarnings("unchecked")
+	public V get(long pKey) {
+		if (root == null  ||  !fits(pKey, rootShift)) {
+			return null;
+		}
+		Node node = root;
+		for (int shift = rootShift;  ;  shift -= 5) {
+			final int bit = bit(pKey, shift);
+			if ((node.bitmap & bit) == 0) {
+				return null;
+			}
+			final Object o = node.slots[node.index(bit)];
+			if (shift == 0) {
+				return (V) o;
+			}
+			node = (Node) o;
+		}
+	}
+
+	/** Returns, whether the map contains the given key.
+	 * @param pKey The key, which is being queried.
+	 * @return True, if the map contains the given key, otherwise false.
+	 */
+	public boolean containsKey(long pKey) {
+		return get(pKey) != null;
+	}
+
+	/** Returns a map, which is the same as this map, except that the
+	 * given key is mapped to the given value.
+	 * @param pKey The key, which is being mapped.
+	 * @param pValue The value, which is being mapped.
+	 * @return The updated map, or this map, if it already contained
+	 *   the given mapping.
+	 */
+	public LongObjectMap<V> put(long pKey, V pValue) {
+		Objects.requireNonNull(pValue, "Value");
+		Node node = root;
+		int shift = rootShift;
+		while (!fits(pKey, shift)) {
+			shift += 5;
+			if (node != null) {
+				// Add a new level above the current root.
+				node = new Node(1, new Object[] {node}, node.size);
+			}
+		}
+		final int[] added = new int[1];
+		final Node newRoot = put(node, shift, pKey, pValue, added);
+		if (newRoot == root) {
+			return this;
+		}
+		return new LongObjectMap<>(newRoot, shift, size + added[0]);
+	}
+
+	/** Returns a map, which is the same as this map, except that the
+	 * given key isn't mapped.
+	 * @param pKey The key, which is being removed.
+	 * @return The updated map, or this map, if it didn't contain the
+	 *   given key.
+	 */
+	public LongObjectMap<V> remove(long pKey) {
+		if (root == null  ||  !fits(pKey, rootShift)) {
+			return this;
+		}
+		final Node newRoot = remove(root, rootShift, pKey);
+		if (newRoot == root) {
+			return this;
+		}
+		if (newRoot == null) {
+			return empty();
+		}
+		return new LongObjectMap<>(newRoot, rootShift, size-1);
+	}
+
+	/** Invokes the given consumer for all entries, in ascending order
+	 * of keys.
+	 * @param pConsumer The consumer, which is being invoked.
+	 */
+	public void forEach(EntryConsumer<? super V> pConsumer) {
+		if (root != null) {
+			forEach(root, rootShift, 0, pConsumer);
+		}
+	}
+
+	/** Returns an iterator over the maps values, in ascending order of
+	 * keys, which skips the given number of leading values. The skipped
+	 * values aren't visited, so this takes O(log n), rather than O(n) time.
+	 * @param pOffset The number of skipped values.
+	 * @return An iterator over the values, which starts at the given position.
+	 */
+	public Iterator<V> iterator(int pOffset) {
+		if (pOffset < 0) {
+			throw new IllegalArgumentException("Invalid offset: " + pOffset);
+		}
+		return new ValueIterator<>(root, rootShift, pOffset);
+	}
+
+	/** Returns an unmodifiable view of the maps values, in ascending
+	 * order of keys.
+	 * @return An unmodifiable view of the maps values.
+	 */
+	public Collection<V> values() {
+		return new AbstractCollection<V>() {
+			@Override
+			public Iterator<V> iterator() {
+				return new ValueIterator<>(root, rootShift, 0);
+			}
+
+			@Override
+			public int size() {
+				return size;
+			}
+		};
+	}
+
+	private static boolean fits(long pKey, int pShift) {
+		return pShift >= MAX_SHIFT  ||  (pKey >>> (pShift+5)) == 0;
+	}
+
+	private static int bit(long pKey, int pShift) {
+		return 1 << (((int) (pKey >>> pShift)) & 31);
+	}
+
+	private static Node put(Node pNode, int pShift, long pKey, Object pValue, int[] pAdded) {
+		final int bit = bit(pKey, pShift);
+		final Node node = pNode == null ? Node.EMPTY : pNode;
+		final int idx = node.index(bit);
+		if ((node.bitmap & bit) == 0) {
+			final Object o;
+			if (pShift == 0) {
+				pAdded[0] = 1;
+				o = pValue;
+			} else {
+				o = put(null, pShift-5, pKey, pValue, pAdded);
+			}
+			final Object[] slots = new Object[node.slots.length+1];
+			System.arraycopy(node.slots, 0, slots, 0, idx);
+			slots[idx] = o;
+			System.arraycopy(node.slots, idx, slots, idx+1, node.slots.length-idx);
+			return new Node(node.bitmap | bit, slots, node.size+1);
+		}
+		final Object current = node.slots[idx];
+		final Object o;
+		if (pShift == 0) {
+			o = pValue;
+		} else {
+			o = put((Node) current, pShift-5, pKey, pValue, pAdded);
+		}
+		if (o == current) {
+			return node;
+		}
+		final Object[] slots = node.slots.clone();
+		slots[idx] = o;
+		return new Node(node.bitmap, slots, node.size + pAdded[0]);
+	}
+
+	private static Node remove(Node pNode, int pShift, long pKey) {
+		final int bit = bit(pKey, pShift);
+		if ((pNode.bitmap & bit) == 0) {
+			return pNode;
+		}
+		final int idx = pNode.index(bit);
+		if (pShift > 0) {
+			final Node child = (Node) pNode.slots[idx];
+			final Node newChild = remove(child, pShift-5, pKey);
+			if (newChild == child) {
+				return pNode;
+			}
+			if (newChild != null) {
+				final Object[] slots = pNode.slots.clone();
+				slots[idx] = newChild;
+				return new Node(pNode.bitmap, slots, pNode.size-1);
+			}
+		}
+		if (pNode.bitmap == bit) {
+			return null;
+		}
+		final Object[] slots = new Object[pNode.slots.length-1];
+		System.arraycopy(pNode.slots, 0, slots, 0, idx);
+		System.arraycopy(pNode.slots, idx+1, slots, idx, slots.length-idx);
+		return new Node(pNode.bitmap & ~bit, slots, pNode.size-1);
+	}
+
+	@SuppressWarnings("unchecked")
+	private static <V> void forEach(Node pNode, int pShift, long pPrefix, EntryConsumer<V> pConsumer) {
+		int bitmap = pNode.bitmap;
+		for (int i = 0;  bitmap != 0;  i++) {
+			final int digit = Integer.numberOfTrailingZeros(bitmap);
+			bitmap &= bitmap-1;
+			final long key = pPrefix | (((long) digit) << pShift);
+			if (pShift == 0) {
+				pConsumer.accept(key, (V) pNode.slots[i]);
+			} else {
+				forEach((Node) pNode.slots[i], pShift-5, key, pConsumer);
+			}
+		}
+	}
+
+	/** A trie node. At the leaf level, the slots contain values,
+	 * otherwise child nodes.
+	 */
+	private static final class Node {
+		static final Node EMPTY = new Node(0, new Object[0], 0);
+		final int bitmap;
+		final Object[] slots;
+		/** The number of values below this node.
+		 */
+		final int size;
+
+		Node(int pBitmap, Object[] pSlots, int pSize) {
+			bitmap = pBitmap;
+			slots = pSlots;
+			size = pSize;
+		}
+
+		int index(int pBit) {
+			return Integer.bitCount(bitmap & (pBit-1));
+		}
+	}
+
+	private static final class ValueIterator<V> implements Iterator<V> {
+		private final Object[][] slots = new Object[14][];
+		private final int[] positions = new int[14];
+		private final int leafDepth;
+		private int depth;
+		private Object next;
+
+		ValueIterator(Node pRoot, int pRootShift, int pOffset) {
+			leafDepth = pRootShift/5;
+			if (pRoot == null  ||  pOffset >= pRoot.size) {
+				depth = -1;
+			} else {
+				// Descend to the leaf, which contains the value at the given
+				// position, skipping the preceding subtrees as a whole.
+				int skip = pOffset;
+				Node node = pRoot;
+				slots[0] = node.slots;
+				for (depth = 0;  depth < leafDepth;  depth++) {
+					int i = 0;
+					while (skip >= ((Node) node.slots[i]).size) {
+						skip -= ((Node) node.slots[i]).size;
+						++i;
+					}
+					positions[depth] = i+1;
+					node = (Node) node.slots[i];
+					slots[depth+1] = node.slots;
+				}
+				positions[depth] = skip;
+			}
+			advance();
+		}
+
+		private void advance() {
+			next = null;
+			while (depth >= 0) {
+				final Object[] array = slots[depth];
+				final int pos = positions[depth];
+				if (pos >= array.length) {
+					slots[depth] = null;
+					--depth;
+					continue;
+				}
+				positions[depth] = pos+1;
+				if (depth == leafDepth) {
+					next = array[pos];
+					return;
+				}
+				++depth;
+				slots[depth] = ((Node) array[pos]).slots;
+				positions[depth] = 0;
+			}
+		}
+
+		@Override
+		public boolean hasNext() {
+			return next != null;
+		}
+
+		@Override
+		@SuppressWarnings("unchecked")
+		public V next() {
+			if (next == null) {
+				throw new NoSuchElementException();
+			}
+			final V v = (V) next;
+			advance();
+			return v;
+		}
+	}
+}
@@ -0,0 +1,254 @@
+package com.github.jochenw.crond.core.util;
+
+import java.nio.ByteBuffer;
+import java.util.function.LongConsumer;
+import java.util.function.LongPredicate;
+
+/** A hash index, which maps 64 bit hash codes to positive long values
+ * (typically record references), and which keeps its table outside of
+ * the Java heap, in a direct {@link ByteBuffer}. The heap footprint is
+ * therefore constant, regardless of the number of entries.
+ *
+ * The index is a multimap: The same hash code may be mapped to multiple
+ * values, either because of hash collisions, or intentionally (for
+ * example, a users id, mapped to all of the users jobs). Callers are
+ * expected to verify the candidate values, which are returned by
+ * {@link #find(long, LongPredicate)}, and {@link #forEach(long, LongConsumer)}.
+ *
+ * The table uses open addressing with linear probing. Every slot consists
+ * of the hash code, and the value (16 bytes). A value of zero denotes an
+ * empty slot, a value of -1 denotes a removed entry (tombstone).
+ *
+ * Instances aren't thread safe. Concurrent readers are fine, as long as
+ * there is no concurrent writer.
+ */
+public class OffHeapHashIndex {
+	private static final int SLOT_SIZE = 16;
+	private static final long EMPTY = 0;
+	private static final long REMOVED = -1;
+
+	private ByteBuffer table;
+	private int mask;
+	private int size, used;
+
+	/** Creates a new instance with the given initial capacity.
+	 * @param pInitialCapacity The initial number of entries, that the
+	 *   index can hold without growing.
+	 */
+	public OffHeapHashIndex(int pInitialCapacity) {
+		if (pInitialCapacity < 0) {
+			throw new IllegalArgumentException("Invalid initial capacity: " + pInitialCapacity);
+		}
+		allocate(tableSizeFor(pInitialCapacity));
+	}
+
+	/** Creates a new instance with a default initial capacity.
+	 */
+	public OffHeapHashIndex() {
+		this(1024);
+	}
+
+	private static int tableSizeFor(int pCapacity) {
+		// Keep the load factor below 0.5
+		final long slots = Math.max(16, Long.highestOneBit(Math.max(1, (long) pCapacity) * 2 - 1) * 2);
+		if (slots > Integer.MAX_VALUE / SLOT_SIZE) {
+			throw new IllegalStateException("Capacity exceeded: " + pCapacity);
+		}
+		return (int) slots;
+	}
+
+	private void allocate(int pSlots) {
+		table = ByteBuffer.allocateDirect(pSlots * SLOT_SIZE);
+		mask = pSlots - 1;
+		size = 0;
+		used = 0;
+	}
+
+	/** Returns the number of entries.
+	 * @return The number of entries.
+	 */
+	public int size() {
+		return size;
+	}
+
+	/** Returns the number of bytes, which are allocated outside the heap.
+	 * @return The number of bytes, which are allocated outside the heap.
+	 */
+	public long getOffHeapBytes() {
+		return table.capacity();
+	}
+
+	/** Spreads the bits of the given hash code over the table index.
+	 * @param pHash The hash code.
+	 * @return The mixed hash code.
+	 */
+	public static long mix(long pHash) {
+		long h = pHash;
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+
+	/** Returns a 64 bit hash code of the given string.
+	 * @param pValue The string, which is being hashed.
+	 * @return The hash code.
+	 */
+	public static long hash(String pValue) {
+		long h = 0xcbf29ce484222325L;
+		for (int i = 0;  i < pValue.length();  i++) {
+			h ^= pValue.charAt(i);
+			h *= 0x100000001b3L;
+		}
+		return h;
+	}
+
+	private int slotOf(long pHash) {
+		return (int) mix(pHash) & mask;
+	}
+
+	/** Adds a mapping of the given hash code to the given value.
+	 * @param pHash The hash code.
+	 * @param pValue The value, which must be positive.
+	 */
+	public void put(long pHash, long pValue) {
+		if (pValue <= 0) {
+			throw new IllegalArgumentException("Invalid value: " + pValue);
+		}
+		if ((used+1) * 2 > mask+1) {
+			rehash(size+1);
+		}
+		int slot = slotOf(pHash);
+		for (;;) {
+			final int offset = slot * SLOT_SIZE;
+			final long v = table.getLong(offset+8);
+			if (v == EMPTY  ||  v == REMOVED) {
+				if (v == EMPTY) {
+					++used;
+				}
+				table.putLong(offset, pHash);
+				table.putLong(offset+8, pValue);
+				++size;
+				return;
+			}
+			slot = (slot+1) & mask;
+		}
+	}
+
+	/** Removes the mapping of the given hash code to the given value.
+	 * @param pHash The hash code.
+	 * @param pValue The value.
+	 * @return True, if the mapping has been removed, false, if it didn't exist.
+	 */
+	public boolean remove(long pHash, long pValue) {
+		int slot = slotOf(pHash);
+		for (;;) {
+			final int offset = slot * SLOT_SIZE;
+			final long v = table.getLong(offset+8);
+			if (v == EMPTY) {
+				return false;
+			}
+			if (v == pValue  &&  table.getLong(offset) == pHash) {
+				table.putLong(offset+8, REMOVED);
+				--size;
+				return true;
+			}
+			slot = (slot+1) & mask;
+		}
+	}
+
+	/** Replaces the mapping of the given hash code to the given old value
+	 * with a mapping to the given new value.
+	 * @param pHash The hash code.
+	 * @param pOldValue The old value.
+	 * @param pNewValue The new value, which must be positive.
+	 * @return True, if the mapping has been replaced, false, if no mapping
+	 *   to the old value existed. In the latter case, the index is unchanged.
+	 */
+	public boolean replace(long pHash, long pOldValue, long pNewValue) {
+		if (pNewValue <= 0) {
+			throw new IllegalArgumentException("Invalid value: " + pNewValue);
+		}
+		int slot = slotOf(pHash);
+		for (;;) {
+			final int offset = slot * SLOT_SIZE;
+			final long v = table.getLong(offset+8);
+			if (v == EMPTY) {
+				return false;
+			}
+			if (v == pOldValue  &&  table.getLong(offset) == pHash) {
+				table.putLong(offset+8, pNewValue);
+				return true;
+			}
+			slot = (slot+1) & mask;
+		}
+	}
+
+	/** Returns the first value, which is mapped to the given hash code,
+	 * and accepted by the given predicate.
+	 * @param pHash The hash code.
+	 * @param pPredicate The predicate, which verifies the candidate values.
+	 * @return The first accepted value, or zero, if no value was accepted.
+	 */
+	public long find(long pHash, LongPredicate pPredicate) {
+		int slot = slotOf(pHash);
+		for (;;) {
+			final int offset = slot * SLOT_SIZE;
+			final long v = table.getLong(offset+8);
+			if (v == EMPTY) {
+				return 0;
+			}
+			if (v != REMOVED  &&  table.getLong(offset) == pHash  &&  pPredicate.test(v)) {
+				return v;
+			}
+			slot = (slot+1) & mask;
+		}
+	}
+
+	/** Invokes the given consumer for all values, which are mapped to the
+	 * given hash code.
+	 * @param pHash The hash code.
+	 * @param pConsumer The consumer, which is being invoked.
+	 */
+	public void forEach(long pHash, LongConsumer pConsumer) {
+		int slot = slotOf(pHash);
+		for (;;) {
+			final int offset = slot * SLOT_SIZE;
+			final long v = table.getLong(offset+8);
+			if (v == EMPTY) {
+				return;
+			}
+			if (v != REMOVED  &&  table.getLong(offset) == pHash) {
+				pConsumer.accept(v);
+			}
+			slot = (slot+1) & mask;
+		}
+	}
+
+	/** Invokes the given consumer for all values in the index.
+	 * @param pConsumer The consumer, which is being invoked.
+	 */
+	public void forEachValue(LongConsumer pConsumer) {
+		for (int slot = 0;  slot <= mask;  slot++) {
+			final long v = table.getLong(slot * SLOT_SIZE + 8);
+			if (v != EMPTY  &&  v != REMOVED) {
+				pConsumer.accept(v);
+			}
+		}
+	}
+
+	private void rehash(int pMinSize) {
+		final ByteBuffer oldTable = table;
+		final int oldSlots = mask+1;
+		// Grow, unless most of the used slots are tombstones.
+		allocate(pMinSize * 2 > oldSlots / 2 ? tableSizeFor(Math.max(pMinSize, oldSlots)) : oldSlots);
+		for (int slot = 0;  slot < oldSlots;  slot++) {
+			final long v = oldTable.getLong(slot * SLOT_SIZE + 8);
+			if (v != EMPTY  &&  v != REMOVED) {
+				put(oldTable.getLong(slot * SLOT_SIZE), v);
+			}
+		}
+	}
+}
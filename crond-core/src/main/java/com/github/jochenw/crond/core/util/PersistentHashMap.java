@@ -0,0 +1,411 @@
+package com.github.jochenw.crond.core.util;
+
+import java.util.AbstractCollection;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.function.BiConsumer;
+
+import com.github.jochenw.afw.core.util.Objects;
+
+/** An immutable, persistent hash map (a hash array mapped trie).
+ * Mutators return a new map, which shares most of its structure with
+ * the original map, so that updates are O(log n), and the original
+ * map remains valid, and unchanged. Instances can therefore be read
+ * by any number of threads without locking.
+ *
+ * Neither keys, nor values, may be null.
+ * @param <K> The key type.
+ * @param <V> The value type.
+ */
+public final class PersistentHashMap<K,V> {
+	private static final PersistentHashMap<?,?> EMPTY = new PersistentHashMap<>(null, 0);
+
+	private final Node root;
+	private final int size;
+
+	private PersistentHashMap(Node pRoot, int pSize) {
+		root = pRoot;
+		size = pSize;
+	}
+
+	/** Returns the empty map.
+	 * @param <K> The key type.
+	 * @param <V> The value type.
+	 * @return The empty map.
+	 */
+	@SuppressWarnings("unchecked")
+	public static <K,V> PersistentHashMap<K,V> empty() {
+		return (PersistentHashMap<K,V>) EMPTY;
+	}
+
+	/** Returns the number of entries.
+	 * @return The number of entries.
+	 */
+	public int size() {
+		return size;
+	}
+
+	/** Returns, whether the map is empty.
+	 * @return True, if the map is empty, otherwise false.
+	 */
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	/** Returns the value, which is mapped to the given key, or null.
+	 * @param pKey The key, which is being queried.
+	 * @return The value, which is mapped to the given key, or null.
+	 */
+	@SuppressWarnings("unchecked")
+	public V get(Object pKey) {
+		if (root == null) {
+			return null;
+		}
+		return (V) root.get(0, hash(pKey), pKey);
+	}
+
+	/** Returns, whether the map contains the given key.
+	 * @param pKey The key, which is being queried.
+	 * @return True, if the map contains the given key, otherwise false.
+	 */
+	public boolean containsKey(Object pKey) {
+		return get(pKey) != null;
+	}
+
+	/** Returns a map, which is the same as this map, except that the
+	 * given key is mapped to the given value.
+	 * @param pKey The key, which is being mapped.
+	 * @param pValue The value, which is being mapped.
+	 * @return The updated map, or this map, if it already contained
+	 *   the given mapping.
+	 */
+	public PersistentHashMap<K,V> put(K pKey, V pValue) {
+		Objects.requireNonNull(pKey, "Key");
+		Objects.requireNonNull(pValue, "Value");
+		final int[] added = new int[1];
+		final Node node = root == null ? BitmapNode.EMPTY : root;
+		final Node newRoot = node.put(0, hash(pKey), pKey, pValue, added);
+		if (newRoot == root) {
+			return this;
+		}
+		return new PersistentHashMap<>(newRoot, size + added[0]);
+	}
+
+	/** Returns a map, which is the same as this map, except that the
+	 * given key isn't mapped.
+	 * @param pKey The key, which is being removed.
+	 * @return The updated map, or this map, if it didn't contain the
+	 *   given key.
+	 */
+	public PersistentHashMap<K,V> remove(Object pKey) {
+		if (root == null) {
+			return this;
+		}
+		final Node newRoot = root.remove(0, hash(pKey), pKey);
+		if (newRoot == root) {
+			return this;
+		}
+		if (newRoot == null) {
+			return empty();
+		}
+		return new PersistentHashMap<>(newRoot, size-1);
+	}
+
+	/** Invokes the given consumer for all entries.
+	 * @param pConsumer The consumer, which is being invoked.
+	 */
+	@SuppressWarnings("unchecked")
+	public void forEach(BiConsumer<? super K, ? super V> pConsumer) {
+		if (root != null) {
+			root.forEach((BiConsumer<Object,Object>) pConsumer);
+		}
+	}
+
+	/** Returns an unmodifiable view of the maps values.
+	 * @return An unmodifiable view of the maps values.
+	 */
+	public Collection<V> values() {
+		return new AbstractCollection<V>() {
+			@Override
+			public Iterator<V> iterator() {
+				return new ValueIterator<>(root);
+			}
+
+			@Override
+			public int size() {
+				return size;
+			}
+		};
+	}
+
+	private static int hash(Object pKey) {
+		final int h = pKey.hashCode();
+		return h ^ (h >>> 16);
+	}
+
+	private static int bit(int pHash, int pShift) {
+		return 1 << ((pHash >>> pShift) & 31);
+	}
+
+	private static Object[] insertPair(Object[] pArray, int pIndex, Object pKey, Object pValue) {
+		final Object[] array = new Object[pArray.length + 2];
+		System.arraycopy(pArray, 0, array, 0, 2*pIndex);
+		array[2*pIndex] = pKey;
+		array[2*pIndex+1] = pValue;
+		System.arraycopy(pArray, 2*pIndex, array, 2*pIndex+2, pArray.length - 2*pIndex);
+		return array;
+	}
+
+	private static Object[] removePair(Object[] pArray, int pIndex) {
+		final Object[] array = new Object[pArray.length - 2];
+		System.arraycopy(pArray, 0, array, 0, 2*pIndex);
+		System.arraycopy(pArray, 2*pIndex+2, array, 2*pIndex, array.length - 2*pIndex);
+		return array;
+	}
+
+	private static Object[] replace(Object[] pArray, int pIndex, Object pValue) {
+		final Object[] array = pArray.clone();
+		array[pIndex] = pValue;
+		return array;
+	}
+
+	/** A trie node. The array contains pairs of key, and value, or, in the
+	 * case of a {@link BitmapNode}, pairs of null, and a child node.
+	 */
+	private abstract static class Node {
+		final Object[] array;
+
+		Node(Object[] pArray) {
+			array = pArray;
+		}
+
+		abstract Object get(int pShift, int pHash, Object pKey);
+		abstract Node put(int pShift, int pHash, Object pKey, Object pValue, int[] pAdded);
+		abstract Node remove(int pShift, int pHash, Object pKey);
+
+		void forEach(BiConsumer<Object,Object> pConsumer) {
+			for (int i = 0;  i < array.length;  i += 2) {
+				final Object key = array[i];
+				if (key == null) {
+					((Node) array[i+1]).forEach(pConsumer);
+				} else {
+					pConsumer.accept(key, array[i+1]);
+				}
+			}
+		}
+	}
+
+	private static final class BitmapNode extends Node {
+		static final BitmapNode EMPTY = new BitmapNode(0, new Object[0]);
+		final int bitmap;
+
+		BitmapNode(int pBitmap, Object[] pArray) {
+			super(pArray);
+			bitmap = pBitmap;
+		}
+
+		private int index(int pBit) {
+			return Integer.bitCount(bitmap & (pBit-1));
+		}
+
+		@Override
+		Object get(int pShift, int pHash, Object pKey) {
+			final int bit = bit(pHash, pShift);
+			if ((bitmap & bit) == 0) {
+				return null;
+			}
+			final int idx = index(bit);
+			final Object key = array[2*idx];
+			final Object value = array[2*idx+1];
+			if (key == null) {
+				return ((Node) value).get(pShift+5, pHash, pKey);
+			} else if (pKey.equals(key)) {
+				return value;
+			} else {
+				return null;
+			}
+		}
+
+		@Override
+		Node put(int pShift, int pHash, Object pKey, Object pValue, int[] pAdded) {
+			final int bit = bit(pHash, pShift);
+			final int idx = index(bit);
+			if ((bitmap & bit) == 0) {
+				pAdded[0] = 1;
+				return new BitmapNode(bitmap | bit, insertPair(array, idx, pKey, pValue));
+			}
+			final Object key = array[2*idx];
+			final Object value = array[2*idx+1];
+			if (key == null) {
+				final Node node = (Node) value;
+				final Node newNode = node.put(pShift+5, pHash, pKey, pValue, pAdded);
+				if (newNode == node) {
+					return this;
+				}
+				return new BitmapNode(bitmap, replace(array, 2*idx+1, newNode));
+			}
+			if (pKey.equals(key)) {
+				if (pValue == value) {
+					return this;
+				}
+				return new BitmapNode(bitmap, replace(array, 2*idx+1, pValue));
+			}
+			pAdded[0] = 1;
+			final Node newNode = createNode(pShift+5, key, value, pHash, pKey, pValue);
+			final Object[] newArray = array.clone();
+			newArray[2*idx] = null;
+			newArray[2*idx+1] = newNode;
+			return new BitmapNode(bitmap, newArray);
+		}
+
+		@Override
+		Node remove(int pShift, int pHash, Object pKey) {
+			final int bit = bit(pHash, pShift);
+			if ((bitmap & bit) == 0) {
+				return this;
+			}
+			final int idx = index(bit);
+			final Object key = array[2*idx];
+			final Object value = array[2*idx+1];
+			if (key == null) {
+				final Node node = (Node) value;
+				final Node newNode = node.remove(pShift+5, pHash, pKey);
+				if (newNode == node) {
+					return this;
+				}
+				if (newNode != null) {
+					return new BitmapNode(bitmap, replace(array, 2*idx+1, newNode));
+				}
+			} else if (!pKey.equals(key)) {
+				return this;
+			}
+			if (bitmap == bit) {
+				return null;
+			}
+			return new BitmapNode(bitmap & ~bit, removePair(array, idx));
+		}
+
+		private static Node createNode(int pShift, Object pKey1, Object pValue1, int pHash2, Object pKey2, Object pValue2) {
+			final int hash1 = hash(pKey1);
+			if (hash1 == pHash2) {
+				return new CollisionNode(hash1, new Object[] {pKey1, pValue1, pKey2, pValue2});
+			}
+			final int[] added = new int[1];
+			return EMPTY.put(pShift, hash1, pKey1, pValue1, added)
+					.put(pShift, pHash2, pKey2, pValue2, added);
+		}
+	}
+
+	/** A node, which contains keys with the same hash value.
+	 */
+	private static final class CollisionNode extends Node {
+		final int hash;
+
+		CollisionNode(int pHash, Object[] pArray) {
+			super(pArray);
+			hash = pHash;
+		}
+
+		private int find(Object pKey) {
+			for (int i = 0;  i < array.length;  i += 2) {
+				if (pKey.equals(array[i])) {
+					return i;
+				}
+			}
+			return -1;
+		}
+
+		@Override
+		Object get(int pShift, int pHash, Object pKey) {
+			final int i = find(pKey);
+			return i == -1 ? null : array[i+1];
+		}
+
+		@Override
+		Node put(int pShift, int pHash, Object pKey, Object pValue, int[] pAdded) {
+			if (pHash != hash) {
+				// Nest this node into a bitmap node, which can distinguish the hashes.
+				return new BitmapNode(bit(hash, pShift), new Object[] {null, this})
+						.put(pShift, pHash, pKey, pValue, pAdded);
+			}
+			final int i = find(pKey);
+			if (i == -1) {
+				pAdded[0] = 1;
+				return new CollisionNode(hash, insertPair(array, array.length/2, pKey, pValue));
+			}
+			if (array[i+1] == pValue) {
+				return this;
+			}
+			return new CollisionNode(hash, replace(array, i+1, pValue));
+		}
+
+		@Override
+		Node remove(int pShift, int pHash, Object pKey) {
+			final int i = find(pKey);
+			if (i == -1) {
+				return this;
+			}
+			if (array.length == 2) {
+				return null;
+			}
+			return new CollisionNode(hash, removePair(array, i/2));
+		}
+	}
+
+	private static final class ValueIterator<V> implements Iterator<V> {
+		private final Object[][] arrays = new Object[16][];
+		private final int[] positions = new int[16];
+		private int depth;
+		private Object next;
+
+		ValueIterator(Node pRoot) {
+			if (pRoot == null) {
+				depth = -1;
+			} else {
+				arrays[0] = pRoot.array;
+			}
+			advance();
+		}
+
+		private void advance() {
+			next = null;
+			while (depth >= 0) {
+				final Object[] array = arrays[depth];
+				final int pos = positions[depth];
+				if (pos >= array.length) {
+					arrays[depth] = null;
+					--depth;
+					continue;
+				}
+				positions[depth] = pos + 2;
+				final Object key = array[pos];
+				final Object value = array[pos+1];
+				if (key == null) {
+					++depth;
+					arrays[depth] = ((Node) value).array;
+					positions[depth] = 0;
+				} else {
+					next = value;
+					return;
+				}
+			}
+		}
+
+		@Override
+		public boolean hasNext() {
+			return next != null;
+		}
+
+		@Override
+		@SuppressWarnings("unchecked")
+		public V next() {
+			if (next == null) {
+				throw new NoSuchElementException();
+			}
+			final V v = (V) next;
+			advance();
+			return v;
+		}
+	}
+}
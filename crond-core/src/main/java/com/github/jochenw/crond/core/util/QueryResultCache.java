@@ -0,0 +1,689 @@
+package com.github.jochenw.crond.core.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.function.Function;
+import java.util.function.LongFunction;
+import java.util.function.Predicate;
+import java.util.function.ToIntFunction;
+
+import com.github.jochenw.afw.core.util.Objects;
+import com.github.jochenw.crond.core.api.IModel;
+import com.github.jochenw.crond.core.api.ModelQuery;
+
+/** A cache of query results, which keeps the complete, filtered, and
+ * sorted list of ids per query, so that counting the results, and
+ * fetching any page of them, share a single query execution. Pages are
+ * resolved by looking up the objects by id, so the returned objects are
+ * always current.
+ *
+ * A result, which would consume more than half of {@code maxBytes}, isn't
+ * kept as a whole, if a counter, and a {@link Pager} are configured.
+ * Instead, the cache keeps the number of results, and a window of
+ * {@code windowSize} ids around the requested page, which are obtained
+ * by a count query, and a paged query. A fetch outside the window
+ * executes another paged query.
+ *
+ * Entries are evicted in LRU order, if there are more than
+ * {@code maxEntries} entries, or if the entries consume more than
+ * {@code maxBytes} bytes. The cache is kept up to date by invoking
+ * {@link #added(Object)}, {@link #updated(Object)}, {@link #deleted(Object)},
+ * and {@link #clear()} from the corresponding {@link IModel.Listener}
+ * methods: Instead of discarding the cached results, these methods
+ * patch the id lists by inserting, moving, or removing the affected id.
+ * Likewise, a window is patched by moving it, or by adjusting the number
+ * of results, if the changed object is before, or after the window. Only
+ * if an object, which is not in the window, has been updated, its previous
+ * position is unknown, and the window is discarded (and fetched again,
+ * when it is requested).
+ *
+ * Instances are thread safe.
+ * @param <O> The object type.
+ * @param <Q> The query type. Queries are used as cache keys, so they
+ *   are supposed to have neither an offset, nor a limit.
+ */
+public class QueryResultCache<O,Q extends ModelQuery<O,?>> {
+	private static final int ENTRY_OVERHEAD = 128;
+	private static final long[] NO_IDS = new long[0];
+
+	/** Executes a paged query.
+	 * @param <O> The object type.
+	 * @param <Q> The query type.
+	 */
+	@FunctionalInterface
+	public interface Pager<O,Q> {
+		/** Returns a page of the results of the given query.
+		 * @param pQuery The query, which has neither an offset, nor a limit.
+		 * @param pOffset The number of skipped results.
+		 * @param pLimit The maximum number of returned results.
+		 * @return The requested page.
+		 */
+		public List<O> fetch(Q pQuery, int pOffset, int pLimit);
+	}
+
+	/** An index of the positions of the ids within an entry: An open
+	 * addressing hash table with linear probing, whose slots hold a
+	 * position + 1, or 0 (empty slot). The ids are taken from the entries
+	 * id array, so a slot takes four bytes.
+	 */
+	private static final class PositionIndex {
+		private int[] slots;
+		private int mask;
+
+		PositionIndex(long[] pIds) {
+			rebuild(pIds);
+		}
+
+		private void rebuild(long[] pIds) {
+			int capacity = 16;
+			while (capacity < 2 * pIds.length) {
+				capacity <<= 1;
+			}
+			slots = new int[capacity];
+			mask = capacity - 1;
+			for (int i = 0;  i < pIds.length;  i++) {
+				add(pIds, i);
+			}
+		}
+
+		private int home(long pId) {
+			return (int) ((pId * 0x9E3779B97F4A7C15L) >>> 32) & mask;
+		}
+
+		private void add(long[] pIds, int pPosition) {
+			int slot = home(pIds[pPosition]);
+			while (slots[slot] != 0) {
+				slot = (slot + 1) & mask;
+			}
+			slots[slot] = pPosition + 1;
+		}
+
+		int indexOf(long[] pIds, long pId) {
+			for (int slot = home(pId);  ;  slot = (slot + 1) & mask) {
+				final int position = slots[slot];
+				if (position == 0) {
+					return -1;
+				} else if (pIds[position-1] == pId) {
+					return position-1;
+				}
+			}
+		}
+
+		/** Called, after an id has been inserted at the given position.
+		 * @param pIds The new id array.
+		 * @param pPosition The position of the inserted id.
+		 */
+		void inserted(long[] pIds, int pPosition) {
+			if (2 * pIds.length > slots.length) {
+				rebuild(pIds);
+				return;
+			}
+			for (int i = 0;  i < slots.length;  i++) {
+				if (slots[i] > pPosition) {
+					++slots[i];
+				}
+			}
+			add(pIds, pPosition);
+		}
+
+		/** Called, before the id at the given position is removed.
+		 * @param pIds The old id array, which still contains the id.
+		 * @param pPosition The position of the removed id.
+		 */
+		void removing(long[] pIds, int pPosition) {
+			int hole = home(pIds[pPosition]);
+			while (slots[hole] != pPosition + 1) {
+				hole = (hole + 1) & mask;
+			}
+			// Backward shift deletion: Move the following slots of the
+			// probe sequence into the hole, unless that would put them
+			// before their home slot.
+			for (int slot = (hole + 1) & mask;  slots[slot] != 0;  slot = (slot + 1) & mask) {
+				final int home = home(pIds[slots[slot]-1]);
+				if (((slot - home) & mask) >= ((slot - hole) & mask)) {
+					slots[hole] = slots[slot];
+					hole = slot;
+				}
+			}
+			slots[hole] = 0;
+			for (int i = 0;  i < slots.length;  i++) {
+				if (slots[i] > pPosition + 1) {
+					--slots[i];
+				}
+			}
+		}
+
+		long getBytes() {
+			return 4L * slots.length;
+		}
+	}
+
+	/** A cached result, or window. The id array is never modified, but
+	 * replaced, so that the binary search for the position of a changed
+	 * object can take place without holding the lock.
+	 */
+	private class Entry {
+		private final Q query;
+		private final Predicate<O> predicate;
+		private final Comparator<O> comparator;
+		private long[] ids;
+		private PositionIndex index;
+		/** The position of {@code ids[0]} within the result.
+		 */
+		private int offset;
+		/** The number of results, or -1, if unknown.
+		 */
+		private int total;
+
+		Entry(Q pQuery, long[] pIds, int pOffset, int pTotal) {
+			query = pQuery;
+			predicate = pQuery.asPredicate();
+			comparator = pQuery.asComparator();
+			ids = pIds;
+			offset = pOffset;
+			total = pTotal;
+		}
+
+		long getBytes() {
+			return ENTRY_OVERHEAD + 8L * ids.length + (index == null ? 0 : index.getBytes());
+		}
+
+		/** Returns, whether the entry holds the complete result.
+		 */
+		boolean isComplete() {
+			return offset == 0  &&  ids.length == total;
+		}
+
+		/** Returns, whether the entry can answer a request for the given page.
+		 */
+		boolean covers(int pOffset, int pLimit) {
+			if (total < 0) {
+				return false;
+			}
+			final int from = Math.min(pOffset, total);
+			final int to = (int) Math.min(total, (long) pOffset + pLimit);
+			return to <= from  ||  (from >= offset  &&  to <= offset + ids.length);
+		}
+
+		long[] slice(int pOffset, int pLimit, int[] pTotal) {
+			pTotal[0] = total;
+			final int from = Math.min(pOffset, total);
+			final int to = (int) Math.min(total, (long) pOffset + pLimit);
+			if (to <= from) {
+				return NO_IDS;
+			}
+			return Arrays.copyOfRange(ids, from - offset, to - offset);
+		}
+
+		/** Discards the window, and the number of results, which may
+		 * have been affected by a change.
+		 */
+		void invalidate() {
+			bytes -= getBytes();
+			ids = NO_IDS;
+			index = null;
+			offset = 0;
+			total = -1;
+			bytes += getBytes();
+		}
+
+		/** Returns the position of the given id. The position index is
+		 * created upon the first invocation.
+		 */
+		int indexOf(long pId) {
+			if (index == null) {
+				bytes -= getBytes();
+				index = new PositionIndex(ids);
+				bytes += getBytes();
+			}
+			return index.indexOf(ids, pId);
+		}
+
+		void remove(int pIndex) {
+			final long oldBytes = getBytes();
+			final long[] newIds = new long[ids.length-1];
+			System.arraycopy(ids, 0, newIds, 0, pIndex);
+			System.arraycopy(ids, pIndex+1, newIds, pIndex, newIds.length-pIndex);
+			if (index != null) {
+				index.removing(ids, pIndex);
+			}
+			ids = newIds;
+			--total;
+			bytes += getBytes() - oldBytes;
+		}
+
+		void insert(int pIndex, long pId) {
+			final long oldBytes = getBytes();
+			final long[] newIds = new long[ids.length+1];
+			System.arraycopy(ids, 0, newIds, 0, pIndex);
+			newIds[pIndex] = pId;
+			System.arraycopy(ids, pIndex, newIds, pIndex+1, ids.length-pIndex);
+			ids = newIds;
+			if (index != null) {
+				index.inserted(ids, pIndex);
+			}
+			++total;
+			bytes += getBytes() - oldBytes;
+		}
+
+		/** Applies a change, whose position has been determined by
+		 * a binary search.
+		 * @return True, if the entry has been changed.
+		 */
+		boolean apply(Change pChange, long pId) {
+			final int position = pChange.newIndex;
+			switch (pChange.kind) {
+			case INSERT:
+				if (position == pChange.oldIndex) {
+					return false;
+				}
+				if (pChange.oldIndex != -1) {
+					remove(pChange.oldIndex);
+				}
+				if (!isComplete()  &&  ids.length == 0) {
+					// The position relative to the window is unknown.
+					invalidate();
+				} else if (position == 0  &&  offset > 0) {
+					// Before the window.
+					++offset;
+					++total;
+				} else if (position == ids.length  &&  offset + ids.length < total) {
+					// After the window.
+					++total;
+				} else {
+					insert(position, pId);
+				}
+				return true;
+			case REMOVE:
+				if (position == 0  &&  offset > 0) {
+					--offset;
+					--total;
+				} else if (position == ids.length  &&  offset + ids.length < total) {
+					--total;
+				} else {
+					invalidate();
+				}
+				return true;
+			case RELOCATE:
+				// The object may have been before, or after the window, or
+				// not in the result at all, so the offset, and the number
+				// of results are unknown. The window needs to be reloaded
+				// only, if the object enters it.
+				final boolean entering = (position > 0  &&  position < ids.length)
+						||  (position == 0  &&  offset == 0)
+						||  (position == ids.length  &&  offset + ids.length == total);
+				invalidate();
+				return entering;
+			default:
+				throw new IllegalStateException("Invalid kind: " + pChange.kind);
+			}
+		}
+	}
+
+	/** The kind of a pending change.
+	 */
+	private enum Kind {
+		/** The object is inserted into, or moved within the entry.
+		 */
+		INSERT,
+		/** The object, which is not in the window, is removed from the result.
+		 */
+		REMOVE,
+		/** The object, which is not in the window, has been updated, so
+		 * its old position is unknown.
+		 */
+		RELOCATE
+	}
+
+	/** A pending change of an entry: The entry, the id array, on which
+	 * the position of the changed object is being determined, the objects
+	 * old position within that array (or -1), and the new position (or -1,
+	 * if it could not be determined, because an object, which is being
+	 * compared, has vanished).
+	 */
+	private class Change {
+		private final Entry entry;
+		private final Kind kind;
+		private final long[] ids;
+		private final int oldIndex;
+		private int newIndex;
+
+		Change(Entry pEntry, Kind pKind, int pOldIndex) {
+			entry = pEntry;
+			kind = pKind;
+			ids = pEntry.ids;
+			oldIndex = pOldIndex;
+		}
+
+		/** Determines the new position by a binary search, ignoring the
+		 * old position. Invoked without holding the lock, because the
+		 * objects, which are being compared, are looked up.
+		 */
+		void search(O pObject) {
+			int lo = 0, hi = oldIndex == -1 ? ids.length : ids.length-1;
+			while (lo < hi) {
+				final int mid = (lo + hi) >>> 1;
+				final O o = lookup.apply(ids[oldIndex == -1  ||  mid < oldIndex ? mid : mid+1]);
+				if (o == null) {
+					newIndex = -1;
+					return;
+				}
+				if (entry.comparator.compare(pObject, o) < 0) {
+					hi = mid;
+				} else {
+					lo = mid+1;
+				}
+			}
+			newIndex = lo;
+		}
+	}
+
+	private final Function<Q,List<O>> executor;
+	private final ToIntFunction<Q> counter;
+	private final Pager<O,Q> pager;
+	private final LongFunction<O> lookup;
+	private final long maxBytes;
+	private final int maxEntries, windowSize;
+	private final LinkedHashMap<Q,Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+	private long bytes;
+	private long version;
+	private long hits, misses;
+
+	/** Creates a new instance, which always keeps complete results.
+	 * @param pExecutor Executes a query, returning all results.
+	 * @param pLookup Looks up an object by id, returning null, if there
+	 *   is no such object.
+	 * @param pMaxBytes The maximum number of bytes, which are being
+	 *   consumed by the cached id lists.
+	 * @param pMaxEntries The maximum number of cached queries.
+	 */
+	public QueryResultCache(Function<Q,List<O>> pExecutor, LongFunction<O> pLookup, long pMaxBytes, int pMaxEntries) {
+		this(pExecutor, null, null, pLookup, pMaxBytes, pMaxEntries, 0);
+	}
+
+	/** Creates a new instance, which keeps a window of large results.
+	 * @param pExecutor Executes a query, returning all results.
+	 * @param pCounter Returns the number of results of a query, or null,
+	 *   if complete results are always kept.
+	 * @param pPager Executes a paged query, or null, if complete results
+	 *   are always kept.
+	 * @param pLookup Looks up an object by id, returning null, if there
+	 *   is no such object.
+	 * @param pMaxBytes The maximum number of bytes, which are being
+	 *   consumed by the cached id lists.
+	 * @param pMaxEntries The maximum number of cached queries.
+	 * @param pWindowSize The number of ids, which are kept of a result,
+	 *   that is too large for the cache.
+	 */
+	public QueryResultCache(Function<Q,List<O>> pExecutor, ToIntFunction<Q> pCounter, Pager<O,Q> pPager,
+			                LongFunction<O> pLookup, long pMaxBytes, int pMaxEntries, int pWindowSize) {
+		executor = Objects.requireNonNull(pExecutor, "Executor");
+		counter = pCounter;
+		pager = pPager;
+		lookup = Objects.requireNonNull(pLookup, "Lookup");
+		maxBytes = pMaxBytes;
+		maxEntries = pMaxEntries;
+		windowSize = pWindowSize;
+	}
+
+	/** Returns the cached ids for the given query, executing the query,
+	 * if necessary.
+	 */
+	private long[] getIds(Q pQuery, int pOffset, int pLimit, int[] pSize) {
+		final long startVersion;
+		int total;
+		synchronized (this) {
+			final Entry entry = entries.get(pQuery);
+			if (entry != null  &&  entry.covers(pOffset, pLimit)) {
+				++hits;
+				return entry.slice(pOffset, pLimit, pSize);
+			}
+			++misses;
+			startVersion = version;
+			total = entry == null ? -1 : entry.total;
+		}
+		// Execute the queries without holding the lock, so that notifications
+		// aren't blocked.
+		final boolean windowed = counter != null  &&  pager != null;
+		if (windowed  &&  total < 0) {
+			total = counter.applyAsInt(pQuery);
+		}
+		final Entry entry;
+		if (!windowed  ||  fits(total)) {
+			final long[] ids = ids(pQuery, executor.apply(pQuery));
+			entry = new Entry(pQuery, ids, 0, ids.length);
+		} else {
+			// A window around the requested page.
+			final int from = Math.min(pOffset, total);
+			final int length = (int) Math.min(total, (long) pOffset + pLimit) - from;
+			final int limit = Math.max(windowSize, length);
+			final int offset = Math.max(0, Math.min(from - (limit - length) / 2, total - limit));
+			entry = new Entry(pQuery, ids(pQuery, pager.fetch(pQuery, offset, limit)), offset, total);
+		}
+		synchronized (this) {
+			// If the model has changed in the meantime, then the result may
+			// be outdated, and isn't cached.
+			if (version == startVersion) {
+				final Entry oldEntry = entries.put(pQuery, entry);
+				if (oldEntry != null) {
+					bytes -= oldEntry.getBytes();
+				}
+				bytes += entry.getBytes();
+				evict();
+			}
+		}
+		if (entry.covers(pOffset, pLimit)) {
+			return entry.slice(pOffset, pLimit, pSize);
+		}
+		// The window doesn't match the number of results, because the
+		// model has changed in the meantime.
+		pSize[0] = total;
+		return ids(pQuery, pager.fetch(pQuery, pOffset, pLimit));
+	}
+
+	private boolean fits(int pTotal) {
+		// The ids, and their position index.
+		return ENTRY_OVERHEAD + 16L * pTotal <= maxBytes / 2;
+	}
+
+	private long[] ids(Q pQuery, List<O> pList) {
+		final long[] ids = new long[pList.size()];
+		for (int i = 0;  i < ids.length;  i++) {
+			ids[i] = pQuery.getId(pList.get(i)).longValue();
+		}
+		return ids;
+	}
+
+	private void evict() {
+		final Iterator<Entry> iter = entries.values().iterator();
+		while ((bytes > maxBytes  ||  entries.size() > maxEntries)  &&  iter.hasNext()) {
+			bytes -= iter.next().getBytes();
+			iter.remove();
+		}
+	}
+
+	/** Returns the number of results of the given query.
+	 * @param pQuery The query.
+	 * @return The number of results.
+	 */
+	public int count(Q pQuery) {
+		final int[] size = new int[1];
+		getIds(pQuery, 0, 0, size);
+		return size[0];
+	}
+
+	/** Returns a page of the results of the given query.
+	 * @param pQuery The query.
+	 * @param pOffset The number of skipped results.
+	 * @param pLimit The maximum number of returned results.
+	 * @return The requested page. Objects, which have been deleted
+	 *   since the query has been executed, are omitted.
+	 */
+	public List<O> fetch(Q pQuery, int pOffset, int pLimit) {
+		final long[] ids = getIds(pQuery, pOffset, pLimit, new int[1]);
+		final List<O> list = new ArrayList<>(ids.length);
+		for (long id : ids) {
+			final O o = lookup.apply(id);
+			if (o != null) {
+				list.add(o);
+			}
+		}
+		return list;
+	}
+
+	/** To be invoked, if an object has been added to the model.
+	 * Events are delivered asynchronously, so a cached result may
+	 * already contain the added object, if the query has been executed
+	 * after the object has been added, but before the event has arrived.
+	 * Such results are left unchanged.
+	 * @param pObject The added object.
+	 * @return True, if any of the cached results, or windows, has changed.
+	 */
+	public boolean added(O pObject) {
+		final List<Change> changes = new ArrayList<>();
+		synchronized (this) {
+			++version;
+			for (Entry entry : entries.values()) {
+				if (entry.total >= 0  &&  entry.predicate.test(pObject)
+						&&  entry.indexOf(entry.query.getId(pObject).longValue()) == -1) {
+					changes.add(new Change(entry, Kind.INSERT, -1));
+				}
+			}
+			evict();
+		}
+		return apply(pObject, changes, false);
+	}
+
+	/** To be invoked, if an object has been updated in the model.
+	 * @param pObject The updated object.
+	 * @return True, if the object has been inserted into, moved within,
+	 *   or removed from any of the cached results, or windows. False, if
+	 *   the object has kept its position in all cached results, so that
+	 *   the results need not be reloaded.
+	 */
+	public boolean updated(O pObject) {
+		final List<Change> changes = new ArrayList<>();
+		boolean changed = false;
+		synchronized (this) {
+			++version;
+			for (Entry entry : entries.values()) {
+				if (entry.total < 0) {
+					continue;
+				}
+				final int index = entry.indexOf(entry.query.getId(pObject).longValue());
+				if (index == -1  &&  !entry.isComplete()) {
+					changes.add(new Change(entry, Kind.RELOCATE, -1));
+				} else if (entry.predicate.test(pObject)) {
+					changes.add(new Change(entry, Kind.INSERT, index));
+				} else if (index >= 0) {
+					entry.remove(index);
+					changed = true;
+				}
+			}
+			evict();
+		}
+		return apply(pObject, changes, changed);
+	}
+
+	/** To be invoked, if an object has been deleted from the model.
+	 * @param pObject The deleted object.
+	 * @return True, if the object has been removed from any of the
+	 *   cached results, or windows.
+	 */
+	public boolean deleted(O pObject) {
+		final List<Change> changes = new ArrayList<>();
+		boolean changed = false;
+		synchronized (this) {
+			++version;
+			for (Entry entry : entries.values()) {
+				if (entry.total < 0) {
+					continue;
+				}
+				final int index = entry.indexOf(entry.query.getId(pObject).longValue());
+				if (index >= 0) {
+					entry.remove(index);
+					changed = true;
+				} else if (!entry.isComplete()  &&  entry.predicate.test(pObject)) {
+					changes.add(new Change(entry, Kind.REMOVE, -1));
+				}
+			}
+			evict();
+		}
+		return apply(pObject, changes, changed);
+	}
+
+	/** Applies the given changes. The positions are determined without
+	 * holding the lock. An entry, which has been modified in the meantime,
+	 * or whose position could not be determined, is discarded.
+	 * @return True, if any of the entries has been changed, or discarded,
+	 *   or if {@code pChanged} is true.
+	 */
+	private boolean apply(O pObject, List<Change> pChanges, boolean pChanged) {
+		if (pChanges.isEmpty()) {
+			return pChanged;
+		}
+		for (Change change : pChanges) {
+			change.search(pObject);
+		}
+		boolean changed = pChanged;
+		synchronized (this) {
+			for (Change change : pChanges) {
+				final Entry entry = change.entry;
+				if (entries.get(entry.query) != entry) {
+					// The entry has been evicted, or replaced in the meantime.
+					continue;
+				}
+				if (entry.ids != change.ids  ||  change.newIndex == -1) {
+					entries.remove(entry.query);
+					bytes -= entry.getBytes();
+					changed = true;
+				} else if (entry.apply(change, entry.query.getId(pObject).longValue())) {
+					changed = true;
+				}
+			}
+			evict();
+		}
+		return changed;
+	}
+
+	/** Discards all cached results. To be invoked, if the model has
+	 * been {@link IModel.Listener#initialized() reinitialized}.
+	 */
+	public synchronized void clear() {
+		++version;
+		entries.clear();
+		bytes = 0;
+	}
+
+	/** Returns the number of bytes, which are consumed by the cached id lists.
+	 * @return The number of bytes, which are consumed by the cached id lists.
+	 */
+	public synchronized long getBytes() {
+		return bytes;
+	}
+
+	/** Returns the number of cached queries.
+	 * @return The number of cached queries.
+	 */
+	public synchronized int getEntryCount() {
+		return entries.size();
+	}
+
+	/** Returns the number of queries, which have been answered from the cache.
+	 * @return The number of cache hits.
+	 */
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	/** Returns the number of queries, which have been executed.
+	 * @return The number of cache misses.
+	 */
+	public synchronized long getMisses() {
+		return misses;
+	}
+}
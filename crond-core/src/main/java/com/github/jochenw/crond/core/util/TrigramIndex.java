@@ -0,0 +1,220 @@
+package com.github.jochenw.crond.core.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.LongConsumer;
+
+/** An inverted index, which maps the trigrams (sequences of three
+ * characters) of string values to the ids of the objects, that have
+ * these values. Substring, and wildcard patterns are resolved to the
+ * intersection of the posting lists of the patterns trigrams, which is
+ * a superset of the matching ids: Callers are expected to verify the
+ * candidates by applying the actual pattern.
+ *
+ * Values are padded with two start markers, and two end markers, so
+ * that the trigrams also serve as a prefix (and suffix) index for
+ * anchored wildcard patterns, like "ab*". Characters are case-folded
+ * one by one, so that the index is case-insensitive.
+ *
+ * Instances aren't thread safe. Concurrent readers are fine, as long as
+ * there is no concurrent writer.
+ */
+public class TrigramIndex {
+	private static final char START = '\u0002';
+	private static final char END = '\u0003';
+	private static final long[] NO_IDS = new long[0];
+
+	/** A sorted list of ids.
+	 */
+	private static class Postings {
+		private long[] ids = new long[2];
+		private int size;
+
+		void add(long pId) {
+			if (size == 0  ||  ids[size-1] < pId) {
+				if (size == ids.length) {
+					ids = Arrays.copyOf(ids, size*2);
+				}
+				ids[size++] = pId;
+				return;
+			}
+			final int idx = Arrays.binarySearch(ids, 0, size, pId);
+			if (idx >= 0) {
+				return;
+			}
+			final int pos = -(idx+1);
+			if (size == ids.length) {
+				ids = Arrays.copyOf(ids, size*2);
+			}
+			System.arraycopy(ids, pos, ids, pos+1, size-pos);
+			ids[pos] = pId;
+			++size;
+		}
+
+		void remove(long pId) {
+			final int idx = Arrays.binarySearch(ids, 0, size, pId);
+			if (idx >= 0) {
+				System.arraycopy(ids, idx+1, ids, idx, size-idx-1);
+				--size;
+			}
+		}
+
+		boolean contains(long pId) {
+			return Arrays.binarySearch(ids, 0, size, pId) >= 0;
+		}
+	}
+
+	private final Map<Long,Postings> postings = new HashMap<>();
+
+	private static char fold(char pChar) {
+		return Character.toLowerCase(Character.toUpperCase(pChar));
+	}
+
+	private static long gram(char pC0, char pC1, char pC2) {
+		return (((long) pC0) << 32) | (((long) pC1) << 16) | pC2;
+	}
+
+	private static void forEachGram(String pValue, boolean pAnchorStart, boolean pAnchorEnd, boolean pAsciiOnly,
+			                        LongConsumer pConsumer) {
+		final int pre = pAnchorStart ? 2 : 0;
+		final int post = pAnchorEnd ? 2 : 0;
+		final char[] chars = new char[pre + pValue.length() + post];
+		Arrays.fill(chars, 0, pre, START);
+		for (int i = 0;  i < pValue.length();  i++) {
+			chars[pre+i] = fold(pValue.charAt(i));
+		}
+		Arrays.fill(chars, pre + pValue.length(), chars.length, END);
+		for (int i = 0;  i+2 < chars.length;  i++) {
+			final char c0 = chars[i], c1 = chars[i+1], c2 = chars[i+2];
+			if (!pAsciiOnly  ||  (c0 < 0x80  &&  c1 < 0x80  &&  c2 < 0x80)) {
+				pConsumer.accept(gram(c0, c1, c2));
+			}
+		}
+	}
+
+	/** Adds the given value to the index.
+	 * @param pId The id of the object, which has the value.
+	 * @param pValue The value, or null (in which case nothing happens).
+	 */
+	public void add(long pId, String pValue) {
+		if (pValue != null) {
+			forEachGram(pValue, true, true, false, (g) -> postings.computeIfAbsent(Long.valueOf(g), (k) -> new Postings()).add(pId));
+		}
+	}
+
+	/** Removes the given value from the index.
+	 * @param pId The id of the object, which had the value.
+	 * @param pValue The value, or null (in which case nothing happens).
+	 */
+	public void remove(long pId, String pValue) {
+		if (pValue != null) {
+			forEachGram(pValue, true, true, false, (g) -> {
+				final Long key = Long.valueOf(g);
+				final Postings p = postings.get(key);
+				if (p != null) {
+					p.remove(pId);
+					if (p.size == 0) {
+						postings.remove(key);
+					}
+				}
+			});
+		}
+	}
+
+	/** Removes all values from the index.
+	 */
+	public void clear() {
+		postings.clear();
+	}
+
+	/** Returns the number of distinct trigrams.
+	 * @return The number of distinct trigrams.
+	 */
+	public int getTrigramCount() {
+		return postings.size();
+	}
+
+	/** Returns the candidate ids for the given filter pattern. The pattern
+	 * has the same syntax as in {@link com.github.jochenw.crond.core.api.ModelQuery#matcher(String)}:
+	 * With wildcards ("*", "%", or "?"), the pattern must match the
+	 * complete value, otherwise it matches values, which contain the
+	 * pattern, ignoring case.
+	 * @param pPattern The filter pattern.
+	 * @return The sorted candidate ids, a superset of the ids, whose values
+	 *   match the pattern, or null, if the pattern is too short to be
+	 *   resolved by the index.
+	 */
+	public long[] find(String pPattern) {
+		final String pattern = pPattern.replace('%', '*');
+		final List<Long> grams = new ArrayList<>();
+		final LongConsumer collector = (g) -> grams.add(Long.valueOf(g));
+		if (pattern.indexOf('*') >= 0  ||  pattern.indexOf('?') >= 0) {
+			final String[] segments = pattern.split("[*?]", -1);
+			for (int i = 0;  i < segments.length;  i++) {
+				// The first, and the last segment are anchored, unless they are empty,
+				// because the pattern starts, or ends with a wildcard.
+				final boolean anchorStart = i == 0  &&  !segments[i].isEmpty();
+				final boolean anchorEnd = i == segments.length-1  &&  !segments[i].isEmpty();
+				forEachGram(segments[i], anchorStart, anchorEnd, false, collector);
+			}
+		} else {
+			// The actual predicate compares String.toLowerCase() values, which may differ
+			// from the per character folding for non-ASCII characters. ASCII trigrams are
+			// safe, though.
+			forEachGram(pattern.toLowerCase(), false, false, true, collector);
+		}
+		if (grams.isEmpty()) {
+			return null;
+		}
+		final List<Postings> lists = new ArrayList<>(grams.size());
+		for (Long g : grams) {
+			final Postings p = postings.get(g);
+			if (p == null) {
+				return NO_IDS;
+			}
+			if (!lists.contains(p)) {
+				lists.add(p);
+			}
+		}
+		lists.sort((p1, p2) -> Integer.compare(p1.size, p2.size));
+		final Postings smallest = lists.get(0);
+		long[] result = Arrays.copyOf(smallest.ids, smallest.size);
+		for (int i = 1;  i < lists.size()  &&  result.length > 0;  i++) {
+			final Postings p = lists.get(i);
+			int n = 0;
+			for (long id : result) {
+				if (p.contains(id)) {
+					result[n++] = id;
+				}
+			}
+			result = n == result.length ? result : Arrays.copyOf(result, n);
+		}
+		return result;
+	}
+
+	/** Returns the intersection of two sorted id arrays.
+	 * @param pIds1 The first id array.
+	 * @param pIds2 The second id array.
+	 * @return The ids, which are contained in both arrays, sorted.
+	 */
+	public static long[] intersect(long[] pIds1, long[] pIds2) {
+		final long[] result = new long[Math.min(pIds1.length, pIds2.length)];
+		int i = 0, j = 0, n = 0;
+		while (i < pIds1.length  &&  j < pIds2.length) {
+			final long id1 = pIds1[i], id2 = pIds2[j];
+			if (id1 < id2) {
+				++i;
+			} else if (id1 > id2) {
+				++j;
+			} else {
+				result[n++] = id1;
+				++i;
+				++j;
+			}
+		}
+		return n == result.length ? result : Arrays.copyOf(result, n);
+	}
+}
@@ -0,0 +1,19 @@
+-- Initial schema of the JdbcModel: Users, and jobs.
+-- Unique constraints enforce the uniqueness of email addresses, and of
+-- the combination of user id, and job name.
+
+CREATE TABLE CROND_USERS (
+  ID BIGINT NOT NULL,
+  EMAIL VARCHAR(320) NOT NULL,
+  NAME VARCHAR(1024),
+  CONSTRAINT CROND_USERS_PK PRIMARY KEY (ID),
+  CONSTRAINT CROND_USERS_EMAIL_UQ UNIQUE (EMAIL)
+);
+
+CREATE TABLE CROND_JOBS (
+  ID BIGINT NOT NULL,
+  USER_ID BIGINT NOT NULL,
+  NAME VARCHAR(1024) NOT NULL,
+  CONSTRAINT CROND_JOBS_PK PRIMARY KEY (ID),
+  CONSTRAINT CROND_JOBS_USER_NAME_UQ UNIQUE (USER_ID, NAME)
+);
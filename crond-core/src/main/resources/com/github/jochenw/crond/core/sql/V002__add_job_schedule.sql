@@ -0,0 +1,4 @@
+-- Adds the jobs schedule (a cron expression, or null, if the job isn't
+-- scheduled).
+
+ALTER TABLE CROND_JOBS ADD COLUMN SCHEDULE VARCHAR(256);
@@ -0,0 +1,237 @@
+package com.github.jochenw.crond.core.impl;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Properties;
+
+import org.junit.jupiter.api.Test;
+
+import com.github.jochenw.afw.core.function.Functions.FailableConsumer;
+import com.github.jochenw.afw.core.inject.AfwCoreOnTheFlyBinder;
+import com.github.jochenw.afw.core.log.ILog.Level;
+import com.github.jochenw.afw.core.log.ILogFactory;
+import com.github.jochenw.afw.core.log.simple.SimpleLogFactory;
+import com.github.jochenw.afw.core.util.Objects.DuplicateElementException;
+import com.github.jochenw.afw.di.api.IComponentFactory;
+import com.github.jochenw.afw.di.api.Module;
+import com.github.jochenw.crond.core.api.IModel;
+import com.github.jochenw.crond.core.api.IModel.Job;
+import com.github.jochenw.crond.core.api.IModel.User;
+import com.github.jochenw.crond.core.api.JobQuery;
+import com.github.jochenw.crond.core.api.UserQuery;
+import com.github.jochenw.crond.core.beans.JobImpl;
+import com.github.jochenw.crond.core.beans.UserImpl;
+
+/** The contract of {@link IModel}, which is verified against every
+ * implementation by a subclass.
+ */
+abstract class AbstractModelContractTest {
+	/** Creates, and starts a new, empty model.
+	 * @return The created model.
+	 * @throws Exception Creating the model failed.
+	 */
+	protected abstract AbstractModel newModel() throws Exception;
+
+	/** Creates, and starts a model of the given type, with the given
+	 * properties, and a log factory.
+	 * @param pType The model type.
+	 * @param pProperties The configuration properties.
+	 * @param pBinding Binds the implementation specific dependencies,
+	 *   for example the model file.
+	 * @return The created model.
+	 */
+	protected <M extends AbstractModel> M newModel(Class<M> pType, Properties pProperties, Module pBinding) {
+		final ILogFactory lf = SimpleLogFactory.ofSystemOut(Level.TRACE);
+		final IComponentFactory cf = IComponentFactory.builder().jakarta()
+				.module((b) -> {
+					b.bind(Properties.class).toInstance(pProperties);
+					b.bind(ILogFactory.class).toInstance(lf);
+					b.bind(pType);
+					pBinding.configure(b);
+				}).onTheFlyBinder(new AfwCoreOnTheFlyBinder()).build();
+		final M model = cf.requireInstance(pType);
+		model.start();
+		return model;
+	}
+
+	private void run(FailableConsumer<IModel,?> pTest) throws Throwable {
+		final AbstractModel model = newModel();
+		try {
+			pTest.accept(model);
+		} finally {
+			model.shutdown();
+		}
+	}
+
+	@Test
+	void testUsers() throws Throwable {
+		run((model) -> {
+			final User jochen = model.addUser("jochen.wiedmann@gmail.com", "Wiedmann, Jochen");
+			final User tobias = model.addUser("tobias.huehner@softwareag.com", null);
+			assertNotEquals(jochen.getId(), tobias.getId());
+			assertEquals("Wiedmann, Jochen", model.getUserById(jochen.getId()).getName());
+			assertEquals(tobias.getId(), model.getUserByEmail("tobias.huehner@softwareag.com").getId());
+			assertNull(model.getUserByEmail("john.doe@example.com"));
+			assertNull(model.getUserById(Long.valueOf(4711)));
+			assertThrows(DuplicateElementException.class, () -> model.addUser("jochen.wiedmann@gmail.com", "Foo"));
+			model.updateUser(UserImpl.of(tobias.getId(), "tobias@example.com", "H\u00fchner, Tobias"));
+			assertNull(model.getUserByEmail("tobias.huehner@softwareag.com"));
+			assertEquals("H\u00fchner, Tobias", model.getUserByEmail("tobias@example.com").getName());
+			assertThrows(DuplicateElementException.class,
+					() -> model.updateUser(UserImpl.of(tobias.getId(), "jochen.wiedmann@gmail.com", null)));
+			assertThrows(NoSuchElementException.class,
+					() -> model.updateUser(UserImpl.of(Long.valueOf(4711), "john.doe@example.com", null)));
+			model.removeUser(tobias.getId());
+			assertNull(model.getUserById(tobias.getId()));
+			assertThrows(NoSuchElementException.class, () -> model.removeUser(tobias.getId()));
+			final List<String> emails = new ArrayList<>();
+			model.forEachUser((u) -> emails.add(u.getEmail()));
+			assertEquals(List.of("jochen.wiedmann@gmail.com"), emails);
+		});
+	}
+
+	@Test
+	void testJobs() throws Throwable {
+		run((model) -> {
+			final User jochen = model.addUser("jochen.wiedmann@gmail.com", "Wiedmann, Jochen");
+			final User tobias = model.addUser("tobias.huehner@softwareag.com", null);
+			final Job backup = model.addJob(jochen.getId(), "Backup");
+			final Job cleanup = model.addJob(jochen.getId(), "Cleanup");
+			model.addJob(tobias.getId(), "Backup");
+			assertThrows(DuplicateElementException.class, () -> model.addJob(jochen.getId(), "Backup"));
+			assertThrows(NoSuchElementException.class, () -> model.addJob(Long.valueOf(4711), "Backup"));
+			assertEquals(backup.getId(), model.getJobByUserIdAndName(jochen.getId(), "Backup").getId());
+			assertEquals("Cleanup", model.getJobById(cleanup.getId()).getName());
+			assertEquals(2, model.countJobsOfUser(jochen.getId()));
+			assertThrows(DuplicateElementException.class,
+					() -> model.updateJob(JobImpl.of(cleanup.getId(), jochen.getId(), "Backup")));
+			assertThrows(NoSuchElementException.class,
+					() -> model.updateJob(JobImpl.of(cleanup.getId(), Long.valueOf(4711), "Cleanup")));
+			assertThrows(NoSuchElementException.class,
+					() -> model.updateJob(JobImpl.of(Long.valueOf(4711), jochen.getId(), "Foo")));
+			model.updateJob(JobImpl.of(cleanup.getId(), tobias.getId(), "Cleanup", "0 3 * * MON-FRI"));
+			assertEquals(1, model.countJobsOfUser(jochen.getId()));
+			assertEquals("0 3 * * MON-FRI", model.getJobById(cleanup.getId()).getSchedule());
+			assertNull(model.getJobById(backup.getId()).getSchedule());
+			final List<String> names = new ArrayList<>();
+			model.forEachJobOfUser(tobias.getId(), (j) -> names.add(j.getName()));
+			names.sort(null);
+			assertEquals(List.of("Backup", "Cleanup"), names);
+			model.removeJob(backup.getId());
+			assertNull(model.getJobById(backup.getId()));
+			assertThrows(NoSuchElementException.class, () -> model.removeJob(backup.getId()));
+			final int[] count = new int[1];
+			model.forEachJob((j) -> count[0]++);
+			assertEquals(2, count[0]);
+		});
+	}
+
+	@Test
+	void testBatch() throws Throwable {
+		run((model) -> {
+			model.batch((b) -> {
+				for (int i = 0;  i < 1000;  i++) {
+					final User u = b.addUser("user" + i + "@example.com", "User " + i);
+					b.addJob(u.getId(), "Job A");
+					b.addJob(u.getId(), "Job B");
+				}
+			});
+			final User user7 = model.getUserByEmail("user7@example.com");
+			assertEquals(2, model.countJobsOfUser(user7.getId()));
+			assertThrows(DuplicateElementException.class, () -> model.batch((b) -> {
+				final User u = b.addUser("john.doe@example.com", "Doe, John");
+				b.addJob(u.getId(), "Job A");
+				b.removeUser(user7.getId());
+				b.addUser("user8@example.com", null);
+			}));
+			assertNull(model.getUserByEmail("john.doe@example.com"));
+			assertNotNull(model.getUserById(user7.getId()));
+			final int[] count = new int[1];
+			model.forEachUser((u) -> count[0]++);
+			assertEquals(1000, count[0]);
+		});
+	}
+
+	private static List<Long> ids(List<? extends Object> pList) {
+		final List<Long> ids = new ArrayList<>();
+		pList.forEach((o) -> ids.add(o instanceof User ? ((User) o).getId() : ((Job) o).getId()));
+		return ids;
+	}
+
+	@Test
+	void testQuery() throws Throwable {
+		run((model) -> {
+			final User[] users = new User[10];
+			model.batch((b) -> {
+				for (int i = 0;  i < users.length;  i++) {
+					// Names in reverse order of ids, with alternating case.
+					final String name = (i % 2 == 0 ? "user " : "USER ") + (char) ('j' - i);
+					users[i] = b.addUser("u" + i + "@example.com", i == 9 ? null : name);
+					b.addJob(users[i].getId(), "Job " + i);
+				}
+			});
+			final List<User> all = model.queryUsers(UserQuery.all());
+			assertEquals(10, all.size());
+			assertEquals(users[0].getId(), all.get(0).getId());
+			assertEquals(10, model.countUsers(UserQuery.all()));
+			final UserQuery byName = UserQuery.builder().sort(UserQuery.Field.NAME, true).offset(1).limit(3).build();
+			assertEquals(List.of(users[8].getId(), users[7].getId(), users[6].getId()), ids(model.queryUsers(byName)));
+			final UserQuery byNameDesc = UserQuery.builder().sort(UserQuery.Field.NAME, false).limit(2).build();
+			assertEquals(List.of(users[0].getId(), users[1].getId()), ids(model.queryUsers(byNameDesc)));
+			final UserQuery filtered = UserQuery.builder().filter(UserQuery.Field.NAME, "user")
+					.sort(UserQuery.Field.EMAIL, false).build();
+			assertEquals(9, model.countUsers(filtered));
+			assertEquals(users[8].getId(), model.queryUsers(filtered).get(0).getId());
+			final UserQuery wildcard = UserQuery.builder().filter(UserQuery.Field.EMAIL, "u1%").build();
+			assertEquals(List.of(users[1].getId()), ids(model.queryUsers(wildcard)));
+			assertEquals(0, model.queryUsers(UserQuery.builder().offset(10).build()).size());
+			final UserQuery byIdDesc = UserQuery.builder().sort(UserQuery.Field.ID, false).offset(7).limit(5).build();
+			assertEquals(List.of(users[2].getId(), users[1].getId(), users[0].getId()), ids(model.queryUsers(byIdDesc)));
+			final JobQuery jobsOfUser = JobQuery.builder().userId(users[3].getId()).build();
+			assertEquals(1, model.countJobs(jobsOfUser));
+			assertEquals("Job 3", model.queryJobs(jobsOfUser).get(0).getName());
+			final JobQuery jobs = JobQuery.builder().filter(JobQuery.Field.NAME, "job").sort(JobQuery.Field.NAME, false)
+					.offset(2).limit(2).build();
+			assertEquals(10, model.countJobs(jobs));
+			final List<Job> page = model.queryJobs(jobs);
+			assertEquals("Job 7", page.get(0).getName());
+			assertEquals("Job 6", page.get(1).getName());
+			final UserQuery fromD = UserQuery.builder().sort(UserQuery.Field.NAME, true).startAt("user D").limit(2).build();
+			assertEquals(List.of(users[6].getId(), users[5].getId()), ids(model.queryUsers(fromD)));
+			assertEquals(7, model.countUsers(fromD));
+			final UserQuery toD = UserQuery.builder().sort(UserQuery.Field.NAME, false).startAt("USER d").build();
+			assertEquals(List.of(users[6].getId(), users[7].getId(), users[8].getId(), users[9].getId()),
+					ids(model.queryUsers(toD)));
+			final UserQuery fromId = UserQuery.builder().sort(UserQuery.Field.ID, false)
+					.startAt(users[1].getId().toString()).build();
+			assertEquals(List.of(users[1].getId(), users[0].getId()), ids(model.queryUsers(fromId)));
+		});
+	}
+
+	@Test
+	void testQueryAfterUpdates() throws Throwable {
+		run((model) -> {
+			final User a = model.addUser("a@example.com", "Anton");
+			final User b = model.addUser("b@example.com", "Berta");
+			final User c = model.addUser("c@example.com", "Caesar");
+			final UserQuery byName = UserQuery.builder().sort(UserQuery.Field.NAME, true).build();
+			assertEquals(List.of(a.getId(), b.getId(), c.getId()), ids(model.queryUsers(byName)));
+			model.updateUser(UserImpl.of(a.getId(), "a@example.com", "Dora"));
+			assertEquals(List.of(b.getId(), c.getId(), a.getId()), ids(model.queryUsers(byName)));
+			model.removeUser(b.getId());
+			assertEquals(List.of(c.getId(), a.getId()), ids(model.queryUsers(byName)));
+			final UserQuery byEmail = UserQuery.builder().sort(UserQuery.Field.EMAIL, false).build();
+			assertEquals(List.of(c.getId(), a.getId()), ids(model.queryUsers(byEmail)));
+			final Job x = model.addJob(c.getId(), "x");
+			final Job y = model.addJob(c.getId(), "Y");
+			model.addJob(a.getId(), "z");
+			final JobQuery jobsByName = JobQuery.builder().userId(c.getId()).sort(JobQuery.Field.NAME, true).build();
+			assertEquals(List.of(x.getId(), y.getId()), ids(model.queryJobs(jobsByName)));
+			model.updateJob(JobImpl.of(x.getId(), c.getId(), "zz"));
+			assertEquals(List.of(y.getId(), x.getId()), ids(model.queryJobs(jobsByName)));
+		});
+	}
+}
@@ -0,0 +1,75 @@
+package com.github.jochenw.crond.core.impl;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import com.github.jochenw.afw.core.util.tests.Tests;
+import com.github.jochenw.crond.core.api.IModel.Job;
+import com.github.jochenw.crond.core.api.IModel.User;
+import com.github.jochenw.crond.core.beans.JobImpl;
+import com.github.jochenw.crond.core.beans.UserImpl;
+
+class BinaryModelFileIoTest {
+	private static final List<User> USERS = Arrays.asList(
+			UserImpl.of(Long.valueOf(1), "jochen.wiedmann@gmail.com", "Wiedmann, Jochen"),
+			UserImpl.of(Long.valueOf(300), "tobias.huehner@softwareag.com", "H\u00fchner, Tobias"),
+			UserImpl.of(Long.valueOf(Long.MAX_VALUE), "john.doe@example.com", null));
+	private static final List<Job> JOBS = Arrays.asList(
+			JobImpl.of(Long.valueOf(1), Long.valueOf(1), "Backup"),
+			JobImpl.of(Long.valueOf(2), Long.valueOf(300), "Cleanup \u20ac", "0 3 * * MON-FRI"));
+
+	@Test
+	void testWriteRead() throws Exception {
+		final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		new BinaryModelFileWriter().write(USERS, JOBS, baos);
+		final BinaryModelFileReader bmfr = BinaryModelFileReader.read(baos.toByteArray(), "WriteRead");
+		assertEquals(USERS.size(), bmfr.getUsers().size());
+		for (User u : USERS) {
+			final User user = bmfr.getUsers().get(u.getId());
+			assertEquals(u.getEmail(), user.getEmail());
+			assertEquals(u.getName(), user.getName());
+		}
+		assertEquals(JOBS.size(), bmfr.getJobs().size());
+		for (Job j : JOBS) {
+			final Job job = bmfr.getJobs().get(j.getId());
+			assertEquals(j.getUserId(), job.getUserId());
+			assertEquals(j.getName(), job.getName());
+			assertEquals(j.getSchedule(), job.getSchedule());
+		}
+	}
+
+	@Test
+	void testCorruptFile() throws Exception {
+		final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		new BinaryModelFileWriter().write(USERS, JOBS, baos);
+		final byte[] bytes = baos.toByteArray();
+		bytes[bytes.length-1] ^= 1;
+		final IllegalStateException ise = assertThrows(IllegalStateException.class,
+				() -> BinaryModelFileReader.read(bytes, "Corrupt"));
+		assertEquals("Invalid binary model file Corrupt: Body checksum mismatch", ise.getMessage());
+		final byte[] truncated = Arrays.copyOf(baos.toByteArray(), bytes.length-1);
+		assertThrows(IllegalStateException.class, () -> BinaryModelFileReader.read(truncated, "Truncated"));
+	}
+
+	@Test
+	void testConvert() throws Exception {
+		final Path testDir = Tests.requireTestDirectory(BinaryModelFileIoTest.class);
+		final Path xmlFile = testDir.resolve("model.xml");
+		final Path binFile = testDir.resolve("model.bin");
+		final Path xmlFile2 = testDir.resolve("model2.xml");
+		final List<User> users = USERS.subList(0, 2);
+		new XmlModelFileWriter().write(xmlFile, users, JOBS, false);
+		final ModelFileConverter converter = new ModelFileConverter();
+		converter.convert(xmlFile, binFile);
+		assertEquals(ModelFileFormat.BINARY, ModelFileFormat.of(binFile));
+		converter.convert(binFile, xmlFile2);
+		assertArrayEquals(Files.readAllBytes(xmlFile), Files.readAllBytes(xmlFile2));
+	}
+}
@@ -0,0 +1,137 @@
+package com.github.jochenw.crond.core.impl;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.Test;
+
+import com.github.jochenw.afw.core.util.tests.Tests;
+import com.github.jochenw.crond.core.api.IExecutionHistory.RunRecord;
+import com.github.jochenw.crond.core.api.IExecutionHistory.Status;
+import com.github.jochenw.crond.core.beans.RunRecordImpl;
+
+class FileExecutionHistoryTest {
+	private static final long BASE = Instant.parse("2024-01-01T00:00:00Z").toEpochMilli();
+	private static final Clock CLOCK = Clock.fixed(Instant.ofEpochMilli(BASE + 3600000), ZoneOffset.UTC);
+
+	private static List<RunRecord> query(FileExecutionHistory pHistory, long pFrom, long pTo) {
+		final List<RunRecord> list = new ArrayList<>();
+		pHistory.forEachRun(pFrom, pTo, list::add);
+		return list;
+	}
+
+	private static List<RunRecord> filter(List<RunRecord> pRuns, long pFrom, long pTo) {
+		return pRuns.stream().filter((r) -> r.getEndMillis() >= pFrom  &&  r.getEndMillis() < pTo)
+				.collect(Collectors.toList());
+	}
+
+	private static List<RunRecord> recent(List<RunRecord> pRuns, long pJobId, int pMax) {
+		final List<RunRecord> list = pRuns.stream().filter((r) -> r.getJobId().longValue() == pJobId)
+				.collect(Collectors.toList());
+		final List<RunRecord> result = new ArrayList<>();
+		for (int i = list.size() - 1;  i >= 0  &&  result.size() < pMax;  i--) {
+			result.add(list.get(i));
+		}
+		return result;
+	}
+
+	@Test
+	void testHistory() throws Exception {
+		final Path dir = Files.createTempDirectory(Tests.requireTestDirectory(FileExecutionHistoryTest.class), "history");
+		FileExecutionHistory history = new FileExecutionHistory(dir, 4, 4096, 86400000, 1048576, CLOCK);
+		history.open();
+		final List<RunRecord> runs = new ArrayList<>();
+		final Random random = new Random(4711);
+		for (int i = 0;  i < 1000;  i++) {
+			final long start = BASE + i * 1000L;
+			// The end times aren't strictly ascending.
+			final RunRecord run = RunRecordImpl.of(Long.valueOf(i % 10), Long.valueOf(i % 10 / 5), start,
+					start + random.nextInt(5000), Status.values()[i % 4], i % 4 == 0 ? 0 : i);
+			history.add(run);
+			runs.add(run);
+		}
+		// 102 records per segment.
+		assertEquals(10, history.getSegmentCount());
+		assertEquals(recent(runs, 3, 4), history.getRecentRuns(Long.valueOf(3)));
+		assertEquals(List.of(), history.getRecentRuns(Long.valueOf(4711)));
+		for (int i = 0;  i < 100;  i++) {
+			final long from = BASE + random.nextInt(1010000);
+			final long to = from + random.nextInt(100000);
+			assertEquals(filter(runs, from, to), query(history, from, to));
+		}
+		assertEquals(runs, query(history, Long.MIN_VALUE, Long.MAX_VALUE));
+		history.close();
+
+		// Simulate an incomplete write, and reopen the history.
+		try (Stream<Path> files = Files.list(dir)) {
+			final Path last = files.sorted().reduce((a, b) -> b).get();
+			try (FileChannel fc = FileChannel.open(last, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+				fc.write(ByteBuffer.wrap(new byte[17]));
+			}
+		}
+		history = new FileExecutionHistory(dir, 4, 4096, 86400000, 1048576, CLOCK);
+		history.open();
+		assertEquals(runs, query(history, Long.MIN_VALUE, Long.MAX_VALUE));
+		assertEquals(recent(runs, 7, 4), history.getRecentRuns(Long.valueOf(7)));
+		final RunRecord run = RunRecordImpl.of(Long.valueOf(7), Long.valueOf(1), BASE, BASE + 2000000, Status.FAILED, 3);
+		history.add(run);
+		runs.add(run);
+		assertEquals(run, history.getRecentRuns(Long.valueOf(7)).get(0));
+		assertEquals(10 * FileExecutionHistory.HEADER_SIZE + 1001 * FileExecutionHistory.RECORD_SIZE,
+				history.getTotalSize());
+		history.close();
+
+		// Retention by size: The last segment, and two full segments remain.
+		history = new FileExecutionHistory(dir, 4, 4096, 86400000, 12288, CLOCK);
+		history.open();
+		assertEquals(3, history.getSegmentCount());
+		assertEquals(runs.subList(runs.size() - 83 - 204, runs.size()), query(history, Long.MIN_VALUE, Long.MAX_VALUE));
+		history.close();
+
+		// Retention by age: Only the current segment remains.
+		history = new FileExecutionHistory(dir, 4, 4096, 86400000, 1048576,
+				Clock.offset(CLOCK, Duration.ofDays(30)));
+		history.open();
+		assertEquals(1, history.getSegmentCount());
+		assertEquals(runs.subList(runs.size() - 83, runs.size()), query(history, Long.MIN_VALUE, Long.MAX_VALUE));
+		history.close();
+	}
+
+	/** The rings grow with the number of runs, up to their size, and are removed with the job.
+	 */
+	@Test
+	void testRings() throws Exception {
+		final Path dir = Files.createTempDirectory(Tests.requireTestDirectory(FileExecutionHistoryTest.class), "history");
+		final FileExecutionHistory history = new FileExecutionHistory(dir, 10, 4096, 86400000, 1048576, CLOCK);
+		history.open();
+		final List<RunRecord> runs = new ArrayList<>();
+		for (int i = 0;  i < 25;  i++) {
+			final RunRecord run = RunRecordImpl.of(Long.valueOf(i % 2), Long.valueOf(1), BASE + i * 1000L,
+					BASE + i * 1000L + 500, Status.SUCCEEDED, 0);
+			runs.add(run);
+			history.add(run);
+			assertEquals(recent(runs, 0, 10), history.getRecentRuns(Long.valueOf(0)));
+			assertEquals(recent(runs, 1, 10), history.getRecentRuns(Long.valueOf(1)));
+		}
+		history.remove(Long.valueOf(0));
+		assertEquals(List.of(), history.getRecentRuns(Long.valueOf(0)));
+		assertEquals(recent(runs, 1, 10), history.getRecentRuns(Long.valueOf(1)));
+		// The runs remain in the segment files.
+		assertEquals(runs, query(history, Long.MIN_VALUE, Long.MAX_VALUE));
+		history.close();
+	}
+}
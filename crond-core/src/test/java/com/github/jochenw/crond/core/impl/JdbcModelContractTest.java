@@ -0,0 +1,18 @@
+package com.github.jochenw.crond.core.impl;
+
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicInteger;
+
+class JdbcModelContractTest extends AbstractModelContractTest {
+	private static final AtomicInteger DATABASES = new AtomicInteger();
+
+	@Override
+	protected AbstractModel newModel() throws Exception {
+		final Properties props = new Properties();
+		// A new in-memory database for every test, which lives until the JVM exits.
+		props.setProperty("jdbc.model.url", "jdbc:h2:mem:crond" + DATABASES.incrementAndGet() + ";DB_CLOSE_DELAY=-1");
+		props.setProperty("jdbc.model.user", "sa");
+		props.setProperty("jdbc.model.batchSize", "100");
+		return newModel(JdbcModel.class, props, (b) -> {});
+	}
+}
@@ -0,0 +1,17 @@
+package com.github.jochenw.crond.core.impl;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Properties;
+
+import com.github.jochenw.afw.core.util.tests.Tests;
+
+class MappedFileModelContractTest extends AbstractModelContractTest {
+	@Override
+	protected AbstractModel newModel() throws Exception {
+		final Path testDir = Tests.requireTestDirectory(MappedFileModelContractTest.class);
+		final Path modelDir = Files.createTempDirectory(testDir, "model");
+		return newModel(MappedFileModel.class, new Properties(),
+				(b) -> b.bind(Path.class, "mapped.model.dir").toInstance(modelDir));
+	}
+}
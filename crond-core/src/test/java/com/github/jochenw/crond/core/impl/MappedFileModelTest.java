@@ -0,0 +1,179 @@
+package com.github.jochenw.crond.core.impl;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Properties;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.Test;
+
+import com.github.jochenw.afw.core.inject.AfwCoreOnTheFlyBinder;
+import com.github.jochenw.afw.core.log.ILog.Level;
+import com.github.jochenw.afw.core.log.ILogFactory;
+import com.github.jochenw.afw.core.log.simple.SimpleLogFactory;
+import com.github.jochenw.afw.core.util.Objects.DuplicateElementException;
+import com.github.jochenw.afw.core.util.tests.Tests;
+import com.github.jochenw.afw.di.api.IComponentFactory;
+import com.github.jochenw.crond.core.api.IModel.Job;
+import com.github.jochenw.crond.core.api.IModel.User;
+import com.github.jochenw.crond.core.beans.JobImpl;
+import com.github.jochenw.crond.core.beans.UserImpl;
+
+class MappedFileModelTest {
+	private MappedFileModel newModel(Path pDir) {
+		final ILogFactory lf = SimpleLogFactory.ofSystemOut(Level.TRACE);
+		final Properties props = new Properties();
+		// Small segments, so that the test covers multiple segments.
+		props.setProperty("mapped.model.segmentSize", "4096");
+		final IComponentFactory cf = IComponentFactory.builder().jakarta()
+				.module((b) -> {
+					b.bind(Path.class, "mapped.model.dir").toInstance(pDir);
+					b.bind(Properties.class).toInstance(props);
+					b.bind(ILogFactory.class).toInstance(lf);
+					b.bind(MappedFileModel.class);
+				}).onTheFlyBinder(new AfwCoreOnTheFlyBinder()).build();
+		final MappedFileModel model = cf.requireInstance(MappedFileModel.class);
+		model.start();
+		return model;
+	}
+
+	@Test
+	void testPersistence() throws Exception {
+		final Path testDir = Tests.requireTestDirectory(MappedFileModelTest.class);
+		final Path dir = Files.createTempDirectory(testDir, "persistence");
+		final MappedFileModel model = newModel(dir);
+		final User jochen = model.addUser("jochen.wiedmann@gmail.com", "Wiedmann, Jochen");
+		final User tobias = model.addUser("tobias.huehner@softwareag.com", "H\u00fchner, Tobias");
+		for (int i = 0;  i < 200;  i++) {
+			model.addJob(jochen.getId(), "Job " + i);
+		}
+		final Job backup = model.addJob(tobias.getId(), "Backup");
+		assertThrows(DuplicateElementException.class, () -> model.addUser("jochen.wiedmann@gmail.com", null));
+		assertThrows(DuplicateElementException.class, () -> model.addJob(tobias.getId(), "Backup"));
+		assertThrows(NoSuchElementException.class, () -> model.addJob(Long.valueOf(42), "Backup"));
+		model.updateUser(UserImpl.of(tobias.getId(), "tobias@example.com", null));
+		model.updateJob(JobImpl.of(backup.getId(), jochen.getId(), "Backup"));
+		model.removeJob(model.getJobByUserIdAndName(jochen.getId(), "Job 0").getId());
+		// A failing batch must not leave anything behind.
+		assertThrows(DuplicateElementException.class, () -> model.batch((b) -> {
+			b.addUser("john.doe@example.com", "Doe, John");
+			b.removeUser(jochen.getId());
+			b.addUser("tobias@example.com", null);
+		}));
+		assertNull(model.getUserByEmail("john.doe@example.com"));
+		assertNotNull(model.getUserById(jochen.getId()));
+		model.shutdown();
+
+		final MappedFileModel model2 = newModel(dir);
+		assertNull(model2.getUserByEmail("tobias.huehner@softwareag.com"));
+		final User tobias2 = model2.getUserByEmail("tobias@example.com");
+		assertEquals(tobias.getId(), tobias2.getId());
+		assertNull(tobias2.getName());
+		assertEquals("Wiedmann, Jochen", model2.getUserById(jochen.getId()).getName());
+		assertEquals(200, model2.countJobsOfUser(jochen.getId()));
+		assertEquals(0, model2.countJobsOfUser(tobias.getId()));
+		assertNull(model2.getJobByUserIdAndName(jochen.getId(), "Job 0"));
+		assertEquals(backup.getId(), model2.getJobByUserIdAndName(jochen.getId(), "Backup").getId());
+		final List<String> names = new ArrayList<>();
+		model2.forEachJobOfUser(jochen.getId(), (j) -> names.add(j.getName()));
+		assertEquals(200, names.size());
+		assertEquals("Job 1", names.get(0));
+		assertEquals("Backup", names.get(199));
+		// New ids continue after the highest existing id.
+		final User john = model2.addUser("john.doe@example.com", "Doe, John");
+		assertEquals(tobias.getId().longValue()+1, john.getId().longValue());
+		model2.shutdown();
+	}
+
+	@Test
+	void testCompaction() throws Exception {
+		final Path testDir = Tests.requireTestDirectory(MappedFileModelTest.class);
+		final Path dir = Files.createTempDirectory(testDir, "compaction");
+		final MappedFileModel model = newModel(dir);
+		final User jochen = model.addUser("jochen.wiedmann@gmail.com", "Wiedmann, Jochen");
+		final Job backup = model.addJob(jochen.getId(), "Backup");
+		for (int i = 0;  i < 500;  i++) {
+			model.updateJob(JobImpl.of(backup.getId(), jochen.getId(), "Backup", "@every " + i + "m"));
+		}
+		final long segmentBytes = model.getSegmentBytes();
+		assertTrue(model.getDeletedBytes() > 4096);
+		model.shutdown();
+
+		// The deleted records are reclaimed upon startup.
+		final MappedFileModel model2 = newModel(dir);
+		assertEquals(0, model2.getDeletedBytes());
+		assertTrue(model2.getSegmentBytes() < segmentBytes);
+		assertEquals("@every 499m", model2.getJobById(backup.getId()).getSchedule());
+		assertEquals("Wiedmann, Jochen", model2.getUserByEmail("jochen.wiedmann@gmail.com").getName());
+		final Job cleanup = model2.addJob(jochen.getId(), "Cleanup");
+		model2.shutdown();
+		try (Stream<Path> files = Files.list(dir)) {
+			assertTrue(files.noneMatch((f) -> f.getFileName().toString().contains(".compact")));
+		}
+
+		final MappedFileModel model3 = newModel(dir);
+		assertEquals(2, model3.countJobsOfUser(jochen.getId()));
+		assertEquals("Cleanup", model3.getJobById(cleanup.getId()).getName());
+		model3.shutdown();
+	}
+
+	/** Copies the model files, while the model is in use, simulating a crash.
+	 */
+	private static Path crash(Path pDir, Path pTestDir) throws Exception {
+		final Path crashDir = Files.createTempDirectory(pTestDir, "crash");
+		try (Stream<Path> files = Files.list(pDir)) {
+			for (Path file : (Iterable<Path>) files::iterator) {
+				Files.copy(file, crashDir.resolve(file.getFileName()));
+			}
+		}
+		return crashDir;
+	}
+
+	@Test
+	void testInterruptedBatch() throws Exception {
+		final Path testDir = Tests.requireTestDirectory(MappedFileModelTest.class);
+		final Path dir = Files.createTempDirectory(testDir, "batch");
+		final MappedFileModel model = newModel(dir);
+		final User jochen = model.addUser("jochen.wiedmann@gmail.com", "Wiedmann, Jochen");
+		final User tobias = model.addUser("tobias.huehner@softwareag.com", "H\u00fchner, Tobias");
+		final Job backup = model.addJob(jochen.getId(), "Backup");
+		final Job cleanup = model.addJob(jochen.getId(), "Cleanup");
+
+		// The process crashes in the middle of a batch, which spans multiple segments.
+		final Path[] crashDir = new Path[1];
+		assertThrows(IllegalStateException.class, () -> model.batch((b) -> {
+			b.updateUser(UserImpl.of(tobias.getId(), "tobias@example.com", null));
+			b.removeJob(backup.getId());
+			b.addUser("john.doe@example.com", "Doe, John");
+			for (int i = 0;  i < 100;  i++) {
+				b.addJob(jochen.getId(), "Job " + i);
+			}
+			b.updateJob(JobImpl.of(cleanup.getId(), jochen.getId(), "Cleanup", "@daily"));
+			crashDir[0] = crash(dir, testDir);
+			throw new IllegalStateException("Crash");
+		}));
+		final MappedFileModel crashed = newModel(crashDir[0]);
+		assertEquals("tobias.huehner@softwareag.com", crashed.getUserById(tobias.getId()).getEmail());
+		assertNull(crashed.getUserByEmail("john.doe@example.com"));
+		assertEquals(2, crashed.countJobsOfUser(jochen.getId()));
+		assertNotNull(crashed.getJobById(backup.getId()));
+		assertNull(crashed.getJobById(cleanup.getId()).getSchedule());
+		crashed.shutdown();
+
+		// The process crashes after a batch has been committed.
+		model.batch((b) -> {
+			b.removeJob(backup.getId());
+			b.addUser("john.doe@example.com", "Doe, John");
+		});
+		final MappedFileModel committed = newModel(crash(dir, testDir));
+		assertNull(committed.getJobById(backup.getId()));
+		assertNotNull(committed.getUserByEmail("john.doe@example.com"));
+		committed.shutdown();
+		model.shutdown();
+	}
+}
@@ -0,0 +1,162 @@
+package com.github.jochenw.crond.core.impl;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+import com.github.jochenw.crond.core.api.IModel.Event;
+import com.github.jochenw.crond.core.api.IModel.Job;
+import com.github.jochenw.crond.core.api.IModel.Listener;
+import com.github.jochenw.crond.core.api.IModel.SynchronousListener;
+import com.github.jochenw.crond.core.api.IModel.User;
+import com.github.jochenw.crond.core.beans.EventImpl;
+import com.github.jochenw.crond.core.beans.JobImpl;
+import com.github.jochenw.crond.core.beans.UserImpl;
+import com.github.jochenw.crond.core.impl.ModelEventBus.ListenerStats;
+import com.github.jochenw.crond.core.impl.ModelEventBus.OverflowPolicy;
+
+class ModelEventBusTest {
+	/** A listener, which records the notifications, and which blocks
+	 * in the first notification, until it is released.
+	 */
+	private static class RecordingListener implements Listener {
+		final List<String> notifications = Collections.synchronizedList(new ArrayList<>());
+		final CountDownLatch entered = new CountDownLatch(1);
+		final CountDownLatch released = new CountDownLatch(1);
+		final CountDownLatch done;
+
+		RecordingListener(int pExpected) {
+			done = new CountDownLatch(pExpected);
+		}
+
+		private void record(String pNotification) {
+			entered.countDown();
+			try {
+				assertTrue(released.await(10, TimeUnit.SECONDS));
+			} catch (InterruptedException e) {
+				throw new IllegalStateException(e);
+			}
+			notifications.add(pNotification);
+			done.countDown();
+		}
+
+		@Override public void userAdded(User pUser) { record("ua " + pUser.getId()); }
+		@Override public void userUpdated(User pUser) { record("uu " + pUser.getId()); }
+		@Override public void jobAdded(Job pJob) { record("ja " + pJob.getId() + " " + pJob.getName()); }
+		@Override public void initialized() { record("init"); }
+		@Override public void batchApplied(List<Event> pEvents) {
+			record("batch " + pEvents.size());
+			Listener.super.batchApplied(pEvents);
+		}
+	}
+
+	private static User user(long pId) {
+		return UserImpl.of(Long.valueOf(pId), "u" + pId + "@foo.com", "User " + pId);
+	}
+
+	private static Job job(long pId, String pName) {
+		return JobImpl.of(Long.valueOf(pId), Long.valueOf(1), pName);
+	}
+
+	@Test
+	void testOrderedDelivery() throws Exception {
+		final ModelEventBus bus = new ModelEventBus(OverflowPolicy.BLOCK, 16, 2, 10000, null);
+		final RecordingListener listener = new RecordingListener(1000);
+		listener.released.countDown();
+		bus.addListener(listener);
+		final List<String> expected = new ArrayList<>();
+		for (int i = 0;  i < 1000;  i++) {
+			bus.publish(EventImpl.userAdded(user(i)));
+			expected.add("ua " + i);
+		}
+		assertTrue(listener.done.await(10, TimeUnit.SECONDS));
+		assertEquals(expected, listener.notifications);
+		final ListenerStats stats = bus.getStats().get(0);
+		// The listener returns, before the bus counts the notification as delivered.
+		for (int i = 0;  i < 500  &&  stats.getDelivered() < 1000;  i++) {
+			Thread.sleep(10);
+		}
+		assertEquals(1000, stats.getDelivered());
+		assertEquals(0, stats.getDropped());
+		bus.shutdown(1000);
+	}
+
+	@Test
+	void testDropAndResync() throws Exception {
+		final ModelEventBus bus = new ModelEventBus(OverflowPolicy.DROP_AND_RESYNC, 4, 1, 10000, null);
+		final RecordingListener listener = new RecordingListener(5);
+		bus.addListener(listener);
+		bus.publish(EventImpl.userAdded(user(0)));
+		assertTrue(listener.entered.await(10, TimeUnit.SECONDS));
+		for (int i = 1;  i <= 8;  i++) {
+			bus.publish(EventImpl.userAdded(user(i)));
+		}
+		final ListenerStats stats = bus.getStats().get(0);
+		assertEquals(4, stats.getQueued());
+		assertTrue(stats.getLagNanos() > 0);
+		listener.released.countDown();
+		assertTrue(listener.done.await(10, TimeUnit.SECONDS));
+		bus.shutdown(1000);
+		// Events 1..4 fill the buffer, event 5 causes a resync, 6..8 follow.
+		assertEquals(List.of("ua 0", "init", "ua 6", "ua 7", "ua 8"), listener.notifications);
+		assertEquals(5, stats.getDropped());
+	}
+
+	@Test
+	void testCoalesce() throws Exception {
+		final ModelEventBus bus = new ModelEventBus(OverflowPolicy.COALESCE, 1, 1, 10000, null);
+		final RecordingListener listener = new RecordingListener(5);
+		bus.addListener(listener);
+		bus.publish(EventImpl.userAdded(user(0)));
+		assertTrue(listener.entered.await(10, TimeUnit.SECONDS));
+		bus.publish(EventImpl.userAdded(user(1)));
+		// The buffer is full, so these are being coalesced.
+		bus.publish(EventImpl.jobAdded(job(5, "a")));
+		bus.publish(EventImpl.jobUpdated(job(5, "b")));
+		bus.publish(EventImpl.userUpdated(user(3)));
+		bus.publish(EventImpl.userUpdated(user(3)));
+		final ListenerStats stats = bus.getStats().get(0);
+		assertEquals(2, stats.getCoalesced());
+		assertEquals(3, stats.getQueued());
+		listener.released.countDown();
+		assertTrue(listener.done.await(10, TimeUnit.SECONDS));
+		bus.shutdown(1000);
+		assertEquals(List.of("ua 0", "ua 1", "batch 2", "ja 5 b", "uu 3"), listener.notifications);
+	}
+
+	@Test
+	void testSynchronousListener() {
+		final ModelEventBus bus = new ModelEventBus(OverflowPolicy.BLOCK, 4, 1, 10000, null);
+		final List<Thread> threads = new ArrayList<>();
+		bus.addListener(new SynchronousListener() {
+			@Override
+			public void userAdded(User pUser) {
+				threads.add(Thread.currentThread());
+			}
+		});
+		bus.publish(EventImpl.userAdded(user(0)));
+		assertEquals(List.of(Thread.currentThread()), threads);
+		assertTrue(bus.getStats().get(0).isSynchronous());
+
+		// A failing listener affects neither the publishing thread, nor the other listeners.
+		bus.addListener(new SynchronousListener() {
+			@Override
+			public void userAdded(User pUser) {
+				throw new IllegalStateException("Failing listener");
+			}
+		});
+		bus.publish(EventImpl.userAdded(user(1)));
+		bus.publish(EventImpl.userAdded(user(2)));
+		assertEquals(3, threads.size());
+		assertEquals(0, bus.getStats().get(0).getFailed());
+		assertEquals(2, bus.getStats().get(1).getFailed());
+		assertEquals(2, bus.getStats().get(1).getDelivered());
+		bus.shutdown(1000);
+	}
+}
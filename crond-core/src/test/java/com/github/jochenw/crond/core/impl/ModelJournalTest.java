@@ -0,0 +1,208 @@
+package com.github.jochenw.crond.core.impl;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+
+import com.github.jochenw.afw.core.util.tests.Tests;
+import com.github.jochenw.crond.core.api.IModel.Job;
+import com.github.jochenw.crond.core.api.IModel.User;
+import com.github.jochenw.crond.core.beans.JobImpl;
+import com.github.jochenw.crond.core.beans.UserImpl;
+
+class ModelJournalTest {
+	@Test
+	void testReplay() throws Exception {
+		final Path testDir = Tests.requireTestDirectory(ModelJournalTest.class);
+		final Path journalFile = testDir.resolve("testReplay.journal");
+		Files.deleteIfExists(journalFile);
+		try (ModelJournal journal = new ModelJournal(journalFile)) {
+			assertEquals(0, journal.replay(new HashMap<>(), new HashMap<>()));
+			journal.putUser(UserImpl.of(Long.valueOf(1), "jochen.wiedmann@gmail.com", "Wiedmann, Jochen"));
+			journal.putUser(UserImpl.of(Long.valueOf(2), "tobias.huehner@softwareag.com", null));
+			journal.putJob(JobImpl.of(Long.valueOf(1), Long.valueOf(1), "Backup", "@daily"));
+			journal.putJob(JobImpl.of(Long.valueOf(2), Long.valueOf(2), "Cleanup"));
+			journal.putUser(UserImpl.of(Long.valueOf(1), "jochen.wiedmann@gmail.com", "J\u00f6chen"));
+			journal.removeJob(Long.valueOf(2));
+			journal.removeUser(Long.valueOf(2));
+		}
+		// Simulate a crash, while writing the last record.
+		final long size = Files.size(journalFile);
+		try (ModelJournal journal = new ModelJournal(journalFile)) {
+			journal.replay(new HashMap<>(), new HashMap<>());
+			journal.putUser(UserImpl.of(Long.valueOf(3), "john.doe@example.com", "Doe, John"));
+		}
+		try (FileChannel fc = FileChannel.open(journalFile, StandardOpenOption.WRITE)) {
+			fc.truncate(Files.size(journalFile)-3);
+		}
+		final Map<Long,User> users = new HashMap<>();
+		final Map<Long,Job> jobs = new HashMap<>();
+		try (ModelJournal journal = new ModelJournal(journalFile)) {
+			assertEquals(7, journal.replay(users, jobs));
+			assertEquals(size, journal.getSize());
+		}
+		assertEquals(size, Files.size(journalFile));
+		assertEquals(1, users.size());
+		assertEquals("J\u00f6chen", users.get(Long.valueOf(1)).getName());
+		assertEquals(1, jobs.size());
+		assertEquals("Backup", jobs.get(Long.valueOf(1)).getName());
+		assertEquals("@daily", jobs.get(Long.valueOf(1)).getSchedule());
+	}
+
+	@Test
+	void testBatch() throws Exception {
+		final Path testDir = Tests.requireTestDirectory(ModelJournalTest.class);
+		final Path journalFile = testDir.resolve("testBatch.journal");
+		Files.deleteIfExists(journalFile);
+		final long size;
+		try (ModelJournal journal = new ModelJournal(journalFile)) {
+			journal.replay(new HashMap<>(), new HashMap<>());
+			journal.putUser(UserImpl.of(Long.valueOf(1), "jochen.wiedmann@gmail.com", "Wiedmann, Jochen"));
+			size = journal.getSize();
+			journal.beginBatch();
+			journal.putUser(UserImpl.of(Long.valueOf(2), "john.doe@example.com", "Doe, John"));
+			journal.putJob(JobImpl.of(Long.valueOf(1), Long.valueOf(2), "Backup", "@daily"));
+			journal.removeUser(Long.valueOf(1));
+			journal.endBatch();
+			journal.beginBatch();
+			journal.endBatch(); // An empty batch isn't written.
+		}
+		final Map<Long,User> users = new HashMap<>();
+		final Map<Long,Job> jobs = new HashMap<>();
+		try (ModelJournal journal = new ModelJournal(journalFile)) {
+			assertEquals(2, journal.replay(users, jobs));
+		}
+		assertEquals(1, users.size());
+		assertEquals("Doe, John", users.get(Long.valueOf(2)).getName());
+		assertEquals(1, jobs.size());
+
+		// Simulate a crash, while writing the batch: None of its
+		// operations are replayed.
+		try (FileChannel fc = FileChannel.open(journalFile, StandardOpenOption.WRITE)) {
+			fc.truncate((size + Files.size(journalFile)) / 2);
+		}
+		users.clear();
+		jobs.clear();
+		try (ModelJournal journal = new ModelJournal(journalFile)) {
+			assertEquals(1, journal.replay(users, jobs));
+			assertEquals(size, journal.getSize());
+		}
+		assertEquals(1, users.size());
+		assertEquals("Wiedmann, Jochen", users.get(Long.valueOf(1)).getName());
+		assertTrue(jobs.isEmpty());
+	}
+
+	@Test
+	void testFailedFlush() throws Exception {
+		final Path testDir = Tests.requireTestDirectory(ModelJournalTest.class);
+		final Path journalFile = testDir.resolve("testFailedFlush.journal");
+		Files.deleteIfExists(journalFile);
+		try (ModelJournal journal = new ModelJournal(journalFile)) {
+			journal.putUser(UserImpl.of(Long.valueOf(1), "jochen.wiedmann@gmail.com", "Wiedmann, Jochen"));
+			// A directory in place of the journal file causes the flush to fail.
+			Files.createDirectory(journalFile);
+			assertThrows(UncheckedIOException.class, () -> journal.flush());
+			Files.delete(journalFile);
+			// The records have been kept, and are written by the next flush.
+			journal.putUser(UserImpl.of(Long.valueOf(2), "john.doe@example.com", "Doe, John"));
+			journal.flush();
+		}
+		final Map<Long,User> users = new HashMap<>();
+		try (ModelJournal journal = new ModelJournal(journalFile)) {
+			assertEquals(2, journal.replay(users, new HashMap<>()));
+		}
+		assertEquals(2, users.size());
+	}
+
+	@Test
+	void testStaleJournal() throws Exception {
+		final Path testDir = Tests.requireTestDirectory(ModelJournalTest.class);
+		final Path journalFile = testDir.resolve("testStaleJournal.journal");
+		Files.deleteIfExists(journalFile);
+		try (ModelJournal journal = new ModelJournal(journalFile)) {
+			journal.replay(new HashMap<>(), new HashMap<>());
+			journal.reset(4711, 42);
+			assertTrue(journal.hasSnapshotRecord());
+			assertEquals(0, journal.getSize());
+			journal.putUser(UserImpl.of(Long.valueOf(1), "jochen.wiedmann@gmail.com", "Wiedmann, Jochen"));
+			journal.putJob(JobImpl.of(Long.valueOf(1), Long.valueOf(1), "Backup", "@daily"));
+		}
+		final long size = Files.size(journalFile);
+
+		// The journal belongs to the current snapshot: The records are replayed.
+		final Map<Long,User> users = new HashMap<>();
+		try (ModelJournal journal = new ModelJournal(journalFile)) {
+			assertEquals(2, journal.replay(new ModelJournal.Target() {
+				@Override
+				public void putUser(User pUser) {
+					users.put(pUser.getId(), pUser);
+				}
+
+				@Override
+				public void removeUser(Long pUserId) {
+					fail("Unexpected record");
+				}
+
+				@Override
+				public void putJob(Job pJob) {
+				}
+
+				@Override
+				public void removeJob(Long pJobId) {
+					fail("Unexpected record");
+				}
+
+				@Override
+				public boolean isSnapshot(long pSize, long pChecksum) {
+					return pSize == 4711  &&  pChecksum == 42;
+				}
+			}));
+			assertTrue(journal.hasSnapshotRecord());
+			assertTrue(journal.getSize() > 0);
+		}
+		assertEquals(1, users.size());
+		assertEquals(size, Files.size(journalFile));
+
+		// The snapshot has been replaced, but the journal hasn't been reset
+		// (a crash while compacting): The stale records are skipped.
+		try (ModelJournal journal = new ModelJournal(journalFile)) {
+			assertEquals(0, journal.replay(new ModelJournal.Target() {
+				@Override
+				public void putUser(User pUser) {
+					fail("Unexpected record");
+				}
+
+				@Override
+				public void removeUser(Long pUserId) {
+					fail("Unexpected record");
+				}
+
+				@Override
+				public void putJob(Job pJob) {
+					fail("Unexpected record");
+				}
+
+				@Override
+				public void removeJob(Long pJobId) {
+					fail("Unexpected record");
+				}
+
+				@Override
+				public boolean isSnapshot(long pSize, long pChecksum) {
+					return false;
+				}
+			}));
+			assertFalse(journal.hasSnapshotRecord());
+			assertEquals(0, journal.getSize());
+		}
+		assertEquals(0, Files.size(journalFile));
+	}
+}
@@ -0,0 +1,46 @@
+package com.github.jochenw.crond.core.impl;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+
+class ModelPersisterTest {
+	@Test
+	void testRetry() throws Exception {
+		final AtomicInteger writes = new AtomicInteger();
+		final ModelPersister persister = new ModelPersister(ModelPersister.Mode.GROUP_COMMIT, 10, () -> {
+			if (writes.incrementAndGet() == 1) {
+				throw new IllegalStateException("Disk full");
+			}
+		}, null);
+		persister.start();
+		try {
+			final CompletableFuture<Void> future = persister.dirty();
+			final ExecutionException e = assertThrows(ExecutionException.class, () -> future.get(5, TimeUnit.SECONDS));
+			assertEquals("Disk full", e.getCause().getMessage());
+			// The failed write is retried, without another mutation.
+			persister.flush().get(5, TimeUnit.SECONDS);
+			assertEquals(2, writes.get());
+		} finally {
+			persister.shutdown();
+		}
+	}
+
+	@Test
+	void testStopped() throws Exception {
+		final ModelPersister persister = new ModelPersister(ModelPersister.Mode.GROUP_COMMIT, 10, () -> {}, null);
+		persister.start();
+		final boolean[] published = new boolean[1];
+		persister.dirty(() -> published[0] = true).get(5, TimeUnit.SECONDS);
+		assertTrue(published[0]);
+		persister.shutdown();
+		published[0] = false;
+		assertThrows(IllegalStateException.class, () -> persister.dirty(() -> published[0] = true));
+		assertFalse(published[0]);
+	}
+}
@@ -0,0 +1,19 @@
+package com.github.jochenw.crond.core.impl;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Properties;
+
+import com.github.jochenw.afw.core.util.tests.Tests;
+
+class XmlFileModelContractTest extends AbstractModelContractTest {
+	@Override
+	protected AbstractModel newModel() throws Exception {
+		final Path testDir = Tests.requireTestDirectory(XmlFileModelContractTest.class);
+		final Path modelFile = Files.createTempDirectory(testDir, "model").resolve("model.xml");
+		final Properties props = new Properties();
+		// With journaling enabled, the model file needn't exist initially.
+		props.setProperty("xml.model.journal", "true");
+		return newModel(XmlFileModel.class, props, (b) -> b.bind(Path.class, "xml.model.file").toInstance(modelFile));
+	}
+}
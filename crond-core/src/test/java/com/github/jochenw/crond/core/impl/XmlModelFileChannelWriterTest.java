@@ -0,0 +1,69 @@
+package com.github.jochenw.crond.core.impl;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.channels.Channels;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import com.github.jochenw.crond.core.api.IModel.Job;
+import com.github.jochenw.crond.core.api.IModel.User;
+import com.github.jochenw.crond.core.beans.JobImpl;
+import com.github.jochenw.crond.core.beans.UserImpl;
+
+class XmlModelFileChannelWriterTest {
+	private static final String[] NAMES = {
+		"Wiedmann, Jochen",
+		"Tab\tLine\nFeed\rReturn\u0000\u001f",
+		"Quotes \"'\", and markup <&>",
+		"H\u00fchner, \u00c4rger \u00df \u007f\u0085\u009f",
+		"Euro \u20ac, CJK \u4e2d\u6587, line separator \u2028, \ufffd",
+		"Smiley \ud83d\ude00, and G clef \ud834\udd1e",
+		"Lone low surrogate \udc00",
+	};
+
+	private byte[] transform(List<User> pUsers, List<Job> pJobs) throws Exception {
+		final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		new XmlModelFileWriter().write(pUsers, pJobs, false, baos, "Transformer");
+		return baos.toByteArray();
+	}
+
+	private byte[] encode(XmlModelFileChannelWriter pWriter, List<User> pUsers, List<Job> pJobs) throws Exception {
+		final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		pWriter.write(pUsers, pJobs, Channels.newChannel(baos));
+		return baos.toByteArray();
+	}
+
+	@Test
+	void testSameOutput() throws Exception {
+		final List<User> users = new ArrayList<>();
+		final List<Job> jobs = new ArrayList<>();
+		for (int i = 0;  i < NAMES.length;  i++) {
+			final long id = i == 0 ? Long.MAX_VALUE : i;
+			users.add(UserImpl.of(Long.valueOf(id), "user" + i + "@foo.com", NAMES[i]));
+			final String schedule = i % 2 == 0 ? null : "*/" + (i+1) + " * * * *";
+			jobs.add(JobImpl.of(Long.valueOf(1000+i), Long.valueOf(id), NAMES[i], schedule));
+		}
+		users.add(UserImpl.of(Long.valueOf(0), "nameless@foo.com", null));
+		// A small buffer forces many flushes, including in the middle of a string.
+		final XmlModelFileChannelWriter writer = new XmlModelFileChannelWriter(64);
+		assertArrayEquals(transform(users, jobs), encode(writer, users, jobs));
+		// Reusing the writer must not change the output.
+		assertArrayEquals(transform(users, jobs), encode(writer, users, jobs));
+		assertArrayEquals(transform(Collections.emptyList(), Collections.emptyList()),
+				          encode(writer, Collections.emptyList(), Collections.emptyList()));
+		assertArrayEquals(transform(users, null), encode(writer, users, null));
+	}
+
+	@Test
+	void testInvalidSurrogate() throws Exception {
+		final List<User> users = Arrays.asList(UserImpl.of(Long.valueOf(1), "foo@bar.com", "High \ud83d surrogate"));
+		assertThrows(Exception.class, () -> transform(users, null));
+		assertThrows(Exception.class, () -> encode(new XmlModelFileChannelWriter(), users, null));
+	}
+}
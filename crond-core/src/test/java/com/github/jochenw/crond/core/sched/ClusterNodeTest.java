@@ -0,0 +1,199 @@
+package com.github.jochenw.crond.core.sched;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.Test;
+
+import com.github.jochenw.afw.core.util.tests.Tests;
+
+class ClusterNodeTest {
+	private static final int PARTITIONS = 64;
+
+	/** A clock, which is advanced manually, and shared by all nodes.
+	 */
+	private static class TestClock extends Clock {
+		private volatile long millis = Instant.parse("2024-01-01T00:00:00Z").toEpochMilli();
+
+		void advance(long pMillis) {
+			millis += pMillis;
+		}
+
+		@Override
+		public ZoneId getZone() {
+			return ZoneOffset.UTC;
+		}
+
+		@Override
+		public Clock withZone(ZoneId pZone) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public Instant instant() {
+			return Instant.ofEpochMilli(millis);
+		}
+	}
+
+	private static ClusterNode newNode(Path pDir, String pNodeId, Clock pClock) {
+		return new ClusterNode(pDir, pNodeId, PARTITIONS, 16, 1000, 5000, pClock, null);
+	}
+
+	/** Performs a heartbeat on every node, twice, so that released
+	 * partitions are claimed.
+	 */
+	private static void heartbeats(TestClock pClock, ClusterNode... pNodes) {
+		for (int i = 0;  i < 2;  i++) {
+			pClock.advance(1000);
+			for (ClusterNode node : pNodes) {
+				node.heartbeat();
+			}
+		}
+	}
+
+	/** Asserts, that the given nodes own disjoint partitions, which cover
+	 * the whole job id space.
+	 */
+	private static void assertPartitioned(ClusterNode... pNodes) {
+		final BitSet all = new BitSet();
+		for (ClusterNode node : pNodes) {
+			final BitSet owned = node.getOwnedPartitions();
+			assertFalse(owned.intersects(all), node.getNodeId());
+			assertFalse(owned.isEmpty(), node.getNodeId());
+			all.or(owned);
+		}
+		assertEquals(PARTITIONS, all.cardinality());
+		for (long jobId = 0;  jobId < 1000;  jobId++) {
+			int owners = 0;
+			for (ClusterNode node : pNodes) {
+				if (node.owns(jobId)) {
+					++owners;
+				}
+			}
+			assertEquals(1, owners, String.valueOf(jobId));
+		}
+	}
+
+	@Test
+	void testRebalancing() throws Exception {
+		final Path dir = Files.createTempDirectory(Tests.requireTestDirectory(ClusterNodeTest.class), "cluster");
+		final TestClock clock = new TestClock();
+		final ClusterNode a = newNode(dir, "a", clock);
+		final ClusterNode b = newNode(dir, "b", clock);
+		final ClusterNode c = newNode(dir, "c", clock);
+		final AtomicInteger changes = new AtomicInteger();
+		a.addListener(changes::incrementAndGet);
+
+		// A single node owns everything, after it has published its membership.
+		a.heartbeat();
+		assertTrue(a.getOwnedPartitions().isEmpty());
+		clock.advance(1000);
+		a.heartbeat();
+		assertEquals(PARTITIONS, a.getOwnedPartitions().cardinality());
+		assertEquals(1, changes.get());
+
+		// A joining node claims its partitions only after they have been released.
+		b.heartbeat();
+		assertTrue(b.getOwnedPartitions().isEmpty());
+		assertEquals(List.of("a", "b"), b.getLiveNodes());
+		heartbeats(clock, a, b);
+		assertPartitioned(a, b);
+		final BitSet aOwned = a.getOwnedPartitions();
+		final BitSet bOwned = b.getOwnedPartitions();
+
+		// Only the partitions of the new node move.
+		heartbeats(clock, a, b, c);
+		assertPartitioned(a, b, c);
+		final BitSet moved = (BitSet) aOwned.clone();
+		moved.andNot(a.getOwnedPartitions());
+		assertFalse(moved.intersects(b.getOwnedPartitions()));
+		final BitSet bMoved = (BitSet) bOwned.clone();
+		bMoved.andNot(b.getOwnedPartitions());
+		assertFalse(bMoved.intersects(a.getOwnedPartitions()));
+
+		// A node, which stops its heartbeats, loses its lease, and its partitions are taken over.
+		for (int i = 0;  i < 3;  i++) {
+			heartbeats(clock, a, c);
+		}
+		for (long jobId = 0;  jobId < 100;  jobId++) {
+			assertFalse(b.owns(jobId));
+		}
+		assertEquals(List.of("a", "c"), a.getLiveNodes());
+		assertPartitioned(a, c);
+
+		// The node returns, and is a regular member again.
+		heartbeats(clock, a, b, c);
+		assertPartitioned(a, b, c);
+
+		// A node, which shuts down, hands over its partitions immediately.
+		c.shutdown();
+		assertTrue(c.getOwnedPartitions().isEmpty());
+		heartbeats(clock, a, b);
+		assertPartitioned(a, b);
+		a.shutdown();
+		b.shutdown();
+		try (Stream<Path> files = Files.list(dir)) {
+			assertEquals(0, files.count());
+		}
+	}
+	/** Nodes, which start at the same time, don't claim the same partitions.
+	 */
+	@Test
+	void testSimultaneousStart() throws Exception {
+		final Path dir = Files.createTempDirectory(Tests.requireTestDirectory(ClusterNodeTest.class), "cluster");
+		final TestClock clock = new TestClock();
+		final ClusterNode a = newNode(dir, "a", clock);
+		final ClusterNode b = newNode(dir, "b", clock);
+		final ClusterNode c = newNode(dir, "c", clock);
+		// The first heartbeats are interleaved: Each node reads the directory, before the
+		// next nodes lease is written.
+		a.heartbeat();
+		b.heartbeat();
+		c.heartbeat();
+		assertTrue(a.getOwnedPartitions().isEmpty());
+		assertTrue(b.getOwnedPartitions().isEmpty());
+		assertTrue(c.getOwnedPartitions().isEmpty());
+		assertEquals(List.of("a"), a.getLiveNodes());
+		clock.advance(1000);
+		a.heartbeat();
+		b.heartbeat();
+		c.heartbeat();
+		assertPartitioned(a, b, c);
+		a.shutdown();
+		b.shutdown();
+		c.shutdown();
+	}
+
+	@Test
+	void testLapsedLease() throws Exception {
+		final Path dir = Files.createTempDirectory(Tests.requireTestDirectory(ClusterNodeTest.class), "cluster");
+		final TestClock clock = new TestClock();
+		final ClusterNode a = newNode(dir, "a", clock);
+		final AtomicInteger changes = new AtomicInteger();
+		a.addListener(changes::incrementAndGet);
+		heartbeats(clock, a);
+		final BitSet owned = a.getOwnedPartitions();
+		assertEquals(PARTITIONS, owned.cardinality());
+		final int notifications = changes.get();
+
+		// The lease lapses: The node owns nothing, until the next heartbeat.
+		clock.advance(6000);
+		assertFalse(a.owns(0));
+		a.heartbeat();
+		assertTrue(a.owns(0));
+		// The owned partitions haven't changed, but the listeners are notified.
+		assertEquals(owned, a.getOwnedPartitions());
+		assertEquals(notifications + 1, changes.get());
+		a.shutdown();
+	}
+}
@@ -0,0 +1,160 @@
+package com.github.jochenw.crond.core.sched;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+class CronExpressionTest {
+	private static final ZoneId BERLIN = ZoneId.of("Europe/Berlin");
+
+	private static ZonedDateTime next(String pExpression, String pTime) {
+		return CronExpression.compile(pExpression).nextFireTime(ZonedDateTime.parse(pTime));
+	}
+
+	private static void assertNext(String pExpected, String pExpression, String pTime) {
+		assertEquals(ZonedDateTime.parse(pExpected), next(pExpression, pTime));
+	}
+
+	@Test
+	void testSyntax() {
+		assertNext("2024-01-01T00:15Z", "*/15 * * * *", "2024-01-01T00:00Z");
+		assertNext("2024-01-01T00:00:30Z", "30 * * * * *", "2024-01-01T00:00Z");
+		assertNext("2024-01-02T09:05Z", "5 9-17 * * MON-FRI", "2024-01-01T17:05Z"); // 2024-01-01 is a monday
+		assertNext("2024-01-08T09:05Z", "5 9-17 * * mon", "2024-01-01T17:05Z");
+		assertNext("2024-01-07T00:00Z", "0 0 * * 7", "2024-01-01T00:00Z");
+		assertNext("2024-03-01T00:00Z", "0 0 1 MAR,jun ?", "2024-01-01T00:00Z");
+		assertNext("2024-01-01T00:20Z", "5/15 * * * *", "2024-01-01T00:05Z");
+		assertNext("2025-01-01T00:00Z", "@yearly", "2024-01-01T00:00Z");
+		assertNext("2024-01-01T01:00Z", "@hourly", "2024-01-01T00:00Z");
+		assertNext("2028-02-29T12:00Z", "0 12 29 2 *", "2024-03-01T00:00Z");
+		// Both, the day of month, and the day of week are restricted: Either one matches.
+		assertNext("2024-01-05T00:00Z", "0 0 13 * FRI", "2024-01-01T00:00Z");
+		assertNext("2024-01-13T00:00Z", "0 0 13 * FRI", "2024-01-12T00:00Z");
+		assertNull(next("0 0 30 2 *", "2024-01-01T00:00Z"));
+		assertEquals("*/5 * * * *", CronExpression.compile(" */5 * * * * ").toString());
+		assertEquals(CronExpression.compile("0 0 * * 0"), CronExpression.compile("@weekly"));
+		assertEquals(CronExpression.compile("0 0 * * SUN"), CronExpression.compile("0 0 * * 7"));
+		for (String invalid : new String[] {"", "* * * *", "* * * * * * *", "60 * * * *", "* 24 * * *",
+				"* * 0 * *", "* * * 13 *", "* * * * 8", "5-1 * * * *", "*/0 * * * *", "a * * * *",
+				"1,,2 * * * *", "@never"}) {
+			assertThrows(IllegalArgumentException.class, () -> CronExpression.compile(invalid), invalid);
+		}
+	}
+
+	@Test
+	void testDaylightSavingTime() {
+		// 2024-03-31: The clocks are set forward from 02:00 to 03:00.
+		assertNext("2024-03-31T03:00+02:00[Europe/Berlin]", "30 2 * * *", "2024-03-31T01:00+01:00[Europe/Berlin]");
+		assertNext("2024-04-01T02:30+02:00[Europe/Berlin]", "30 2 * * *", "2024-03-31T03:00+02:00[Europe/Berlin]");
+		assertNext("2024-03-31T03:00+02:00[Europe/Berlin]", "*/15 * * * *", "2024-03-31T01:45+01:00[Europe/Berlin]");
+		assertNext("2024-03-31T03:15+02:00[Europe/Berlin]", "*/15 * * * *", "2024-03-31T03:00+02:00[Europe/Berlin]");
+		// 2024-10-27: The clocks are set back from 03:00 to 02:00.
+		assertNext("2024-10-27T02:30+02:00[Europe/Berlin]", "30 2 * * *", "2024-10-27T00:00+02:00[Europe/Berlin]");
+		assertNext("2024-10-28T02:30+01:00[Europe/Berlin]", "30 2 * * *", "2024-10-27T02:30+02:00[Europe/Berlin]");
+		assertNext("2024-10-27T02:30+01:00[Europe/Berlin]", "30 2 * * *", "2024-10-27T02:10+01:00[Europe/Berlin]");
+		// Fire times are strictly increasing across both transitions.
+		final CronExpression ce = CronExpression.compile("*/20 * * * *");
+		for (String start : new String[] {"2024-03-30T22:00+01:00[Europe/Berlin]", "2024-10-26T22:00+02:00[Europe/Berlin]"}) {
+			ZonedDateTime time = ZonedDateTime.parse(start);
+			for (int i = 0;  i < 24;  i++) {
+				final ZonedDateTime nextTime = ce.nextFireTime(time);
+				assertTrue(nextTime.isAfter(time), nextTime + " <= " + time);
+				assertEquals(BERLIN, nextTime.getZone());
+				time = nextTime;
+			}
+		}
+	}
+
+	/** Compares the results with a brute force, minute by minute search.
+	 */
+	@Test
+	void testRandomExpressions() {
+		final Random random = new Random(4711);
+		for (int i = 0;  i < 300;  i++) {
+			final String expression = randomField(random, 0, 59) + " " + randomField(random, 0, 23) + " "
+					+ randomField(random, 1, 31) + " " + randomField(random, 1, 12) + " " + randomField(random, 0, 6);
+			final CronExpression ce = CronExpression.compile(expression);
+			ZonedDateTime time = ZonedDateTime.of(2023 + random.nextInt(3), 1 + random.nextInt(12), 1 + random.nextInt(28),
+					random.nextInt(24), random.nextInt(60), 0, 0, ZoneOffset.UTC);
+			for (int j = 0;  j < 3;  j++) {
+				final ZonedDateTime expected = bruteForce(ce, time);
+				final ZonedDateTime actual = ce.nextFireTime(time);
+				assertEquals(expected, actual, expression);
+				if (actual == null) {
+					break;
+				}
+				time = actual;
+			}
+		}
+	}
+
+	/** Compares the bulk count, and the last fire time with a brute force,
+	 * minute by minute enumeration.
+	 */
+	@Test
+	void testCountFireTimes() {
+		final CronExpression everyTenSeconds = CronExpression.compile("*/10 * * * * *");
+		assertEquals(360, everyTenSeconds.countFireTimes(ZonedDateTime.parse("2024-01-01T00:00:05Z"),
+				ZonedDateTime.parse("2024-01-01T01:00:05Z")));
+		assertEquals(ZonedDateTime.parse("2024-01-01T01:00:00Z"), everyTenSeconds.lastFireTime(
+				ZonedDateTime.parse("2024-01-01T00:00:05Z"), ZonedDateTime.parse("2024-01-01T01:00:09.999Z")));
+		assertEquals(366 * 24 * 60, CronExpression.compile("* * * * *").countFireTimes(
+				ZonedDateTime.parse("2024-01-01T00:00Z"), ZonedDateTime.parse("2025-01-01T00:00Z")));
+		assertEquals(0, everyTenSeconds.countFireTimes(ZonedDateTime.parse("2024-01-01T00:00:05Z"),
+				ZonedDateTime.parse("2024-01-01T00:00:09Z")));
+		assertNull(everyTenSeconds.lastFireTime(ZonedDateTime.parse("2024-01-01T00:00:05Z"),
+				ZonedDateTime.parse("2024-01-01T00:00:09Z")));
+
+		final Random random = new Random(4711);
+		for (int i = 0;  i < 200;  i++) {
+			final String expression = randomField(random, 0, 59) + " " + randomField(random, 0, 23) + " "
+					+ randomField(random, 1, 31) + " " + randomField(random, 1, 12) + " " + randomField(random, 0, 6);
+			final CronExpression ce = CronExpression.compile(expression);
+			final ZonedDateTime from = ZonedDateTime.of(2023 + random.nextInt(3), 1 + random.nextInt(12),
+					1 + random.nextInt(28), random.nextInt(24), random.nextInt(60), random.nextInt(60), 0, ZoneOffset.UTC);
+			final ZonedDateTime to = from.plusSeconds(random.nextInt(20 * 86400));
+			long count = 0;
+			LocalDateTime last = null;
+			for (LocalDateTime time = from.toLocalDateTime().withSecond(0).plusMinutes(1);
+					!time.isAfter(to.toLocalDateTime());  time = time.plusMinutes(1)) {
+				if (ce.matches(time)) {
+					++count;
+					last = time;
+				}
+			}
+			assertEquals(count, ce.countFireTimes(from, to), expression);
+			assertEquals(last == null ? null : last.atZone(ZoneOffset.UTC), ce.lastFireTime(from, to), expression);
+		}
+	}
+
+	private static String randomField(Random pRandom, int pMin, int pMax) {
+		switch (pRandom.nextInt(5)) {
+		  case 0: return "*";
+		  case 1: return String.valueOf(pMin + pRandom.nextInt(pMax - pMin + 1));
+		  case 2: {
+			  final int from = pMin + pRandom.nextInt(pMax - pMin + 1);
+			  return from + "-" + (from + pRandom.nextInt(pMax - from + 1));
+		  }
+		  case 3: return "*/" + (1 + pRandom.nextInt(Math.min(pMax, 12)));
+		  default: return (pMin + pRandom.nextInt(pMax - pMin + 1)) + "," + (pMin + pRandom.nextInt(pMax - pMin + 1));
+		}
+	}
+
+	private static ZonedDateTime bruteForce(CronExpression pExpression, ZonedDateTime pTime) {
+		LocalDateTime time = pTime.toLocalDateTime().withSecond(0).plusMinutes(1);
+		final LocalDateTime end = time.plusYears(9);
+		while (time.isBefore(end)) {
+			if (pExpression.matches(time)) {
+				return time.atZone(pTime.getZone());
+			}
+			time = time.plusMinutes(1);
+		}
+		return null;
+	}
+}
@@ -0,0 +1,106 @@
+package com.github.jochenw.crond.core.sched;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Clock;
+import java.util.Arrays;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Assumptions;
+import org.junit.jupiter.api.Test;
+
+import com.github.jochenw.afw.core.inject.AfwCoreOnTheFlyBinder;
+import com.github.jochenw.afw.core.log.ILog.Level;
+import com.github.jochenw.afw.core.log.ILogFactory;
+import com.github.jochenw.afw.core.log.simple.SimpleLogFactory;
+import com.github.jochenw.afw.core.util.tests.Tests;
+import com.github.jochenw.afw.di.api.IComponentFactory;
+import com.github.jochenw.crond.core.api.IModel.Job;
+import com.github.jochenw.crond.core.api.IModel.User;
+import com.github.jochenw.crond.core.beans.JobImpl;
+import com.github.jochenw.crond.core.impl.XmlFileModel;
+
+/** Fires 100000 short jobs per minute through the {@link JobScheduler},
+ * and the {@link JobExecutor}, and reports the scheduling lag (the
+ * delay between a jobs fire time, and the start of its run). Takes a
+ * minute, so it is skipped, unless the system property
+ * {@code crond.loadTest} is set to true. The duration may be changed
+ * by setting {@code crond.loadTest.seconds}.
+ */
+class JobExecutorLoadTest {
+	private static final int USERS = 100;
+	private static final int JOBS_PER_USER = 1000;
+
+	private XmlFileModel newModel() throws Exception {
+		final Path testDir = Tests.requireTestDirectory(JobExecutorLoadTest.class);
+		final Path modelFile = Files.createTempDirectory(testDir, "model").resolve("model.xml");
+		final ILogFactory lf = SimpleLogFactory.ofSystemOut(Level.INFO);
+		final Properties props = new Properties();
+		props.setProperty("xml.model.journal", "true");
+		final IComponentFactory cf = IComponentFactory.builder().jakarta()
+				.module((b) -> {
+					b.bind(Path.class, "xml.model.file").toInstance(modelFile);
+					b.bind(Properties.class).toInstance(props);
+					b.bind(ILogFactory.class).toInstance(lf);
+					b.bind(XmlFileModel.class);
+				}).onTheFlyBinder(new AfwCoreOnTheFlyBinder()).build();
+		final XmlFileModel model = cf.requireInstance(XmlFileModel.class);
+		model.start();
+		return model;
+	}
+
+	@Test
+	void testLoad() throws Exception {
+		Assumptions.assumeTrue(Boolean.getBoolean("crond.loadTest"), "Load test is disabled");
+		final int seconds = Integer.getInteger("crond.loadTest.seconds", 60).intValue();
+		final XmlFileModel model = newModel();
+		try {
+			// Every job runs once per minute, in one of the 60 seconds.
+			model.batch((b) -> {
+				for (int u = 0;  u < USERS;  u++) {
+					final User user = b.addUser("user" + u + "@example.com", null);
+					for (int j = 0;  j < JOBS_PER_USER;  j++) {
+						final Job job = b.addJob(user.getId(), "job" + j);
+						b.updateJob(JobImpl.of(job.getId(), user.getId(), job.getName(), ((u + j) % 60) + " * * * * *"));
+					}
+				}
+			});
+			final Clock clock = Clock.systemUTC();
+			final long[] lags = new long[USERS * JOBS_PER_USER * (seconds / 60 + 2)];
+			final AtomicInteger count = new AtomicInteger();
+			final JobExecutor executor = new JobExecutor((j, t) -> Thread.sleep(1),
+					JobExecutor.ThreadMode.AUTO, 256, 8, 10000, clock, null);
+			executor.addListener((r) -> {
+				if (r.getState() == JobExecutor.State.SUCCEEDED) {
+					lags[count.getAndIncrement()] = r.getStartMillis() - r.getFireTime().toInstant().toEpochMilli();
+				}
+			});
+			final JobScheduler scheduler = new JobScheduler(model, executor, clock, 5);
+			scheduler.start();
+			Thread.sleep(seconds * 1000L);
+			scheduler.shutdown();
+			assertTrue(executor.shutdown(10000));
+			final int n = count.get();
+			final long[] sorted = Arrays.copyOf(lags, n);
+			Arrays.sort(sorted);
+			System.out.println("JobExecutorLoadTest: virtual=" + executor.isVirtual() + ", runs=" + n
+					+ ", runs/min=" + (n * 60L / seconds)
+					+ ", lag (ms): p50=" + percentile(sorted, 50) + ", p90=" + percentile(sorted, 90)
+					+ ", p99=" + percentile(sorted, 99) + ", p99.9=" + percentile(sorted, 99.9)
+					+ ", max=" + sorted[n-1]);
+			assertEquals(0, scheduler.getFailedFires());
+			assertTrue(n >= USERS * JOBS_PER_USER * (long) seconds / 60 * 95 / 100, "Too few runs: " + n);
+			assertTrue(sorted[0] >= 0, "A job has been started before its fire time");
+		} finally {
+			model.shutdown();
+		}
+	}
+
+	private static long percentile(long[] pSorted, double pPercentile) {
+		final int index = (int) Math.ceil(pPercentile / 100 * pSorted.length) - 1;
+		return pSorted[Math.max(0, Math.min(index, pSorted.length - 1))];
+	}
+}
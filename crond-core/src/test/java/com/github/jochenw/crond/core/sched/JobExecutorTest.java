@@ -0,0 +1,137 @@
+package com.github.jochenw.crond.core.sched;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.time.Clock;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+import com.github.jochenw.crond.core.api.IModel.Job;
+import com.github.jochenw.crond.core.beans.JobImpl;
+import com.github.jochenw.crond.core.sched.JobExecutor.Run;
+import com.github.jochenw.crond.core.sched.JobExecutor.State;
+import com.github.jochenw.crond.core.sched.JobExecutor.ThreadMode;
+
+class JobExecutorTest {
+	private static final ZonedDateTime FIRE_TIME = ZonedDateTime.parse("2024-01-01T00:00Z");
+	private static long jobIds;
+
+	private static Job job(long pUserId, String pName) {
+		return JobImpl.of(Long.valueOf(++jobIds), Long.valueOf(pUserId), pName);
+	}
+
+	private static void awaitSize(List<?> pList, int pSize) throws InterruptedException {
+		final long deadline = System.currentTimeMillis() + 10000;
+		while (pList.size() < pSize) {
+			assertTrue(System.currentTimeMillis() < deadline, "Timeout");
+			Thread.sleep(1);
+		}
+	}
+
+	/** Users with queued runs are served round robin, so the backlog of
+	 * user 1 doesn't delay the runs of users 2, and 3.
+	 */
+	@Test
+	void testFairQueuing() throws Exception {
+		final List<String> started = Collections.synchronizedList(new ArrayList<>());
+		final Semaphore gate = new Semaphore(0);
+		final JobExecutor executor = new JobExecutor((j, t) -> {
+			started.add(j.getName());
+			gate.acquire();
+		}, ThreadMode.PLATFORM, 2, 2, 0, Clock.systemUTC(), null);
+		for (int i = 1;  i <= 6;  i++) {
+			executor.submit(job(1, "a" + i), FIRE_TIME);
+		}
+		executor.submit(job(2, "b1"), FIRE_TIME);
+		executor.submit(job(2, "b2"), FIRE_TIME);
+		executor.submit(job(3, "c1"), FIRE_TIME);
+		awaitSize(started, 2);
+		assertEquals(2, executor.getRunning());
+		assertEquals(7, executor.getQueued());
+		for (int i = 3;  i <= 9;  i++) {
+			gate.release();
+			awaitSize(started, i);
+		}
+		assertEquals(List.of("b1", "c1", "a3", "b2", "a4", "a5", "a6"), started.subList(2, 9));
+		gate.release(2);
+		assertTrue(executor.shutdown(10000));
+		assertEquals(0, executor.getRunning());
+		assertEquals(9, executor.getStarted());
+	}
+
+	@Test
+	void testPerUserLimit() throws Exception {
+		final List<String> started = Collections.synchronizedList(new ArrayList<>());
+		final Semaphore gateA = new Semaphore(0);
+		final JobExecutor executor = new JobExecutor((j, t) -> {
+			started.add(j.getName());
+			if (j.getUserId().longValue() == 1) {
+				gateA.acquire();
+			}
+		}, ThreadMode.AUTO, 4, 1, 0, Clock.systemUTC(), null);
+		final Run a1 = executor.submit(job(1, "a1"), FIRE_TIME);
+		final Run a2 = executor.submit(job(1, "a2"), FIRE_TIME);
+		final Run b1 = executor.submit(job(2, "b1"), FIRE_TIME);
+		awaitSize(started, 2);
+		assertEquals(State.RUNNING, a1.getState());
+		assertEquals(State.QUEUED, a2.getState());
+		gateA.release();
+		awaitSize(started, 3);
+		assertEquals("a2", started.get(2));
+		gateA.release();
+		assertTrue(executor.shutdown(10000));
+		assertEquals(State.SUCCEEDED, a2.getState());
+		assertTrue(a2.getStartMillis() >= a2.getQueuedMillis());
+		assertTrue(a2.getEndMillis() >= a2.getStartMillis());
+		assertEquals(State.SUCCEEDED, b1.getState());
+	}
+
+	@Test
+	void testCancellation() throws Exception {
+		final CountDownLatch terminated = new CountDownLatch(4);
+		final List<Run> runs = Collections.synchronizedList(new ArrayList<>());
+		final CountDownLatch running = new CountDownLatch(1);
+		final JobExecutor executor = new JobExecutor((j, t) -> {
+			if (j.getName().startsWith("fail")) {
+				throw new IllegalStateException(j.getName());
+			}
+			running.countDown();
+			Thread.sleep(60000);
+		}, ThreadMode.PLATFORM, 1, 1, 500, Clock.systemUTC(), null);
+		executor.addListener((r) -> {
+			runs.add(r);
+			terminated.countDown();
+		});
+		final Run timedOut = executor.submit(job(1, "sleep1"), FIRE_TIME);
+		final Run queued = executor.submit(job(1, "sleep2"), FIRE_TIME);
+		final Run failed = executor.submit(job(2, "fail"), FIRE_TIME);
+		assertTrue(running.await(10, TimeUnit.SECONDS));
+		assertTrue(queued.cancel());
+		assertFalse(queued.cancel());
+		assertEquals(State.CANCELLED, queued.getState());
+		assertEquals(0, queued.getStartMillis());
+		final Run cancelled = executor.submit(job(3, "sleep3"), FIRE_TIME);
+		// After the timeout of sleep1, the users are served in the order fail, sleep3.
+		final long deadline = System.currentTimeMillis() + 10000;
+		while (cancelled.getState() != State.RUNNING) {
+			assertTrue(System.currentTimeMillis() < deadline, "Timeout");
+			Thread.sleep(1);
+		}
+		assertTrue(cancelled.cancel());
+		assertTrue(terminated.await(10, TimeUnit.SECONDS));
+		assertEquals(State.CANCELLED, cancelled.getState());
+		assertEquals(State.TIMED_OUT, timedOut.getState());
+		assertEquals(State.FAILED, failed.getState());
+		assertEquals("fail", failed.getError().getMessage());
+		assertTrue(executor.shutdown(10000));
+		assertEquals(List.of(queued, timedOut, failed, cancelled), runs);
+		assertThrows(IllegalStateException.class, () -> executor.submit(job(1, "late"), FIRE_TIME));
+	}
+}
@@ -0,0 +1,454 @@
+package com.github.jochenw.crond.core.sched;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.time.ZonedDateTime;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.stream.Collectors;
+
+import org.junit.jupiter.api.Test;
+
+import com.github.jochenw.afw.core.inject.AfwCoreOnTheFlyBinder;
+import com.github.jochenw.afw.core.log.ILog.Level;
+import com.github.jochenw.afw.core.log.ILogFactory;
+import com.github.jochenw.afw.core.log.simple.SimpleLogFactory;
+import com.github.jochenw.afw.core.util.tests.Tests;
+import com.github.jochenw.afw.di.api.IComponentFactory;
+import com.github.jochenw.crond.core.api.IModel.Job;
+import com.github.jochenw.crond.core.api.IModel.User;
+import com.github.jochenw.crond.core.beans.JobImpl;
+import com.github.jochenw.crond.core.impl.XmlFileModel;
+import com.github.jochenw.crond.core.sched.MisfireHandler.Policy;
+
+class JobSchedulerTest {
+	/** A clock, which is advanced manually.
+	 */
+	private static class TestClock extends Clock {
+		private Instant instant;
+
+		TestClock(Instant pInstant) {
+			instant = pInstant;
+		}
+
+		void set(String pTime) {
+			instant = Instant.parse(pTime);
+		}
+
+		@Override
+		public ZoneId getZone() {
+			return ZoneOffset.UTC;
+		}
+
+		@Override
+		public Clock withZone(ZoneId pZone) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public Instant instant() {
+			return instant;
+		}
+	}
+
+	private XmlFileModel newModel() throws Exception {
+		final Path testDir = Tests.requireTestDirectory(JobSchedulerTest.class);
+		final Path modelFile = Files.createTempDirectory(testDir, "model").resolve("model.xml");
+		final ILogFactory lf = SimpleLogFactory.ofSystemOut(Level.TRACE);
+		final Properties props = new Properties();
+		props.setProperty("xml.model.journal", "true");
+		final IComponentFactory cf = IComponentFactory.builder().jakarta()
+				.module((b) -> {
+					b.bind(Path.class, "xml.model.file").toInstance(modelFile);
+					b.bind(Properties.class).toInstance(props);
+					b.bind(ILogFactory.class).toInstance(lf);
+					b.bind(XmlFileModel.class);
+				}).onTheFlyBinder(new AfwCoreOnTheFlyBinder()).build();
+		final XmlFileModel model = cf.requireInstance(XmlFileModel.class);
+		model.start();
+		return model;
+	}
+
+	@Test
+	void testScheduling() throws Exception {
+		final XmlFileModel model = newModel();
+		try {
+			final User jochen = model.addUser("jochen.wiedmann@gmail.com", "Wiedmann, Jochen");
+			final Job backup = model.addJob(jochen.getId(), "Backup");
+			model.updateJob(JobImpl.of(backup.getId(), jochen.getId(), "Backup", "*/5 * * * *"));
+			model.addJob(jochen.getId(), "Unscheduled");
+			final TestClock clock = new TestClock(Instant.parse("2024-01-01T00:00:00Z"));
+			final List<String> fired = new ArrayList<>();
+			final JobScheduler scheduler = new JobScheduler(model,
+					(j, t) -> fired.add(j.getName() + "@" + t.toInstant()), clock, 1000);
+			scheduler.register();
+			scheduler.tick();
+			assertEquals(1, scheduler.getScheduledJobs());
+			clock.set("2024-01-01T00:04:59Z");
+			scheduler.tick();
+			assertEquals(List.of(), fired);
+			clock.set("2024-01-01T00:05:00Z");
+			scheduler.tick();
+			assertEquals(List.of("Backup@2024-01-01T00:05:00Z"), fired);
+			assertEquals(1, scheduler.getFiredJobs());
+			assertEquals(1, scheduler.getScheduledJobs());
+
+			// Changing the schedule rearms the timer.
+			model.updateJob(JobImpl.of(backup.getId(), jochen.getId(), "Backup", "30 0 * * *"));
+			clock.set("2024-01-01T00:20:00Z");
+			scheduler.tick();
+			assertEquals(1, fired.size());
+			clock.set("2024-01-01T00:30:00Z");
+			scheduler.tick();
+			assertEquals("Backup@2024-01-01T00:30:00Z", fired.get(1));
+
+			// Adding, and deleting jobs.
+			final Job cleanup = model.addJob(jochen.getId(), "Cleanup");
+			model.updateJob(JobImpl.of(cleanup.getId(), jochen.getId(), "Cleanup", "* * * * *"));
+			scheduler.tick();
+			assertEquals(2, scheduler.getScheduledJobs());
+			model.removeJob(cleanup.getId());
+			clock.set("2024-01-01T00:35:00Z");
+			scheduler.tick();
+			assertEquals(1, scheduler.getScheduledJobs());
+			assertEquals(2, fired.size());
+
+			// An invalid schedule disables the job.
+			model.updateJob(JobImpl.of(backup.getId(), jochen.getId(), "Backup", "0 25 * * *"));
+			scheduler.tick();
+			assertEquals(0, scheduler.getScheduledJobs());
+			assertEquals(1, scheduler.getInvalidSchedules());
+
+			// A failing handler doesn't stop the job from being rearmed.
+			final JobScheduler failing = new JobScheduler(model, (j, t) -> { throw new IllegalStateException(); },
+					clock, 1000);
+			model.updateJob(JobImpl.of(backup.getId(), jochen.getId(), "Backup", "@hourly"));
+			failing.register();
+			failing.tick();
+			clock.set("2024-01-01T01:00:00Z");
+			failing.tick();
+			assertEquals(1, failing.getFailedFires());
+			assertEquals(1, failing.getScheduledJobs());
+			failing.shutdown();
+			scheduler.shutdown();
+		} finally {
+			model.shutdown();
+		}
+	}
+	@Test
+	void testMisfires() throws Exception {
+		final XmlFileModel model = newModel();
+		try {
+			final User jochen = model.addUser("jochen.wiedmann@gmail.com", "Wiedmann, Jochen");
+			final Map<String,String> schedules = Map.of("All", "* * * * *", "Once", "0 * * * *", "Skip", "*/5 * * * *");
+			for (Map.Entry<String,String> en : schedules.entrySet()) {
+				final Job job = model.addJob(jochen.getId(), en.getKey());
+				model.updateJob(JobImpl.of(job.getId(), jochen.getId(), en.getKey(), en.getValue()));
+			}
+			final Map<String,Policy> policies = Map.of("All", Policy.FIRE_ALL, "Once", Policy.FIRE_ONCE, "Skip", Policy.SKIP);
+			final TestClock clock = new TestClock(Instant.parse("2024-01-01T00:00:00Z"));
+			final List<String> fired = new ArrayList<>();
+			final JobScheduler scheduler = new JobScheduler(model,
+					(j, t) -> fired.add(j.getName() + "@" + t.toInstant()), clock, 1000);
+			final MisfireHandler misfireHandler = new MisfireHandler((j) -> policies.get(j.getName()), 60000, 2, 5);
+			scheduler.setMisfireHandler(misfireHandler);
+			scheduler.register();
+			scheduler.tick();
+			assertEquals(3, scheduler.getScheduledJobs());
+
+			// The ticker thread is stalled for three hours.
+			clock.set("2024-01-01T03:00:30Z");
+			scheduler.tick();
+			assertEquals(180 + 3 + 36, misfireHandler.getMisfires());
+			assertEquals(175 + 2 + 36, misfireHandler.getSkippedRuns());
+			// The catch-up runs are released at two runs per second.
+			assertEquals(2, fired.size());
+			assertEquals(4, misfireHandler.getPendingRuns());
+			clock.set("2024-01-01T03:00:31Z");
+			scheduler.tick();
+			assertEquals(4, fired.size());
+			clock.set("2024-01-01T03:00:33Z");
+			scheduler.tick();
+			assertEquals(6, fired.size());
+			assertEquals(0, misfireHandler.getPendingRuns());
+			assertEquals(6, misfireHandler.getReleasedRuns());
+			assertEquals(List.of("All@2024-01-01T00:01:00Z", "All@2024-01-01T00:02:00Z", "All@2024-01-01T00:03:00Z",
+					"All@2024-01-01T00:04:00Z", "All@2024-01-01T00:05:00Z"),
+					fired.stream().filter((f) -> f.startsWith("All@")).collect(Collectors.toList()));
+			assertTrue(fired.contains("Once@2024-01-01T03:00:00Z"));
+
+			// Regular fire times aren't affected by the catch-up.
+			clock.set("2024-01-01T03:01:00Z");
+			scheduler.tick();
+			assertEquals(List.of("All@2024-01-01T03:01:00Z"), fired.subList(6, fired.size()));
+			scheduler.shutdown();
+
+			// Upon start, the last fire times of a previous run are used to detect missed fire times.
+			fired.clear();
+			final JobScheduler restarted = new JobScheduler(model,
+					(j, t) -> fired.add(j.getName() + "@" + t.toInstant()), clock, 1000);
+			restarted.setMisfireHandler(new MisfireHandler((j) -> Policy.FIRE_ONCE, 60000, 2, 5));
+			final Map<String,String> lastFireTimes = Map.of("Once", "2024-01-01T01:00:00Z", "All", "2024-01-01T03:00:30Z");
+			restarted.setFireTimeSource((j) -> {
+				final String time = lastFireTimes.get(j.getName());
+				return time == null ? null : ZonedDateTime.parse(time);
+			});
+			restarted.register();
+			restarted.tick();
+			// "All" has missed 03:01 within the threshold, so it is fired late, rather than caught up.
+			assertEquals(List.of("All@2024-01-01T03:01:00Z"), fired.stream().filter((f) -> f.startsWith("All@"))
+					.collect(Collectors.toList()));
+			assertTrue(fired.contains("Once@2024-01-01T03:00:00Z"));
+			assertEquals(2, fired.size());
+			assertEquals(2, restarted.getMisfireHandler().getMisfires());
+			restarted.shutdown();
+		} finally {
+			model.shutdown();
+		}
+	}
+	@Test
+	void testCheckpoint() throws Exception {
+		final XmlFileModel model = newModel();
+		try {
+			final User jochen = model.addUser("jochen.wiedmann@gmail.com", "Wiedmann, Jochen");
+			final Job backup = model.addJob(jochen.getId(), "Backup");
+			model.updateJob(JobImpl.of(backup.getId(), jochen.getId(), "Backup", "*/5 * * * *"));
+			final Job report = model.addJob(jochen.getId(), "Report");
+			model.updateJob(JobImpl.of(report.getId(), jochen.getId(), "Report", "0 * * * *"));
+			final Job cleanup = model.addJob(jochen.getId(), "Cleanup");
+			model.updateJob(JobImpl.of(cleanup.getId(), jochen.getId(), "Cleanup", "30 0 * * *"));
+			final Path file = Files.createTempDirectory(Tests.requireTestDirectory(JobSchedulerTest.class), "checkpoint")
+					.resolve("scheduler.ckp");
+			final TestClock clock = new TestClock(Instant.parse("2024-01-01T00:00:00Z"));
+			final List<String> fired = new ArrayList<>();
+			SchedulerCheckpoint checkpoint = new SchedulerCheckpoint(file, 0, null);
+			checkpoint.open();
+			final JobScheduler scheduler = new JobScheduler(model,
+					(j, t) -> fired.add(j.getName() + "@" + t.toInstant()), clock, 1000);
+			scheduler.setCheckpoint(checkpoint);
+			scheduler.register();
+			scheduler.tick();
+			assertEquals(3, scheduler.getScheduledJobs());
+			assertEquals(0, scheduler.getRestoredJobs());
+			clock.set("2024-01-01T00:05:00Z");
+			scheduler.tick();
+			assertEquals(List.of("Backup@2024-01-01T00:05:00Z"), fired);
+			scheduler.shutdown();
+			checkpoint.close();
+
+			// While the scheduler is down, a schedule is changed, and a job is deleted.
+			model.updateJob(JobImpl.of(report.getId(), jochen.getId(), "Report", "15 * * * *"));
+			model.removeJob(cleanup.getId());
+			clock.set("2024-01-01T00:07:00Z");
+			checkpoint = new SchedulerCheckpoint(file, 0, null);
+			checkpoint.open();
+			final JobScheduler restarted = new JobScheduler(model,
+					(j, t) -> fired.add(j.getName() + "@" + t.toInstant()), clock, 1000);
+			restarted.setCheckpoint(checkpoint);
+			restarted.register();
+			restarted.tick();
+			assertEquals(2, restarted.getScheduledJobs());
+			assertEquals(1, restarted.getRestoredJobs());
+			final SchedulerCheckpoint.Record record = checkpoint.get(backup.getId().longValue());
+			assertEquals(Instant.parse("2024-01-01T00:10:00Z").toEpochMilli(), record.getNextFireMillis());
+			assertEquals(Instant.parse("2024-01-01T00:05:00Z").toEpochMilli(), record.getLastFireMillis());
+			assertNull(checkpoint.get(cleanup.getId().longValue()));
+			assertEquals(Instant.parse("2024-01-01T00:15:00Z").toEpochMilli(),
+					checkpoint.get(report.getId().longValue()).getNextFireMillis());
+			clock.set("2024-01-01T00:10:00Z");
+			restarted.tick();
+			assertEquals(List.of("Backup@2024-01-01T00:05:00Z", "Backup@2024-01-01T00:10:00Z"), fired);
+			clock.set("2024-01-01T00:15:00Z");
+			restarted.tick();
+			assertEquals(4, fired.size());
+			assertTrue(fired.containsAll(List.of("Backup@2024-01-01T00:15:00Z", "Report@2024-01-01T00:15:00Z")));
+			restarted.shutdown();
+			checkpoint.close();
+		} finally {
+			model.shutdown();
+		}
+	}
+	@Test
+	void testCluster() throws Exception {
+		final XmlFileModel model = newModel();
+		try {
+			final User jochen = model.addUser("jochen.wiedmann@gmail.com", "Wiedmann, Jochen");
+			for (int i = 0;  i < 50;  i++) {
+				final Job job = model.addJob(jochen.getId(), "Job" + i);
+				model.updateJob(JobImpl.of(job.getId(), jochen.getId(), "Job" + i, "* * * * *"));
+			}
+			final Path dir = Files.createTempDirectory(Tests.requireTestDirectory(JobSchedulerTest.class), "cluster");
+			final TestClock clock = new TestClock(Instant.parse("2024-01-01T00:00:00Z"));
+			final List<String> fired = new ArrayList<>();
+			final ClusterNode[] nodes = new ClusterNode[2];
+			final JobScheduler[] schedulers = new JobScheduler[2];
+			for (int i = 0;  i < 2;  i++) {
+				final ClusterNode node = new ClusterNode(dir, "node" + i, 16, 16, 1000, 120000, clock, null);
+				final JobScheduler scheduler = new JobScheduler(model,
+						(j, t) -> fired.add(j.getName() + "@" + t.toInstant()), clock, 1000);
+				scheduler.setJobFilter(node::owns);
+				node.addListener(scheduler::refilter);
+				nodes[i] = node;
+				schedulers[i] = scheduler;
+			}
+			// Node 0 starts alone, and node 1 joins.
+			nodes[0].heartbeat();
+			nodes[0].heartbeat();
+			schedulers[0].register();
+			schedulers[0].tick();
+			assertEquals(50, schedulers[0].getScheduledJobs());
+			nodes[1].heartbeat();
+			schedulers[1].register();
+			schedulers[1].tick();
+			assertEquals(0, schedulers[1].getScheduledJobs());
+			for (int i = 0;  i < 2;  i++) {
+				nodes[0].heartbeat();
+				nodes[1].heartbeat();
+			}
+			schedulers[0].tick();
+			schedulers[1].tick();
+			assertEquals(50, schedulers[0].getScheduledJobs() + schedulers[1].getScheduledJobs());
+			assertTrue(schedulers[1].getScheduledJobs() > 0);
+
+			// Every job is fired exactly once.
+			clock.set("2024-01-01T00:00:59Z");
+			nodes[0].heartbeat();
+			nodes[1].heartbeat();
+			clock.set("2024-01-01T00:01:00Z");
+			schedulers[0].tick();
+			schedulers[1].tick();
+			assertEquals(50, fired.size());
+			assertEquals(50, fired.stream().distinct().count());
+
+			// A node, whose lease has expired, skips its jobs, but keeps them scheduled.
+			final int scheduled = schedulers[0].getScheduledJobs();
+			clock.set("2024-01-01T00:03:00Z");
+			schedulers[0].tick();
+			assertEquals(50, fired.size());
+			assertEquals(scheduled, schedulers[0].getScheduledJobs());
+			schedulers[0].shutdown();
+			schedulers[1].shutdown();
+		} finally {
+			model.shutdown();
+		}
+	}
+
+	@Test
+	void testLapsedLease() throws Exception {
+		final XmlFileModel model = newModel();
+		try {
+			final User jochen = model.addUser("jochen.wiedmann@gmail.com", "Wiedmann, Jochen");
+			for (int i = 0;  i < 10;  i++) {
+				final Job job = model.addJob(jochen.getId(), "Job" + i);
+				model.updateJob(JobImpl.of(job.getId(), jochen.getId(), "Job" + i, "* * * * *"));
+			}
+			final Path dir = Files.createTempDirectory(Tests.requireTestDirectory(JobSchedulerTest.class), "cluster");
+			final TestClock clock = new TestClock(Instant.parse("2024-01-01T00:00:00Z"));
+			final List<String> fired = new ArrayList<>();
+			final ClusterNode node = new ClusterNode(dir, "single", 16, 16, 1000, 5000, clock, null);
+			final JobScheduler scheduler = new JobScheduler(model,
+					(j, t) -> fired.add(j.getName() + "@" + t.toInstant()), clock, 1000);
+			scheduler.setJobFilter(node::owns);
+			node.addListener(scheduler::refilter);
+			node.heartbeat();
+			node.heartbeat();
+			scheduler.register();
+			scheduler.tick();
+			assertEquals(10, scheduler.getScheduledJobs());
+
+			// The heartbeat is delayed beyond the lease timeout: The fire times are skipped.
+			clock.set("2024-01-01T00:01:00Z");
+			scheduler.tick();
+			assertEquals(List.of(), fired);
+			assertEquals(10, scheduler.getScheduledJobs());
+
+			// The lease is renewed with the same partitions, and the jobs are fired again.
+			clock.set("2024-01-01T00:01:58Z");
+			node.heartbeat();
+			scheduler.tick();
+			clock.set("2024-01-01T00:02:00Z");
+			scheduler.tick();
+			assertEquals(10, fired.size());
+			assertTrue(fired.stream().allMatch((f) -> f.endsWith("@2024-01-01T00:02:00Z")));
+			scheduler.shutdown();
+			node.shutdown();
+		} finally {
+			model.shutdown();
+		}
+	}
+
+	/** Failing commands, and fires don't stop the ticker thread.
+	 */
+	@Test
+	void testFailures() throws Exception {
+		final XmlFileModel model = newModel();
+		try {
+			final User jochen = model.addUser("jochen.wiedmann@gmail.com", "Wiedmann, Jochen");
+			final Job backup = model.addJob(jochen.getId(), "Backup");
+			model.updateJob(JobImpl.of(backup.getId(), jochen.getId(), "Backup", "* * * * *"));
+			final Job broken = model.addJob(jochen.getId(), "Broken");
+			model.updateJob(JobImpl.of(broken.getId(), jochen.getId(), "Broken", "* * * * *"));
+			final TestClock clock = new TestClock(Instant.parse("2024-01-01T00:00:00Z"));
+			final List<String> fired = new ArrayList<>();
+			final boolean[] failing = {true};
+			final JobScheduler scheduler = new JobScheduler(model,
+					(j, t) -> fired.add(j.getName() + "@" + t.toInstant()), clock, 1000);
+			scheduler.setJobFilter((j) -> {
+				if (failing[0]  &&  "Broken".equals(j.getName())) {
+					throw new IllegalStateException("Broken");
+				}
+				return true;
+			});
+			// A failing job doesn't prevent the others from being scheduled.
+			scheduler.register();
+			scheduler.tick();
+			assertEquals(1, scheduler.getScheduledJobs());
+			assertEquals(1, scheduler.getFailedFires());
+
+			// A failing command doesn't prevent the next commands from being executed.
+			model.updateJob(JobImpl.of(broken.getId(), jochen.getId(), "Broken", "*/2 * * * *"));
+			final Job cleanup = model.addJob(jochen.getId(), "Cleanup");
+			model.updateJob(JobImpl.of(cleanup.getId(), jochen.getId(), "Cleanup", "* * * * *"));
+			clock.set("2024-01-01T00:01:00Z");
+			scheduler.tick();
+			assertEquals(2, scheduler.getFailedFires());
+			assertEquals(2, scheduler.getScheduledJobs());
+			assertEquals(List.of("Backup@2024-01-01T00:01:00Z"), fired);
+
+			// A failing fire doesn't prevent the other jobs from being fired.
+			failing[0] = false;
+			model.updateJob(JobImpl.of(broken.getId(), jochen.getId(), "Broken", "* * * * *"));
+			scheduler.tick();
+			assertEquals(3, scheduler.getScheduledJobs());
+			failing[0] = true;
+			fired.clear();
+			clock.set("2024-01-01T00:02:00Z");
+			scheduler.tick();
+			assertEquals(3, scheduler.getFailedFires());
+			assertEquals(List.of("Backup@2024-01-01T00:02:00Z", "Cleanup@2024-01-01T00:02:00Z"),
+					fired.stream().sorted().collect(Collectors.toList()));
+
+			// The failed job is scheduled again, once it has been updated.
+			failing[0] = false;
+			model.updateJob(JobImpl.of(broken.getId(), jochen.getId(), "Broken", "* * * * *"));
+			scheduler.tick();
+			assertEquals(3, scheduler.getScheduledJobs());
+			fired.clear();
+			clock.set("2024-01-01T00:03:00Z");
+			scheduler.tick();
+			assertEquals(List.of("Backup@2024-01-01T00:03:00Z", "Broken@2024-01-01T00:03:00Z",
+					"Cleanup@2024-01-01T00:03:00Z"), fired.stream().sorted().collect(Collectors.toList()));
+			scheduler.shutdown();
+		} finally {
+			model.shutdown();
+		}
+	}
+}
@@ -0,0 +1,119 @@
+package com.github.jochenw.crond.core.sched;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
+
+import org.junit.jupiter.api.Test;
+
+import com.github.jochenw.afw.core.util.tests.Tests;
+import com.github.jochenw.crond.core.sched.OutputCapture.Spool;
+import com.github.jochenw.crond.core.sched.OutputCapture.Tail;
+
+class OutputCaptureTest {
+	private static byte[] output() {
+		// Compressible, but not trivially.
+		final Random random = new Random(4711);
+		final StringBuilder sb = new StringBuilder();
+		for (int i = 0;  sb.length() < 1000000;  i++) {
+			sb.append("Line ").append(i).append(": ").append(random.nextInt(1000000)).append('\n');
+		}
+		return sb.toString().getBytes();
+	}
+
+	private static byte[] read(Path pFile, boolean pCompressed) throws Exception {
+		try (InputStream in = pCompressed ? new GZIPInputStream(Files.newInputStream(pFile)) : Files.newInputStream(pFile)) {
+			return in.readAllBytes();
+		}
+	}
+
+	private void test(boolean pCompress) throws Exception {
+		final Path dir = Files.createTempDirectory(Tests.requireTestDirectory(OutputCaptureTest.class), "spool");
+		final OutputCapture capture = new OutputCapture(dir, 4096, 2, 65536, 3, pCompress, 1000);
+		final byte[] output = output();
+		final ByteArrayOutputStream observed = new ByteArrayOutputStream();
+		final Spool spool = capture.open(Long.valueOf(42), 1234, "stdout");
+		spool.addListener((s, offset, data) -> {
+			assertEquals(observed.size(), offset);
+			final byte[] bytes = new byte[data.remaining()];
+			data.get(bytes);
+			observed.write(bytes, 0, bytes.length);
+		});
+		assertEquals(0, spool.tail(0).getData().length);
+		spool.write(ByteBuffer.wrap(output, 0, 10));
+		final Tail tail = spool.tail(0);
+		assertEquals(0, tail.getOffset());
+		assertArrayEquals(Arrays.copyOf(output, 10), tail.getData());
+		assertFalse(tail.isClosed());
+		spool.pump(new ByteArrayInputStream(output, 10, output.length - 10));
+		final Tail newData = spool.tail(tail.getEndOffset());
+		assertEquals(output.length - 1000, newData.getOffset());
+		assertArrayEquals(Arrays.copyOfRange(output, output.length - 1000, output.length), newData.getData());
+		spool.close();
+		assertTrue(spool.tail(output.length).isClosed());
+		assertArrayEquals(output, observed.toByteArray());
+		assertEquals(output.length, spool.getSize());
+
+		// Only the last three files remain, and their concatenation is the end of the output.
+		final int last = spool.getFileNumber();
+		assertTrue(last >= 3);
+		assertFalse(Files.exists(spool.getFile(last - 3)));
+		final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		for (int i = last - 2;  i <= last;  i++) {
+			if (!pCompress) {
+				assertTrue(Files.size(spool.getFile(i)) < 65536 + 4096);
+			}
+			baos.write(read(spool.getFile(i), pCompress));
+		}
+		final byte[] end = baos.toByteArray();
+		assertArrayEquals(Arrays.copyOfRange(output, output.length - end.length, output.length), end);
+
+		final Tail persisted = capture.readTail(Long.valueOf(42), 1234, "stdout");
+		assertEquals(output.length - 1000, persisted.getOffset());
+		assertArrayEquals(newData.getData(), persisted.getData());
+		assertTrue(persisted.isClosed());
+		assertNull(capture.readTail(Long.valueOf(42), 1234, "stderr"));
+	}
+
+	@Test
+	void testUncompressed() throws Exception {
+		test(false);
+	}
+
+	@Test
+	void testCompressed() throws Exception {
+		test(true);
+	}
+
+	/** Only the files of the most recent runs are kept.
+	 */
+	@Test
+	void testRetention() throws Exception {
+		final Path dir = Files.createTempDirectory(Tests.requireTestDirectory(OutputCaptureTest.class), "spool");
+		final OutputCapture capture = new OutputCapture(dir, 4096, 2, 65536, 3, false, 1000, 2);
+		final byte[] output = output();
+		for (long runId = 1;  runId <= 4;  runId++) {
+			for (String stream : new String[] {"stdout", "stderr"}) {
+				try (Spool spool = capture.open(Long.valueOf(42), runId, stream)) {
+					spool.write(ByteBuffer.wrap(output, 0, 100));
+				}
+			}
+		}
+		assertNull(capture.readTail(Long.valueOf(42), 1, "stdout"));
+		assertNull(capture.readTail(Long.valueOf(42), 2, "stderr"));
+		assertNotNull(capture.readTail(Long.valueOf(42), 3, "stdout"));
+		assertNotNull(capture.readTail(Long.valueOf(42), 4, "stderr"));
+		try (Stream<Path> files = Files.list(dir.resolve("42"))) {
+			assertEquals(8, files.count());
+		}
+	}
+}
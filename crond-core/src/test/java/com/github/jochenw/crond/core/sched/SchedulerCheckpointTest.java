@@ -0,0 +1,132 @@
+package com.github.jochenw.crond.core.sched;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.TreeMap;
+
+import org.junit.jupiter.api.Test;
+
+import com.github.jochenw.afw.core.util.tests.Tests;
+import com.github.jochenw.crond.core.sched.SchedulerCheckpoint.Record;
+
+class SchedulerCheckpointTest {
+	private static void assertRecords(TreeMap<Long,long[]> pExpected, SchedulerCheckpoint pCheckpoint) {
+		for (long id = 0;  id < 1000;  id++) {
+			final long[] expected = pExpected.get(Long.valueOf(id));
+			final Record record = pCheckpoint.get(id);
+			if (expected == null) {
+				assertNull(record, String.valueOf(id));
+			} else {
+				assertNotNull(record, String.valueOf(id));
+				assertEquals(id, record.getJobId());
+				assertEquals(expected[0], record.getNextFireMillis());
+				assertEquals(expected[1], record.getLastFireMillis());
+				assertEquals(expected[2], record.getScheduleHash());
+			}
+		}
+	}
+
+	@Test
+	void testCheckpoint() throws Exception {
+		final Path dir = Files.createTempDirectory(Tests.requireTestDirectory(SchedulerCheckpointTest.class), "checkpoint");
+		final Path file = dir.resolve("scheduler.ckp");
+		final TreeMap<Long,long[]> expected = new TreeMap<>();
+		final Random random = new Random(4711);
+		SchedulerCheckpoint checkpoint = new SchedulerCheckpoint(file, 0, null);
+		checkpoint.open();
+		for (int i = 0;  i < 500;  i++) {
+			final long id = random.nextInt(1000);
+			final long[] values = {random.nextLong(), random.nextBoolean() ? Long.MIN_VALUE : random.nextLong(), random.nextLong()};
+			expected.put(Long.valueOf(id), values);
+			checkpoint.update(id, values[0], values[1], values[2]);
+		}
+		// Pending changes are visible before they are written.
+		assertRecords(expected, checkpoint);
+		checkpoint.flush();
+		assertEquals(expected.size(), checkpoint.getSize());
+		assertEquals(1, checkpoint.getRewrites());
+		assertEquals(SchedulerCheckpoint.HEADER_SIZE + expected.size() * SchedulerCheckpoint.RECORD_SIZE, Files.size(file));
+
+		// Updating existing records overwrites them in place.
+		for (Long id : expected.keySet()) {
+			if (random.nextInt(4) == 0) {
+				final long[] values = {random.nextLong(), random.nextLong(), random.nextLong()};
+				expected.put(id, values);
+				checkpoint.update(id.longValue(), values[0], values[1], values[2]);
+			}
+		}
+		checkpoint.flush();
+		assertEquals(1, checkpoint.getRewrites());
+		assertEquals(1, checkpoint.getWrites());
+		assertRecords(expected, checkpoint);
+
+		// Removing records rewrites the file.
+		checkpoint.removeIf((id) -> id % 3 == 0);
+		expected.keySet().removeIf((id) -> id.longValue() % 3 == 0);
+		checkpoint.remove(expected.firstKey().longValue());
+		expected.remove(expected.firstKey());
+		checkpoint.update(3, 1, 2, 3);
+		expected.put(Long.valueOf(3), new long[] {1, 2, 3});
+		assertRecords(expected, checkpoint);
+		checkpoint.close();
+		assertEquals(2, checkpoint.getRewrites());
+
+		checkpoint = new SchedulerCheckpoint(file, 0, null);
+		checkpoint.open();
+		assertEquals(expected.size(), checkpoint.getSize());
+		assertRecords(expected, checkpoint);
+		checkpoint.close();
+
+		// A truncated file is ignored.
+		final byte[] bytes = Files.readAllBytes(file);
+		Files.write(file, Arrays.copyOf(bytes, bytes.length - 5));
+		checkpoint = new SchedulerCheckpoint(file, 0, null);
+		checkpoint.open();
+		assertEquals(0, checkpoint.getSize());
+		assertNull(checkpoint.get(expected.firstKey().longValue()));
+		checkpoint.close();
+	}
+
+	/** A failed write is retried by the background thread, without further changes.
+	 */
+	@Test
+	void testFailedWrite() throws Exception {
+		final Path dir = Files.createTempDirectory(Tests.requireTestDirectory(SchedulerCheckpointTest.class), "checkpoint");
+		final Path file = dir.resolve("scheduler.ckp");
+		// A non-empty directory can't be replaced by the checkpoint file.
+		Files.createDirectories(file.resolve("blocker"));
+		SchedulerCheckpoint checkpoint = new SchedulerCheckpoint(file, 20, null);
+		checkpoint.open();
+		checkpoint.update(1, 2, 3, 4);
+		Thread.sleep(200);
+		assertEquals(0, checkpoint.getRewrites());
+		Files.delete(file.resolve("blocker"));
+		Files.delete(file);
+		for (int i = 0;  i < 250  &&  checkpoint.getRewrites() == 0;  i++) {
+			Thread.sleep(20);
+		}
+		assertEquals(1, checkpoint.getRewrites());
+		assertTrue(Files.isRegularFile(file));
+		checkpoint.close();
+
+		checkpoint = new SchedulerCheckpoint(file, 0, null);
+		checkpoint.open();
+		assertEquals(1, checkpoint.getSize());
+		assertEquals(2, checkpoint.get(1).getNextFireMillis());
+		checkpoint.close();
+	}
+
+	@Test
+	void testHash() {
+		final ZoneId berlin = ZoneId.of("Europe/Berlin");
+		assertEquals(SchedulerCheckpoint.hash("*/5 * * * *", berlin), SchedulerCheckpoint.hash("*/5 * * * *", berlin));
+		assertNotEquals(SchedulerCheckpoint.hash("*/5 * * * *", berlin), SchedulerCheckpoint.hash("*/5 * * * *", ZoneOffset.UTC));
+		assertNotEquals(SchedulerCheckpoint.hash("*/5 * * * *", berlin), SchedulerCheckpoint.hash("*/6 * * * *", berlin));
+	}
+}
@@ -0,0 +1,84 @@
+package com.github.jochenw.crond.core.sched;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeMap;
+
+import org.junit.jupiter.api.Test;
+
+class TimingWheelTest {
+	/** Compares the timing wheel with a sorted map of deadlines.
+	 */
+	@Test
+	void testRandomOperations() {
+		final Random random = new Random(4711);
+		final long start = 1_000_000_000L + random.nextInt(1000);
+		final TimingWheel<Integer> wheel = new TimingWheel<>(start);
+		final List<TimingWheel.Timer<Integer>> timers = new ArrayList<>();
+		final TreeMap<Integer,Long> expected = new TreeMap<>();
+		for (int i = 0;  i < 1000;  i++) {
+			timers.add(wheel.newTimer(Integer.valueOf(i)));
+		}
+		long now = start;
+		for (int round = 0;  round < 2000;  round++) {
+			for (int j = 0;  j < 20;  j++) {
+				final TimingWheel.Timer<Integer> timer = timers.get(random.nextInt(timers.size()));
+				if (random.nextInt(4) == 0) {
+					assertEquals(expected.remove(timer.getPayload()) != null, wheel.cancel(timer));
+				} else {
+					// Deadlines of all magnitudes, including past deadlines.
+					final long deadline = now - 5 + (long) Math.pow(2, random.nextDouble() * 40);
+					wheel.schedule(timer, deadline);
+					expected.put(timer.getPayload(), Long.valueOf(Math.max(deadline, now)));
+				}
+			}
+			assertEquals(expected.size(), wheel.size());
+			now += random.nextInt(3) == 0 ? random.nextInt(100000) : random.nextInt(100);
+			final long tick = now;
+			final List<Integer> fired = new ArrayList<>();
+			wheel.advance(tick, (t) -> {
+				assertTrue(t.getDeadline() <= tick, () -> t.getDeadline() + " > " + tick);
+				assertFalse(t.isPending());
+				fired.add(t.getPayload());
+			});
+			now = tick + 1;
+			final List<Integer> due = new ArrayList<>();
+			expected.forEach((k, v) -> {
+				if (v.longValue() <= tick) {
+					due.add(k);
+				}
+			});
+			fired.sort(null);
+			assertEquals(due, fired);
+			due.forEach(expected::remove);
+			assertEquals(now, wheel.getTick());
+		}
+	}
+
+	@Test
+	void testRescheduleWhileExpiring() {
+		final TimingWheel<String> wheel = new TimingWheel<>(0);
+		final TimingWheel.Timer<String> timer = wheel.newTimer("a");
+		wheel.schedule(timer, 10);
+		final List<Long> ticks = new ArrayList<>();
+		for (long t = 0;  t < 100;  t++) {
+			final long tick = t;
+			wheel.advance(tick, (tm) -> {
+				ticks.add(Long.valueOf(tick));
+				// A deadline in the past expires in the next tick.
+				wheel.schedule(tm, tick < 30 ? tick : tick + 1000);
+			});
+		}
+		assertEquals(21, ticks.size());
+		assertEquals(Long.valueOf(10), ticks.get(0));
+		assertEquals(Long.valueOf(30), ticks.get(20));
+		assertTrue(timer.isPending());
+		assertEquals(1030, timer.getDeadline());
+		wheel.advance(Long.MAX_VALUE / 2, (tm) -> ticks.add(Long.valueOf(tm.getDeadline())));
+		assertEquals(Long.valueOf(1030), ticks.get(21));
+		assertEquals(0, wheel.size());
+	}
+}
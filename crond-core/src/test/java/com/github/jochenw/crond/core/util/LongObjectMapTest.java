@@ -0,0 +1,98 @@
+package com.github.jochenw.crond.core.util;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import org.junit.jupiter.api.Test;
+
+class LongObjectMapTest {
+	@Test
+	void testDenseKeys() {
+		runRandomOperations(new Random(4711), 10000, 100000);
+	}
+
+	@Test
+	void testSparseKeys() {
+		final Random random = new Random(815);
+		final Map<Long,String> expected = new TreeMap<>(Long::compareUnsigned);
+		LongObjectMap<String> map = LongObjectMap.empty();
+		final long[] keys = {0, 1, 31, 32, 1023, 1024, Integer.MAX_VALUE, Long.MAX_VALUE, -1, Long.MIN_VALUE};
+		for (long key : keys) {
+			expected.put(Long.valueOf(key), String.valueOf(key));
+			map = map.put(key, String.valueOf(key));
+		}
+		for (int i = 0;  i < 1000;  i++) {
+			final long key = random.nextLong();
+			expected.put(Long.valueOf(key), String.valueOf(key));
+			map = map.put(key, String.valueOf(key));
+		}
+		assertSameContents(expected, map);
+		for (long key : keys) {
+			expected.remove(Long.valueOf(key));
+			map = map.remove(key);
+		}
+		assertSameContents(expected, map);
+	}
+
+	@Test
+	void testImmutability() {
+		final LongObjectMap<String> map0 = LongObjectMap.empty();
+		final LongObjectMap<String> map1 = map0.put(1, "1");
+		final LongObjectMap<String> map2 = map1.put(1, "2").put(100000, "3");
+		final LongObjectMap<String> map3 = map2.remove(1);
+		assertEquals(0, map0.size());
+		assertNull(map0.get(1));
+		assertEquals("1", map1.get(1));
+		assertNull(map1.get(100000));
+		assertEquals("2", map2.get(1));
+		assertEquals("3", map2.get(100000));
+		assertEquals(2, map2.size());
+		assertNull(map3.get(1));
+		assertEquals(1, map3.size());
+		assertSame(map3, map3.remove(1));
+		assertTrue(map3.remove(100000).isEmpty());
+	}
+
+	private void runRandomOperations(Random pRandom, int pMaxKey, int pOperations) {
+		final Map<Long,String> expected = new TreeMap<>();
+		LongObjectMap<String> map = LongObjectMap.empty();
+		for (int i = 0;  i < pOperations;  i++) {
+			final long key = pRandom.nextInt(pMaxKey);
+			if (pRandom.nextInt(3) == 0) {
+				expected.remove(Long.valueOf(key));
+				map = map.remove(key);
+			} else {
+				final String value = String.valueOf(i);
+				expected.put(Long.valueOf(key), value);
+				map = map.put(key, value);
+			}
+		}
+		assertSameContents(expected, map);
+	}
+
+	private void assertSameContents(Map<Long,String> pExpected, LongObjectMap<String> pActual) {
+		assertEquals(pExpected.size(), pActual.size());
+		pExpected.forEach((k,v) -> assertEquals(v, pActual.get(k.longValue())));
+		final List<Long> keys = new ArrayList<>();
+		final List<String> values = new ArrayList<>();
+		pActual.forEach((k,v) -> {
+			keys.add(Long.valueOf(k));
+			values.add(v);
+		});
+		assertEquals(new ArrayList<>(pExpected.keySet()), keys);
+		assertEquals(new ArrayList<>(pExpected.values()), values);
+		assertEquals(values, new ArrayList<>(pActual.values()));
+		for (int offset : new int[] {0, 1, 31, 32, 33, values.size()/2, values.size()-1, values.size(), values.size()+1}) {
+			if (offset >= 0) {
+				final List<String> list = new ArrayList<>();
+				pActual.iterator(offset).forEachRemaining(list::add);
+				assertEquals(values.subList(Math.min(offset, values.size()), values.size()), list);
+			}
+		}
+	}
+}
@@ -0,0 +1,87 @@
+package com.github.jochenw.crond.core.util;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.jupiter.api.Test;
+
+class PersistentHashMapTest {
+	/** A key with a poor hash code, which enforces collisions.
+	 */
+	private static class Key {
+		private final int value;
+		Key(int pValue) { value = pValue; }
+		@Override public int hashCode() { return value % 7; }
+		@Override public boolean equals(Object pOther) {
+			return pOther instanceof Key  &&  ((Key) pOther).value == value;
+		}
+	}
+
+	@Test
+	void testRandomOperations() {
+		final Random random = new Random(4711);
+		final Map<Long,String> expected = new HashMap<>();
+		PersistentHashMap<Long,String> map = PersistentHashMap.empty();
+		for (int i = 0;  i < 100000;  i++) {
+			final Long key = Long.valueOf(random.nextInt(5000));
+			if (random.nextInt(3) == 0) {
+				expected.remove(key);
+				map = map.remove(key);
+			} else {
+				final String value = String.valueOf(i);
+				expected.put(key, value);
+				map = map.put(key, value);
+			}
+		}
+		assertSameContents(expected, map);
+	}
+
+	@Test
+	void testCollisions() {
+		final Map<Key,String> expected = new HashMap<>();
+		PersistentHashMap<Key,String> map = PersistentHashMap.empty();
+		for (int i = 0;  i < 200;  i++) {
+			expected.put(new Key(i), String.valueOf(i));
+			map = map.put(new Key(i), String.valueOf(i));
+		}
+		for (int i = 0;  i < 200;  i += 3) {
+			expected.remove(new Key(i));
+			map = map.remove(new Key(i));
+		}
+		assertSameContents(expected, map);
+	}
+
+	@Test
+	void testImmutability() {
+		final PersistentHashMap<String,String> map0 = PersistentHashMap.empty();
+		final PersistentHashMap<String,String> map1 = map0.put("a", "1");
+		final PersistentHashMap<String,String> map2 = map1.put("a", "2").put("b", "3");
+		final PersistentHashMap<String,String> map3 = map2.remove("a");
+		assertEquals(0, map0.size());
+		assertNull(map0.get("a"));
+		assertEquals("1", map1.get("a"));
+		assertEquals(1, map1.size());
+		assertEquals("2", map2.get("a"));
+		assertEquals(2, map2.size());
+		assertNull(map3.get("a"));
+		assertEquals("3", map3.get("b"));
+		assertSame(map3, map3.remove("a"));
+		assertSame(map2, map2.put("b", map2.get("b")));
+	}
+
+	private <K> void assertSameContents(Map<K,String> pExpected, PersistentHashMap<K,String> pActual) {
+		assertEquals(pExpected.size(), pActual.size());
+		pExpected.forEach((k,v) -> assertEquals(v, pActual.get(k)));
+		final Set<String> values = new HashSet<>();
+		pActual.values().forEach((v) -> assertTrue(values.add(v)));
+		assertEquals(new HashSet<>(pExpected.values()), values);
+		final Map<K,String> entries = new HashMap<>();
+		pActual.forEach((k,v) -> assertNull(entries.put(k, v)));
+		assertEquals(pExpected, entries);
+	}
+}
@@ -0,0 +1,259 @@
+package com.github.jochenw.crond.core.util;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.junit.jupiter.api.Test;
+
+import com.github.jochenw.crond.core.api.IModel.User;
+import com.github.jochenw.crond.core.api.ModelQuery;
+import com.github.jochenw.crond.core.api.UserQuery;
+import com.github.jochenw.crond.core.beans.UserImpl;
+
+class QueryResultCacheTest {
+	private final Map<Long,User> users = new TreeMap<>();
+	private int executions, counts, pages;
+
+	private List<User> execute(UserQuery pQuery) {
+		++executions;
+		final ModelQuery.Selector<User> selector = pQuery.newSelector();
+		users.values().forEach(selector::accept);
+		return selector.getResult();
+	}
+
+	private int count(UserQuery pQuery) {
+		++counts;
+		return (int) users.values().stream().filter(pQuery.asPredicate()).count();
+	}
+
+	private List<User> page(UserQuery pQuery, int pOffset, int pLimit) {
+		++pages;
+		final ModelQuery.Selector<User> selector = pQuery.toBuilder().offset(pOffset).limit(pLimit).build().newSelector();
+		users.values().forEach(selector::accept);
+		return selector.getResult();
+	}
+
+	private User put(long pId, String pName) {
+		final User user = UserImpl.of(Long.valueOf(pId), "u" + pId + "@example.com", pName);
+		users.put(user.getId(), user);
+		return user;
+	}
+
+	private static List<String> names(List<User> pUsers) {
+		final List<String> names = new ArrayList<>();
+		pUsers.forEach((u) -> names.add(u.getName()));
+		return names;
+	}
+
+	@Test
+	void testPatching() {
+		final QueryResultCache<User,UserQuery> cache = new QueryResultCache<>(this::execute,
+				(id) -> users.get(Long.valueOf(id)), 1000000, 10);
+		put(1, "Dora");
+		put(2, "Anton");
+		put(3, "Caesar");
+		put(4, "Xaver");
+		final UserQuery query = UserQuery.builder().filter(UserQuery.Field.NAME, "a").sort(UserQuery.Field.NAME, true).build();
+		assertEquals(4, cache.count(query));
+		assertEquals(List.of("Anton", "Caesar"), names(cache.fetch(query, 0, 2)));
+		assertEquals(List.of("Dora", "Xaver"), names(cache.fetch(UserQuery.builder().filter(UserQuery.Field.NAME, "a")
+				.sort(UserQuery.Field.NAME, true).build(), 2, 10)));
+		assertEquals(1, executions);
+		assertEquals(2, cache.getHits());
+
+		assertTrue(cache.added(put(5, "Berta")));
+		assertFalse(cache.added(put(6, "Emil"))); // Doesn't match the filter
+		assertEquals(List.of("Anton", "Berta", "Caesar", "Dora", "Xaver"), names(cache.fetch(query, 0, 10)));
+		assertTrue(cache.updated(put(2, "Zacharias")));
+		assertEquals(List.of("Berta", "Caesar", "Dora", "Xaver", "Zacharias"), names(cache.fetch(query, 0, 10)));
+		assertTrue(cache.updated(put(4, "Xeno"))); // No longer matches the filter
+		assertTrue(cache.updated(put(6, "Emma"))); // Matches the filter now
+		assertEquals(List.of("Berta", "Caesar", "Dora", "Emma", "Zacharias"), names(cache.fetch(query, 0, 10)));
+		assertTrue(cache.deleted(users.remove(Long.valueOf(3))));
+		assertEquals(4, cache.count(query));
+		assertEquals(List.of("Berta", "Dora", "Emma", "Zacharias"), names(cache.fetch(query, 0, 10)));
+		assertFalse(cache.updated(put(1, "Dorothea"))); // Keeps its position
+		assertFalse(cache.deleted(users.remove(Long.valueOf(4)))); // Isn't in the result
+		assertEquals(List.of("Berta", "Dorothea", "Emma", "Zacharias"), names(cache.fetch(query, 0, 10)));
+		assertEquals(execute(query), cache.fetch(query, 0, 10));
+		assertEquals(2, executions); // Including the verification above.
+		cache.clear();
+		assertEquals(4, cache.count(query));
+		assertEquals(3, executions);
+	}
+
+	/** An add event arrives after the query, which already returned the added object.
+	 */
+	@Test
+	void testLateAddEvent() {
+		final QueryResultCache<User,UserQuery> cache = new QueryResultCache<>(this::execute,
+				(id) -> users.get(Long.valueOf(id)), 1000000, 10);
+		put(1, "Dora");
+		put(2, "Anton");
+		final User berta = put(3, "Berta");
+		final UserQuery query = UserQuery.builder().sort(UserQuery.Field.NAME, true).build();
+		assertEquals(List.of("Anton", "Berta", "Dora"), names(cache.fetch(query, 0, 10)));
+		assertFalse(cache.added(berta));
+		assertEquals(3, cache.count(query));
+		assertEquals(List.of("Anton", "Berta", "Dora"), names(cache.fetch(query, 0, 10)));
+		assertEquals(List.of("Dora"), names(cache.fetch(query, 2, 10)));
+		assertEquals(1, executions);
+	}
+
+	@Test
+	void testEviction() {
+		for (int i = 0;  i < 1000;  i++) {
+			put(i, "User " + i);
+		}
+		final QueryResultCache<User,UserQuery> cache = new QueryResultCache<>(this::execute,
+				(id) -> users.get(Long.valueOf(id)), 20000, 3);
+		final UserQuery q1 = UserQuery.builder().filter(UserQuery.Field.NAME, "1").build();
+		final UserQuery q2 = UserQuery.builder().filter(UserQuery.Field.NAME, "2").build();
+		final UserQuery q3 = UserQuery.builder().filter(UserQuery.Field.NAME, "3").build();
+		final UserQuery q4 = UserQuery.builder().filter(UserQuery.Field.NAME, "4").build();
+		final UserQuery all = UserQuery.all();
+		cache.count(q1);
+		cache.count(q2);
+		cache.count(q3);
+		cache.count(q1);
+		cache.count(q4); // Evicts q2, the least recently used query.
+		assertEquals(3, cache.getEntryCount());
+		executions = 0;
+		cache.count(q1);
+		cache.count(q2);
+		assertEquals(1, executions);
+		cache.count(all); // 8000 bytes, which exceeds the limit together with the others.
+		assertTrue(cache.getBytes() <= 20000);
+		assertEquals(1000, cache.count(all));
+	}
+
+	/** A long sequence of changes keeps the cached results (and their
+	 * position indexes) equal to the query results, and the objects are
+	 * looked up without holding the lock.
+	 */
+	@Test
+	@SuppressWarnings("unchecked")
+	void testRandomChanges() {
+		for (int i = 0;  i < 200;  i++) {
+			put(i, "User " + (i * 7919 % 200));
+		}
+		final QueryResultCache<User,UserQuery>[] holder = new QueryResultCache[1];
+		final QueryResultCache<User,UserQuery> cache = new QueryResultCache<>(this::execute, (id) -> {
+			assertFalse(Thread.holdsLock(holder[0]));
+			return users.get(Long.valueOf(id));
+		}, 1000000, 10);
+		holder[0] = cache;
+		final UserQuery query = UserQuery.builder().filter(UserQuery.Field.NAME, "1").sort(UserQuery.Field.NAME, true).build();
+		final UserQuery all = UserQuery.builder().sort(UserQuery.Field.NAME, false).build();
+		cache.count(query);
+		cache.count(all);
+		final java.util.Random random = new java.util.Random(42);
+		for (int i = 0;  i < 2000;  i++) {
+			final long id = random.nextInt(300);
+			final User user = users.get(Long.valueOf(id));
+			if (user == null) {
+				cache.added(put(id, "User " + random.nextInt(1000)));
+			} else if (random.nextInt(4) == 0) {
+				users.remove(user.getId());
+				cache.deleted(user);
+			} else {
+				cache.updated(put(id, "User " + random.nextInt(1000)));
+			}
+		}
+		executions = 0;
+		final List<User> queryResult = cache.fetch(query, 0, Integer.MAX_VALUE);
+		final List<User> allResult = cache.fetch(all, 0, Integer.MAX_VALUE);
+		assertEquals(0, executions);
+		assertEquals(execute(query), queryResult);
+		assertEquals(execute(all), allResult);
+	}
+
+	/** A result, which is too large for the cache, is answered by a
+	 * count query, and a window of ids.
+	 */
+	@Test
+	void testWindow() {
+		for (int i = 0;  i < 1000;  i++) {
+			put(i, "User " + i);
+		}
+		final QueryResultCache<User,UserQuery> cache = new QueryResultCache<>(this::execute, this::count, this::page,
+				(id) -> users.get(Long.valueOf(id)), 2000, 10, 100);
+		final UserQuery query = UserQuery.builder().sort(UserQuery.Field.NAME, false).build();
+		assertEquals(1000, cache.count(query));
+		assertEquals(execute(query).subList(0, 50), cache.fetch(query, 0, 50));
+		assertEquals(execute(query).subList(50, 100), cache.fetch(query, 50, 50));
+		assertEquals(1, counts);
+		assertEquals(1, pages);
+		assertEquals(execute(query).subList(500, 550), cache.fetch(query, 500, 50));
+		assertEquals(2, pages);
+		assertEquals(execute(query).subList(980, 1000), cache.fetch(query, 980, 50));
+		assertEquals(3, pages);
+		assertTrue(cache.getBytes() <= 2000);
+		// A change before the window moves it.
+		assertTrue(cache.added(put(1000, "User 1000")));
+		assertEquals(1001, cache.count(query));
+		assertEquals(1, counts);
+		assertEquals(execute(query).subList(0, 50), cache.fetch(query, 0, 50));
+		// Small results are kept as a whole.
+		executions = 0;
+		final UserQuery small = UserQuery.builder().filter(UserQuery.Field.NAME, "User 99").build();
+		assertEquals(11, cache.count(small));
+		assertEquals(execute(small), cache.fetch(small, 0, 50));
+		assertEquals(2, executions); // Including the verification above.
+	}
+
+	/** Changes of a result, which is too large for the cache, patch the
+	 * window, so that a refresh of the grid executes no queries.
+	 */
+	@Test
+	void testWindowPatching() {
+		for (int i = 0;  i < 1000;  i++) {
+			put(i, "User " + i);
+		}
+		final QueryResultCache<User,UserQuery> cache = new QueryResultCache<>(this::execute, this::count, this::page,
+				(id) -> users.get(Long.valueOf(id)), 2000, 10, 100);
+		final UserQuery query = UserQuery.builder().sort(UserQuery.Field.NAME, true).build();
+		final Runnable refresh = () -> {
+			assertEquals(users.size(), cache.count(query));
+			assertEquals(execute(query).subList(0, 50), cache.fetch(query, 0, 50));
+		};
+		refresh.run();
+		assertEquals(1, counts);
+		assertEquals(1, pages);
+		// Inside the window.
+		assertTrue(cache.added(put(1000, "User 00")));
+		refresh.run();
+		// After the window.
+		assertTrue(cache.added(put(1001, "Zeno")));
+		refresh.run();
+		users.remove(Long.valueOf(999));
+		assertTrue(cache.deleted(UserImpl.of(Long.valueOf(999), "u999@example.com", "User 999")));
+		refresh.run();
+		// Moved within the window, and removed from it.
+		assertTrue(cache.updated(put(execute(query).get(10).getId().longValue(), "User 05")));
+		refresh.run();
+		final User deleted = execute(query).get(20);
+		users.remove(deleted.getId());
+		assertTrue(cache.deleted(deleted));
+		refresh.run();
+		assertEquals(1, counts);
+		assertEquals(1, pages);
+		assertTrue(cache.getBytes() <= 2000);
+		// Before another window.
+		assertEquals(execute(query).subList(500, 550), cache.fetch(query, 500, 50));
+		assertEquals(2, pages);
+		assertTrue(cache.added(put(1002, "Anton")));
+		assertEquals(execute(query).subList(500, 550), cache.fetch(query, 500, 50));
+		assertEquals(2, pages);
+		// The previous position of an updated object outside the window is
+		// unknown, so the window is discarded, without requesting a refresh.
+		assertFalse(cache.updated(put(execute(query).get(900).getId().longValue(), "Zora")));
+		assertEquals(execute(query).subList(500, 550), cache.fetch(query, 500, 50));
+		assertEquals(2, counts);
+		assertEquals(3, pages);
+	}
+}
@@ -0,0 +1,103 @@
+package com.github.jochenw.crond.core.util;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.function.Predicate;
+
+import org.junit.jupiter.api.Test;
+
+import com.github.jochenw.crond.core.api.ModelQuery;
+
+class TrigramIndexTest {
+	private static final String ALPHABET = "abcABC .@-\u00fc\u00dc\u0130iKk\u212a\u03a3\u03c3";
+
+	private static String randomString(Random pRandom, int pMaxLength) {
+		final StringBuilder sb = new StringBuilder();
+		final int len = pRandom.nextInt(pMaxLength+1);
+		for (int i = 0;  i < len;  i++) {
+			sb.append(ALPHABET.charAt(pRandom.nextInt(ALPHABET.length())));
+		}
+		return sb.toString();
+	}
+
+	/** Derives a pattern from the given value: A substring, with randomized
+	 * case, and possibly wildcards.
+	 */
+	private static String randomPattern(Random pRandom, String pValue) {
+		final int start = pRandom.nextInt(pValue.length()+1);
+		final int end = start + pRandom.nextInt(pValue.length()-start+1);
+		final StringBuilder sb = new StringBuilder();
+		for (char c : pValue.substring(start, end).toCharArray()) {
+			switch (pRandom.nextInt(12)) {
+			  case 0: sb.append('?'); break;
+			  case 1: sb.append('*'); break;
+			  case 2: sb.append(Character.toUpperCase(c)); break;
+			  case 3: sb.append(Character.toLowerCase(c)); break;
+			  default: sb.append(c); break;
+			}
+		}
+		switch (pRandom.nextInt(4)) {
+		  case 0: return sb.toString();
+		  case 1: return "*" + sb;
+		  case 2: return sb + "%";
+		  default: return pRandom.nextBoolean() ? sb.toString() : "*" + sb + "*";
+		}
+	}
+
+	@Test
+	void testCandidatesContainMatches() {
+		final Random random = new Random(1234);
+		final String[] values = new String[2000];
+		final TrigramIndex index = new TrigramIndex();
+		for (int i = 0;  i < values.length;  i++) {
+			values[i] = random.nextInt(20) == 0 ? null : randomString(random, 12);
+			index.add(i, values[i]);
+		}
+		assertCandidates(random, values, index);
+		for (int i = 0;  i < values.length;  i += 2) {
+			index.remove(i, values[i]);
+			values[i] = null;
+		}
+		assertCandidates(random, values, index);
+	}
+
+	private void assertCandidates(Random pRandom, String[] pValues, TrigramIndex pIndex) {
+		int resolved = 0;
+		for (int i = 0;  i < 3000;  i++) {
+			final String value = pValues[pRandom.nextInt(pValues.length)];
+			final String pattern = randomPattern(pRandom, value == null ? "abc" : value);
+			if (pattern.isEmpty()) {
+				continue;
+			}
+			final long[] candidates = pIndex.find(pattern);
+			if (candidates == null) {
+				continue;
+			}
+			++resolved;
+			final Predicate<String> matcher = ModelQuery.matcher(pattern);
+			for (int j = 0;  j < pValues.length;  j++) {
+				if (pValues[j] != null  &&  matcher.test(pValues[j])) {
+					assertTrue(Arrays.binarySearch(candidates, j) >= 0, () -> "Missing candidate for " + pattern);
+				}
+			}
+		}
+		assertTrue(resolved > 500);
+	}
+
+	@Test
+	void testPrefix() {
+		final TrigramIndex index = new TrigramIndex();
+		index.add(1, "Anton");
+		index.add(2, "Berta");
+		index.add(3, "anna");
+		assertArrayEquals(new long[] {1, 3}, index.find("a*"));
+		assertArrayEquals(new long[] {1}, index.find("An*n"));
+		assertArrayEquals(new long[] {2}, index.find("%TA"));
+		assertArrayEquals(new long[] {1}, index.find("nto"));
+		assertArrayEquals(new long[0], index.find("xyz"));
+		assertNull(index.find("an"));
+		assertArrayEquals(new long[] {3}, TrigramIndex.intersect(new long[] {1, 3, 5}, new long[] {2, 3, 4}));
+	}
+}
@@ -1,11 +1,13 @@
 package com.github.jochenw.crond.vdnui;
 
 import com.vaadin.flow.component.page.AppShellConfigurator;
+import com.vaadin.flow.component.page.Push;
 import com.vaadin.flow.server.PWA;
 
 /**
  * This class is used to configure the generated html host page used by the app
  */
+@Push
 @PWA(name = "Cron Server (Vaadin UI)", shortName = "Cron Server (Vaadin UI)")
 public class AppShell implements AppShellConfigurator {
     
@@ -28,6 +28,8 @@ import com.github.jochenw.afw.di.api.IComponentFactory;
 import com.github.jochenw.afw.di.api.ILifecycleController;
 import com.github.jochenw.afw.di.api.Module;
 import com.github.jochenw.crond.core.api.IModel;
+import com.github.jochenw.crond.core.impl.JdbcModel;
+import com.github.jochenw.crond.core.impl.MappedFileModel;
 import com.github.jochenw.crond.core.impl.XmlFileModel;
 
 import jakarta.servlet.ServletContext;
@@ -155,17 +157,51 @@ public class CrondUiInitializer implements ServletContextListener {
 		final Properties properties = new Properties();
 		properties.putAll(factoryProperties);
 		properties.putAll(instanceProperties);
-		final Path modelFilePath = Data.requirePath(properties, "crondui.model.file");
+		final Module modelModule = newModelModule(properties);
 		final Module module = (b) -> {
 			b.bind(ILogFactory.class).toInstance(lf);
 			b.bind(Properties.class).toInstance(properties);
 			b.bind(Properties.class, "factory").toInstance(factoryProperties);
 			b.bind(Properties.class, "instance").toInstance(instanceProperties);
 			b.bind(IPropertyFactory.class).toInstance(new DefaultPropertyFactory(properties));
-			b.bind(IModel.class).to(XmlFileModel.class);
-			b.bind(Path.class, "xml.model.file").toInstance(modelFilePath);
+			modelModule.configure(b);
 		};
 		final Application application = Application.of(module, "jakarta", new AfwCoreOnTheFlyBinder());
 		return application.getComponentFactory();
 	}
+
+	/** Creates the module, which binds the {@link IModel}. The backend is
+	 * chosen by the property {@code crondui.model.type}: "xml" (the default,
+	 * an {@link XmlFileModel}, which uses the model file
+	 * {@code crondui.model.file}), "mapped" (a {@link MappedFileModel},
+	 * which uses the directory {@code crondui.model.dir}), or "jdbc"
+	 * (a {@link JdbcModel}, which is configured by the properties
+	 * {@code jdbc.model.*}).
+	 * @param pProperties The configuration properties.
+	 * @return The module, which binds the {@link IModel}.
+	 */
+	protected Module newModelModule(Properties pProperties) {
+		final String modelType = pProperties.getProperty("crondui.model.type", "xml").trim().toLowerCase();
+		switch (modelType) {
+		  case "xml": {
+			final Path modelFilePath = Data.requirePath(pProperties, "crondui.model.file");
+			return (b) -> {
+				b.bind(IModel.class).to(XmlFileModel.class);
+				b.bind(Path.class, "xml.model.file").toInstance(modelFilePath);
+			};
+		  }
+		  case "mapped": {
+			final Path modelDirPath = Data.requirePath(pProperties, "crondui.model.dir");
+			return (b) -> {
+				b.bind(IModel.class).to(MappedFileModel.class);
+				b.bind(Path.class, "mapped.model.dir").toInstance(modelDirPath);
+			};
+		  }
+		  case "jdbc":
+			return (b) -> b.bind(IModel.class).to(JdbcModel.class);
+		  default:
+			throw new IllegalStateException("Invalid value for property crondui.model.type: Expected xml, mapped,"
+					+ " or jdbc, got " + modelType);
+		}
+	}
 }
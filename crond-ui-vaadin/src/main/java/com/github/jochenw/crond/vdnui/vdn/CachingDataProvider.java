@@ -0,0 +1,250 @@
+package com.github.jochenw.crond.vdnui.vdn;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.function.Function;
+import java.util.stream.Stream;
+
+import com.github.jochenw.afw.core.util.Objects;
+import com.github.jochenw.crond.core.api.IModel;
+import com.github.jochenw.crond.core.api.IModel.Job;
+import com.github.jochenw.crond.core.api.IModel.User;
+import com.github.jochenw.crond.core.api.JobQuery;
+import com.github.jochenw.crond.core.api.ModelQuery;
+import com.github.jochenw.crond.core.api.UserQuery;
+import com.github.jochenw.crond.core.util.QueryResultCache;
+import com.vaadin.flow.component.Component;
+import com.vaadin.flow.data.provider.AbstractBackEndDataProvider;
+import com.vaadin.flow.data.provider.Query;
+
+/** A data provider, which answers the count, and fetch requests of a
+ * grid from a {@link QueryResultCache}, so that the count request, and
+ * all fetch requests for the same filter, and sort order, share a single
+ * model query. The cache is patched by a {@link IModel.Listener}, which
+ * is registered, while the owning component is attached.
+ *
+ * Model changes are pushed into the grid as deltas: An update, which
+ * doesn't move the object within the cached results, refreshes the
+ * affected item only. Other changes (insertions, deletions, and moves)
+ * trigger a {@link #refreshAll()}, which is answered from the patched
+ * cache, without querying the model again. The changes are collected,
+ * and applied in a single server push per UI by the {@link UiPushBatcher}.
+ *
+ * The cache size is limited by the properties
+ * {@code crondui.cache.maxBytes} (default 4 MB per data provider), and
+ * {@code crondui.cache.maxEntries} (default 16). Of a result, which is
+ * too large for the cache, only the number of results (obtained by
+ * {@link IModel#countUsers(UserQuery)}, or {@link IModel#countJobs(JobQuery)}),
+ * and a window of {@code crondui.cache.windowSize} ids (default 1000)
+ * around the requested page are kept. The window is patched as well, so
+ * that a {@link #refreshAll()} is answered from the cache, unless it
+ * has been discarded by the update of an object outside of the window.
+ * @param <O> The model object type.
+ * @param <Q> The model query type.
+ * @param <T> The grids item type.
+ * @param <F> The grids filter type.
+ */
+public class CachingDataProvider<O,Q extends ModelQuery<O,?>,T,F> extends AbstractBackEndDataProvider<T,F> {
+	private static final long serialVersionUID = -3580432264715417032L;
+
+	private final transient QueryResultCache<O,Q> cache;
+	private final transient IModel.Listener listener;
+	private final transient Properties properties;
+	private final Function<Query<T,F>,Q> queryMapper;
+	private final Function<O,T> converter;
+	private final transient Runnable flushAction = this::flush;
+	private final transient Map<Object,T> pendingItems = new LinkedHashMap<>();
+	private transient boolean pendingRefreshAll;
+	private transient volatile UiPushBatcher batcher;
+
+	protected CachingDataProvider(QueryResultCache<O,Q> pCache, Properties pProperties,
+			                      Function<CachingDataProvider<O,Q,T,F>,IModel.Listener> pListenerFactory,
+			                      Function<Query<T,F>,Q> pQueryMapper, Function<O,T> pConverter) {
+		cache = Objects.requireNonNull(pCache, "Cache");
+		properties = Objects.requireNonNull(pProperties, "Properties");
+		queryMapper = Objects.requireNonNull(pQueryMapper, "Query mapper");
+		converter = Objects.requireNonNull(pConverter, "Converter");
+		listener = pListenerFactory.apply(this);
+	}
+
+	private static long getMaxBytes(Properties pProperties) {
+		return Long.parseLong(pProperties.getProperty("crondui.cache.maxBytes", "4194304"));
+	}
+
+	private static int getMaxEntries(Properties pProperties) {
+		return Integer.parseInt(pProperties.getProperty("crondui.cache.maxEntries", "16"));
+	}
+
+	private static int getWindowSize(Properties pProperties) {
+		return Integer.parseInt(pProperties.getProperty("crondui.cache.windowSize", "1000"));
+	}
+
+	/** Creates a data provider for users.
+	 * @param <T> The grids item type.
+	 * @param <F> The grids filter type.
+	 * @param pModel The model.
+	 * @param pProperties The configuration properties.
+	 * @param pQueryMapper Converts a grid query into a model query. The
+	 *   model query must have neither an offset, nor a limit.
+	 * @param pConverter Converts a user into a grid item.
+	 * @return The created data provider.
+	 */
+	public static <T,F> CachingDataProvider<User,UserQuery,T,F> ofUsers(IModel pModel, Properties pProperties,
+			Function<Query<T,F>,UserQuery> pQueryMapper, Function<User,T> pConverter) {
+		final QueryResultCache<User,UserQuery> cache = new QueryResultCache<>(pModel::queryUsers, pModel::countUsers,
+				(q, offset, limit) -> pModel.queryUsers(q.toBuilder().offset(offset).limit(limit).build()),
+				(id) -> pModel.getUserById(id), getMaxBytes(pProperties), getMaxEntries(pProperties),
+				getWindowSize(pProperties));
+		return new CachingDataProvider<>(cache, pProperties, (p) -> new IModel.Listener() {
+			@Override
+			public void userAdded(User pUser) { p.added(pUser); }
+			@Override
+			public void userUpdated(User pUser) { p.updated(pUser); }
+			@Override
+			public void userDeleted(User pUser) { p.deleted(pUser); }
+			@Override
+			public void initialized() { p.reset(); }
+		}, pQueryMapper, pConverter);
+	}
+
+	/** Creates a data provider for jobs.
+	 * @param <T> The grids item type.
+	 * @param <F> The grids filter type.
+	 * @param pModel The model.
+	 * @param pProperties The configuration properties.
+	 * @param pQueryMapper Converts a grid query into a model query. The
+	 *   model query must have neither an offset, nor a limit.
+	 * @param pConverter Converts a job into a grid item.
+	 * @return The created data provider.
+	 */
+	public static <T,F> CachingDataProvider<Job,JobQuery,T,F> ofJobs(IModel pModel, Properties pProperties,
+			Function<Query<T,F>,JobQuery> pQueryMapper, Function<Job,T> pConverter) {
+		final QueryResultCache<Job,JobQuery> cache = new QueryResultCache<>(pModel::queryJobs, pModel::countJobs,
+				(q, offset, limit) -> pModel.queryJobs(q.toBuilder().offset(offset).limit(limit).build()),
+				(id) -> pModel.getJobById(id), getMaxBytes(pProperties), getMaxEntries(pProperties),
+				getWindowSize(pProperties));
+		return new CachingDataProvider<>(cache, pProperties, (p) -> new IModel.Listener() {
+			@Override
+			public void jobAdded(Job pJob) { p.added(pJob); }
+			@Override
+			public void jobUpdated(Job pJob) { p.updated(pJob); }
+			@Override
+			public void jobDeleted(Job pJob) { p.deleted(pJob); }
+			@Override
+			public void initialized() { p.reset(); }
+		}, pQueryMapper, pConverter);
+	}
+
+	/** Registers the cache listener with the given model, while the
+	 * given component is attached. The cache is cleared upon attaching,
+	 * because notifications may have been missed.
+	 * @param pModel The model.
+	 * @param pComponent The component, which owns this data provider.
+	 */
+	public void register(IModel pModel, Component pComponent) {
+		pComponent.addAttachListener((e) -> {
+			cache.clear();
+			batcher = UiPushBatcher.of(e.getUI(), properties);
+			pModel.addListener(listener);
+		});
+		pComponent.addDetachListener((e) -> {
+			pModel.removeListener(listener);
+			batcher = null;
+		});
+	}
+
+	/** Called, if an object has been added to the model.
+	 * @param pObject The added object.
+	 */
+	protected void added(O pObject) {
+		if (cache.added(pObject)) {
+			submit(null);
+		}
+	}
+
+	/** Called, if an object has been updated in the model.
+	 * @param pObject The updated object.
+	 */
+	protected void updated(O pObject) {
+		if (cache.updated(pObject)) {
+			submit(null);
+		} else {
+			submit(converter.apply(pObject));
+		}
+	}
+
+	/** Called, if an object has been deleted from the model.
+	 * @param pObject The deleted object.
+	 */
+	protected void deleted(O pObject) {
+		if (cache.deleted(pObject)) {
+			submit(null);
+		}
+	}
+
+	/** Called, if the model has been reinitialized.
+	 */
+	protected void reset() {
+		cache.clear();
+		submit(null);
+	}
+
+	/** Records a pending change, and schedules the next push.
+	 * @param pItem The item, which is being refreshed, or null, if all
+	 *   items are being refreshed.
+	 */
+	private void submit(T pItem) {
+		final UiPushBatcher b = batcher;
+		if (b == null) {
+			return;
+		}
+		synchronized (pendingItems) {
+			if (pItem == null) {
+				pendingRefreshAll = true;
+				pendingItems.clear();
+			} else if (!pendingRefreshAll) {
+				pendingItems.put(getId(pItem), pItem);
+			}
+		}
+		b.submit(flushAction);
+	}
+
+	/** Applies the pending changes. Invoked on the UI thread.
+	 */
+	private void flush() {
+		final boolean all;
+		final List<T> items;
+		synchronized (pendingItems) {
+			all = pendingRefreshAll;
+			items = new ArrayList<>(pendingItems.values());
+			pendingRefreshAll = false;
+			pendingItems.clear();
+		}
+		if (all) {
+			refreshAll();
+		} else {
+			items.forEach(this::refreshItem);
+		}
+	}
+
+	/** Returns the cache.
+	 * @return The cache.
+	 */
+	public QueryResultCache<O,Q> getCache() {
+		return cache;
+	}
+
+	@Override
+	protected Stream<T> fetchFromBackEnd(Query<T,F> pQuery) {
+		final Q query = queryMapper.apply(pQuery);
+		return cache.fetch(query, pQuery.getOffset(), pQuery.getLimit()).stream().map(converter);
+	}
+
+	@Override
+	protected int sizeInBackEnd(Query<T,F> pQuery) {
+		return cache.count(queryMapper.apply(pQuery));
+	}
+}
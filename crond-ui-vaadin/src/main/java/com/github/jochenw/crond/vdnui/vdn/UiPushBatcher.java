@@ -0,0 +1,90 @@
+package com.github.jochenw.crond.vdnui.vdn;
+
+import java.util.LinkedHashSet;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import com.github.jochenw.afw.core.util.Objects;
+import com.vaadin.flow.component.ComponentUtil;
+import com.vaadin.flow.component.UI;
+import com.vaadin.flow.component.UIDetachedException;
+
+/** Collects the UI updates, which are triggered by model notifications,
+ * and applies them in a single {@link UI#access(com.vaadin.flow.server.Command)}
+ * call, so that a burst of notifications results in a single server push.
+ * There is one instance per UI, which is obtained by invoking
+ * {@link #of(UI, Properties)}.
+ *
+ * The delay between the first notification, and the push is configured
+ * by the property {@code crondui.push.delay} (milliseconds, default 250).
+ */
+public class UiPushBatcher {
+	private static final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor((r) -> {
+		final Thread t = new Thread(r, "crondui-push");
+		t.setDaemon(true);
+		return t;
+	});
+
+	private final UI ui;
+	private final long delay;
+	private final Set<Runnable> pending = new LinkedHashSet<>();
+
+	private UiPushBatcher(UI pUi, long pDelay) {
+		ui = Objects.requireNonNull(pUi, "UI");
+		delay = pDelay;
+	}
+
+	/** Returns the instance for the given UI, creating it, if necessary.
+	 * Must be invoked with the UI's session being locked, for example
+	 * from an attach listener.
+	 * @param pUi The UI.
+	 * @param pProperties The configuration properties.
+	 * @return The instance for the given UI.
+	 */
+	public static UiPushBatcher of(UI pUi, Properties pProperties) {
+		UiPushBatcher batcher = ComponentUtil.getData(pUi, UiPushBatcher.class);
+		if (batcher == null) {
+			final long delay = Long.parseLong(pProperties.getProperty("crondui.push.delay", "250"));
+			batcher = new UiPushBatcher(pUi, delay);
+			ComponentUtil.setData(pUi, UiPushBatcher.class, batcher);
+		}
+		return batcher;
+	}
+
+	/** Schedules the given action for the next push. Submitting the same
+	 * action multiple times before the push has no additional effect.
+	 * May be invoked from any thread.
+	 * @param pAction The action, which is being executed on the UI thread,
+	 *   with the session being locked.
+	 */
+	public void submit(Runnable pAction) {
+		final boolean schedule;
+		synchronized (pending) {
+			schedule = pending.isEmpty();
+			pending.add(pAction);
+		}
+		if (schedule) {
+			scheduler.schedule(this::flush, delay, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	private void flush() {
+		final Runnable[] actions;
+		synchronized (pending) {
+			actions = pending.toArray(new Runnable[pending.size()]);
+			pending.clear();
+		}
+		try {
+			ui.access(() -> {
+				for (Runnable action : actions) {
+					action.run();
+				}
+			});
+		} catch (UIDetachedException e) {
+			// The UI has been closed, so there is nothing to update.
+		}
+	}
+}
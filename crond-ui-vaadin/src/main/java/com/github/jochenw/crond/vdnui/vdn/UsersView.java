@@ -1,23 +1,16 @@
 package com.github.jochenw.crond.vdnui.vdn;
 
-import java.util.ArrayList;
-import java.util.Comparator;
 import java.util.List;
+import java.util.Properties;
 import java.util.function.Consumer;
-import java.util.function.Function;
-import java.util.function.Predicate;
-import java.util.stream.Stream;
 
-import com.github.jochenw.afw.core.util.MutableBoolean;
-import com.github.jochenw.afw.core.util.MutableInteger;
 import com.github.jochenw.afw.core.util.Strings;
 import com.github.jochenw.afw.di.api.IComponentFactory;
 import com.github.jochenw.crond.core.api.IModel;
 import com.github.jochenw.crond.core.api.IModel.User;
+import com.github.jochenw.crond.core.api.UserQuery;
 import com.github.jochenw.crond.core.beans.UserImpl;
 import com.github.jochenw.crond.vdnui.MainView;
-import com.github.jochenw.crond.vdnui.vdn.Filters.ComparatorBuilder;
-import com.github.jochenw.crond.vdnui.vdn.Filters.PredicateBuilder;
 import com.vaadin.flow.component.button.Button;
 import com.vaadin.flow.component.dialog.Dialog;
 import com.vaadin.flow.component.formlayout.FormLayout;
@@ -27,8 +20,6 @@ import com.vaadin.flow.component.orderedlayout.HorizontalLayout;
 import com.vaadin.flow.component.orderedlayout.VerticalLayout;
 import com.vaadin.flow.component.textfield.TextField;
 import com.vaadin.flow.data.binder.Binder;
-import com.vaadin.flow.data.provider.CallbackDataProvider.CountCallback;
-import com.vaadin.flow.data.provider.CallbackDataProvider.FetchCallback;
 import com.vaadin.flow.data.provider.DataProvider;
 import com.vaadin.flow.data.provider.Query;
 import com.vaadin.flow.data.provider.QuerySortOrder;
@@ -62,6 +53,16 @@ public class UsersView extends VerticalLayout {
 		public String getName() {
 			return name;
 		}
+
+		@Override
+		public boolean equals(Object pOther) {
+			return pOther instanceof UiUser  &&  id.equals(((UiUser) pOther).id);
+		}
+
+		@Override
+		public int hashCode() {
+			return id.hashCode();
+		}
 	}
 
 	private final MainView mainView;
@@ -193,75 +194,37 @@ public class UsersView extends VerticalLayout {
 	}
 	
 	protected DataProvider<UiUser,Filter> newDataProvider() {
-		final FetchCallback<UiUser,Filter> fetchCallback = this::fetchUsers;
-		final CountCallback<UiUser,Filter> countCallback = this::countUsers;
-		return DataProvider.fromFilteringCallbacks(fetchCallback, countCallback);
+		final Properties properties = mainView.getComponentFactory().requireInstance(Properties.class);
+		final CachingDataProvider<User,UserQuery,UiUser,Filter> dataProvider =
+				CachingDataProvider.ofUsers(model, properties, this::asUserQuery, UiUser::new);
+		dataProvider.register(model, this);
+		return dataProvider;
 	}
 
-	protected int countUsers(Query<UiUser,Filter> pQuery) {
-		final Predicate<User> predicate = asPredicate(pQuery);
-		MutableInteger count = new MutableInteger();
-		model.forEachUser((u) -> {
-			if (predicate.test(u)) {
-				count.inc();
-			}
-		});
-		return count.intValue();
-	}
-
-	protected Stream<UiUser> fetchUsers(Query<UiUser,Filter> pQuery) {
-		final int limit = pQuery.getLimit();
-		final int offset = pQuery.getOffset();
-		final Predicate<User> predicate = asPredicate(pQuery);
-		final Comparator<User> comparator = asComparator(pQuery);
-		final List<User> list = new ArrayList<>();
-		model.forEachUser((u) -> {
-			if (predicate == null  ||  predicate.test(u)) {
-				list.add(u);
-			}
-		});
-		if (comparator != null) {
-			list.sort(comparator);
-		}
-		final Predicate<User> limitPredicate = Filters.limit(offset, limit);
-		return list.stream().filter(limitPredicate).map((u) -> new UiUser(u));
-	}
-
-	final Predicate<User> asPredicate(Query<UiUser,Filter> pQuery) {
-	    final PredicateBuilder<User> pb =  Filters.predicate();
-	    return pb.add((User u) -> u.getId().toString(), filter.id)
-	    		 .add(User::getName, filter.name)
-	    		 .add(User::getEmail, filter.email)
-	    		 .build();
-	}
-
-	final Comparator<User> asComparator(Query<UiUser,Filter> pQuery) {
+	/** Converts the given grid query into a user query. Offset, and limit
+	 * are applied by the {@link CachingDataProvider}, which uses the user
+	 * query as a cache key, and requests pages of large results by a copy
+	 * of it.
+	 */
+	final UserQuery asUserQuery(Query<UiUser,Filter> pQuery) {
+		final UserQuery.Builder qb = UserQuery.builder()
+				.filter(UserQuery.Field.ID, filter.id)
+				.filter(UserQuery.Field.NAME, filter.name)
+				.filter(UserQuery.Field.EMAIL, filter.email);
 		final List<QuerySortOrder> list = pQuery.getSortOrders();
-		if (list == null  ||  list.isEmpty()) {
-			return null;
-		}
-		final ComparatorBuilder<User> cb = Filters.comparator();
-		
-		list.forEach((qso) -> {
-			final Function<User,String> getter;
-			switch (qso.getSorted()) {
-			case "id": {
-					getter = (u) -> u.getId().toString();
-				}
-				break;
-			case "name": {
-					getter = User::getName;
+		if (list != null) {
+			list.forEach((qso) -> {
+				final UserQuery.Field field;
+				switch (qso.getSorted()) {
+				case "id": field = UserQuery.Field.ID; break;
+				case "name": field = UserQuery.Field.NAME; break;
+				case "email": field = UserQuery.Field.EMAIL; break;
+				default: throw new IllegalStateException("Invalid filter property: " + qso.getSorted());
 				}
-				break;
-			case "email": {
-				    getter = User::getEmail;
-			    }
-			    break;
-			default: throw new IllegalStateException("Invalid filter property: " + qso.getSorted());
-			}
-			cb.add(getter, qso.getDirection() == SortDirection.ASCENDING);
-		});
-		return cb.build();
+				qb.sort(field, qso.getDirection() == SortDirection.ASCENDING);
+			});
+		}
+		return qb.build();
 	}
 
 	protected int compareStrings(String pValue1, String pValue2) {